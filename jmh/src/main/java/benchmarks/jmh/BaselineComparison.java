@@ -0,0 +1,99 @@
+package benchmarks.jmh;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Compares a JMH run against the committed baseline, both written with -rf json
+ * Prints every benchmark the two runs share with its change, where positive always means faster,
+ * and exits with 1 if any got slower by more than the threshold.
+ *
+ * Usage: java -cp jmh/target/benchmarks.jar benchmarks.jmh.BaselineComparison baseline.json current.json [thresholdPercent]
+ */
+public class BaselineComparison {
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison baseline.json current.json [thresholdPercent]");
+            System.exit(2);
+        }
+        Map<String, Score> baseline = read(Path.of(args[0]));
+        Map<String, Score> current = read(Path.of(args[1]));
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10;
+
+        int regressions = 0;
+        System.out.printf("%-70s %14s %14s %9s%n", "benchmark", "baseline", "current", "change");
+        for (Map.Entry<String, Score> entry : current.entrySet()) {
+            Score before = baseline.get(entry.getKey());
+            if (before == null) {
+                continue;
+            }
+            Score after = entry.getValue();
+            double change = after.speedupOver(before);
+            boolean regressed = change < -threshold;
+            if (regressed) {
+                regressions++;
+            }
+            System.out.printf("%-70s %14.3f %14.3f %+8.1f%%%s%n", entry.getKey(), before.value, after.value,
+                    change, regressed ? "  REGRESSION" : "");
+        }
+        System.out.println(regressions + " regression(s) beyond " + threshold + "%");
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Read a JMH JSON result file
+     * @return Benchmark with its parameters -> primary score
+     */
+    private static Map<String, Score> read(Path file) throws IOException {
+        Map<String, Score> scores = new LinkedHashMap<>();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            JsonArray runs = JsonParser.parseReader(reader).getAsJsonArray();
+            for (JsonElement element : runs) {
+                JsonObject run = element.getAsJsonObject();
+                StringBuilder key = new StringBuilder(run.get("benchmark").getAsString()
+                        .replace("benchmarks.jmh.", ""));
+                if (run.has("params")) {
+                    // Sorted, so the key doesn't depend on the order JMH wrote them in
+                    Map<String, String> params = new TreeMap<>();
+                    run.getAsJsonObject("params").entrySet()
+                            .forEach(param -> params.put(param.getKey(), param.getValue().getAsString()));
+                    key.append(params);
+                }
+                JsonObject metric = run.getAsJsonObject("primaryMetric");
+                scores.put(key.toString(), new Score(metric.get("score").getAsDouble(),
+                        "thrpt".equals(run.get("mode").getAsString())));
+            }
+        }
+        return scores;
+    }
+
+    private static final class Score {
+        final double value;
+        // Throughput grows when things get faster, times shrink
+        final boolean higherIsBetter;
+
+        Score(double value, boolean higherIsBetter) {
+            this.value = value;
+            this.higherIsBetter = higherIsBetter;
+        }
+
+        /**
+         * @return How much faster this score is than an earlier one, in percent
+         */
+        double speedupOver(Score before) {
+            double ratio = higherIsBetter ? value / before.value : before.value / value;
+            return (ratio - 1) * 100;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package benchmarks.jmh;
+
+import models.Document;
+import models.FieldValue;
+import org.openjdk.jmh.annotations.*;
+import persistence.Durability;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * One counter incremented from every core at once, three ways: reading the field and writing it back,
+ * writing a {@link FieldValue#increment} transform, and {@link SamDatabase#increment}, which only locks
+ * the counter's document
+ * The contended variants run 8 threads whatever the number of cores. Each iteration starts from a
+ * fresh database, so the log writer's backlog doesn't carry over, and prints how many of its
+ * increments were lost, which only reading and writing back does.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(Threads.MAX)
+public class CounterBenchmark {
+    private static final String COLLECTION = "pages";
+    private static final String ID = "counter";
+
+    private SamDatabase database;
+    private final LongAdder increments = new LongAdder();
+
+    @Setup(Level.Iteration)
+    public void open() {
+        DatabaseFiles.delete();
+        database = new SamDatabase(new DatabaseConfig().defaultDurability(Durability.ASYNC));
+        database.batch().set(COLLECTION, ID, Map.of("views", 0L)).commit();
+        increments.reset();
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        long lost = increments.sum() - database.getDocument(COLLECTION, ID).getLong("views");
+        System.out.println("lost " + lost + " of " + increments.sum() + " increments");
+        database.close();
+        DatabaseFiles.delete();
+    }
+
+    @Benchmark
+    public boolean readModifyWrite() {
+        increments.increment();
+        Document page = database.getDocument(COLLECTION, ID);
+        return database.updateDocumentField(COLLECTION, ID, "views", page.getLong("views") + 1);
+    }
+
+    @Benchmark
+    public boolean transform() {
+        increments.increment();
+        return database.updateDocumentField(COLLECTION, ID, "views", FieldValue.increment(1));
+    }
+
+    @Benchmark
+    public boolean increment() {
+        increments.increment();
+        return database.increment(COLLECTION, ID, "views", 1);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean transformContended() {
+        return transform();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public boolean incrementContended() {
+        return increment();
+    }
+}
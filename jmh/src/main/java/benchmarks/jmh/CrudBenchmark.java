@@ -0,0 +1,85 @@
+package benchmarks.jmh;
+
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+import persistence.Durability;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+import samDatabase.WriteBatch;
+
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-document operations on a collection of {@link #DOCUMENTS} users
+ * Writes go through the write-ahead log at the durability under test. Every iteration starts
+ * from a fresh database, so documents added under generated IDs don't pile up across iterations.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CrudBenchmark {
+    private static final String COLLECTION = "users";
+    private static final int DOCUMENTS = 100_000;
+    private static final int BATCH = 1000;
+
+    @Param({"ASYNC", "FLUSH"})
+    public Durability durability;
+
+    private SamDatabase database;
+
+    @Setup(Level.Iteration)
+    public void open() {
+        DatabaseFiles.delete();
+        database = new SamDatabase(new DatabaseConfig().defaultDurability(durability));
+        for (int start = 0; start < DOCUMENTS; start += BATCH) {
+            WriteBatch batch = database.batch();
+            for (int i = start; i < start + BATCH; i++) {
+                batch.set(COLLECTION, key(i), Map.of("name", "User " + i, "age", (long) (18 + i % 60)));
+            }
+            batch.commit();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void close() {
+        database.close();
+        DatabaseFiles.delete();
+    }
+
+    /**
+     * Replace an existing document, so the collection keeps its size
+     */
+    @Benchmark
+    public Document addDocument() {
+        return database.addDocument(COLLECTION, key(ThreadLocalRandom.current().nextInt(DOCUMENTS)));
+    }
+
+    /**
+     * Add a document under a generated ID, into a collection of its own so the users keep their size
+     */
+    @Benchmark
+    public Document addDocumentWithAutoId() {
+        return database.addDocumentWithAutoId("events");
+    }
+
+    @Benchmark
+    public Document getDocument() {
+        return database.getDocument(COLLECTION, key(ThreadLocalRandom.current().nextInt(DOCUMENTS)));
+    }
+
+    @Benchmark
+    public boolean updateDocumentField() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        return database.updateDocumentField(COLLECTION, key(random.nextInt(DOCUMENTS)), "age",
+                (long) random.nextInt(18, 78));
+    }
+
+    private static String key(int i) {
+        return "user" + i;
+    }
+}
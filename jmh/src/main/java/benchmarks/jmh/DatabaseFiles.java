@@ -0,0 +1,40 @@
+package benchmarks.jmh;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * The files a SamDatabase keeps in the working directory
+ * Benchmarks start from and leave behind an empty database, so run them in a scratch directory.
+ */
+final class DatabaseFiles {
+    private static final String PREFIX = "sam_database.";
+
+    private DatabaseFiles() {
+    }
+
+    /**
+     * Delete every database file and directory of the working directory
+     */
+    static void delete() {
+        File[] files = new File(".").listFiles((directory, name) -> name.startsWith(PREFIX));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            try (Stream<Path> paths = Files.walk(file.toPath())) {
+                // Children before their directory
+                for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                    Files.delete(path);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+package benchmarks.jmh;
+
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Heap taken per document by the shape-based representation against the map-based one it replaced,
+ * for small user documents like the ones Main creates
+ * Each operation builds every document and prints the heap they still use per document, measured
+ * around the operation with full collections. Field names are fresh strings for every
+ * document, as they are after a Gson load. The fork's heap is fixed so it isn't resized between readings.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class DocumentFootprintBenchmark {
+    private static final String[] FIELD_NAMES = {"name", "age", "email", "active"};
+
+    @Param({"maps", "shapes"})
+    public String layout;
+
+    @Param({"500000"})
+    public int documents;
+
+    // Built up front and shared, so only the representation is measured
+    private Object[][] values;
+    private Object[] built;
+    private long usedBefore;
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        values = new Object[documents][];
+        for (int i = 0; i < documents; i++) {
+            values[i] = new Object[] {"User " + i, 18 + i % 60, "user" + i + "@example.com", i % 3 == 0};
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void measureBefore() throws InterruptedException {
+        built = null;
+        usedBefore = usedMemory();
+    }
+
+    @TearDown(Level.Invocation)
+    public void measureAfter() throws InterruptedException {
+        System.out.println(layout + ": " + (usedMemory() - usedBefore) / documents + " bytes per document");
+        built = null;
+    }
+
+    @Benchmark
+    public Object[] build() {
+        Object[] result = new Object[documents];
+        for (int i = 0; i < documents; i++) {
+            if ("maps".equals(layout)) {
+                result[i] = new MapDocument("user" + i, fields(values[i]));
+            } else {
+                Document document = new Document("user" + i);
+                document.update(fields(values[i]));
+                result[i] = document;
+            }
+        }
+        // Kept reachable until measured
+        built = result;
+        return result;
+    }
+
+    private static Map<String, Object> fields(Object[] values) {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < FIELD_NAMES.length; i++) {
+            fields.put(new String(FIELD_NAMES[i]), values[i]);
+        }
+        return fields;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * Layout of a document before shapes: a map per version and an eager nested-collection map
+     */
+    @SuppressWarnings("unused")
+    private static final class MapDocument {
+        private final String id;
+        private final Map<String, Map<String, MapDocument>> nestedCollections;
+        private volatile MapVersion head;
+        private volatile Object deleted;
+        private volatile Object observer;
+        private volatile Object clock;
+
+        MapDocument(String id, Map<String, Object> fields) {
+            this.id = id;
+            this.nestedCollections = new ConcurrentHashMap<>();
+            this.head = new MapVersion(id, new HashMap<>(fields));
+        }
+    }
+
+    @SuppressWarnings("unused")
+    private static final class MapVersion {
+        private final String id;
+        private final long version;
+        private final Map<String, Object> data;
+        private final Object commit;
+        private volatile MapVersion previous;
+        private final Object pager;
+        private final Object owner;
+
+        MapVersion(String id, Map<String, Object> data) {
+            this.id = id;
+            this.version = 1;
+            this.data = Collections.unmodifiableMap(data);
+            this.commit = null;
+            this.pager = null;
+            this.owner = null;
+        }
+    }
+}
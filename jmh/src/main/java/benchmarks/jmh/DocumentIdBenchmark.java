@@ -0,0 +1,60 @@
+package benchmarks.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import samDatabase.SamDatabase;
+
+import java.time.Instant;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * generateDocumentId from one thread and from several at once, against the timestamp and UUID prefix
+ * IDs it replaced, which draw on the shared SecureRandom
+ * Generating never locks, so throughput per thread should hold up under contention;
+ * on fewer cores than threads the contended numbers mostly show scheduling.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DocumentIdBenchmark {
+    private SamDatabase database;
+
+    @Setup(Level.Trial)
+    public void open() {
+        DatabaseFiles.delete();
+        database = new SamDatabase();
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        database.close();
+        DatabaseFiles.delete();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String generateDocumentId() {
+        return database.generateDocumentId();
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String generateDocumentIdContended() {
+        return database.generateDocumentId();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public String uuidId() {
+        return Instant.now().toEpochMilli() + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public String uuidIdContended() {
+        return Instant.now().toEpochMilli() + "-" + UUID.randomUUID().toString().substring(0, 8);
+    }
+}
@@ -0,0 +1,75 @@
+package benchmarks.jmh;
+
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+import persistence.Durability;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+import samDatabase.WriteBatch;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Opening a database saved by a checkpoint, at several sizes
+ * open measures the constructor, which maps the snapshot and leaves collections to be decoded on
+ * first use; openAndRead also decodes the collection, the cost the first request after a start pays.
+ * Each run opens the database once, so runs are single shots.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class LoadBenchmark {
+    private static final String COLLECTION = "users";
+    private static final int BATCH = 1000;
+
+    @Param({"10000", "100000", "1000000"})
+    public int documents;
+
+    private SamDatabase database;
+
+    @Setup(Level.Trial)
+    public void save() {
+        DatabaseFiles.delete();
+        try (SamDatabase writer = new SamDatabase(new DatabaseConfig().defaultDurability(Durability.ASYNC))) {
+            for (int start = 0; start < documents; start += BATCH) {
+                WriteBatch batch = writer.batch();
+                for (int i = start; i < Math.min(start + BATCH, documents); i++) {
+                    batch.set(COLLECTION, "user" + i, Map.of("name", "User " + i, "age", (long) (18 + i % 60),
+                            "email", "user" + i + "@example.com", "active", i % 3 == 0));
+                }
+                batch.commit();
+            }
+            // Leave a snapshot and an empty log, so opening doesn't replay anything
+            writer.checkpoint();
+        }
+    }
+
+    @TearDown(Level.Invocation)
+    public void closeDatabase() {
+        if (database != null) {
+            database.close();
+            database = null;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void delete() {
+        DatabaseFiles.delete();
+    }
+
+    @Benchmark
+    public SamDatabase open() {
+        database = new SamDatabase();
+        return database;
+    }
+
+    @Benchmark
+    public Document openAndRead() {
+        database = new SamDatabase();
+        return database.getDocument(COLLECTION, "user0");
+    }
+}
@@ -0,0 +1,68 @@
+package benchmarks.jmh;
+
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+import persistence.Durability;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+import samDatabase.WriteBatch;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * findDocuments on one equality clause, by collection size, selectivity and whether the field is indexed
+ * A selectivity of 0.01 means each value is held by 1% of the documents.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class QueryBenchmark {
+    private static final String COLLECTION = "users";
+    private static final int BATCH = 1000;
+
+    @Param({"1000", "100000"})
+    public int documents;
+
+    @Param({"0.001", "0.01", "0.1"})
+    public double selectivity;
+
+    @Param({"false", "true"})
+    public boolean indexed;
+
+    private SamDatabase database;
+    private int values;
+
+    @Setup(Level.Trial)
+    public void open() {
+        DatabaseFiles.delete();
+        database = new SamDatabase(new DatabaseConfig().defaultDurability(Durability.ASYNC));
+        values = Math.max(1, (int) Math.round(1 / selectivity));
+        for (int start = 0; start < documents; start += BATCH) {
+            WriteBatch batch = database.batch();
+            for (int i = start; i < Math.min(start + BATCH, documents); i++) {
+                batch.set(COLLECTION, "user" + i, Map.of("bucket", (long) (i % values), "name", "User " + i));
+            }
+            batch.commit();
+        }
+        if (indexed) {
+            database.createIndex(COLLECTION, "bucket");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() {
+        database.close();
+        DatabaseFiles.delete();
+    }
+
+    @Benchmark
+    public List<Document> findDocuments() {
+        return database.findDocuments(COLLECTION, "bucket", (long) ThreadLocalRandom.current().nextInt(values));
+    }
+}
@@ -0,0 +1,65 @@
+package benchmarks.jmh;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+import persistence.DocumentTypeAdapter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JSON encoding of one document through {@link DocumentTypeAdapter}, as the JSON snapshots and exports use it
+ * The document has a few typed fields and a nested collection, like the users of Main and Features.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SerializationBenchmark {
+    private Gson gson;
+    private Document document;
+    private JsonElement tree;
+    private String json;
+
+    @Setup
+    public void prepare() {
+        gson = new GsonBuilder().registerTypeAdapter(Document.class, new DocumentTypeAdapter()).create();
+        document = new Document("user42");
+        document.set("name", "User 42");
+        document.set("age", 42L);
+        document.set("score", 97.5);
+        document.set("active", true);
+        document.set("email", "user42@example.com");
+        for (int i = 0; i < 3; i++) {
+            Document order = document.addNestedDocument("orders", "order" + i);
+            order.set("total", i * 1.5);
+            order.set("status", "shipped");
+        }
+        tree = gson.toJsonTree(document, Document.class);
+        json = gson.toJson(tree);
+    }
+
+    @Benchmark
+    public JsonElement serialize() {
+        return gson.toJsonTree(document, Document.class);
+    }
+
+    @Benchmark
+    public String serializeToString() {
+        return gson.toJson(document, Document.class);
+    }
+
+    @Benchmark
+    public Document deserialize() {
+        return gson.fromJson(tree, Document.class);
+    }
+
+    @Benchmark
+    public Document deserializeFromString() {
+        return gson.fromJson(json, Document.class);
+    }
+}
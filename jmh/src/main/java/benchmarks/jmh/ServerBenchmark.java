@@ -0,0 +1,129 @@
+package benchmarks.jmh;
+
+import org.openjdk.jmh.annotations.*;
+import persistence.Durability;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+import server.SamClient;
+import server.SamServer;
+import server.ServerConfig;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many loopback connections served at once, one operation being {@link #REQUESTS} requests on every connection
+ * Every connection runs on its own virtual thread and keeps a window of requests in flight,
+ * so the numbers cover pipelining and the server's thread per connection.
+ *
+ * Both ends of every connection live in this process and take a file descriptor each; raise
+ * the limit for thousands of connections, e.g. ulimit -n 100000.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ServerBenchmark {
+    private static final String COLLECTION = "items";
+    private static final int DOCUMENTS = 1000;
+    private static final int REQUESTS = 200;
+
+    @Param({"1000"})
+    public int connections;
+
+    @Param({"16"})
+    public int depth;
+
+    private SamDatabase database;
+    private SamServer server;
+    private List<SamClient> clients;
+
+    @Setup(Level.Trial)
+    public void open() throws IOException {
+        DatabaseFiles.delete();
+        database = new SamDatabase(new DatabaseConfig().defaultDurability(Durability.ASYNC));
+        server = new SamServer(database, new ServerConfig().port(0));
+        for (int i = 0; i < DOCUMENTS; i++) {
+            database.batch().set(COLLECTION, "item-" + i, Map.of("views", 0L, "name", "Item " + i)).commit();
+        }
+        clients = new ArrayList<>(connections);
+        for (int i = 0; i < connections; i++) {
+            clients.add(new SamClient("127.0.0.1", server.getPort()));
+        }
+        for (SamClient client : clients) {
+            client.ping();
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void close() throws IOException {
+        for (SamClient client : clients) {
+            client.close();
+        }
+        server.close();
+        database.close();
+        DatabaseFiles.delete();
+    }
+
+    @Benchmark
+    public void read() throws Exception {
+        run((client, i) -> client.getAsync(COLLECTION, key(i)));
+    }
+
+    @Benchmark
+    public void write() throws Exception {
+        run((client, i) -> client.updateAsync(COLLECTION, key(i), Map.of("views", (long) i)));
+    }
+
+    @Benchmark
+    public void increment() throws Exception {
+        run((client, i) -> client.incrementAsync(COLLECTION, key(i), "views", 1));
+    }
+
+    private interface Request {
+        CompletableFuture<?> send(SamClient client, int sequence);
+    }
+
+    private static String key(int sequence) {
+        return "item-" + Math.floorMod(sequence * 31, DOCUMENTS);
+    }
+
+    private void run(Request request) throws Exception {
+        try (ExecutorService executor = Executors.newVirtualThreadPerTaskExecutor()) {
+            List<Future<?>> futures = new ArrayList<>(clients.size());
+            for (int c = 0; c < clients.size(); c++) {
+                SamClient client = clients.get(c);
+                int offset = c * REQUESTS;
+                futures.add(executor.submit(() -> {
+                    CompletableFuture<?>[] window = new CompletableFuture<?>[depth];
+                    for (int i = 0; i < REQUESTS; i++) {
+                        // Keep depth requests in flight, waiting only for the oldest
+                        int slot = i % depth;
+                        if (window[slot] != null) {
+                            window[slot].join();
+                        }
+                        window[slot] = request.send(client, offset + i);
+                    }
+                    for (CompletableFuture<?> pending : window) {
+                        if (pending != null) {
+                            pending.join();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        }
+    }
+}
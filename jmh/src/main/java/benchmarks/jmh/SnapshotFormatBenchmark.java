@@ -0,0 +1,72 @@
+package benchmarks.jmh;
+
+import models.Document;
+import org.openjdk.jmh.annotations.*;
+import persistence.BinarySnapshotFormat;
+import persistence.JsonSnapshotFormat;
+import persistence.SnapshotFormat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Saving and loading a whole snapshot in the pretty-printed JSON format against the binary one
+ * The users are shaped like the ones of Main and Features, every tenth with a nested "orders" collection.
+ * Setup prints the size of each format's snapshot.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotFormatBenchmark {
+    @Param({"json", "binary"})
+    public String format;
+
+    @Param({"100000"})
+    public int documents;
+
+    private SnapshotFormat snapshotFormat;
+    private Map<String, Map<String, Document>> collections;
+    private byte[] encoded;
+
+    @Setup
+    public void prepare() throws IOException {
+        snapshotFormat = "json".equals(format) ? new JsonSnapshotFormat() : new BinarySnapshotFormat();
+        Map<String, Document> users = new ConcurrentHashMap<>();
+        for (int i = 0; i < documents; i++) {
+            Document user = new Document("user" + i);
+            user.set("name", "User " + i);
+            user.set("age", (long) (18 + i % 60));
+            user.set("email", "user" + i + "@example.com");
+            user.set("active", i % 3 == 0);
+            if (i % 10 == 0) {
+                Document order = user.addNestedDocument("orders", "order" + i);
+                order.set("total", i * 1.5);
+                order.set("status", "shipped");
+            }
+            users.put(user.getId(), user);
+        }
+        collections = new ConcurrentHashMap<>();
+        collections.put("users", users);
+        encoded = save().toByteArray();
+        System.out.println(format + " snapshot: " + encoded.length + " bytes");
+    }
+
+    @Benchmark
+    public ByteArrayOutputStream save() throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        snapshotFormat.write(collections, out);
+        return out;
+    }
+
+    @Benchmark
+    public Map<String, Map<String, Document>> load() throws IOException {
+        return snapshotFormat.read(new ByteArrayInputStream(encoded));
+    }
+}
@@ -1,12 +1,19 @@
 import models.Document;
 import samDatabase.SamDatabase;
+import server.SamServer;
+import server.ServerConfig;
 
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
 
 public class Main {
     private SamDatabase db;
     private Scanner scanner;
+    private SamServer server;
 
     public Main() {
         this.db = new SamDatabase();
@@ -40,8 +47,15 @@ public class Main {
                 case 7:
                     manageNestedDocuments();
                     break;
+                case 8:
+                    startServer();
+                    break;
                 case 0:
                     System.out.println("Exiting Sam's Mini Firebase Terminal Interface. Goodbye!");
+                    if (server != null) {
+                        server.close();
+                    }
+                    db.close(); // Write out anything still queued
                     return;
                 default:
                     System.out.println("Invalid choice. Please try again.");
@@ -58,6 +72,7 @@ public class Main {
         System.out.println("5. Find Documents");
         System.out.println("6. Update Document");
         System.out.println("7. Manage Nested Documents");
+        System.out.println("8. Start Network Server");
         System.out.println("0. Exit");
         System.out.print("Enter your choice: ");
     }
@@ -85,19 +100,18 @@ public class Main {
         System.out.print("Would you like to generate an ID automatically? (y/n): ");
         String choice = scanner.nextLine();
 
-        Document document;
-        String documentId; // Declare documentId outside the if/else block
+        String documentId;
 
         if (choice.toLowerCase().startsWith("y")) {
-            document = db.addDocumentWithAutoId(collectionName);
-            documentId = document.getId(); // Store the generated ID
+            documentId = db.generateDocumentId();
             System.out.println("Generated document ID: " + documentId);
         } else {
             System.out.print("Enter document ID: ");
-            documentId = scanner.nextLine(); // Store the manually entered ID
-            document = db.addDocument(collectionName, documentId);
+            documentId = scanner.nextLine();
         }
 
+        // Collect every field first so the document is written once
+        Map<String, Object> fields = new LinkedHashMap<>();
         while (true) {
             System.out.print("Enter field name (or 'done' to finish): ");
             String fieldName = scanner.nextLine();
@@ -111,13 +125,18 @@ public class Main {
 
             // Try to parse numeric values
             try {
-                int intValue = Integer.parseInt(fieldValue);
-                db.updateDocumentField(collectionName, documentId, fieldName, intValue);
+                fields.put(fieldName, Integer.parseInt(fieldValue));
             } catch (NumberFormatException e) {
-                db.updateDocumentField(collectionName, documentId, fieldName, fieldValue);
+                fields.put(fieldName, fieldValue);
             }
         }
 
+        try {
+            db.batch().set(collectionName, documentId, fields).commit();
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
         System.out.println("Document added successfully!");
     }
 
@@ -148,13 +167,13 @@ public class Main {
         System.out.print("Enter collection name: ");
         String collectionName = scanner.nextLine();
 
-        List<Document> documents = db.getDocuments(collectionName);
+        Iterator<Document> documents = db.streamDocuments(collectionName).iterator();
 
-        if (documents.isEmpty()) {
+        if (!documents.hasNext()) {
             System.out.println("No documents found in the collection.");
         } else {
             System.out.println("Documents in collection:");
-            documents.forEach(System.out::println);
+            documents.forEachRemaining(System.out::println);
         }
     }
 
@@ -177,6 +196,26 @@ public class Main {
         }
     }
 
+    /**
+     * Serve the database over HTTP and the binary protocol while the menu keeps running
+     */
+    private void startServer() {
+        if (server != null) {
+            System.out.println("Server already listening on port " + server.getPort());
+            return;
+        }
+        System.out.print("Enter port (blank for 7070): ");
+        String port = scanner.nextLine().trim();
+        try {
+            server = new SamServer(db, new ServerConfig().port(port.isEmpty() ? 7070 : Integer.parseInt(port)));
+            System.out.println("Server listening on 127.0.0.1:" + server.getPort());
+        } catch (NumberFormatException e) {
+            System.out.println("Invalid port.");
+        } catch (IOException e) {
+            System.out.println("Could not start server: " + e.getMessage());
+        }
+    }
+
     /**
      * Find documents based on a field condition.
      */
@@ -287,7 +326,13 @@ public class Main {
         System.out.print("Enter nested document ID: ");
         String nestedDocumentId = scanner.nextLine();
 
-        Document nestedDocument = parentDocument.addNestedDocument(nestedCollectionName, nestedDocumentId);
+        Document nestedDocument;
+        try {
+            nestedDocument = parentDocument.addNestedDocument(nestedCollectionName, nestedDocumentId);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            return;
+        }
 
         while (true) {
             System.out.print("Enter nested document field name (or 'done' to finish): ");
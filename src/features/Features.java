@@ -44,9 +44,8 @@ public class Features {
      * Print all users in the database
      */
     private void printAllUsers() {
-        List<Document> allUsers = db.getDocuments("users");
         System.out.println("All Users:");
-        allUsers.forEach(user -> System.out.println(user));
+        db.streamDocuments("users").forEach(user -> System.out.println(user));
     }
 
     /**
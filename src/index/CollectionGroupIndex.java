@@ -0,0 +1,99 @@
+package index;
+
+import models.Document;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Every document of every collection with a given name, at any depth
+ * Kept up to date as documents and nested documents come and go, so a collection-group
+ * query reads its group directly instead of walking all the parents.
+ * Members are keyed by their full path, e.g. posts/p1/comments/c1, because the same ID can
+ * appear under several parents.
+ */
+public class CollectionGroupIndex {
+    // Collection name -> path -> document
+    private final Map<String, Map<String, Document>> groups;
+
+    // Document -> where it is, so documents nested under it later can find their path
+    private final Map<Document, Member> members;
+
+    public CollectionGroupIndex() {
+        this.groups = new ConcurrentHashMap<>();
+        this.members = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Add a document to the group of the collection holding it
+     * @param collectionName Name of the collection holding the document
+     * @param path Full path of the document
+     * @param document The document
+     */
+    public void add(String collectionName, String path, Document document) {
+        Member previous = members.put(document, new Member(collectionName, path));
+        if (previous != null && !previous.path.equals(path)) {
+            removeMember(previous, document);
+        }
+        groups.computeIfAbsent(collectionName, name -> new ConcurrentHashMap<>()).put(path, document);
+    }
+
+    /**
+     * Remove a document from its group
+     * @param document The document
+     */
+    public void remove(Document document) {
+        Member member = members.remove(document);
+        if (member != null) {
+            removeMember(member, document);
+        }
+    }
+
+    /**
+     * @param document A document
+     * @return Its full path, null if it is not in any group
+     */
+    public String getPath(Document document) {
+        Member member = members.get(document);
+        return member != null ? member.path : null;
+    }
+
+    /**
+     * @param collectionName Name shared by the collections of the group
+     * @return Path -> document for every member, empty if there are none
+     */
+    public Map<String, Document> getGroup(String collectionName) {
+        Map<String, Document> group = groups.get(collectionName);
+        return group != null ? Collections.unmodifiableMap(group) : Collections.emptyMap();
+    }
+
+    /**
+     * Build the path of a document from its parent's
+     * @param parentPath Path of the parent document, null for a top-level collection
+     * @param collectionName Name of the collection holding the document
+     * @param documentId ID of the document
+     * @return The path
+     */
+    public static String path(String parentPath, String collectionName, String documentId) {
+        String path = collectionName + "/" + documentId;
+        return parentPath != null ? parentPath + "/" + path : path;
+    }
+
+    private void removeMember(Member member, Document document) {
+        Map<String, Document> group = groups.get(member.collectionName);
+        if (group != null) {
+            group.remove(member.path, document);
+        }
+    }
+
+    private static class Member {
+        final String collectionName;
+        final String path;
+
+        Member(String collectionName, String path) {
+            this.collectionName = collectionName;
+            this.path = path;
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package index;
+
+import models.Document;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Index on several fields of one collection, for queries with equality clauses on every field
+ * but the last and a range or orderBy on the last one, e.g. "city == x, age > 25, order by age".
+ *
+ * The values of the leading fields pick a bucket through a hash map, and each bucket is an
+ * ordered skip list of (last field value, document ID) keys like {@link RangeIndex}.
+ * Only documents holding every indexed field are indexed.
+ */
+public class CompositeIndex implements SecondaryIndex {
+    private final List<String> fields;
+    private final String lastField;
+
+    // Equality keys of the leading fields -> ordered keys of the last field
+    private final Map<List<Object>, ConcurrentSkipListSet<IndexKey>> buckets;
+
+    public CompositeIndex(List<String> fields) {
+        if (fields.size() < 2) {
+            throw new IllegalArgumentException("A composite index needs at least two fields");
+        }
+        this.fields = List.copyOf(fields);
+        this.lastField = fields.get(fields.size() - 1);
+        this.buckets = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return The field the buckets are ordered by
+     */
+    public String getLastField() {
+        return lastField;
+    }
+
+    /**
+     * @return The fields that must be matched by equality
+     */
+    public List<String> getPrefixFields() {
+        return fields.subList(0, fields.size() - 1);
+    }
+
+    @Override
+    public void documentAdded(Document document) {
+        synchronized (document) {
+            add(document, null, null);
+        }
+    }
+
+    @Override
+    public void documentRemoved(Document document) {
+        remove(document, null, null);
+    }
+
+    @Override
+    public void fieldChanged(Document document, String field, Object oldValue, Object newValue) {
+        remove(document, field, oldValue);
+        add(document, field, newValue);
+    }
+
+    /**
+     * Get a live view of one bucket's keys between two bounds, in ascending order
+     * @param prefixValues Values of the leading fields, in index order
+     * @param lower Lower bound on the last field, null for no lower bound
+     * @param lowerInclusive Whether a key equal to the lower bound is included
+     * @param upper Upper bound on the last field, null for no upper bound
+     * @param upperInclusive Whether a key equal to the upper bound is included
+     * @return The matching keys
+     */
+    public NavigableSet<IndexKey> range(List<Object> prefixValues, IndexKey lower, boolean lowerInclusive,
+                                        IndexKey upper, boolean upperInclusive) {
+        List<Object> prefix = new ArrayList<>(prefixValues.size());
+        for (Object value : prefixValues) {
+            prefix.add(ValueComparator.equalityKey(value));
+        }
+
+        ConcurrentSkipListSet<IndexKey> keys = buckets.get(prefix);
+        if (keys == null || (lower != null && upper != null && lower.compareTo(upper) > 0)) {
+            return new ConcurrentSkipListSet<>();
+        }
+        if (lower != null && upper != null) {
+            return keys.subSet(lower, lowerInclusive, upper, upperInclusive);
+        }
+        if (lower != null) {
+            return keys.tailSet(lower, lowerInclusive);
+        }
+        if (upper != null) {
+            return keys.headSet(upper, upperInclusive);
+        }
+        return keys;
+    }
+
+    private void add(Document document, String field, Object value) {
+        List<Object> values = values(document, field, value);
+        if (values != null) {
+            buckets.computeIfAbsent(prefix(values), key -> new ConcurrentSkipListSet<>())
+                    .add(IndexKey.of(values.get(values.size() - 1), document.getId()));
+        }
+    }
+
+    private void remove(Document document, String field, Object value) {
+        List<Object> values = values(document, field, value);
+        if (values != null) {
+            // Empty buckets are kept, a concurrent add may be about to use them
+            ConcurrentSkipListSet<IndexKey> keys = buckets.get(prefix(values));
+            if (keys != null) {
+                keys.remove(IndexKey.of(values.get(values.size() - 1), document.getId()));
+            }
+        }
+    }
+
+    /**
+     * Read the indexed fields of a document, with one field replaced
+     * @return The values in index order, null if any is missing
+     */
+    private List<Object> values(Document document, String field, Object value) {
+        List<Object> values = new ArrayList<>(fields.size());
+        for (String indexed : fields) {
+            Object fieldValue = indexed.equals(field) ? value : document.get(indexed);
+            if (fieldValue == null) {
+                return null;
+            }
+            values.add(fieldValue);
+        }
+        return values;
+    }
+
+    private List<Object> prefix(List<Object> values) {
+        List<Object> prefix = new ArrayList<>(values.size() - 1);
+        for (int i = 0; i < values.size() - 1; i++) {
+            prefix.add(ValueComparator.equalityKey(values.get(i)));
+        }
+        return prefix;
+    }
+}
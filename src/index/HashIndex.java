@@ -0,0 +1,92 @@
+package index;
+
+import models.Document;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Equality index on one field of one collection: field value -> IDs of the documents holding it
+ * Values are matched through {@link ValueComparator#equalityKey}, so numbers match whatever their boxed type.
+ */
+public class HashIndex implements SecondaryIndex {
+    private final String field;
+    private final Map<Object, Set<String>> entries;
+
+    public HashIndex(String field) {
+        this.field = field;
+        this.entries = new ConcurrentHashMap<>();
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public List<String> getFields() {
+        return List.of(field);
+    }
+
+    /**
+     * Record that a document holds a value
+     * @param value The field value, null values are not indexed
+     * @param documentId ID of the document
+     */
+    public void add(Object value, String documentId) {
+        if (value != null) {
+            entries.computeIfAbsent(ValueComparator.equalityKey(value), key -> ConcurrentHashMap.newKeySet())
+                    .add(documentId);
+        }
+    }
+
+    /**
+     * Record that a document no longer holds a value
+     * @param value The old field value
+     * @param documentId ID of the document
+     */
+    public void remove(Object value, String documentId) {
+        if (value == null) {
+            return;
+        }
+        entries.computeIfPresent(ValueComparator.equalityKey(value), (key, ids) -> {
+            ids.remove(documentId);
+            return ids.isEmpty() ? null : ids;
+        });
+    }
+
+    /**
+     * Index a document's current value
+     * Locks the document so a concurrent set can't slip between reading and indexing
+     * @param document The document
+     */
+    @Override
+    public void documentAdded(Document document) {
+        synchronized (document) {
+            add(document.get(field), document.getId());
+        }
+    }
+
+    @Override
+    public void documentRemoved(Document document) {
+        remove(document.get(field), document.getId());
+    }
+
+    @Override
+    public void fieldChanged(Document document, String changedField, Object oldValue, Object newValue) {
+        remove(oldValue, document.getId());
+        add(newValue, document.getId());
+    }
+
+    /**
+     * Find the documents holding a value
+     * @param value Value to match
+     * @return Live, unmodifiable set of document IDs
+     */
+    public Set<String> lookup(Object value) {
+        Set<String> ids = value != null ? entries.get(ValueComparator.equalityKey(value)) : null;
+        return ids != null ? Collections.unmodifiableSet(ids) : Collections.emptySet();
+    }
+}
@@ -0,0 +1,74 @@
+package index;
+
+import models.Document;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Ordered set of the document IDs of a collection, kept in a concurrent skip list.
+ * Generated IDs sort by creation time, so walking part of the set lists the documents
+ * created in a time range, oldest first, without sorting the collection.
+ */
+public class IdIndex implements SecondaryIndex {
+    /**
+     * Name the index is saved under, the document ID is not a real field
+     */
+    public static final String FIELD = "__name__";
+
+    private final ConcurrentSkipListSet<String> ids;
+
+    public IdIndex() {
+        this.ids = new ConcurrentSkipListSet<>();
+    }
+
+    @Override
+    public List<String> getFields() {
+        return List.of(FIELD);
+    }
+
+    @Override
+    public void documentAdded(Document document) {
+        ids.add(document.getId());
+    }
+
+    @Override
+    public void documentRemoved(Document document) {
+        ids.remove(document.getId());
+    }
+
+    @Override
+    public void fieldChanged(Document document, String field, Object oldValue, Object newValue) {
+        // IDs never change
+    }
+
+    /**
+     * Get a live view of the IDs between two bounds, in ascending order
+     * @param lower Lowest ID included, null for no lower bound
+     * @param upper First ID excluded, null for no upper bound
+     * @return The matching IDs
+     */
+    public NavigableSet<String> range(String lower, String upper) {
+        if (lower != null && upper != null) {
+            if (lower.compareTo(upper) > 0) {
+                return new ConcurrentSkipListSet<>();
+            }
+            return ids.subSet(lower, true, upper, false);
+        }
+        if (lower != null) {
+            return ids.tailSet(lower, true);
+        }
+        if (upper != null) {
+            return ids.headSet(upper, false);
+        }
+        return ids;
+    }
+
+    /**
+     * @return Number of indexed documents
+     */
+    public int size() {
+        return ids.size();
+    }
+}
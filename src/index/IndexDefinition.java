@@ -0,0 +1,84 @@
+package index;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * What to index: a collection, a kind of index and the indexed fields
+ */
+public class IndexDefinition {
+    private final String collection;
+    private final IndexType type;
+    private final List<String> fields;
+
+    public IndexDefinition(String collection, IndexType type, List<String> fields) {
+        this.collection = collection;
+        this.type = type;
+        this.fields = List.copyOf(fields);
+    }
+
+    /**
+     * @param collection A collection
+     * @return Definition of its index of document IDs
+     */
+    public static IndexDefinition ids(String collection) {
+        return new IndexDefinition(collection, IndexType.ID, List.of(IdIndex.FIELD));
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public IndexType getType() {
+        return type;
+    }
+
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Name of the index, unique within its collection
+     */
+    public String getName() {
+        return type.name().toLowerCase() + ":" + String.join(",", fields);
+    }
+
+    /**
+     * Build an empty index for this definition
+     * @return The index
+     */
+    SecondaryIndex newIndex() {
+        switch (type) {
+            case RANGE:
+                return new RangeIndex(fields.get(0));
+            case COMPOSITE:
+                return new CompositeIndex(fields);
+            case ID:
+                return new IdIndex();
+            case HASH:
+            default:
+                return new HashIndex(fields.get(0));
+        }
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof IndexDefinition)) {
+            return false;
+        }
+        IndexDefinition definition = (IndexDefinition) other;
+        return collection.equals(definition.collection) && type == definition.type
+                && fields.equals(definition.fields);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(collection, type, fields);
+    }
+
+    @Override
+    public String toString() {
+        return collection + "/" + getName();
+    }
+}
@@ -0,0 +1,92 @@
+package index;
+
+/**
+ * Entry of an ordered index: a field value plus the ID of the document holding it.
+ * Keys sort by value first, then by document ID, so equal values keep a stable order.
+ * Bound keys sort before or after every document with their value, or with any value of the
+ * same type, and are only used for searching.
+ */
+public class IndexKey implements Comparable<IndexKey> {
+    private final Object value;
+    private final String documentId;
+
+    // -1 sorts before every ID with this value, 1 after, 0 compares documentId,
+    // -2 sorts before every value of this type, 2 after
+    private final int boundSide;
+
+    private IndexKey(Object value, String documentId, int boundSide) {
+        this.value = value;
+        this.documentId = documentId;
+        this.boundSide = boundSide;
+    }
+
+    /**
+     * @return Key of a document holding a value
+     */
+    public static IndexKey of(Object value, String documentId) {
+        return new IndexKey(value, documentId, 0);
+    }
+
+    /**
+     * @return Bound that sorts before every document holding the value
+     */
+    public static IndexKey before(Object value) {
+        return new IndexKey(value, null, -1);
+    }
+
+    /**
+     * @return Bound that sorts after every document holding the value
+     */
+    public static IndexKey after(Object value) {
+        return new IndexKey(value, null, 1);
+    }
+
+    /**
+     * @return Bound that sorts before every value of the same type, e.g. the smallest number
+     */
+    public static IndexKey startOfType(Object value) {
+        return new IndexKey(value, null, -2);
+    }
+
+    /**
+     * @return Bound that sorts after every value of the same type, e.g. the largest number
+     */
+    public static IndexKey endOfType(Object value) {
+        return new IndexKey(value, null, 2);
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    @Override
+    public int compareTo(IndexKey other) {
+        if (Math.abs(boundSide) == 2 || Math.abs(other.boundSide) == 2) {
+            int rankOrder = Integer.compare(ValueComparator.typeRank(value), ValueComparator.typeRank(other.value));
+            return rankOrder != 0 ? rankOrder : Integer.compare(boundSide, other.boundSide);
+        }
+
+        int valueOrder = ValueComparator.INSTANCE.compare(value, other.value);
+        if (valueOrder != 0) {
+            return valueOrder;
+        }
+        if (boundSide != 0 || other.boundSide != 0) {
+            return Integer.compare(boundSide, other.boundSide);
+        }
+        return documentId.compareTo(other.documentId);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof IndexKey && compareTo((IndexKey) other) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        return documentId != null ? documentId.hashCode() : boundSide;
+    }
+}
@@ -0,0 +1,231 @@
+package index;
+
+import models.Document;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Keeps every secondary index of a database up to date.
+ *
+ * Index definitions are saved to a small file, one per line as
+ * "collection TAB type TAB field[,field...]", so they survive a restart;
+ * the index contents are rebuilt from the documents whenever a collection is loaded.
+ */
+public class IndexManager {
+    private final File definitionsFile;
+
+    // collection name -> index name -> index
+    private final Map<String, Map<String, SecondaryIndex>> indexes;
+
+    // index -> its definition, for saving
+    private final Map<SecondaryIndex, IndexDefinition> definitions;
+
+    public IndexManager(String definitionsFileName) {
+        this.definitionsFile = new File(definitionsFileName);
+        this.indexes = new ConcurrentHashMap<>();
+        this.definitions = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Read the saved index definitions
+     * Lines with only a collection and a field are hash indexes
+     * @return The definitions, in file order
+     */
+    public List<IndexDefinition> loadDefinitions() throws IOException {
+        List<IndexDefinition> loaded = new ArrayList<>();
+        if (!definitionsFile.exists()) {
+            return loaded;
+        }
+        for (String line : Files.readAllLines(definitionsFile.toPath(), StandardCharsets.UTF_8)) {
+            String[] parts = line.split("\t");
+            if (parts.length == 2) {
+                loaded.add(new IndexDefinition(parts[0], IndexType.HASH, List.of(parts[1])));
+            } else if (parts.length == 3) {
+                loaded.add(new IndexDefinition(parts[0], IndexType.valueOf(parts[1]),
+                        Arrays.asList(parts[2].split(","))));
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Register an index and build it from the collection's current documents
+     * @param definition What to index
+     * @param documents Current documents, null if the collection isn't loaded yet
+     * @return true if the index is new
+     */
+    public boolean createIndex(IndexDefinition definition, Map<String, Document> documents) {
+        SecondaryIndex index = definition.newIndex();
+        // Register first so changes made during the build reach the index too
+        if (indexes.computeIfAbsent(definition.getCollection(), key -> new ConcurrentHashMap<>())
+                .putIfAbsent(definition.getName(), index) != null) {
+            return false;
+        }
+        definitions.put(index, definition);
+        if (documents != null) {
+            documents.values().forEach(index::documentAdded);
+        }
+        return true;
+    }
+
+    /**
+     * Register an index that has no saved definition, such as an aggregation, and build it
+     * It is kept up to date like any other index until removed, but is gone after a restart
+     * @param collectionName Name of the collection
+     * @param name Name of the index, unique within its collection
+     * @param index The empty index
+     * @param documents Current documents, null if the collection isn't loaded yet
+     * @return true if the index is new
+     */
+    public boolean addIndex(String collectionName, String name, SecondaryIndex index, Map<String, Document> documents) {
+        if (indexes.computeIfAbsent(collectionName, key -> new ConcurrentHashMap<>()).putIfAbsent(name, index) != null) {
+            return false;
+        }
+        if (documents != null) {
+            documents.values().forEach(index::documentAdded);
+        }
+        return true;
+    }
+
+    /**
+     * Remove an index registered with {@link #addIndex}
+     * @param collectionName Name of the collection
+     * @param index The index
+     * @return true if the index existed
+     */
+    public boolean removeIndex(String collectionName, SecondaryIndex index) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collectionName);
+        return collectionIndexes != null && collectionIndexes.values().remove(index);
+    }
+
+    /**
+     * Remove an index
+     * @param definition The index to remove
+     * @return true if the index existed
+     */
+    public boolean dropIndex(IndexDefinition definition) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(definition.getCollection());
+        SecondaryIndex removed = collectionIndexes != null ? collectionIndexes.remove(definition.getName()) : null;
+        if (removed == null) {
+            return false;
+        }
+        definitions.remove(removed);
+        return true;
+    }
+
+    /**
+     * Get an index by definition
+     * @param definition The index to find
+     * @return The index, null if it doesn't exist
+     */
+    public SecondaryIndex getIndex(IndexDefinition definition) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(definition.getCollection());
+        return collectionIndexes != null ? collectionIndexes.get(definition.getName()) : null;
+    }
+
+    /**
+     * Get the equality index on a field
+     * @param collectionName Name of the collection
+     * @param field The field
+     * @return The index, null if there is none
+     */
+    public HashIndex getHashIndex(String collectionName, String field) {
+        return (HashIndex) getIndex(new IndexDefinition(collectionName, IndexType.HASH, List.of(field)));
+    }
+
+    /**
+     * Get the ordered index on a field
+     * @param collectionName Name of the collection
+     * @param field The field
+     * @return The index, null if there is none
+     */
+    public RangeIndex getRangeIndex(String collectionName, String field) {
+        return (RangeIndex) getIndex(new IndexDefinition(collectionName, IndexType.RANGE, List.of(field)));
+    }
+
+    /**
+     * Get the index of document IDs
+     * @param collectionName Name of the collection
+     * @return The index, null if there is none
+     */
+    public IdIndex getIdIndex(String collectionName) {
+        return (IdIndex) getIndex(IndexDefinition.ids(collectionName));
+    }
+
+    /**
+     * Get every index of a collection
+     * @param collectionName Name of the collection
+     * @return The indexes
+     */
+    public Collection<SecondaryIndex> getIndexes(String collectionName) {
+        Map<String, SecondaryIndex> collectionIndexes = indexes.get(collectionName);
+        return collectionIndexes != null ? collectionIndexes.values() : Collections.emptyList();
+    }
+
+    /**
+     * Rebuild every index of a collection that has just been loaded
+     * @param collectionName Name of the collection
+     * @param documents The loaded documents
+     */
+    public void collectionLoaded(String collectionName, Map<String, Document> documents) {
+        for (SecondaryIndex index : getIndexes(collectionName)) {
+            documents.values().forEach(index::documentAdded);
+        }
+    }
+
+    /**
+     * Index a document that joined a collection
+     * @param collectionName Name of the collection
+     * @param document The document
+     */
+    public void documentAdded(String collectionName, Document document) {
+        getIndexes(collectionName).forEach(index -> index.documentAdded(document));
+    }
+
+    /**
+     * Remove a document that left a collection from its indexes
+     * @param collectionName Name of the collection
+     * @param document The document
+     */
+    public void documentRemoved(String collectionName, Document document) {
+        getIndexes(collectionName).forEach(index -> index.documentRemoved(document));
+    }
+
+    /**
+     * Re-index a document after one of its fields changed
+     * @param collectionName Name of the collection
+     * @param document The document, already holding the new value
+     * @param field The changed field
+     * @param oldValue Previous value
+     * @param newValue New value
+     */
+    public void fieldChanged(String collectionName, Document document, String field,
+                             Object oldValue, Object newValue) {
+        for (SecondaryIndex index : getIndexes(collectionName)) {
+            if (index.getFields().contains(field)) {
+                index.fieldChanged(document, field, oldValue, newValue);
+            }
+        }
+    }
+
+    /**
+     * Save the current index definitions, replacing the file atomically
+     */
+    public synchronized void saveDefinitions() throws IOException {
+        File tempFile = new File(definitionsFile.getPath() + ".tmp");
+        try (Writer writer = new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(tempFile), StandardCharsets.UTF_8))) {
+            for (IndexDefinition definition : definitions.values()) {
+                writer.write(definition.getCollection() + '\t' + definition.getType() + '\t'
+                        + String.join(",", definition.getFields()) + '\n');
+            }
+        }
+        Files.move(tempFile.toPath(), definitionsFile.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+}
@@ -0,0 +1,26 @@
+package index;
+
+/**
+ * Kinds of secondary index
+ */
+public enum IndexType {
+    /**
+     * Equality lookups on one field
+     */
+    HASH,
+
+    /**
+     * Ordered scans, ranges and sorting on one field
+     */
+    RANGE,
+
+    /**
+     * Equality on every field but the last, then ordered scans on the last field
+     */
+    COMPOSITE,
+
+    /**
+     * Ordered document IDs, for scans by creation time over generated IDs
+     */
+    ID
+}
@@ -0,0 +1,91 @@
+package index;
+
+import models.Document;
+
+import java.util.List;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListSet;
+
+/**
+ * Ordered index on one field of one collection, kept in a concurrent skip list of
+ * (value, document ID) keys. Range scans, ordering and cursors walk the list directly,
+ * so reading the first N matches costs O(log n + N).
+ */
+public class RangeIndex implements SecondaryIndex {
+    private final String field;
+    private final ConcurrentSkipListSet<IndexKey> keys;
+
+    public RangeIndex(String field) {
+        this.field = field;
+        this.keys = new ConcurrentSkipListSet<>();
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    @Override
+    public List<String> getFields() {
+        return List.of(field);
+    }
+
+    @Override
+    public void documentAdded(Document document) {
+        synchronized (document) {
+            Object value = document.get(field);
+            if (value != null) {
+                keys.add(IndexKey.of(value, document.getId()));
+            }
+        }
+    }
+
+    @Override
+    public void documentRemoved(Document document) {
+        Object value = document.get(field);
+        if (value != null) {
+            keys.remove(IndexKey.of(value, document.getId()));
+        }
+    }
+
+    @Override
+    public void fieldChanged(Document document, String changedField, Object oldValue, Object newValue) {
+        if (oldValue != null) {
+            keys.remove(IndexKey.of(oldValue, document.getId()));
+        }
+        if (newValue != null) {
+            keys.add(IndexKey.of(newValue, document.getId()));
+        }
+    }
+
+    /**
+     * Get a live view of the keys between two bounds, in ascending order
+     * @param lower Lower bound, null for no lower bound
+     * @param lowerInclusive Whether a key equal to the lower bound is included
+     * @param upper Upper bound, null for no upper bound
+     * @param upperInclusive Whether a key equal to the upper bound is included
+     * @return The matching keys
+     */
+    public NavigableSet<IndexKey> range(IndexKey lower, boolean lowerInclusive,
+                                        IndexKey upper, boolean upperInclusive) {
+        if (lower != null && upper != null) {
+            if (lower.compareTo(upper) > 0) {
+                return new ConcurrentSkipListSet<>();
+            }
+            return keys.subSet(lower, lowerInclusive, upper, upperInclusive);
+        }
+        if (lower != null) {
+            return keys.tailSet(lower, lowerInclusive);
+        }
+        if (upper != null) {
+            return keys.headSet(upper, upperInclusive);
+        }
+        return keys;
+    }
+
+    /**
+     * @return Number of indexed documents
+     */
+    public int size() {
+        return keys.size();
+    }
+}
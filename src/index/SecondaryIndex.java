@@ -0,0 +1,38 @@
+package index;
+
+import models.Document;
+
+import java.util.List;
+
+/**
+ * An index over one or more fields of a collection, kept up to date by {@link IndexManager}
+ * Every method is called while the document is locked, or locks it itself.
+ */
+public interface SecondaryIndex {
+    /**
+     * Get the fields this index covers
+     * @return Indexed fields, in key order
+     */
+    List<String> getFields();
+
+    /**
+     * Index a document that joined the collection
+     * @param document The document
+     */
+    void documentAdded(Document document);
+
+    /**
+     * Remove a document that left the collection
+     * @param document The document, still holding the values it was indexed under
+     */
+    void documentRemoved(Document document);
+
+    /**
+     * Re-index a document after one of the covered fields changed
+     * @param document The document, already holding the new value
+     * @param field The changed field
+     * @param oldValue Previous value
+     * @param newValue New value
+     */
+    void fieldChanged(Document document, String field, Object oldValue, Object newValue);
+}
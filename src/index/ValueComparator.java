@@ -0,0 +1,222 @@
+package index;
+
+import models.Bytes;
+import models.DocumentFields;
+import models.ValueType;
+
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Total order over field values, used by ordered indexes and range queries.
+ * Values of different types sort by type: null, booleans, numbers, strings, timestamps, bytes,
+ * arrays, maps, then anything else. Numbers compare by numeric value whatever their boxed type,
+ * so 25 and 25.0 are equal.
+ *
+ * The field comparisons read numbers and booleans through the typed accessors of
+ * {@link DocumentFields}, so queries compare unboxed values without allocating.
+ */
+public class ValueComparator implements Comparator<Object> {
+    public static final ValueComparator INSTANCE = new ValueComparator();
+
+    @Override
+    public int compare(Object left, Object right) {
+        int rankOrder = Integer.compare(typeRank(left), typeRank(right));
+        if (rankOrder != 0) {
+            return rankOrder;
+        }
+
+        if (left == null) {
+            return 0;
+        }
+        if (left instanceof Boolean) {
+            return Boolean.compare((Boolean) left, (Boolean) right);
+        }
+        if (left instanceof Number) {
+            return compareNumbers((Number) left, (Number) right);
+        }
+        if (left instanceof String) {
+            return ((String) left).compareTo((String) right);
+        }
+        if (left instanceof Instant) {
+            return ((Instant) left).compareTo((Instant) right);
+        }
+        if (left instanceof Bytes) {
+            return ((Bytes) left).compareTo((Bytes) right);
+        }
+        return left.toString().compareTo(right.toString());
+    }
+
+    /**
+     * Compare a document's field with a value, like compare(document.get(field), value) but without boxing
+     * @param document The document
+     * @param field The field
+     * @param value The value
+     * @return Negative, zero or positive as the field sorts before, with or after the value
+     */
+    public int compareField(DocumentFields document, String field, Object value) {
+        ValueType type = document.getType(field);
+        int rankOrder = Integer.compare(typeRank(type), typeRank(value));
+        if (rankOrder != 0) {
+            return rankOrder;
+        }
+        switch (type) {
+            case NULL:
+                return 0;
+            case BOOLEAN:
+                return Boolean.compare(document.getBoolean(field), (Boolean) value);
+            case INT64:
+                if (isIntegral((Number) value)) {
+                    return Long.compare(document.getLong(field), ((Number) value).longValue());
+                }
+                return Double.compare(document.getLong(field), ((Number) value).doubleValue());
+            case FLOAT64:
+                return Double.compare(document.getDouble(field), ((Number) value).doubleValue());
+            default:
+                return compare(document.get(field), value);
+        }
+    }
+
+    /**
+     * Compare the same field of two documents without boxing
+     * @param left A document
+     * @param right Another document
+     * @param field The field
+     * @return Negative, zero or positive as the left field sorts before, with or after the right one
+     */
+    public int compareFields(DocumentFields left, DocumentFields right, String field) {
+        ValueType leftType = left.getType(field);
+        ValueType rightType = right.getType(field);
+        int rankOrder = Integer.compare(typeRank(leftType), typeRank(rightType));
+        if (rankOrder != 0) {
+            return rankOrder;
+        }
+        switch (leftType) {
+            case NULL:
+                return 0;
+            case BOOLEAN:
+                return Boolean.compare(left.getBoolean(field), right.getBoolean(field));
+            case INT64:
+            case FLOAT64:
+                if (leftType == ValueType.INT64 && rightType == ValueType.INT64) {
+                    return Long.compare(left.getLong(field), right.getLong(field));
+                }
+                return Double.compare(left.getDouble(field), right.getDouble(field));
+            default:
+                return compare(left.get(field), right.get(field));
+        }
+    }
+
+    /**
+     * Check whether two values belong to the same type group (both numbers, both strings, ...)
+     * @param left A value
+     * @param right Another value
+     * @return true if they have the same type rank
+     */
+    public static boolean sameType(Object left, Object right) {
+        return typeRank(left) == typeRank(right);
+    }
+
+    /**
+     * Check whether a document's field and a value belong to the same type group
+     * @param document The document
+     * @param field The field
+     * @param value The value
+     * @return true if they have the same type rank
+     */
+    public static boolean sameType(DocumentFields document, String field, Object value) {
+        return typeRank(document.getType(field)) == typeRank(value);
+    }
+
+    /**
+     * Rank of a value's type in the sort order
+     * @param value The value
+     * @return 0 for null, then booleans, numbers, strings, timestamps, bytes, arrays, maps and anything else
+     */
+    static int typeRank(Object value) {
+        if (value == null) {
+            return 0;
+        }
+        if (value instanceof Boolean) {
+            return 1;
+        }
+        if (value instanceof Number) {
+            return 2;
+        }
+        if (value instanceof String) {
+            return 3;
+        }
+        if (value instanceof Instant) {
+            return 4;
+        }
+        if (value instanceof Bytes) {
+            return 5;
+        }
+        if (value instanceof List) {
+            return 6;
+        }
+        if (value instanceof Map) {
+            return 7;
+        }
+        return 8;
+    }
+
+    private static int typeRank(ValueType type) {
+        switch (type) {
+            case NULL:
+                return 0;
+            case BOOLEAN:
+                return 1;
+            case INT64:
+            case FLOAT64:
+                return 2;
+            case STRING:
+                return 3;
+            case TIMESTAMP:
+                return 4;
+            case BYTES:
+                return 5;
+            case ARRAY:
+                return 6;
+            default:
+                return 7;
+        }
+    }
+
+    /**
+     * Get a key that is equal, and hashes the same, for any two values this comparator treats as equal
+     * Numbers become a Long when they hold a whole value and a Double otherwise, so 25 and 25.0 share a key.
+     * Canonical int64 values are returned as they are, so hashing them allocates nothing.
+     * @param value The value
+     * @return The key to use in hash-based indexes
+     */
+    public static Object equalityKey(Object value) {
+        if (!(value instanceof Number) || value instanceof Long) {
+            return value;
+        }
+        Number number = (Number) value;
+        if (isIntegral(number)) {
+            return number.longValue();
+        }
+        double doubleValue = number.doubleValue();
+        if (doubleValue == Math.rint(doubleValue) && !Double.isInfinite(doubleValue)
+                && Math.abs(doubleValue) < 0x1p63) {
+            return (long) doubleValue;
+        }
+        return doubleValue;
+    }
+
+    private static int compareNumbers(Number left, Number right) {
+        if (isIntegral(left) && isIntegral(right)) {
+            return Long.compare(left.longValue(), right.longValue());
+        }
+        return Double.compare(left.doubleValue(), right.doubleValue());
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long
+                || number instanceof Short || number instanceof Byte;
+    }
+}
@@ -0,0 +1,67 @@
+package models;
+
+import java.util.Arrays;
+import java.util.Base64;
+
+/**
+ * Immutable byte string field value
+ * Compares as unsigned bytes, shorter first on a common prefix
+ */
+public final class Bytes implements Comparable<Bytes> {
+    private final byte[] bytes;
+
+    private Bytes(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    /**
+     * @param bytes The bytes, copied
+     * @return The byte string
+     */
+    public static Bytes of(byte[] bytes) {
+        return new Bytes(bytes.clone());
+    }
+
+    /**
+     * @param base64 Bytes in standard Base64
+     * @return The byte string
+     */
+    public static Bytes fromBase64(String base64) {
+        return new Bytes(Base64.getDecoder().decode(base64));
+    }
+
+    /**
+     * @return A copy of the bytes
+     */
+    public byte[] toByteArray() {
+        return bytes.clone();
+    }
+
+    public int size() {
+        return bytes.length;
+    }
+
+    public String toBase64() {
+        return Base64.getEncoder().encodeToString(bytes);
+    }
+
+    @Override
+    public int compareTo(Bytes other) {
+        return Arrays.compareUnsigned(bytes, other.bytes);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        return other instanceof Bytes && Arrays.equals(bytes, ((Bytes) other).bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return Arrays.hashCode(bytes);
+    }
+
+    @Override
+    public String toString() {
+        return "Bytes(" + toBase64() + ")";
+    }
+}
@@ -0,0 +1,57 @@
+package models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The point in time at which a group of document versions becomes visible.
+ * Every version written by one commit shares this object, and they all become
+ * visible to snapshots at once when {@link VersionClock} assigns its sequence number.
+ */
+public class Commit {
+    // Sequence of commits that are still being applied, newer than every snapshot
+    static final long PENDING = Long.MAX_VALUE;
+
+    /**
+     * Commit of versions that exist from the start, e.g. loaded from disk, visible to every snapshot
+     */
+    public static final Commit INITIAL = new Commit(0);
+
+    private volatile long sequence;
+
+    // Run once the commit is visible, only touched by the committing thread
+    private List<Runnable> onVisible;
+
+    Commit() {
+        this(PENDING);
+    }
+
+    private Commit(long sequence) {
+        this.sequence = sequence;
+    }
+
+    /**
+     * @return Sequence number, or {@link Long#MAX_VALUE} while the commit is still being applied
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    void setSequence(long sequence) {
+        this.sequence = sequence;
+    }
+
+    void addOnVisible(Runnable task) {
+        if (onVisible == null) {
+            onVisible = new ArrayList<>();
+        }
+        onVisible.add(task);
+    }
+
+    void runOnVisible() {
+        if (onVisible != null) {
+            onVisible.forEach(Runnable::run);
+            onVisible = null;
+        }
+    }
+}
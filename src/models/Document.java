@@ -1,26 +1,225 @@
 package models;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A document handle whose fields are kept as a chain of immutable versions.
+ * Writes copy the newest version and install the copy, so readers never lock and never
+ * see a half-applied change; snapshot readers walk the chain back to the version
+ * visible at their point in time. Nested collections are not versioned.
+ */
+public class Document implements DocumentFields {
+    // Source of version numbers, shared by every document so they never repeat
+    private static final AtomicLong VERSIONS = new AtomicLong();
 
-public class Document {
-    private final Map<String, Object> data;
     private final String id;
-    private final Map<String, Map<String, Document>> nestedCollections;
+    // Allocated with the first nested collection, most documents never have one
+    private volatile Map<String, Map<String, Document>> nestedCollections;
+
+    // Newest version of the fields
+    private volatile DocumentSnapshot head;
+
+    // Commit that deleted or replaced this document, null while it is live
+    private volatile Commit deleted;
+
+    // Notified of every field change, set by the database that owns this document
+    private volatile DocumentObserver observer;
+
+    // Clock of the owning database, null for documents that don't belong to one
+    private volatile VersionClock clock;
+
+    /**
+     * Check a collection name or document ID before it is written
+     * Nested paths join them with '/', e.g. "posts/p1/comments", so a '/' inside one can't be told apart
+     * @param name The name or ID
+     * @return The name
+     * @throws IllegalArgumentException If the name contains '/'
+     */
+    public static String checkName(String name) {
+        if (name != null && name.indexOf('/') >= 0) {
+            throw new IllegalArgumentException("Collection names and document IDs can't contain '/': " + name);
+        }
+        return name;
+    }
 
     public Document(String id) {
         this.id = id;
-        this.data = new ConcurrentHashMap<>();
-        this.nestedCollections = new ConcurrentHashMap<>();
+        this.head = new DocumentSnapshot(id, VERSIONS.incrementAndGet(), ShapedFields.EMPTY, Commit.INITIAL, null);
     }
 
     /**
      * Set a value for a specific key in the document
      * @param key The key to set
-     * @param value The value to associate with the key
+     * @param value The value to associate with the key, stored in canonical form, see {@link Values#normalize},
+     *              or a {@link FieldValue} transform of the current value
      */
     public void set(String key, Object value) {
-        data.put(key, value);
+        update(Map.of(key, value));
+    }
+
+    /**
+     * Set several fields as one new version, so readers see all of them change at once
+     * @param fields Field key -> value to set, stored in canonical form, see {@link Values#normalize},
+     *               or a {@link FieldValue} transform of the current value, applied atomically with the rest
+     */
+    public void update(Map<String, Object> fields) {
+        Map<String, Object> normalized = Values.normalizeFields(fields);
+        DocumentObserver currentObserver = observer;
+        VersionClock currentClock = clock;
+        if (currentObserver != null && (currentClock == null || currentClock.current() == null)) {
+            // Not part of a database commit, let the owner order and persist it
+            currentObserver.directWrite(this, normalized, () -> apply(normalized));
+        } else {
+            apply(normalized);
+        }
+    }
+
+    private synchronized void apply(Map<String, Object> requested) {
+        DocumentSnapshot previous = head;
+        Map<String, Object> fields = FieldValue.resolve(previous, requested);
+        Map<String, Object> data = ShapedFields.with(previous.getData(), fields);
+
+        inCommit(commit -> head = new DocumentSnapshot(id, VERSIONS.incrementAndGet(), data, commit, previous));
+        prune();
+
+        DocumentObserver currentObserver = observer;
+        if (currentObserver != null) {
+            for (Map.Entry<String, Object> field : fields.entrySet()) {
+                currentObserver.fieldChanged(this, field.getKey(), previous.get(field.getKey()), field.getValue());
+            }
+        }
+    }
+
+    /**
+     * Get the newest version of the fields
+     * @return An immutable version, consistent however the document changes afterwards
+     */
+    public DocumentSnapshot snapshot() {
+        return head;
+    }
+
+    /**
+     * Get the version visible to a snapshot
+     * @param sequence The snapshot's read sequence
+     * @return The version, or null if the document didn't exist or was already deleted at that point
+     */
+    public DocumentSnapshot snapshotAt(long sequence) {
+        if (isDeletedAt(sequence)) {
+            return null;
+        }
+        DocumentSnapshot version = head;
+        while (version != null && version.commit.getSequence() > sequence) {
+            version = version.previous;
+        }
+        return version;
+    }
+
+    /**
+     * Check whether this document had left its collection at a point in time
+     * @param sequence A snapshot's read sequence
+     * @return true if the deleting commit is at or before the sequence
+     */
+    public boolean isDeletedAt(long sequence) {
+        Commit deletedBy = deleted;
+        return deletedBy != null && deletedBy.getSequence() <= sequence;
+    }
+
+    /**
+     * @return Version number of the newest version, changes with every write
+     */
+    public long getVersion() {
+        return head.getVersion();
+    }
+
+    /**
+     * Record that this document just joined its collection, hiding it from older snapshots
+     * Its current fields become one version belonging to the running commit
+     */
+    public synchronized void markCreated() {
+        // Versions never change their fields, so the new one can share them
+        Map<String, Object> data = head.getData();
+        inCommit(commit -> head = new DocumentSnapshot(id, VERSIONS.incrementAndGet(), data, commit, null));
+    }
+
+    /**
+     * Record that this document left its collection
+     * Snapshots older than the deleting commit still see it
+     */
+    public synchronized void markDeleted() {
+        inCommit(commit -> deleted = commit);
+    }
+
+    /**
+     * Set the clock of the database that owns this document
+     * @param clock The clock, null to detach
+     */
+    public void setClock(VersionClock clock) {
+        this.clock = clock;
+    }
+
+    /**
+     * Make a change as part of the commit running on this thread, or as a commit of its own
+     * Documents outside a database change under {@link Commit#INITIAL}
+     */
+    private void inCommit(Consumer<Commit> change) {
+        VersionClock currentClock = clock;
+        if (currentClock == null) {
+            change.accept(Commit.INITIAL);
+            return;
+        }
+        Commit running = currentClock.current();
+        if (running != null) {
+            change.accept(running);
+            return;
+        }
+        Commit commit = new Commit();
+        change.accept(commit);
+        currentClock.publish(commit);
+    }
+
+    /**
+     * Unlink versions no current or future snapshot can read
+     * Keeps every version newer than the oldest visible sequence, plus the newest one at or below it
+     */
+    private void prune() {
+        VersionClock currentClock = clock;
+        long oldest = currentClock != null ? currentClock.oldestVisible() : Long.MAX_VALUE;
+        DocumentSnapshot version = head;
+        while (version != null && version.commit.getSequence() > oldest) {
+            version = version.previous;
+        }
+        if (version != null) {
+            version.previous = null;
+        }
+    }
+
+    /**
+     * Move the fields of the newest version out of memory
+     * The version itself stays, so snapshots and version checks behave as before, and its
+     * fields are read back from the pager the first time anything needs them.
+     * Nested collections stay in memory.
+     * @param expected The newest version, as the caller saw it
+     * @param pager Holds the fields from now on
+     * @return false if the document changed since or the fields are already paged out
+     */
+    public synchronized boolean pageOut(DocumentSnapshot expected, DocumentPager pager) {
+        if (head != expected || !expected.isResident()) {
+            return false;
+        }
+        head = expected.pagedOut(pager, this);
+        return true;
+    }
+
+    /**
+     * Set the observer notified of field changes, replacing any previous one
+     * @param observer The observer, null to stop notifications
+     */
+    public void setObserver(DocumentObserver observer) {
+        this.observer = observer;
     }
 
     /**
@@ -28,8 +227,34 @@ public class Document {
      * @param key The key to retrieve
      * @return The value associated with the key, or null if not found
      */
+    @Override
     public Object get(String key) {
-        return data.get(key);
+        return head.get(key);
+    }
+
+    @Override
+    public <E extends Exception> void forEachField(FieldVisitor<E> visitor) throws E {
+        head.forEachField(visitor);
+    }
+
+    @Override
+    public ValueType getType(String key) {
+        return head.getType(key);
+    }
+
+    @Override
+    public long getLong(String key) {
+        return head.getLong(key);
+    }
+
+    @Override
+    public double getDouble(String key) {
+        return head.getDouble(key);
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        return head.getBoolean(key);
     }
 
     /**
@@ -37,7 +262,8 @@ public class Document {
      * @return Map of collection names to their documents
      */
     public Map<String, Map<String, Document>> getNestedCollections() {
-        return nestedCollections;
+        Map<String, Map<String, Document>> collections = nestedCollections;
+        return collections != null ? collections : Collections.emptyMap();
     }
 
     /**
@@ -45,7 +271,25 @@ public class Document {
      * @param collectionName Name of the nested collection
      */
     public void createNestedCollection(String collectionName) {
-        nestedCollections.putIfAbsent(collectionName, new ConcurrentHashMap<>());
+        checkName(collectionName);
+        nested().putIfAbsent(collectionName, new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Get the nested collections, allocating the map on first use
+     */
+    private Map<String, Map<String, Document>> nested() {
+        Map<String, Map<String, Document>> collections = nestedCollections;
+        if (collections == null) {
+            synchronized (this) {
+                collections = nestedCollections;
+                if (collections == null) {
+                    collections = new ConcurrentHashMap<>();
+                    nestedCollections = collections;
+                }
+            }
+        }
+        return collections;
     }
 
     /**
@@ -55,12 +299,38 @@ public class Document {
      * @return The created nested document
      */
     public Document addNestedDocument(String collectionName, String documentId) {
+        checkName(documentId);
         createNestedCollection(collectionName);
         Document nestedDocument = new Document(documentId);
-        nestedCollections.get(collectionName).put(documentId, nestedDocument);
+        Document previous = nested().get(collectionName).put(documentId, nestedDocument);
+
+        DocumentObserver currentObserver = observer;
+        if (currentObserver != null) {
+            if (previous != null) {
+                currentObserver.nestedDocumentRemoved(this, collectionName, previous);
+            }
+            currentObserver.nestedDocumentAdded(this, collectionName, nestedDocument);
+        }
         return nestedDocument;
     }
 
+    /**
+     * Remove a document from a nested collection
+     * @param collectionName Name of the nested collection
+     * @param documentId ID of the document
+     * @return The removed document, null if not found
+     */
+    public Document removeNestedDocument(String collectionName, String documentId) {
+        Map<String, Document> collection = getNestedCollections().get(collectionName);
+        Document removed = collection != null ? collection.remove(documentId) : null;
+
+        DocumentObserver currentObserver = observer;
+        if (removed != null && currentObserver != null) {
+            currentObserver.nestedDocumentRemoved(this, collectionName, removed);
+        }
+        return removed;
+    }
+
     /**
      * Get a nested document from a collection
      * @param collectionName Name of the nested collection
@@ -68,7 +338,7 @@ public class Document {
      * @return The nested document, null if not found
      */
     public Document getNestedDocument(String collectionName, String documentId) {
-        Map<String, Document> collection = nestedCollections.get(collectionName);
+        Map<String, Document> collection = getNestedCollections().get(collectionName);
         return collection != null ? collection.get(documentId) : null;
     }
 
@@ -78,21 +348,24 @@ public class Document {
      * @return Map of nested documents in the collection
      */
     public Map<String, Document> getNestedDocuments(String collectionName) {
-        return nestedCollections.getOrDefault(collectionName, new ConcurrentHashMap<>());
+        return getNestedCollections().getOrDefault(collectionName, new ConcurrentHashMap<>());
     }
 
     /**
-     * Get a copy of all data in the document
-     * @return a map of all key-value pairs in the document
+     * Get all data in the document
+     * Versions never change, so this is the current version's fields rather than a copy:
+     * later writes to the document don't show in it
+     * @return Read-only map of all key-value pairs in the document
      */
     public Map<String, Object> getData() {
-        return new ConcurrentHashMap<>(data);
+        return head.getData();
     }
 
     /**
      * Get the document's unique identifier
      * @return The document ID
      */
+    @Override
     public String getId() {
         return id;
     }
@@ -106,14 +379,15 @@ public class Document {
         StringBuilder sb = new StringBuilder();
         sb.append("Document{")
                 .append("id='").append(id).append('\'')
-                .append(", data=").append(data)
-                .append(", nestedCollections={");
+                .append(", data=");
+        appendFields(sb, head);
+        sb.append(", nestedCollections={");
 
-        for (Map.Entry<String, Map<String, Document>> collection : nestedCollections.entrySet()) {
+        for (Map.Entry<String, Map<String, Document>> collection : getNestedCollections().entrySet()) {
             sb.append("\n  ").append(collection.getKey()).append(": {");
             for (Map.Entry<String, Document> doc : collection.getValue().entrySet()) {
-                sb.append("\n    ").append(doc.getKey()).append(": ")
-                        .append(doc.getValue().getData());
+                sb.append("\n    ").append(doc.getKey()).append(": ");
+                appendFields(sb, doc.getValue().head);
             }
             sb.append("\n  }");
         }
@@ -121,4 +395,20 @@ public class Document {
         sb.append("\n}}");
         return sb.toString();
     }
+
+    /**
+     * Append fields the way a map prints them, without a map entry per field
+     * Paged-out fields are read in place, so printing a collection doesn't flush out the documents in use
+     */
+    private static void appendFields(StringBuilder sb, DocumentSnapshot version) {
+        sb.append('{');
+        int start = sb.length();
+        version.peekFields((name, value) -> {
+            if (sb.length() > start) {
+                sb.append(", ");
+            }
+            sb.append(name).append('=').append(value);
+        });
+        sb.append('}');
+    }
 }
\ No newline at end of file
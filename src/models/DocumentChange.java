@@ -0,0 +1,47 @@
+package models;
+
+/**
+ * One change delivered to a snapshot listener
+ */
+public class DocumentChange {
+    public enum Type {
+        /**
+         * The document started matching the listener, or the listener just started
+         */
+        ADDED,
+
+        /**
+         * A matching document changed and still matches
+         */
+        MODIFIED,
+
+        /**
+         * The document was deleted or stopped matching
+         */
+        REMOVED
+    }
+
+    private final Type type;
+    private final DocumentSnapshot document;
+
+    public DocumentChange(Type type, DocumentSnapshot document) {
+        this.type = type;
+        this.document = document;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    /**
+     * @return The new version, or the last version delivered for a removed document
+     */
+    public DocumentSnapshot getDocument() {
+        return document;
+    }
+
+    @Override
+    public String toString() {
+        return type + " " + document;
+    }
+}
@@ -0,0 +1,102 @@
+package models;
+
+import java.time.Instant;
+
+/**
+ * Read access to a document's ID and fields, shared by live documents and their immutable versions
+ */
+public interface DocumentFields {
+    /**
+     * Get the document's unique identifier
+     * @return The document ID
+     */
+    String getId();
+
+    /**
+     * Get a value for a specific key
+     * @param key The key to retrieve
+     * @return The value associated with the key, or null if not found
+     */
+    Object get(String key);
+
+    /**
+     * Visit every field in order, without copying them into a map
+     * @param visitor Called once per field
+     * @param <E> Exception the visitor may throw
+     */
+    <E extends Exception> void forEachField(FieldVisitor<E> visitor) throws E;
+
+    /**
+     * @param key The key to check
+     * @return Type of the field's value, NULL if the field is missing
+     */
+    default ValueType getType(String key) {
+        return ValueType.of(get(key));
+    }
+
+    /**
+     * @param key A numeric field
+     * @return Its value as a long, truncated if it is a float64
+     * @throws IllegalArgumentException if the field is missing or not a number
+     */
+    default long getLong(String key) {
+        return number(key).longValue();
+    }
+
+    /**
+     * @param key A numeric field
+     * @return Its value as a double
+     * @throws IllegalArgumentException if the field is missing or not a number
+     */
+    default double getDouble(String key) {
+        return number(key).doubleValue();
+    }
+
+    /**
+     * @param key A boolean field
+     * @return Its value
+     * @throws IllegalArgumentException if the field is missing or not a boolean
+     */
+    default boolean getBoolean(String key) {
+        return typed(key, Boolean.class, "a boolean");
+    }
+
+    /**
+     * @param key A string field
+     * @return Its value, null if missing
+     * @throws IllegalArgumentException if the field is not a string
+     */
+    default String getString(String key) {
+        return get(key) == null ? null : typed(key, String.class, "a string");
+    }
+
+    /**
+     * @param key A timestamp field
+     * @return Its value, null if missing
+     * @throws IllegalArgumentException if the field is not a timestamp
+     */
+    default Instant getTimestamp(String key) {
+        return get(key) == null ? null : typed(key, Instant.class, "a timestamp");
+    }
+
+    /**
+     * @param key A bytes field
+     * @return Its value, null if missing
+     * @throws IllegalArgumentException if the field is not a byte string
+     */
+    default Bytes getBytes(String key) {
+        return get(key) == null ? null : typed(key, Bytes.class, "a byte string");
+    }
+
+    private Number number(String key) {
+        return typed(key, Number.class, "a number");
+    }
+
+    private <T> T typed(String key, Class<T> type, String description) {
+        Object value = get(key);
+        if (!type.isInstance(value)) {
+            throw new IllegalArgumentException("Field " + key + " is not " + description);
+        }
+        return type.cast(value);
+    }
+}
@@ -0,0 +1,46 @@
+package models;
+
+import java.util.Map;
+
+/**
+ * Notified when a field of a document changes, including direct {@link Document#set} calls
+ */
+public interface DocumentObserver {
+    /**
+     * Called while the document is locked, right after the change
+     * @param document The changed document
+     * @param key The field that changed
+     * @param oldValue Previous value, null if the field was not set
+     * @param newValue New value
+     */
+    void fieldChanged(Document document, String key, Object oldValue, Object newValue);
+
+    /**
+     * Called instead of applying a write made outside the owner's own commits, e.g. a direct {@link Document#set}
+     * The observer must run the write exactly once, so it can order and persist it with its other changes
+     * @param document The document being written
+     * @param fields Field key -> new value
+     * @param write Applies the write
+     */
+    default void directWrite(Document document, Map<String, Object> fields, Runnable write) {
+        write.run();
+    }
+
+    /**
+     * Called after a document is added to one of the document's nested collections
+     * @param parent The document holding the nested collection
+     * @param collectionName Name of the nested collection
+     * @param document The added document
+     */
+    default void nestedDocumentAdded(Document parent, String collectionName, Document document) {
+    }
+
+    /**
+     * Called after a document leaves one of the document's nested collections, removed or replaced
+     * @param parent The document holding the nested collection
+     * @param collectionName Name of the nested collection
+     * @param document The removed document
+     */
+    default void nestedDocumentRemoved(Document parent, String collectionName, Document document) {
+    }
+}
@@ -0,0 +1,26 @@
+package models;
+
+import java.util.Map;
+
+/**
+ * Keeps the fields of document versions that were moved out of memory, see {@link Document#pageOut}
+ */
+public interface DocumentPager {
+    /**
+     * Read back the fields of a paged-out version
+     * Called at most once per paged-out version, the first time its fields are needed
+     * @param document The document the version belongs to
+     * @param version The paged-out version
+     * @return The version's fields
+     */
+    Map<String, Object> pageIn(Document document, DocumentSnapshot version);
+
+    /**
+     * Read the fields of a paged-out version without bringing it back into memory
+     * Used by scans such as checkpoints and queries, which would otherwise flush out the documents in use
+     * @param document The document the version belongs to
+     * @param version The paged-out version
+     * @return The version's fields
+     */
+    Map<String, Object> read(Document document, DocumentSnapshot version);
+}
@@ -0,0 +1,181 @@
+package models;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * One immutable version of a document's fields.
+ * Every write to a document installs a new version, so a reader holding one never sees
+ * a later or half-applied change. Versions are chained newest to oldest for snapshot reads.
+ * The fields of a version may be paged out to disk; they are read back the first time they're needed.
+ */
+public class DocumentSnapshot implements DocumentFields {
+    private final String id;
+    private final long version;
+    final Commit commit;
+
+    // Null while the fields are paged out
+    private volatile Map<String, Object> data;
+
+    // Where paged-out fields are read back from, null for versions that were never paged out
+    private final DocumentPager pager;
+    private final Document owner;
+
+    // Next older version, unlinked once no snapshot can read it
+    volatile DocumentSnapshot previous;
+
+    /**
+     * @param data Read-only fields, see {@link ShapedFields}
+     */
+    DocumentSnapshot(String id, long version, Map<String, Object> data, Commit commit, DocumentSnapshot previous) {
+        this(id, version, data, commit, previous, null, null);
+    }
+
+    private DocumentSnapshot(String id, long version, Map<String, Object> data, Commit commit,
+                             DocumentSnapshot previous, DocumentPager pager, Document owner) {
+        this.id = id;
+        this.version = version;
+        this.data = data;
+        this.commit = commit;
+        this.previous = previous;
+        this.pager = pager;
+        this.owner = owner;
+    }
+
+    /**
+     * Create a version that belongs to no document, e.g. one received from a server
+     * @param id ID of the document
+     * @param version Version number it had where it was read
+     * @param fields Field key -> value
+     * @return The version
+     */
+    public static DocumentSnapshot of(String id, long version, Map<String, Object> fields) {
+        return new DocumentSnapshot(id, version, ShapedFields.of(Values.normalizeFields(fields)), null, null);
+    }
+
+    /**
+     * Copy this version without its fields, which the pager now holds
+     */
+    DocumentSnapshot pagedOut(DocumentPager pager, Document owner) {
+        return new DocumentSnapshot(id, version, null, commit, previous, pager, owner);
+    }
+
+    /**
+     * @return Whether the fields are in memory, false until a paged-out version is read
+     */
+    public boolean isResident() {
+        return data != null;
+    }
+
+    @Override
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return Version number, unique across every document of this process and growing with each write
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Get a value for a specific key
+     * @param key The key to retrieve
+     * @return The value associated with the key, or null if not found
+     */
+    @Override
+    public Object get(String key) {
+        return getData().get(key);
+    }
+
+    /**
+     * @return Read-only view of every field of this version, read back first if it was paged out
+     */
+    public Map<String, Object> getData() {
+        Map<String, Object> current = data;
+        if (current == null) {
+            synchronized (this) {
+                current = data;
+                if (current == null) {
+                    current = ShapedFields.of(Values.normalizeFields(pager.pageIn(owner, this)));
+                    data = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    // Typed reads go straight to the unboxed values
+
+    @Override
+    public ValueType getType(String key) {
+        Map<String, Object> fields = getData();
+        return fields instanceof ShapedFields ? ((ShapedFields) fields).type(key) : DocumentFields.super.getType(key);
+    }
+
+    @Override
+    public long getLong(String key) {
+        Map<String, Object> fields = getData();
+        return fields instanceof ShapedFields ? ((ShapedFields) fields).getLong(key) : DocumentFields.super.getLong(key);
+    }
+
+    @Override
+    public double getDouble(String key) {
+        Map<String, Object> fields = getData();
+        return fields instanceof ShapedFields ? ((ShapedFields) fields).getDouble(key) : DocumentFields.super.getDouble(key);
+    }
+
+    @Override
+    public boolean getBoolean(String key) {
+        Map<String, Object> fields = getData();
+        return fields instanceof ShapedFields ? ((ShapedFields) fields).getBoolean(key) : DocumentFields.super.getBoolean(key);
+    }
+
+    @Override
+    public <E extends Exception> void forEachField(FieldVisitor<E> visitor) throws E {
+        FieldVisitor.visitAll(getData(), visitor);
+    }
+
+    /**
+     * Like {@link #forEachField}, without bringing a paged-out version back into memory
+     * @param visitor Called once per field
+     * @param <E> Exception the visitor may throw
+     */
+    public <E extends Exception> void peekFields(FieldVisitor<E> visitor) throws E {
+        FieldVisitor.visitAll(peekData(), visitor);
+    }
+
+    /**
+     * Read every field without bringing a paged-out version back into memory
+     * @return Read-only view of every field of this version
+     */
+    public Map<String, Object> peekData() {
+        Map<String, Object> current = data;
+        if (current != null) {
+            return current;
+        }
+        // The pager only drops a version's fields after they were read back, which waits for this lock
+        synchronized (this) {
+            return data != null ? data : Collections.unmodifiableMap(pager.read(owner, this));
+        }
+    }
+
+    /**
+     * Read this version without bringing it back into memory if it was paged out
+     * Used by scans, which would otherwise flush out the documents in use
+     * @return This version if its fields are in memory, otherwise a copy holding the fields read from the pager
+     */
+    public DocumentSnapshot peek() {
+        if (data != null) {
+            return this;
+        }
+        return new DocumentSnapshot(id, version, ShapedFields.of(Values.normalizeFields(peekData())), commit, null);
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentSnapshot{id='" + id + "', version=" + version
+                + ", data=" + (isResident() ? data : "(paged out)") + '}';
+    }
+}
@@ -0,0 +1,204 @@
+package models;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * A change to a field computed from its current value, passed wherever a field value is written:
+ * {@link Document#set}, {@link Document#update}, write batches, transactions and updateDocumentField.
+ *
+ * The transform is applied while the new version of the document is installed, against the
+ * version it replaces, so concurrent transforms of one field never lose each other's changes
+ * and callers don't need to read the field first.
+ */
+public final class FieldValue {
+    /**
+     * The kinds of transform
+     */
+    public enum Kind {
+        /**
+         * Add a number, treating a missing or non-numeric field as 0
+         */
+        INCREMENT,
+
+        /**
+         * Append elements the array doesn't contain yet, a missing or non-array field becomes an empty array first
+         */
+        ARRAY_UNION,
+
+        /**
+         * Remove every occurrence of the elements, a missing or non-array field becomes an empty array
+         */
+        ARRAY_REMOVE,
+
+        /**
+         * Set the time at which the write is applied
+         */
+        SERVER_TIMESTAMP
+    }
+
+    private static final FieldValue SERVER_TIMESTAMP = new FieldValue(Kind.SERVER_TIMESTAMP, null);
+
+    private final Kind kind;
+
+    // The number to add, or the read-only list of canonical elements
+    private final Object operand;
+
+    private FieldValue(Kind kind, Object operand) {
+        this.kind = kind;
+        this.operand = operand;
+    }
+
+    /**
+     * @param delta Amount to add, negative to subtract
+     * @return The transform, int64 arithmetic if the field holds an int64, saturating on overflow
+     */
+    public static FieldValue increment(long delta) {
+        return new FieldValue(Kind.INCREMENT, delta);
+    }
+
+    /**
+     * @param delta Amount to add, negative to subtract
+     * @return The transform, the field becomes a float64
+     */
+    public static FieldValue increment(double delta) {
+        return new FieldValue(Kind.INCREMENT, delta);
+    }
+
+    /**
+     * @param elements Elements to add if missing, in order
+     * @return The transform
+     */
+    public static FieldValue arrayUnion(Object... elements) {
+        return new FieldValue(Kind.ARRAY_UNION, Values.normalize(Arrays.asList(elements)));
+    }
+
+    /**
+     * @param elements Elements to remove
+     * @return The transform
+     */
+    public static FieldValue arrayRemove(Object... elements) {
+        return new FieldValue(Kind.ARRAY_REMOVE, Values.normalize(Arrays.asList(elements)));
+    }
+
+    /**
+     * @return The transform setting the time the write is applied
+     */
+    public static FieldValue serverTimestamp() {
+        return SERVER_TIMESTAMP;
+    }
+
+    public Kind getKind() {
+        return kind;
+    }
+
+    /**
+     * @return The Long or Double to add for increments, the list of elements for array transforms, null otherwise
+     */
+    public Object getOperand() {
+        return operand;
+    }
+
+    /**
+     * Check whether applying this transform again to its own result changes nothing
+     * Array transforms are, so they can be logged as they are; increments and timestamps are logged
+     * as the value they produced, so replaying a record twice stays harmless
+     * @return true for array transforms
+     */
+    public boolean isIdempotent() {
+        return kind == Kind.ARRAY_UNION || kind == Kind.ARRAY_REMOVE;
+    }
+
+    /**
+     * Compute the field's new value
+     * @param current The field's current value, null if missing
+     * @param now Time of the write, for server timestamps
+     * @return The new canonical value
+     */
+    Object apply(Object current, Instant now) {
+        switch (kind) {
+            case INCREMENT:
+                return add(current instanceof Long || current instanceof Double ? (Number) current : 0L,
+                        (Number) operand);
+            case ARRAY_UNION: {
+                List<Object> result = current instanceof List ? new ArrayList<>((List<?>) current) : new ArrayList<>();
+                for (Object element : (List<?>) operand) {
+                    if (!result.contains(element)) {
+                        result.add(element);
+                    }
+                }
+                return Collections.unmodifiableList(result);
+            }
+            case ARRAY_REMOVE: {
+                List<Object> result = current instanceof List ? new ArrayList<>((List<?>) current) : new ArrayList<>();
+                result.removeAll((List<?>) operand);
+                return Collections.unmodifiableList(result);
+            }
+            case SERVER_TIMESTAMP:
+            default:
+                return now;
+        }
+    }
+
+    /**
+     * Add two canonical numbers, int64 if both are, saturating instead of wrapping around
+     * @param left A Long or Double
+     * @param right A Long or Double
+     * @return The sum
+     */
+    public static Number add(Number left, Number right) {
+        if (left instanceof Long && right instanceof Long) {
+            long a = (Long) left;
+            long b = (Long) right;
+            long sum = a + b;
+            // Overflow iff both operands have the sign the sum lacks
+            if (((a ^ sum) & (b ^ sum)) < 0) {
+                return a < 0 ? Long.MIN_VALUE : Long.MAX_VALUE;
+            }
+            return sum;
+        }
+        return left.doubleValue() + right.doubleValue();
+    }
+
+    /**
+     * Resolve every transform among fields about to be written
+     * @param current The version being replaced
+     * @param fields Field key -> canonical value or transform
+     * @return The same map if it holds no transform, otherwise a copy with the new values
+     */
+    static Map<String, Object> resolve(DocumentFields current, Map<String, Object> fields) {
+        Map<String, Object> resolved = null;
+        Instant now = null;
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            if (!(field.getValue() instanceof FieldValue)) {
+                continue;
+            }
+            if (resolved == null) {
+                resolved = new LinkedHashMap<>(fields);
+                // Every timestamp of one write gets the same time
+                now = Instant.now();
+            }
+            resolved.put(field.getKey(), ((FieldValue) field.getValue()).apply(current.get(field.getKey()), now));
+        }
+        return resolved != null ? resolved : fields;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (!(other instanceof FieldValue)) {
+            return false;
+        }
+        FieldValue value = (FieldValue) other;
+        return kind == value.kind && Objects.equals(operand, value.operand);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(kind, operand);
+    }
+
+    @Override
+    public String toString() {
+        return operand != null ? kind + "(" + operand + ")" : kind.toString();
+    }
+}
@@ -0,0 +1,32 @@
+package models;
+
+import java.util.Map;
+
+/**
+ * Receives the fields of a document one by one, see {@link DocumentFields#forEachField}
+ * @param <E> Checked exception the visitor may throw, such as IOException while writing the fields out
+ */
+@FunctionalInterface
+public interface FieldVisitor<E extends Exception> {
+    /**
+     * @param name The field name
+     * @param value Its canonical value
+     */
+    void visit(String name, Object value) throws E;
+
+    /**
+     * Visit the fields of a version's map, such as {@link DocumentSnapshot#peekData}, without a map entry per field
+     * @param fields The fields
+     * @param visitor Called once per field
+     * @param <E> Exception the visitor may throw
+     */
+    static <E extends Exception> void visitAll(Map<String, Object> fields, FieldVisitor<E> visitor) throws E {
+        if (fields instanceof ShapedFields) {
+            ((ShapedFields) fields).forEachField(visitor);
+            return;
+        }
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            visitor.visit(field.getKey(), field.getValue());
+        }
+    }
+}
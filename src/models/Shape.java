@@ -0,0 +1,166 @@
+package models;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Ordered field names and value kinds shared by every document whose fields were added in the same order.
+ *
+ * Shapes form a tree of transitions from the empty shape, like the hidden classes of JavaScript
+ * engines: adding a field to a shape always leads to the same child shape, so documents of one
+ * kind share a single shape, each field name is stored once for all of them, and a document only
+ * keeps its values. Int64, float64 and boolean fields are stored unboxed in a long array, every
+ * other value in an object array; the shape maps each field to its position in one of them.
+ */
+final class Shape {
+    // How a field's value is stored
+    static final byte REFERENCE = 0;
+    static final byte LONG = 1;
+    static final byte DOUBLE = 2;
+    static final byte BOOLEAN = 3;
+
+    // Wider shapes, and new shapes beyond the limit, fall back to plain maps, so documents
+    // with ever-changing field names can't grow the tree without bound
+    static final int MAX_FIELDS = 64;
+    private static final int MAX_SHAPES = 100_000;
+
+    // Wider shapes get a hash table to find a field's slot
+    private static final int LINEAR_SEARCH_FIELDS = 8;
+
+    static final Shape EMPTY = new Shape(new String[0], new byte[0]);
+    private static final AtomicInteger COUNT = new AtomicInteger(1);
+
+    private final String[] names;
+    private final byte[] kinds;
+
+    // Slot -> index into the long array or the object array, depending on its kind
+    private final int[] positions;
+    private final int primitiveCount;
+    private final int referenceCount;
+
+    private final Map<String, Integer> slots;
+
+    // Kind and field name -> shape with that field added
+    private final Map<String, Shape> transitions;
+
+    private Shape(String[] names, byte[] kinds) {
+        this.names = names;
+        this.kinds = kinds;
+        this.positions = new int[names.length];
+        int primitives = 0;
+        int references = 0;
+        for (int slot = 0; slot < names.length; slot++) {
+            positions[slot] = kinds[slot] == REFERENCE ? references++ : primitives++;
+        }
+        this.primitiveCount = primitives;
+        this.referenceCount = references;
+        this.transitions = new ConcurrentHashMap<>();
+        if (names.length > LINEAR_SEARCH_FIELDS) {
+            slots = new HashMap<>();
+            for (int slot = 0; slot < names.length; slot++) {
+                slots.put(names[slot], slot);
+            }
+        } else {
+            slots = null;
+        }
+    }
+
+    /**
+     * @param value A canonical value, see {@link Values#normalize}
+     * @return How it is stored
+     */
+    static byte kindOf(Object value) {
+        if (value instanceof Long) {
+            return LONG;
+        }
+        if (value instanceof Double) {
+            return DOUBLE;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        return REFERENCE;
+    }
+
+    int size() {
+        return names.length;
+    }
+
+    String name(int slot) {
+        return names[slot];
+    }
+
+    byte kind(int slot) {
+        return kinds[slot];
+    }
+
+    int position(int slot) {
+        return positions[slot];
+    }
+
+    int primitiveCount() {
+        return primitiveCount;
+    }
+
+    int referenceCount() {
+        return referenceCount;
+    }
+
+    /**
+     * @param name A field name
+     * @return Slot of the field, -1 if the shape doesn't have it
+     */
+    int slot(Object name) {
+        if (slots != null) {
+            Integer slot = slots.get(name);
+            return slot != null ? slot : -1;
+        }
+        for (int slot = 0; slot < names.length; slot++) {
+            if (names[slot].equals(name)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param name A field name this shape doesn't have
+     * @param kind How its value is stored
+     * @return The shape with the field added last, null if it would be too wide or too many shapes exist
+     */
+    Shape with(String name, byte kind) {
+        String key = (char) ('0' + kind) + name;
+        Shape next = transitions.get(key);
+        if (next != null) {
+            return next;
+        }
+        if (names.length >= MAX_FIELDS || COUNT.get() >= MAX_SHAPES) {
+            return null;
+        }
+        return transitions.computeIfAbsent(key, ignored -> {
+            COUNT.incrementAndGet();
+            String[] wider = Arrays.copyOf(names, names.length + 1);
+            wider[names.length] = name.intern();
+            byte[] widerKinds = Arrays.copyOf(kinds, kinds.length + 1);
+            widerKinds[kinds.length] = kind;
+            return new Shape(wider, widerKinds);
+        });
+    }
+
+    /**
+     * Get the shape with the same fields in the same order, one of them stored as another kind
+     * @param slot The field's slot
+     * @param kind Its new kind
+     * @return The shape, null if too many shapes exist
+     */
+    Shape withKind(int slot, byte kind) {
+        Shape shape = EMPTY;
+        for (int i = 0; i < names.length && shape != null; i++) {
+            shape = shape.with(names[i], i == slot ? kind : kinds[i]);
+        }
+        return shape;
+    }
+}
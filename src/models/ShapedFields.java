@@ -0,0 +1,251 @@
+package models;
+
+import java.util.*;
+import java.util.function.BiConsumer;
+
+/**
+ * Read-only fields of a document version, stored as a shared {@link Shape} and flat value arrays.
+ * A document with a few fields costs this object and two small arrays, instead of a hash table
+ * with an entry object and a key string per field. Int64, float64 and boolean values are kept
+ * unboxed; {@link #get} boxes them on the way out, the typed reads don't.
+ */
+final class ShapedFields extends AbstractMap<String, Object> {
+    private static final long[] NO_PRIMITIVES = new long[0];
+    private static final Object[] NO_REFERENCES = new Object[0];
+
+    static final ShapedFields EMPTY = new ShapedFields(Shape.EMPTY, NO_PRIMITIVES, NO_REFERENCES);
+
+    private final Shape shape;
+    private final long[] primitives;
+    private final Object[] references;
+
+    private ShapedFields(Shape shape, long[] primitives, Object[] references) {
+        this.shape = shape;
+        this.primitives = primitives;
+        this.references = references;
+    }
+
+    /**
+     * @param fields Fields with canonical values, see {@link Values#normalize}
+     * @return The same fields in compact form, or a read-only copy if they don't fit a shape
+     */
+    static Map<String, Object> of(Map<String, Object> fields) {
+        return with(EMPTY, fields);
+    }
+
+    /**
+     * Copy fields with some of them set, keeping the existing ones in place so the shape is shared
+     * @param base The current fields
+     * @param updates Field key -> new canonical value, fields not in base are added in iteration order
+     * @return The new fields in compact form, or a read-only map if they don't fit a shape
+     */
+    static Map<String, Object> with(Map<String, Object> base, Map<String, Object> updates) {
+        if (!(base instanceof ShapedFields)) {
+            Map<String, Object> compact = of(base);
+            if (!(compact instanceof ShapedFields)) {
+                return plain(base, updates);
+            }
+            base = compact;
+        }
+        ShapedFields current = (ShapedFields) base;
+
+        Shape shape = current.shape;
+        for (Map.Entry<String, Object> update : updates.entrySet()) {
+            byte kind = Shape.kindOf(update.getValue());
+            int slot = shape.slot(update.getKey());
+            if (slot < 0) {
+                shape = shape.with(update.getKey(), kind);
+            } else if (shape.kind(slot) != kind) {
+                shape = shape.withKind(slot, kind);
+            }
+            if (shape == null) {
+                return plain(current, updates);
+            }
+        }
+
+        long[] primitives;
+        Object[] references;
+        if (shape == current.shape) {
+            primitives = current.primitives.clone();
+            references = current.references.clone();
+        } else {
+            // Slots keep their order, only positions in the arrays can move
+            primitives = shape.primitiveCount() == 0 ? NO_PRIMITIVES : new long[shape.primitiveCount()];
+            references = shape.referenceCount() == 0 ? NO_REFERENCES : new Object[shape.referenceCount()];
+            Shape old = current.shape;
+            for (int slot = 0; slot < old.size(); slot++) {
+                if (shape.kind(slot) != old.kind(slot)) {
+                    continue; // Being updated
+                }
+                if (old.kind(slot) == Shape.REFERENCE) {
+                    references[shape.position(slot)] = current.references[old.position(slot)];
+                } else {
+                    primitives[shape.position(slot)] = current.primitives[old.position(slot)];
+                }
+            }
+        }
+        for (Map.Entry<String, Object> update : updates.entrySet()) {
+            int slot = shape.slot(update.getKey());
+            Object value = update.getValue();
+            switch (shape.kind(slot)) {
+                case Shape.LONG:
+                    primitives[shape.position(slot)] = (Long) value;
+                    break;
+                case Shape.DOUBLE:
+                    primitives[shape.position(slot)] = Double.doubleToRawLongBits((Double) value);
+                    break;
+                case Shape.BOOLEAN:
+                    primitives[shape.position(slot)] = (Boolean) value ? 1 : 0;
+                    break;
+                default:
+                    references[shape.position(slot)] = value;
+            }
+        }
+        return new ShapedFields(shape, primitives, references);
+    }
+
+    private static Map<String, Object> plain(Map<String, Object> base, Map<String, Object> updates) {
+        Map<String, Object> fields = new HashMap<>(base);
+        fields.putAll(updates);
+        return Collections.unmodifiableMap(fields);
+    }
+
+    /**
+     * @param key A field name
+     * @return Type of its value, NULL if missing
+     */
+    ValueType type(String key) {
+        int slot = shape.slot(key);
+        if (slot < 0) {
+            return ValueType.NULL;
+        }
+        switch (shape.kind(slot)) {
+            case Shape.LONG:
+                return ValueType.INT64;
+            case Shape.DOUBLE:
+                return ValueType.FLOAT64;
+            case Shape.BOOLEAN:
+                return ValueType.BOOLEAN;
+            default:
+                return ValueType.of(references[shape.position(slot)]);
+        }
+    }
+
+    /**
+     * @param key A numeric field
+     * @return Its value as a long, truncated if it is a float64
+     */
+    long getLong(String key) {
+        int slot = numericSlot(key);
+        long bits = primitives[shape.position(slot)];
+        return shape.kind(slot) == Shape.LONG ? bits : (long) Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * @param key A numeric field
+     * @return Its value as a double
+     */
+    double getDouble(String key) {
+        int slot = numericSlot(key);
+        long bits = primitives[shape.position(slot)];
+        return shape.kind(slot) == Shape.LONG ? bits : Double.longBitsToDouble(bits);
+    }
+
+    /**
+     * @param key A boolean field
+     * @return Its value
+     */
+    boolean getBoolean(String key) {
+        int slot = shape.slot(key);
+        if (slot < 0 || shape.kind(slot) != Shape.BOOLEAN) {
+            throw new IllegalArgumentException("Field " + key + " is not a boolean");
+        }
+        return primitives[shape.position(slot)] != 0;
+    }
+
+    private int numericSlot(String key) {
+        int slot = shape.slot(key);
+        if (slot < 0 || (shape.kind(slot) != Shape.LONG && shape.kind(slot) != Shape.DOUBLE)) {
+            throw new IllegalArgumentException("Field " + key + " is not a number");
+        }
+        return slot;
+    }
+
+    private Object value(int slot) {
+        int position = shape.position(slot);
+        switch (shape.kind(slot)) {
+            case Shape.LONG:
+                return primitives[position];
+            case Shape.DOUBLE:
+                return Double.longBitsToDouble(primitives[position]);
+            case Shape.BOOLEAN:
+                return primitives[position] != 0;
+            default:
+                return references[position];
+        }
+    }
+
+    @Override
+    public Object get(Object key) {
+        int slot = shape.slot(key);
+        return slot >= 0 ? value(slot) : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return shape.slot(key) >= 0;
+    }
+
+    @Override
+    public int size() {
+        return shape.size();
+    }
+
+    @Override
+    public void forEach(BiConsumer<? super String, ? super Object> action) {
+        for (int slot = 0; slot < shape.size(); slot++) {
+            action.accept(shape.name(slot), value(slot));
+        }
+    }
+
+    /**
+     * Like {@link #forEach}, for visitors that throw checked exceptions
+     */
+    <E extends Exception> void forEachField(FieldVisitor<E> visitor) throws E {
+        for (int slot = 0; slot < shape.size(); slot++) {
+            visitor.visit(shape.name(slot), value(slot));
+        }
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<>() {
+                    private int slot;
+
+                    @Override
+                    public boolean hasNext() {
+                        return slot < shape.size();
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (slot >= shape.size()) {
+                            throw new NoSuchElementException();
+                        }
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(shape.name(slot), value(slot));
+                        slot++;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return shape.size();
+            }
+        };
+    }
+}
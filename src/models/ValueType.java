@@ -0,0 +1,64 @@
+package models;
+
+import java.time.Instant;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Types a field value can have, see {@link Values#normalize}
+ */
+public enum ValueType {
+    NULL,
+    BOOLEAN,
+    INT64,
+    FLOAT64,
+    STRING,
+    TIMESTAMP,
+    BYTES,
+    ARRAY,
+    MAP;
+
+    /**
+     * Get the type of a normalized value
+     * @param value The value
+     * @return Its type
+     * @throws IllegalArgumentException if the value has no field type
+     */
+    public static ValueType of(Object value) {
+        if (value == null) {
+            return NULL;
+        }
+        if (value instanceof Boolean) {
+            return BOOLEAN;
+        }
+        if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return INT64;
+        }
+        if (value instanceof Number) {
+            return FLOAT64;
+        }
+        if (value instanceof String) {
+            return STRING;
+        }
+        if (value instanceof Instant) {
+            return TIMESTAMP;
+        }
+        if (value instanceof Bytes) {
+            return BYTES;
+        }
+        if (value instanceof List) {
+            return ARRAY;
+        }
+        if (value instanceof Map) {
+            return MAP;
+        }
+        throw new IllegalArgumentException("Unsupported field value type: " + value.getClass().getName());
+    }
+
+    /**
+     * @return Whether values of this type are numbers, which compare with each other
+     */
+    public boolean isNumber() {
+        return this == INT64 || this == FLOAT64;
+    }
+}
@@ -0,0 +1,92 @@
+package models;
+
+import java.time.Instant;
+import java.util.*;
+
+/**
+ * Converts field values to their canonical form, so a value reads back with the same type it
+ * was stored with, before and after a save and load.
+ *
+ * Whole numbers become a Long (int64) and other numbers a Double (float64), byte arrays become
+ * {@link Bytes} and dates an Instant (timestamp). Lists and maps are copied into read-only
+ * collections of canonical values; map keys become strings.
+ */
+public final class Values {
+    private Values() {
+    }
+
+    /**
+     * @param value A field value
+     * @return Its canonical form
+     * @throws IllegalArgumentException if the value has no field type
+     */
+    public static Object normalize(Object value) {
+        if (isCanonicalScalar(value)) {
+            return value;
+        }
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+        if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        }
+        if (value instanceof byte[]) {
+            return Bytes.of((byte[]) value);
+        }
+        if (value instanceof Date) {
+            return ((Date) value).toInstant();
+        }
+        if (value instanceof Collection) {
+            List<Object> list = new ArrayList<>(((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                list.add(normalize(element));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        if (value instanceof Object[]) {
+            return normalize(Arrays.asList((Object[]) value));
+        }
+        if (value instanceof Map) {
+            return Collections.unmodifiableMap(normalizeFields((Map<?, ?>) value));
+        }
+        throw new IllegalArgumentException("Unsupported field value type: " + value.getClass().getName());
+    }
+
+    /**
+     * @param value A value to write to a field, possibly a {@link FieldValue} transform
+     * @return The transform as it is, or the value's canonical form
+     * @throws IllegalArgumentException if the value has no field type
+     */
+    public static Object normalizeWrite(Object value) {
+        return value instanceof FieldValue ? value : normalize(value);
+    }
+
+    /**
+     * @param fields Field key -> value or {@link FieldValue} transform
+     * @return The fields in iteration order with canonical values, the same map if they already are
+     */
+    @SuppressWarnings("unchecked")
+    public static Map<String, Object> normalizeFields(Map<?, ?> fields) {
+        boolean canonical = true;
+        for (Map.Entry<?, ?> field : fields.entrySet()) {
+            Object value = field.getValue();
+            if (!(field.getKey() instanceof String) || !(isCanonicalScalar(value) || value instanceof FieldValue)) {
+                canonical = false;
+                break;
+            }
+        }
+        if (canonical) {
+            return (Map<String, Object>) fields;
+        }
+        Map<String, Object> normalized = new LinkedHashMap<>();
+        for (Map.Entry<?, ?> field : fields.entrySet()) {
+            normalized.put(String.valueOf(field.getKey()), normalizeWrite(field.getValue()));
+        }
+        return normalized;
+    }
+
+    private static boolean isCanonicalScalar(Object value) {
+        return value == null || value instanceof Long || value instanceof Double || value instanceof Boolean
+                || value instanceof String || value instanceof Instant || value instanceof Bytes;
+    }
+}
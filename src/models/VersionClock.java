@@ -0,0 +1,107 @@
+package models;
+
+import java.util.concurrent.ConcurrentSkipListMap;
+
+/**
+ * Hands out commit sequence numbers and tracks the snapshots that are still open.
+ *
+ * Writers start a commit, install new document versions under it, then end it. Ending
+ * assigns the next sequence number and publishes it, so a snapshot that reads the
+ * published sequence sees every version of a commit or none of them. Snapshots register
+ * their sequence while open; versions older than what the oldest snapshot needs are
+ * unlinked by the next write to their document.
+ */
+public class VersionClock {
+    // Highest sequence whose versions are all installed
+    private volatile long published;
+
+    // Commit being applied by the current thread, so every write it makes joins it
+    private final ThreadLocal<Commit> current = new ThreadLocal<>();
+
+    // Read sequence of every open snapshot -> number of snapshots open at it
+    private final ConcurrentSkipListMap<Long, Integer> openSnapshots = new ConcurrentSkipListMap<>();
+
+    /**
+     * Start a commit on this thread, joining the running one if there is one
+     * @return The commit, or null if an outer commit on this thread owns it
+     */
+    public Commit begin() {
+        if (current.get() != null) {
+            return null;
+        }
+        Commit commit = new Commit();
+        current.set(commit);
+        return commit;
+    }
+
+    /**
+     * Publish a commit started by {@link #begin()}, making its versions visible to new snapshots
+     * @param commit The commit returned by begin, null is ignored
+     */
+    public void end(Commit commit) {
+        if (commit == null) {
+            return;
+        }
+        current.remove();
+        publish(commit);
+        commit.runOnVisible();
+    }
+
+    /**
+     * Run a task once the commit running on this thread is visible, or right away if none is running
+     * Used to announce changes only when snapshots can already see them
+     * @param task The task
+     */
+    public void whenVisible(Runnable task) {
+        Commit running = current.get();
+        if (running != null) {
+            running.addOnVisible(task);
+        } else {
+            task.run();
+        }
+    }
+
+    /**
+     * @return The commit running on this thread, null if none
+     */
+    Commit current() {
+        return current.get();
+    }
+
+    /**
+     * Assign the next sequence to a commit and make it visible
+     */
+    synchronized void publish(Commit commit) {
+        long sequence = published + 1;
+        commit.setSequence(sequence);
+        published = sequence;
+    }
+
+    /**
+     * Register a snapshot at the latest published sequence
+     * @return The snapshot's read sequence, pass it to {@link #closeSnapshot} when done
+     */
+    public synchronized long openSnapshot() {
+        long sequence = published;
+        openSnapshots.merge(sequence, 1, Integer::sum);
+        return sequence;
+    }
+
+    /**
+     * Unregister a snapshot, letting the versions only it needed be reclaimed
+     * @param sequence The snapshot's read sequence
+     */
+    public synchronized void closeSnapshot(long sequence) {
+        openSnapshots.computeIfPresent(sequence, (key, count) -> count > 1 ? count - 1 : null);
+    }
+
+    /**
+     * Get the oldest sequence any current or future snapshot can read at
+     * @return The oldest open snapshot's sequence, or the published sequence if none is open
+     */
+    public long oldestVisible() {
+        long latest = published;
+        Long oldest = openSnapshots.isEmpty() ? null : openSnapshots.firstKey();
+        return oldest != null ? Math.min(oldest, latest) : latest;
+    }
+}
@@ -0,0 +1,186 @@
+package persistence;
+
+import models.Bytes;
+import models.Document;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Reads documents and typed values written by {@link BinaryDocumentWriter}
+ */
+public class BinaryDocumentReader {
+    private final DataInputStream in;
+    private final List<String> names;
+
+    public BinaryDocumentReader(InputStream in) {
+        this.in = new DataInputStream(in);
+        this.names = new ArrayList<>();
+    }
+
+    /**
+     * Read an unsigned variable-length integer
+     * @return The value
+     */
+    public long readVarLong() throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    /**
+     * Read a zigzag encoded signed integer
+     * @return The value
+     */
+    public long readSignedVarLong() throws IOException {
+        long raw = readVarLong();
+        return (raw >>> 1) ^ -(raw & 1);
+    }
+
+    public int readByte() throws IOException {
+        return in.readUnsignedByte();
+    }
+
+    public void readFully(byte[] bytes) throws IOException {
+        in.readFully(bytes);
+    }
+
+    /**
+     * Read a length-prefixed UTF-8 string
+     * @return The string
+     */
+    public String readString() throws IOException {
+        byte[] bytes = new byte[readLength()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Read a field or collection name through the dictionary
+     * @return The name
+     */
+    public String readName() throws IOException {
+        long reference = readVarLong();
+        if (reference == 0) {
+            // Interned so every document shares one copy of each name
+            String name = readString().intern();
+            names.add(name);
+            return name;
+        }
+        if (reference > names.size()) {
+            throw new IOException("Unknown name reference " + reference);
+        }
+        return names.get((int) reference - 1);
+    }
+
+    /**
+     * Read a tagged value
+     * Integers come back as Long and other numbers as Double, the canonical field types
+     * @return The value
+     */
+    public Object readValue() throws IOException {
+        int tag = in.readUnsignedByte();
+        switch (tag) {
+            case BinaryDocumentWriter.TAG_NULL:
+                return null;
+            case BinaryDocumentWriter.TAG_FALSE:
+                return Boolean.FALSE;
+            case BinaryDocumentWriter.TAG_TRUE:
+                return Boolean.TRUE;
+            case BinaryDocumentWriter.TAG_INT:
+                return readSignedVarLong();
+            case BinaryDocumentWriter.TAG_DOUBLE:
+                return in.readDouble();
+            case BinaryDocumentWriter.TAG_STRING:
+                return readString();
+            case BinaryDocumentWriter.TAG_TIMESTAMP:
+                long seconds = readSignedVarLong();
+                return Instant.ofEpochSecond(seconds, readVarLong());
+            case BinaryDocumentWriter.TAG_BYTES:
+                byte[] bytes = new byte[readLength()];
+                readFully(bytes);
+                return Bytes.of(bytes);
+            case BinaryDocumentWriter.TAG_LIST:
+                int size = readLength();
+                List<Object> list = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    list.add(readValue());
+                }
+                return list;
+            case BinaryDocumentWriter.TAG_MAP:
+                int entries = readLength();
+                Map<String, Object> map = new LinkedHashMap<>();
+                for (int i = 0; i < entries; i++) {
+                    String key = readName();
+                    map.put(key, readValue());
+                }
+                return map;
+            default:
+                throw new IOException("Unknown value tag " + tag);
+        }
+    }
+
+    /**
+     * Read a document with its fields and nested collections
+     * @return The document
+     */
+    public Document readDocument() throws IOException {
+        Document document = new Document(readString());
+
+        // Set every field at once, so the document starts with a single version
+        int count = readLength();
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String key = readName();
+            fields.put(key, readValue());
+        }
+        if (!fields.isEmpty()) {
+            document.update(fields);
+        }
+
+        while (in.readUnsignedByte() == BinaryDocumentWriter.MORE) {
+            String collectionName = readName();
+            document.createNestedCollection(collectionName);
+            readDocuments(document.getNestedDocuments(collectionName));
+        }
+        return document;
+    }
+
+    /**
+     * Read documents up to the end marker into a collection
+     * @param target Map the documents are added to
+     */
+    public void readDocuments(Map<String, Document> target) throws IOException {
+        while (in.readUnsignedByte() == BinaryDocumentWriter.MORE) {
+            Document document = readDocument();
+            target.put(document.getId(), document);
+        }
+    }
+
+    /**
+     * Read documents up to the end marker into a new concurrent collection
+     * @return The collection
+     */
+    public Map<String, Document> readDocuments() throws IOException {
+        Map<String, Document> documents = new ConcurrentHashMap<>();
+        readDocuments(documents);
+        return documents;
+    }
+
+    private int readLength() throws IOException {
+        long length = readVarLong();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Length out of range: " + length);
+        }
+        return (int) length;
+    }
+}
@@ -0,0 +1,193 @@
+package persistence;
+
+import models.Bytes;
+import models.Document;
+import models.FieldVisitor;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes documents and typed values in the compact binary encoding.
+ *
+ * Lengths and integers are varints (7 bits per byte, high bit set on all but the last byte).
+ * Field and collection names go through a dictionary built while writing: the first
+ * occurrence is written as 0 followed by the string and gets the next index, later
+ * occurrences are written as index + 1. {@link BinaryDocumentReader} rebuilds the
+ * same dictionary as it reads, so no separate dictionary pass is needed.
+ */
+public class BinaryDocumentWriter implements Flushable {
+    // Value type tags
+    static final int TAG_NULL = 0;
+    static final int TAG_FALSE = 1;
+    static final int TAG_TRUE = 2;
+    static final int TAG_INT = 3;
+    static final int TAG_DOUBLE = 4;
+    static final int TAG_STRING = 5;
+    static final int TAG_LIST = 6;
+    static final int TAG_MAP = 7;
+    static final int TAG_TIMESTAMP = 8;
+    static final int TAG_BYTES = 9;
+
+    // Marks another entry following, or the end of a sequence
+    static final int MORE = 1;
+    static final int END = 0;
+
+    private final DataOutputStream out;
+    private final Map<String, Integer> names;
+
+    public BinaryDocumentWriter(OutputStream out) {
+        this.out = new DataOutputStream(out);
+        this.names = new HashMap<>();
+    }
+
+    /**
+     * Write an unsigned variable-length integer
+     * @param value The value, treated as unsigned
+     */
+    public void writeVarLong(long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+
+    /**
+     * Write a signed integer, zigzag encoded so small negative numbers stay short
+     * @param value The value
+     */
+    public void writeSignedVarLong(long value) throws IOException {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeByte(int value) throws IOException {
+        out.write(value);
+    }
+
+    public void writeBytes(byte[] bytes) throws IOException {
+        out.write(bytes);
+    }
+
+    public void writeBytes(byte[] bytes, int offset, int length) throws IOException {
+        out.write(bytes, offset, length);
+    }
+
+    /**
+     * Write a length-prefixed UTF-8 string
+     * @param value The string
+     */
+    public void writeString(String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        writeVarLong(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write a field or collection name through the dictionary
+     * @param name The name
+     */
+    public void writeName(String name) throws IOException {
+        Integer index = names.get(name);
+        if (index != null) {
+            writeVarLong(index + 1L);
+            return;
+        }
+        writeVarLong(0);
+        writeString(name);
+        names.put(name, names.size());
+    }
+
+    /**
+     * Write a tagged value
+     * Unknown types are written as their string form
+     * @param value The value
+     */
+    public void writeValue(Object value) throws IOException {
+        if (value == null) {
+            out.write(TAG_NULL);
+        } else if (value instanceof Boolean) {
+            out.write((Boolean) value ? TAG_TRUE : TAG_FALSE);
+        } else if (value instanceof Integer || value instanceof Long
+                || value instanceof Short || value instanceof Byte) {
+            out.write(TAG_INT);
+            writeSignedVarLong(((Number) value).longValue());
+        } else if (value instanceof Number) {
+            out.write(TAG_DOUBLE);
+            out.writeDouble(((Number) value).doubleValue());
+        } else if (value instanceof Instant) {
+            Instant instant = (Instant) value;
+            out.write(TAG_TIMESTAMP);
+            writeSignedVarLong(instant.getEpochSecond());
+            writeVarLong(instant.getNano());
+        } else if (value instanceof Bytes) {
+            byte[] bytes = ((Bytes) value).toByteArray();
+            out.write(TAG_BYTES);
+            writeVarLong(bytes.length);
+            out.write(bytes);
+        } else if (value instanceof List) {
+            List<?> list = (List<?>) value;
+            out.write(TAG_LIST);
+            writeVarLong(list.size());
+            for (Object element : list) {
+                writeValue(element);
+            }
+        } else if (value instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) value;
+            out.write(TAG_MAP);
+            writeVarLong(map.size());
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
+                writeName(String.valueOf(entry.getKey()));
+                writeValue(entry.getValue());
+            }
+        } else {
+            out.write(TAG_STRING);
+            writeString(value.toString());
+        }
+    }
+
+    /**
+     * Write a document with its fields and nested collections
+     * @param document The document
+     */
+    public void writeDocument(Document document) throws IOException {
+        writeString(document.getId());
+
+        // Peek, so a checkpoint doesn't pull every paged-out document back into memory
+        Map<String, Object> data = document.snapshot().peekData();
+        writeVarLong(data.size());
+        FieldVisitor.visitAll(data, (name, value) -> {
+            writeName(name);
+            writeValue(value);
+        });
+
+        // Nested collections can change while being written, so use markers instead of counts
+        for (Map.Entry<String, Map<String, Document>> collection : document.getNestedCollections().entrySet()) {
+            out.write(MORE);
+            writeName(collection.getKey());
+            writeDocuments(collection.getValue());
+        }
+        out.write(END);
+    }
+
+    /**
+     * Write every document of a collection followed by an end marker
+     * @param documents The collection's documents
+     */
+    public void writeDocuments(Map<String, Document> documents) throws IOException {
+        for (Document document : documents.values()) {
+            out.write(MORE);
+            writeDocument(document);
+        }
+        out.write(END);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+}
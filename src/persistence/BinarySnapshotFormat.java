@@ -0,0 +1,220 @@
+package persistence;
+
+import models.Document;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Compact, versioned binary snapshots.
+ *
+ * Layout (version 2):
+ *   magic "SAMB", format version (varint)
+ *   for each collection: MORE, name (string), chunks..., END
+ *     each chunk: MORE, byte length (varint), documents..., END
+ *   END
+ *
+ * Every chunk holds up to {@link #CHUNK_SIZE} documents and starts a fresh name
+ * dictionary, so a chunk can be decoded on its own. That lets a mapped snapshot
+ * be indexed by hopping over chunk lengths without decoding anything, keeps
+ * untouched collections as raw bytes until first use, and lets the chunks of one
+ * large collection be decoded in parallel.
+ *
+ * Version 1 (a single dictionary for the whole file, no chunks) is still readable.
+ * Documents, names and values use the encoding of {@link BinaryDocumentWriter}.
+ */
+public class BinarySnapshotFormat implements SnapshotFormat {
+    private static final byte[] MAGIC = {'S', 'A', 'M', 'B'};
+
+    // Bump when the layout changes, older versions must stay readable
+    static final int VERSION = 2;
+
+    // Documents per independently decodable chunk
+    private static final int CHUNK_SIZE = 4096;
+
+    @Override
+    public void write(Map<String, Map<String, Document>> collections, OutputStream out) throws IOException {
+        write(collections, Collections.emptyMap(), out);
+    }
+
+    /**
+     * Write a snapshot, copying collections that were never decoded straight from their raw bytes
+     * @param collections Decoded collections
+     * @param rawCollections Collection name -> raw region returned by {@link #indexCollections}
+     * @param out Stream to write to, not closed by this method
+     */
+    public void write(Map<String, Map<String, Document>> collections,
+                      Map<String, ByteBuffer> rawCollections, OutputStream out) throws IOException {
+        BufferedOutputStream buffered = new BufferedOutputStream(out);
+        BinaryDocumentWriter writer = new BinaryDocumentWriter(buffered);
+        writer.writeBytes(MAGIC);
+        writer.writeVarLong(VERSION);
+
+        for (Map.Entry<String, ByteBuffer> raw : rawCollections.entrySet()) {
+            writer.writeByte(BinaryDocumentWriter.MORE);
+            writer.writeString(raw.getKey());
+            ByteBuffer region = raw.getValue().duplicate();
+            byte[] copy = new byte[8192];
+            while (region.hasRemaining()) {
+                int count = Math.min(copy.length, region.remaining());
+                region.get(copy, 0, count);
+                writer.writeBytes(copy, 0, count);
+            }
+        }
+
+        for (Map.Entry<String, Map<String, Document>> collection : collections.entrySet()) {
+            if (rawCollections.containsKey(collection.getKey())) {
+                continue;
+            }
+            writer.writeByte(BinaryDocumentWriter.MORE);
+            writer.writeString(collection.getKey());
+            writeChunks(writer, collection.getValue());
+        }
+        writer.writeByte(BinaryDocumentWriter.END);
+        writer.flush();
+    }
+
+    @Override
+    public Map<String, Map<String, Document>> read(InputStream in) throws IOException {
+        DataInputStream data = new DataInputStream(new BufferedInputStream(in));
+        BinaryDocumentReader reader = new BinaryDocumentReader(data);
+        long version = readHeader(reader);
+
+        Map<String, Map<String, Document>> collections = new ConcurrentHashMap<>();
+        while (reader.readByte() == BinaryDocumentWriter.MORE) {
+            if (version == 1) {
+                String name = reader.readName();
+                collections.put(name, reader.readDocuments());
+                continue;
+            }
+
+            // Documents are decoded one at a time straight from the stream
+            String name = reader.readString();
+            Map<String, Document> documents = new ConcurrentHashMap<>();
+            while (reader.readByte() == BinaryDocumentWriter.MORE) {
+                reader.readVarLong(); // Chunk length, only needed for skipping
+                new BinaryDocumentReader(data).readDocuments(documents);
+            }
+            collections.put(name, documents);
+        }
+        return collections;
+    }
+
+    /**
+     * Find every collection in a mapped snapshot without decoding any document
+     * @param snapshot The whole snapshot file
+     * @return Collection name -> raw region, or null if the snapshot predates chunking
+     *         and has to be read with {@link #read(InputStream)}
+     */
+    public Map<String, ByteBuffer> indexCollections(ByteBuffer snapshot) throws IOException {
+        ByteBuffer buffer = snapshot.duplicate();
+        BinaryDocumentReader reader = new BinaryDocumentReader(new ByteBufferInputStream(buffer));
+        if (readHeader(reader) < 2) {
+            return null;
+        }
+
+        Map<String, ByteBuffer> index = new LinkedHashMap<>();
+        while (reader.readByte() == BinaryDocumentWriter.MORE) {
+            String name = reader.readString();
+            int start = buffer.position();
+            while (reader.readByte() == BinaryDocumentWriter.MORE) {
+                long length = reader.readVarLong();
+                buffer.position(Math.toIntExact(buffer.position() + length));
+            }
+            index.put(name, buffer.duplicate().position(start).limit(buffer.position()).slice());
+        }
+        return index;
+    }
+
+    /**
+     * Decode one collection from the raw region returned by {@link #indexCollections}
+     * @param region The collection's chunks
+     * @param parallel Whether to decode the chunks on all cores
+     * @return The collection's documents
+     */
+    public Map<String, Document> readCollection(ByteBuffer region, boolean parallel) throws IOException {
+        ByteBuffer buffer = region.duplicate();
+        BinaryDocumentReader reader = new BinaryDocumentReader(new ByteBufferInputStream(buffer));
+
+        List<ByteBuffer> chunks = new ArrayList<>();
+        while (reader.readByte() == BinaryDocumentWriter.MORE) {
+            int length = Math.toIntExact(reader.readVarLong());
+            chunks.add(buffer.slice().limit(length));
+            buffer.position(buffer.position() + length);
+        }
+
+        Map<String, Document> documents = new ConcurrentHashMap<>(chunks.size() * CHUNK_SIZE);
+        try {
+            (parallel ? chunks.parallelStream() : chunks.stream()).forEach(chunk -> {
+                try {
+                    new BinaryDocumentReader(new ByteBufferInputStream(chunk.duplicate())).readDocuments(documents);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return documents;
+    }
+
+    /**
+     * Check the magic bytes and format version
+     * @param reader Reader positioned at the start of a snapshot
+     * @return The format version
+     */
+    static long readHeader(BinaryDocumentReader reader) throws IOException {
+        byte[] magic = new byte[MAGIC.length];
+        reader.readFully(magic);
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (magic[i] != MAGIC[i]) {
+                throw new IOException("Not a binary snapshot");
+            }
+        }
+
+        long version = reader.readVarLong();
+        if (version < 1 || version > VERSION) {
+            throw new IOException("Unsupported snapshot version " + version);
+        }
+        return version;
+    }
+
+    /**
+     * Write a collection as length-prefixed chunks, each with its own name dictionary
+     */
+    private void writeChunks(BinaryDocumentWriter writer, Map<String, Document> documents) throws IOException {
+        ByteArrayOutputStream chunk = new ByteArrayOutputStream();
+        BinaryDocumentWriter chunkWriter = new BinaryDocumentWriter(chunk);
+        int count = 0;
+
+        for (Document document : documents.values()) {
+            chunkWriter.writeByte(BinaryDocumentWriter.MORE);
+            chunkWriter.writeDocument(document);
+            if (++count == CHUNK_SIZE) {
+                flushChunk(writer, chunkWriter, chunk);
+                chunk.reset();
+                chunkWriter = new BinaryDocumentWriter(chunk);
+                count = 0;
+            }
+        }
+        if (count > 0) {
+            flushChunk(writer, chunkWriter, chunk);
+        }
+        writer.writeByte(BinaryDocumentWriter.END);
+    }
+
+    private void flushChunk(BinaryDocumentWriter writer, BinaryDocumentWriter chunkWriter,
+                            ByteArrayOutputStream chunk) throws IOException {
+        chunkWriter.writeByte(BinaryDocumentWriter.END);
+        chunkWriter.flush();
+        writer.writeByte(BinaryDocumentWriter.MORE);
+        writer.writeVarLong(chunk.size());
+        writer.writeBytes(chunk.toByteArray());
+    }
+}
@@ -0,0 +1,127 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.concurrent.*;
+
+/**
+ * Background thread that keeps the write-ahead log short.
+ *
+ * A checkpoint runs in three steps:
+ * 1. The persistence writer rotates the log in order with the queued mutations,
+ *    so the archive segment holds everything up to that point.
+ * 2. A snapshot of the live collections is written on this thread. Writers keep
+ *    going meanwhile; any change they make also lands in the new log, and since
+ *    every record overwrites rather than accumulates, replaying it on top of a
+ *    snapshot that may already contain it gives the same result.
+ * 3. The archive segment is deleted.
+ *
+ * Checkpoints are triggered when the log grows past a size limit or when a
+ * time interval has passed with something logged, so replay time on startup
+ * stays bounded however long the process has been running.
+ */
+public class Checkpointer implements Closeable {
+    // How often the triggers are checked
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+
+    private final PersistenceWriter writer;
+    private final WriteAheadLog log;
+    private final PersistenceWriter.SnapshotWriter snapshotWriter;
+    private final long maxLogBytes;
+    private final long intervalNanos;
+    private final ScheduledExecutorService executor;
+    private volatile long lastCheckpointNanos;
+
+    /**
+     * @param writer The persistence writer that owns the log
+     * @param log The write-ahead log to compact
+     * @param snapshotWriter Writes a full snapshot of the database
+     * @param maxLogBytes Checkpoint once the log is at least this big, 0 to disable
+     * @param interval Checkpoint once this much time has passed, null or zero to disable
+     */
+    public Checkpointer(PersistenceWriter writer, WriteAheadLog log,
+                        PersistenceWriter.SnapshotWriter snapshotWriter,
+                        long maxLogBytes, Duration interval) {
+        this.writer = writer;
+        this.log = log;
+        this.snapshotWriter = snapshotWriter;
+        this.maxLogBytes = maxLogBytes;
+        this.intervalNanos = interval != null ? interval.toNanos() : 0;
+        this.lastCheckpointNanos = System.nanoTime();
+
+        this.executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sam-checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        if (maxLogBytes > 0 || intervalNanos > 0) {
+            executor.scheduleWithFixedDelay(this::checkTriggers,
+                    POLL_INTERVAL_MILLIS, POLL_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Run a checkpoint on the checkpointer thread and wait for it
+     */
+    public void checkpointNow() throws IOException {
+        try {
+            executor.submit(() -> {
+                checkpoint();
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stop the background checks, waiting for a running checkpoint to finish
+     */
+    @Override
+    public void close() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkTriggers() {
+        long logBytes = log.size();
+        if (logBytes == 0) {
+            return;
+        }
+
+        boolean sizeReached = maxLogBytes > 0 && logBytes >= maxLogBytes;
+        boolean intervalReached = intervalNanos > 0
+                && System.nanoTime() - lastCheckpointNanos >= intervalNanos;
+
+        if (sizeReached || intervalReached) {
+            try {
+                checkpoint();
+            } catch (IOException e) {
+                System.err.println("Error writing checkpoint: " + e.getMessage());
+            }
+        }
+    }
+
+    private void checkpoint() throws IOException {
+        try {
+            writer.submitRotation().join();
+        } catch (CompletionException e) {
+            throw new IOException("Log rotation failed", e.getCause());
+        }
+
+        snapshotWriter.writeSnapshot(true);
+        log.deleteArchive();
+        lastCheckpointNanos = System.nanoTime();
+    }
+}
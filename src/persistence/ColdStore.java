@@ -0,0 +1,275 @@
+package persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Off-heap store for the fields of documents evicted from memory.
+ *
+ * Each document version is encoded once, like a map value of the binary snapshots, and appended
+ * to a memory-mapped segment file. An {@link OffHeapIndex} outside the heap finds it again, and
+ * reads decode straight from the mapped bytes, so paged-out documents cost the heap nothing and
+ * reading one back is served from the page cache without a system call or a copy.
+ *
+ * Freed versions leave garbage in their segment. Once garbage makes up at least half of a full
+ * segment, {@link #compactIfNeeded()} moves its live entries to the segment being filled and
+ * deletes it. The segments only live as long as the database is open: the write-ahead log and
+ * the snapshots stay the durable copy of every document.
+ */
+public class ColdStore implements Closeable {
+    // Size of each segment file, larger entries get a segment of their own
+    private static final int SEGMENT_BYTES = 64 * 1024 * 1024;
+
+    // Segments with less garbage than this are never compacted
+    private static final long MIN_COMPACTION_BYTES = 4L * 1024 * 1024;
+
+    private final File directory;
+
+    // Segment number -> segment, the last one is being filled
+    private final TreeMap<Integer, Segment> segments;
+    private int nextSegment;
+
+    private final OffHeapIndex index;
+    private long liveBytes;
+
+    // Reads share the segments, appends and compaction take them exclusively
+    private final ReadWriteLock lock;
+
+    /**
+     * @param directory Directory for the segment files, emptied if it exists
+     */
+    public ColdStore(File directory) throws IOException {
+        this.directory = directory;
+        this.segments = new TreeMap<>();
+        this.index = new OffHeapIndex(1024);
+        this.lock = new ReentrantReadWriteLock();
+        deleteSegmentFiles();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+    }
+
+    /**
+     * @param key A document version
+     * @return Whether its fields are stored
+     */
+    public boolean contains(long key) {
+        lock.readLock().lock();
+        try {
+            return index.find(key) >= 0;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Store the fields of a document version, unless they already are
+     * @param key The document version
+     * @param fields The fields
+     */
+    public void put(long key, Map<String, Object> fields) throws IOException {
+        if (contains(key)) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        BinaryDocumentWriter writer = new BinaryDocumentWriter(bytes);
+        writer.writeValue(fields);
+        writer.flush();
+
+        lock.writeLock().lock();
+        try {
+            if (index.find(key) < 0) {
+                append(key, ByteBuffer.wrap(bytes.toByteArray()));
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Read back the fields of a document version, decoded straight from the mapped segment
+     * @param key The document version
+     * @return The fields
+     */
+    @SuppressWarnings("unchecked")
+    public Map<String, Object> read(long key) throws IOException {
+        ByteBuffer region;
+        lock.readLock().lock();
+        try {
+            int slot = index.find(key);
+            if (slot < 0) {
+                throw new IOException("No stored fields for version " + key);
+            }
+            region = segments.get(index.segment(slot)).slice(index.offset(slot), index.length(slot));
+        } finally {
+            lock.readLock().unlock();
+        }
+        // A mapping stays valid while referenced, even if compaction deletes its segment meanwhile
+        BinaryDocumentReader reader = new BinaryDocumentReader(new ByteBufferInputStream(region));
+        return (Map<String, Object>) reader.readValue();
+    }
+
+    /**
+     * Forget the fields of a document version, leaving garbage until its segment is compacted
+     * @param key The document version
+     */
+    public void free(long key) {
+        lock.writeLock().lock();
+        try {
+            int slot = index.find(key);
+            if (slot >= 0) {
+                Segment segment = segments.get(index.segment(slot));
+                segment.liveBytes -= index.length(slot);
+                liveBytes -= index.length(slot);
+                index.remove(key);
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return Bytes of stored fields, not counting garbage
+     */
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return liveBytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Rewrite every full segment that is at least half garbage into the segment being filled
+     * Readers and writers wait while it runs
+     */
+    public void compactIfNeeded() throws IOException {
+        lock.writeLock().lock();
+        try {
+            if (segments.isEmpty()) {
+                return;
+            }
+            List<Segment> sparse = new ArrayList<>();
+            for (Segment segment : segments.headMap(segments.lastKey(), false).values()) {
+                long garbage = segment.end - segment.liveBytes;
+                if (garbage >= MIN_COMPACTION_BYTES && garbage >= segment.liveBytes) {
+                    sparse.add(segment);
+                }
+            }
+            for (Segment segment : sparse) {
+                List<long[]> entries = new ArrayList<>();
+                index.forEach((key, number, offset, length) -> {
+                    if (number == segment.number) {
+                        entries.add(new long[] {key, offset, length});
+                    }
+                });
+                for (long[] entry : entries) {
+                    liveBytes -= entry[2];
+                    append(entry[0], segment.slice((int) entry[1], (int) entry[2]));
+                }
+                segments.remove(segment.number);
+                segment.delete();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Close and delete the segment files
+     */
+    @Override
+    public void close() throws IOException {
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                segment.delete();
+            }
+            segments.clear();
+            Files.deleteIfExists(directory.toPath());
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Append an entry to the segment being filled, starting a new one if it doesn't fit
+     * Must be called while holding the write lock
+     */
+    private void append(long key, ByteBuffer bytes) throws IOException {
+        int length = bytes.remaining();
+        Segment segment = segments.isEmpty() ? null : segments.lastEntry().getValue();
+        if (segment == null || segment.remaining() < length) {
+            segment = new Segment(nextSegment++, Math.max(SEGMENT_BYTES, length));
+            segments.put(segment.number, segment);
+        }
+        int offset = segment.append(bytes);
+        index.put(key, segment.number, offset, length);
+        segment.liveBytes += length;
+        liveBytes += length;
+    }
+
+    private void deleteSegmentFiles() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".segment"));
+        if (files != null) {
+            for (File file : files) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * One mapped segment file, filled from the start and never rewritten in place
+     */
+    private class Segment {
+        final int number;
+        final File file;
+        final MappedByteBuffer buffer;
+        int end;
+        long liveBytes;
+
+        Segment(int number, int size) throws IOException {
+            this.number = number;
+            this.file = new File(directory, number + ".segment");
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            }
+        }
+
+        int remaining() {
+            return buffer.capacity() - end;
+        }
+
+        int append(ByteBuffer bytes) {
+            int offset = end;
+            ByteBuffer target = buffer.duplicate();
+            target.position(offset);
+            target.put(bytes);
+            end = target.position();
+            return offset;
+        }
+
+        ByteBuffer slice(int offset, int length) {
+            ByteBuffer region = buffer.duplicate();
+            region.position(offset).limit(offset + length);
+            return region.slice();
+        }
+
+        void delete() throws IOException {
+            // The mapping itself is released once no buffer refers to it
+            Files.deleteIfExists(file.toPath());
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package persistence;
+
+import com.google.gson.*;
+import models.Document;
+
+import java.lang.reflect.Type;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Custom type adapter for Document to handle nested collections
+ */
+public class DocumentTypeAdapter
+        implements JsonSerializer<Document>, JsonDeserializer<Document> {
+
+    @Override
+    public JsonElement serialize(Document document, Type type, JsonSerializationContext context) {
+        JsonObject jsonObject = new JsonObject();
+
+        // Serialize basic document data
+        jsonObject.add("id", new JsonPrimitive(document.getId()));
+
+        // Serialize document fields
+        JsonObject dataObject = new JsonObject();
+        document.snapshot().peekFields((name, value) -> dataObject.add(name, JsonValues.toJson(value)));
+        jsonObject.add("data", dataObject);
+
+        // Serialize nested collections directly without reflection
+        JsonObject nestedCollectionsObject = new JsonObject();
+        Map<String, Map<String, Document>> nestedCollections = document.getNestedCollections();
+
+        for (Map.Entry<String, Map<String, Document>> collectionEntry :
+                nestedCollections.entrySet()) {
+            JsonObject collectionObject = new JsonObject();
+            for (Map.Entry<String, Document> docEntry :
+                    collectionEntry.getValue().entrySet()) {
+                collectionObject.add(docEntry.getKey(),
+                        context.serialize(docEntry.getValue()));
+            }
+            nestedCollectionsObject.add(collectionEntry.getKey(), collectionObject);
+        }
+
+        jsonObject.add("nestedCollections", nestedCollectionsObject);
+        return jsonObject;
+    }
+
+    @Override
+    public Document deserialize(JsonElement json, Type type,
+                                JsonDeserializationContext context) throws JsonParseException {
+        JsonObject jsonObject = json.getAsJsonObject();
+
+        // Deserialize document ID
+        String id = jsonObject.get("id").getAsString();
+        Document document = new Document(id);
+
+        // Deserialize document data
+        if (jsonObject.has("data")) {
+            JsonObject dataObject = jsonObject.getAsJsonObject("data");
+            Map<String, Object> fields = new LinkedHashMap<>();
+            for (Map.Entry<String, JsonElement> entry : dataObject.entrySet()) {
+                // Not through Gson, which would turn every number into a Double
+                fields.put(entry.getKey(), JsonValues.fromJson(entry.getValue()));
+            }
+            if (!fields.isEmpty()) {
+                document.update(fields);
+            }
+        }
+
+        // Deserialize nested collections
+        if (jsonObject.has("nestedCollections")) {
+            JsonObject nestedCollectionsObject =
+                    jsonObject.getAsJsonObject("nestedCollections");
+
+            for (Map.Entry<String, JsonElement> collectionEntry :
+                    nestedCollectionsObject.entrySet()) {
+                String collectionName = collectionEntry.getKey();
+                document.createNestedCollection(collectionName);
+
+                JsonObject collectionObject = collectionEntry.getValue().getAsJsonObject();
+                for (Map.Entry<String, JsonElement> docEntry :
+                        collectionObject.entrySet()) {
+                    Document nestedDoc = context.deserialize(docEntry.getValue(), Document.class);
+                    document.getNestedDocuments(collectionName)
+                            .put(nestedDoc.getId(), nestedDoc);
+                }
+            }
+        }
+
+        return document;
+    }
+}
@@ -0,0 +1,21 @@
+package persistence;
+
+/**
+ * How durable a write must be before the call that made it returns
+ */
+public enum Durability {
+    /**
+     * Fire-and-forget: return as soon as the write is queued for the persistence writer
+     */
+    ASYNC,
+
+    /**
+     * Return once the write has been handed to the operating system, without an fsync
+     */
+    FLUSH,
+
+    /**
+     * Return once the write has been fsynced to disk
+     */
+    FSYNC
+}
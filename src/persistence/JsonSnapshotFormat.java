@@ -0,0 +1,108 @@
+package persistence;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+import models.Document;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Pretty-printed JSON snapshots through {@link DocumentTypeAdapter}
+ * Kept for import/export and for reading databases written before the binary format
+ */
+public class JsonSnapshotFormat implements SnapshotFormat {
+    private final Gson gson;
+
+    public JsonSnapshotFormat() {
+        // Create a custom Gson builder to handle nested collections
+        this.gson = new GsonBuilder()
+                .setPrettyPrinting()
+                .registerTypeAdapter(Document.class, new DocumentTypeAdapter())
+                .create();
+    }
+
+    /**
+     * Streams the documents with a JsonWriter, in the layout {@link DocumentTypeAdapter} reads,
+     * so no JSON tree or copy of the fields is built per document
+     */
+    @Override
+    public void write(Map<String, Map<String, Document>> collections, OutputStream out) throws IOException {
+        Writer writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+        JsonWriter json = new JsonWriter(writer);
+        json.setIndent("  ");
+        writeCollections(json, collections);
+        json.flush();
+    }
+
+    private void writeCollections(JsonWriter json, Map<String, Map<String, Document>> collections)
+            throws IOException {
+        json.beginObject();
+        for (Map.Entry<String, Map<String, Document>> collection : collections.entrySet()) {
+            json.name(collection.getKey());
+            json.beginObject();
+            for (Map.Entry<String, Document> document : collection.getValue().entrySet()) {
+                json.name(document.getKey());
+                writeDocument(json, document.getValue());
+            }
+            json.endObject();
+        }
+        json.endObject();
+    }
+
+    private void writeDocument(JsonWriter json, Document document) throws IOException {
+        json.beginObject();
+        json.name("id").value(document.getId());
+
+        // Peek, so an export doesn't pull every paged-out document back into memory
+        json.name("data");
+        json.beginObject();
+        document.snapshot().peekFields((name, value) -> {
+            json.name(name);
+            JsonValues.write(json, value);
+        });
+        json.endObject();
+
+        json.name("nestedCollections");
+        writeCollections(json, document.getNestedCollections());
+        json.endObject();
+    }
+
+    /**
+     * Streams the file with a JsonReader so only one document's JSON tree exists at a time
+     */
+    @Override
+    public Map<String, Map<String, Document>> read(InputStream in) throws IOException {
+        JsonReader reader = new JsonReader(new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8)));
+        Map<String, Map<String, Document>> collections = new ConcurrentHashMap<>();
+        try {
+            if (reader.peek() == JsonToken.END_DOCUMENT || reader.peek() == JsonToken.NULL) {
+                return collections;
+            }
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                String collectionName = reader.nextName();
+                Map<String, Document> documents = new ConcurrentHashMap<>();
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    reader.nextName();
+                    Document document = gson.fromJson(reader, Document.class);
+                    documents.put(document.getId(), document);
+                }
+                reader.endObject();
+                collections.put(collectionName, documents);
+            }
+            reader.endObject();
+        } catch (JsonParseException | IllegalStateException e) {
+            throw new IOException("Invalid JSON snapshot: " + e.getMessage(), e);
+        }
+        return collections;
+    }
+}
@@ -0,0 +1,233 @@
+package persistence;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import models.Bytes;
+import models.FieldValue;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts field values to JSON and back without losing their type.
+ *
+ * Gson reads every JSON number back as a Double, so 25 would reload as 25.0. Here a number
+ * written without a fraction or exponent reads back as an int64 and any other as a float64;
+ * Gson always writes a fraction for doubles, so the two never mix. Types JSON lacks are written
+ * as single-key objects: {"$timestamp": ISO-8601}, {"$bytes": Base64}, and {"$double": "NaN"}
+ * for non-finite doubles. Field transforms in log records are written the same way, e.g.
+ * {"$arrayUnion": [...]}, which is also how clients of the server send transforms.
+ */
+public final class JsonValues {
+    private static final String TIMESTAMP = "$timestamp";
+    private static final String BYTES = "$bytes";
+    private static final String DOUBLE = "$double";
+    private static final String INCREMENT = "$increment";
+    private static final String ARRAY_UNION = "$arrayUnion";
+    private static final String ARRAY_REMOVE = "$arrayRemove";
+    private static final String SERVER_TIMESTAMP = "$serverTimestamp";
+
+    private JsonValues() {
+    }
+
+    /**
+     * @param value A canonical field value
+     * @return Its JSON form
+     */
+    public static JsonElement toJson(Object value) {
+        if (value == null) {
+            return JsonNull.INSTANCE;
+        }
+        if (value instanceof Boolean) {
+            return new JsonPrimitive((Boolean) value);
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            return Double.isFinite(number) ? new JsonPrimitive(number) : tagged(DOUBLE, Double.toString(number));
+        }
+        if (value instanceof Number) {
+            return new JsonPrimitive(((Number) value).longValue());
+        }
+        if (value instanceof String) {
+            return new JsonPrimitive((String) value);
+        }
+        if (value instanceof Instant) {
+            return tagged(TIMESTAMP, value.toString());
+        }
+        if (value instanceof Bytes) {
+            return tagged(BYTES, ((Bytes) value).toBase64());
+        }
+        if (value instanceof List) {
+            JsonArray array = new JsonArray();
+            for (Object element : (List<?>) value) {
+                array.add(toJson(element));
+            }
+            return array;
+        }
+        if (value instanceof Map) {
+            JsonObject object = new JsonObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                object.add(String.valueOf(entry.getKey()), toJson(entry.getValue()));
+            }
+            return object;
+        }
+        if (value instanceof FieldValue) {
+            FieldValue transform = (FieldValue) value;
+            JsonObject object = new JsonObject();
+            object.add(transformTag(transform.getKind()),
+                    transform.getOperand() != null ? toJson(transform.getOperand()) : new JsonPrimitive(true));
+            return object;
+        }
+        return new JsonPrimitive(value.toString());
+    }
+
+    private static String transformTag(FieldValue.Kind kind) {
+        switch (kind) {
+            case INCREMENT:
+                return INCREMENT;
+            case ARRAY_UNION:
+                return ARRAY_UNION;
+            case ARRAY_REMOVE:
+                return ARRAY_REMOVE;
+            case SERVER_TIMESTAMP:
+            default:
+                return SERVER_TIMESTAMP;
+        }
+    }
+
+    /**
+     * Write a value straight to a stream, in the same form as {@link #toJson} but without building a tree
+     * @param out The JSON stream
+     * @param value A canonical field value
+     */
+    public static void write(JsonWriter out, Object value) throws IOException {
+        if (value == null) {
+            out.nullValue();
+        } else if (value instanceof Boolean) {
+            out.value((boolean) (Boolean) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            double number = ((Number) value).doubleValue();
+            if (Double.isFinite(number)) {
+                out.value(number);
+            } else {
+                writeTagged(out, DOUBLE, Double.toString(number));
+            }
+        } else if (value instanceof Number) {
+            out.value(((Number) value).longValue());
+        } else if (value instanceof String) {
+            out.value((String) value);
+        } else if (value instanceof Instant) {
+            writeTagged(out, TIMESTAMP, value.toString());
+        } else if (value instanceof Bytes) {
+            writeTagged(out, BYTES, ((Bytes) value).toBase64());
+        } else if (value instanceof List) {
+            out.beginArray();
+            for (Object element : (List<?>) value) {
+                write(out, element);
+            }
+            out.endArray();
+        } else if (value instanceof Map) {
+            out.beginObject();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                out.name(String.valueOf(entry.getKey()));
+                write(out, entry.getValue());
+            }
+            out.endObject();
+        } else {
+            out.value(value.toString());
+        }
+    }
+
+    /**
+     * @param json A value written by {@link #toJson}, or plain JSON
+     * @return The canonical field value
+     */
+    public static Object fromJson(JsonElement json) {
+        if (json == null || json.isJsonNull()) {
+            return null;
+        }
+        if (json.isJsonPrimitive()) {
+            JsonPrimitive primitive = json.getAsJsonPrimitive();
+            if (primitive.isBoolean()) {
+                return primitive.getAsBoolean();
+            }
+            if (primitive.isNumber()) {
+                return number(primitive.getAsString());
+            }
+            return primitive.getAsString();
+        }
+        if (json.isJsonArray()) {
+            List<Object> list = new ArrayList<>();
+            for (JsonElement element : json.getAsJsonArray()) {
+                list.add(fromJson(element));
+            }
+            return list;
+        }
+
+        JsonObject object = json.getAsJsonObject();
+        if (object.size() == 1) {
+            Map.Entry<String, JsonElement> only = object.entrySet().iterator().next();
+            JsonElement tagged = only.getValue();
+            if (tagged.isJsonPrimitive()) {
+                String text = tagged.getAsString();
+                switch (only.getKey()) {
+                    case TIMESTAMP:
+                        return Instant.parse(text);
+                    case BYTES:
+                        return Bytes.fromBase64(text);
+                    case DOUBLE:
+                        return Double.parseDouble(text);
+                    case INCREMENT:
+                        Object delta = number(text);
+                        return delta instanceof Long ? FieldValue.increment((Long) delta)
+                                : FieldValue.increment((Double) delta);
+                    case SERVER_TIMESTAMP:
+                        return FieldValue.serverTimestamp();
+                    default:
+                        break;
+                }
+            } else if (tagged.isJsonArray()) {
+                switch (only.getKey()) {
+                    case ARRAY_UNION:
+                        return FieldValue.arrayUnion(((List<?>) fromJson(tagged)).toArray());
+                    case ARRAY_REMOVE:
+                        return FieldValue.arrayRemove(((List<?>) fromJson(tagged)).toArray());
+                    default:
+                        break;
+                }
+            }
+        }
+        Map<String, Object> map = new LinkedHashMap<>();
+        for (Map.Entry<String, JsonElement> entry : object.entrySet()) {
+            map.put(entry.getKey(), fromJson(entry.getValue()));
+        }
+        return map;
+    }
+
+    private static Object number(String text) {
+        if (text.indexOf('.') < 0 && text.indexOf('e') < 0 && text.indexOf('E') < 0) {
+            try {
+                return Long.parseLong(text);
+            } catch (NumberFormatException e) {
+                // Beyond int64, keep it approximately
+            }
+        }
+        return Double.parseDouble(text);
+    }
+
+    private static void writeTagged(JsonWriter out, String tag, String value) throws IOException {
+        out.beginObject();
+        out.name(tag).value(value);
+        out.endObject();
+    }
+
+    private static JsonObject tagged(String tag, String value) {
+        JsonObject object = new JsonObject();
+        object.addProperty(tag, value);
+        return object;
+    }
+}
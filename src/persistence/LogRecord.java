@@ -0,0 +1,135 @@
+package persistence;
+
+import models.Values;
+
+import java.util.List;
+
+/**
+ * A single mutation as it is written to the write-ahead log.
+ * Each record is small and self-contained, so the cost of logging it
+ * depends only on the size of the change, never on the size of the database.
+ */
+public class LogRecord {
+    /**
+     * The kinds of mutation that can be replayed from the log
+     */
+    public enum Op {
+        CREATE_COLLECTION,
+        ADD_DOCUMENT,
+        DELETE_DOCUMENT,
+        SET_FIELD,
+
+        /**
+         * Several records committed together, logged as one line so they replay all or not at all
+         */
+        BATCH
+    }
+
+    private final Op op;
+    private final String collection;
+    private final String documentId;
+    private final String field;
+    private final Object value;
+    private final List<LogRecord> records;
+
+    public LogRecord(Op op, String collection, String documentId, String field, Object value) {
+        this(op, collection, documentId, field, value, null);
+    }
+
+    private LogRecord(Op op, String collection, String documentId, String field, Object value,
+                      List<LogRecord> records) {
+        this.op = op;
+        this.collection = collection;
+        this.documentId = documentId;
+        this.field = field;
+        this.value = value;
+        this.records = records;
+    }
+
+    /**
+     * Record the creation of a collection
+     * @param collection Name of the collection
+     * @return The log record
+     */
+    public static LogRecord createCollection(String collection) {
+        return new LogRecord(Op.CREATE_COLLECTION, collection, null, null, null);
+    }
+
+    /**
+     * Record the creation of an empty document
+     * @param collection Name of the collection
+     * @param documentId ID of the document
+     * @return The log record
+     */
+    public static LogRecord addDocument(String collection, String documentId) {
+        return new LogRecord(Op.ADD_DOCUMENT, collection, documentId, null, null);
+    }
+
+    /**
+     * Record the deletion of a document
+     * @param collection Name of the collection
+     * @param documentId ID of the document
+     * @return The log record
+     */
+    public static LogRecord deleteDocument(String collection, String documentId) {
+        return new LogRecord(Op.DELETE_DOCUMENT, collection, documentId, null, null);
+    }
+
+    /**
+     * Record a single field being set on a document
+     * @param collection Name of the collection
+     * @param documentId ID of the document
+     * @param field Field key
+     * @param value New value of the field, or a {@link models.FieldValue} transform of it
+     * @return The log record
+     */
+    public static LogRecord setField(String collection, String documentId, String field, Object value) {
+        // Canonical up front, so a value without a field type fails before anything is applied
+        return new LogRecord(Op.SET_FIELD, collection, documentId, field, Values.normalizeWrite(value));
+    }
+
+    /**
+     * Record several mutations that must be applied together
+     * @param records The mutations, in the order they were applied
+     * @return The log record
+     */
+    public static LogRecord batch(List<LogRecord> records) {
+        return new LogRecord(Op.BATCH, null, null, null, null, List.copyOf(records));
+    }
+
+    public Op getOp() {
+        return op;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    public String getDocumentId() {
+        return documentId;
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * @return The records of a batch, null for other records
+     */
+    public List<LogRecord> getRecords() {
+        return records;
+    }
+
+    @Override
+    public String toString() {
+        return "LogRecord{op=" + op + ", collection='" + collection + '\''
+                + ", documentId='" + documentId + '\''
+                + ", field='" + field + '\''
+                + ", value=" + value
+                + (records != null ? ", records=" + records : "") + '}';
+    }
+}
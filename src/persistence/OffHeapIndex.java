@@ -0,0 +1,177 @@
+package persistence;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Hash table from a long key to the location of its bytes in a segment, kept outside the heap.
+ *
+ * Open addressing with linear probing over a direct buffer of fixed-size slots, so millions of
+ * entries cost no objects and nothing for the garbage collector to trace. Removed entries leave
+ * a tombstone until the next resize. Not thread-safe, callers lock around it.
+ */
+class OffHeapIndex {
+    private static final int SLOT_BYTES = 24;
+    private static final int KEY = 0;
+    private static final int SEGMENT = 8;
+    private static final int OFFSET = 12;
+    private static final int LENGTH = 16;
+
+    // Keys are versions, which are never negative
+    private static final long EMPTY = -1;
+    private static final long TOMBSTONE = -2;
+
+    private ByteBuffer slots;
+    private int capacity;
+    private int size;
+    private int tombstones;
+
+    /**
+     * Visits the entries of the index
+     */
+    interface EntryVisitor {
+        void visit(long key, int segment, int offset, int length);
+    }
+
+    OffHeapIndex(int initialCapacity) {
+        allocate(Math.max(16, Integer.highestOneBit(initialCapacity - 1) << 1));
+    }
+
+    /**
+     * @param key The key
+     * @return Slot holding the key, -1 if absent
+     */
+    int find(long key) {
+        int slot = home(key);
+        while (true) {
+            long current = key(slot);
+            if (current == key) {
+                return slot;
+            }
+            if (current == EMPTY) {
+                return -1;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    int segment(int slot) {
+        return slots.getInt(slot * SLOT_BYTES + SEGMENT);
+    }
+
+    int offset(int slot) {
+        return slots.getInt(slot * SLOT_BYTES + OFFSET);
+    }
+
+    int length(int slot) {
+        return slots.getInt(slot * SLOT_BYTES + LENGTH);
+    }
+
+    /**
+     * Add or replace the location of a key
+     */
+    void put(long key, int segment, int offset, int length) {
+        if ((size + tombstones + 1) * 2 > capacity) {
+            // Grow if live entries fill a quarter, otherwise just sweep out the tombstones
+            resize(size * 4 >= capacity ? capacity * 2 : capacity);
+        }
+        int slot = home(key);
+        int free = -1;
+        while (true) {
+            long current = key(slot);
+            if (current == key) {
+                break;
+            }
+            if (current == TOMBSTONE && free < 0) {
+                free = slot;
+            }
+            if (current == EMPTY) {
+                if (free >= 0) {
+                    slot = free;
+                    tombstones--;
+                }
+                size++;
+                break;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+        write(slot, key, segment, offset, length);
+    }
+
+    /**
+     * Remove a key
+     * @param key The key
+     * @return Whether it was present
+     */
+    boolean remove(long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return false;
+        }
+        slots.putLong(slot * SLOT_BYTES + KEY, TOMBSTONE);
+        size--;
+        tombstones++;
+        return true;
+    }
+
+    int size() {
+        return size;
+    }
+
+    void forEach(EntryVisitor visitor) {
+        for (int slot = 0; slot < capacity; slot++) {
+            long key = key(slot);
+            if (key >= 0) {
+                visitor.visit(key, segment(slot), offset(slot), length(slot));
+            }
+        }
+    }
+
+    private void resize(int newCapacity) {
+        ByteBuffer old = slots;
+        int oldCapacity = capacity;
+        allocate(newCapacity);
+        for (int slot = 0; slot < oldCapacity; slot++) {
+            int base = slot * SLOT_BYTES;
+            long key = old.getLong(base + KEY);
+            if (key >= 0) {
+                int target = home(key);
+                while (key(target) != EMPTY) {
+                    target = (target + 1) & (capacity - 1);
+                }
+                write(target, key, old.getInt(base + SEGMENT), old.getInt(base + OFFSET), old.getInt(base + LENGTH));
+                size++;
+            }
+        }
+    }
+
+    private void allocate(int newCapacity) {
+        if ((long) newCapacity * SLOT_BYTES > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Off-heap index is full");
+        }
+        capacity = newCapacity;
+        slots = ByteBuffer.allocateDirect(newCapacity * SLOT_BYTES);
+        for (int slot = 0; slot < newCapacity; slot++) {
+            slots.putLong(slot * SLOT_BYTES + KEY, EMPTY);
+        }
+        size = 0;
+        tombstones = 0;
+    }
+
+    private void write(int slot, long key, int segment, int offset, int length) {
+        int base = slot * SLOT_BYTES;
+        slots.putLong(base + KEY, key);
+        slots.putInt(base + SEGMENT, segment);
+        slots.putInt(base + OFFSET, offset);
+        slots.putInt(base + LENGTH, length);
+    }
+
+    private long key(int slot) {
+        return slots.getLong(slot * SLOT_BYTES + KEY);
+    }
+
+    private int home(long key) {
+        // Versions are sequential, so spread them before masking
+        long hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & (capacity - 1);
+    }
+}
@@ -0,0 +1,16 @@
+package persistence;
+
+/**
+ * How SamDatabase persists mutations to disk
+ */
+public enum PersistenceMode {
+    /**
+     * Rewrite the whole snapshot file on every mutation
+     */
+    SNAPSHOT,
+
+    /**
+     * Append each mutation to the write-ahead log and replay it on startup
+     */
+    WAL
+}
@@ -0,0 +1,214 @@
+package persistence;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single background thread that owns all disk writes.
+ * Callers queue mutations from any thread; the writer drains whatever is queued
+ * into one batch, writes it with one call and issues at most one fsync per batch
+ * (group commit). Each caller gets a future that completes once its write is as
+ * durable as it asked for.
+ */
+public class PersistenceWriter implements Closeable {
+    // Upper bound on the number of queued writes folded into a single batch
+    private static final int MAX_BATCH_SIZE = 4096;
+
+    /**
+     * Writes a full snapshot of the database
+     */
+    public interface SnapshotWriter {
+        /**
+         * @param sync Whether the snapshot must be fsynced before returning
+         */
+        void writeSnapshot(boolean sync) throws IOException;
+    }
+
+    private final PersistenceMode mode;
+    private final WriteAheadLog log;
+    private final SnapshotWriter snapshotWriter;
+    private final BlockingQueue<PendingWrite> queue;
+    private final Thread thread;
+    private volatile boolean running;
+
+    public PersistenceWriter(PersistenceMode mode, WriteAheadLog log, SnapshotWriter snapshotWriter) {
+        this.mode = mode;
+        this.log = log;
+        this.snapshotWriter = snapshotWriter;
+        this.queue = new LinkedBlockingQueue<>();
+        this.running = true;
+
+        this.thread = new Thread(this::run, "sam-persistence-writer");
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue a mutation for the next batch
+     * @param record The mutation to persist
+     * @param durability How durable the write must be before the future completes
+     * @return Future completed once the write reaches the requested durability
+     */
+    public CompletableFuture<Void> submit(LogRecord record, Durability durability) {
+        return enqueue(new PendingWrite(record, durability, false));
+    }
+
+    /**
+     * Queue a log rotation: everything queued before it is written to the log,
+     * then the log is moved into its archive segment for the checkpointer
+     * @return Future completed once the log has been rotated
+     */
+    public CompletableFuture<Void> submitRotation() {
+        return enqueue(new PendingWrite(null, Durability.FSYNC, true));
+    }
+
+    /**
+     * Queue a write, or fail it if the writer is closing
+     * A write queued while close() runs may have missed the writer's last drain; taking it back
+     * out of the queue tells which: if it's still there nobody will write it, so it fails here,
+     * otherwise the writer took it and completes it.
+     */
+    private CompletableFuture<Void> enqueue(PendingWrite write) {
+        if (!running) {
+            write.future.completeExceptionally(closed());
+            return write.future;
+        }
+        queue.add(write);
+        if (!running && queue.remove(write)) {
+            write.future.completeExceptionally(closed());
+        }
+        return write.future;
+    }
+
+    private static IOException closed() {
+        return new IOException("Persistence writer is closed");
+    }
+
+    /**
+     * Get the number of writes waiting for the writer thread
+     * @return Queue length
+     */
+    public int pendingWrites() {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting work, write out everything still queued and close the log
+     * Writes submitted from now on fail instead of waiting forever
+     */
+    @Override
+    public void close() throws IOException {
+        running = false;
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Left behind if the join was interrupted, or racing the writer's last drain
+        PendingWrite left;
+        while ((left = queue.poll()) != null) {
+            left.future.completeExceptionally(closed());
+        }
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void run() {
+        List<PendingWrite> batch = new ArrayList<>();
+        while (running || !queue.isEmpty()) {
+            try {
+                PendingWrite first = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                writeBatch(batch);
+            } catch (InterruptedException e) {
+                // Keep draining, close() is the only way to stop the writer
+            } finally {
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Write one batch, splitting it around any rotation markers so that
+     * rotations stay ordered with the mutations around them
+     */
+    private void writeBatch(List<PendingWrite> batch) {
+        int start = 0;
+        for (int i = 0; i < batch.size(); i++) {
+            if (batch.get(i).rotation) {
+                writeRecords(batch.subList(start, i));
+                rotate(batch.get(i));
+                start = i + 1;
+            }
+        }
+        writeRecords(batch.subList(start, batch.size()));
+    }
+
+    private void writeRecords(List<PendingWrite> writes) {
+        if (writes.isEmpty()) {
+            return;
+        }
+
+        boolean sync = false;
+        List<LogRecord> records = new ArrayList<>(writes.size());
+        for (PendingWrite write : writes) {
+            records.add(write.record);
+            sync |= write.durability == Durability.FSYNC;
+        }
+
+        try {
+            if (mode == PersistenceMode.SNAPSHOT) {
+                // One full rewrite covers the whole batch
+                snapshotWriter.writeSnapshot(sync);
+            } else {
+                log.appendBatch(records);
+                if (sync) {
+                    log.sync();
+                }
+            }
+            writes.forEach(write -> write.future.complete(null));
+        } catch (IOException e) {
+            System.err.println("Error writing batch: " + e.getMessage());
+            writes.forEach(write -> write.future.completeExceptionally(e));
+        }
+    }
+
+    private void rotate(PendingWrite write) {
+        try {
+            log.sync();
+            log.rotate();
+            write.future.complete(null);
+        } catch (IOException e) {
+            System.err.println("Error rotating log: " + e.getMessage());
+            write.future.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * A queued write and the future of the caller waiting on it
+     */
+    private static class PendingWrite {
+        private final LogRecord record;
+        private final Durability durability;
+        private final boolean rotation;
+        private final CompletableFuture<Void> future;
+
+        private PendingWrite(LogRecord record, Durability durability, boolean rotation) {
+            this.record = record;
+            this.durability = durability;
+            this.rotation = rotation;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
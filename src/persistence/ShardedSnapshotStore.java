@@ -0,0 +1,266 @@
+package persistence;
+
+import models.Document;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Binary snapshots split into one file per collection, or per hash shard of a large collection.
+ *
+ * Each shard file is an ordinary binary snapshot holding one collection, or the documents of
+ * that collection whose ID hashes to the shard. Changes mark their shard dirty, and a checkpoint
+ * rewrites only the dirty shards, each through its own temporary file and atomic rename, so a
+ * write to a small collection never re-serializes a large one. Loading maps every shard file in
+ * parallel without decoding anything.
+ *
+ * Files are named after the URL-encoded collection name and the shard number, e.g. users.0.samdb.
+ * A shard file must stay under 2 GB to be mapped, so give large collections enough shards.
+ */
+public class ShardedSnapshotStore {
+    private static final String EXTENSION = ".samdb";
+
+    private final File directory;
+    private final BinarySnapshotFormat format;
+
+    // Collection name -> number of shards, collections not listed have one
+    private final Map<String, Integer> shardCounts;
+
+    // Collection name -> shards changed since they were last written
+    private final Map<String, Set<Integer>> dirty;
+
+    /**
+     * @param directory Directory holding the shard files, created on the first write
+     * @param format Encoding of each shard
+     * @param shardCounts Collection name -> number of hash shards, one for collections not listed
+     */
+    public ShardedSnapshotStore(File directory, BinarySnapshotFormat format, Map<String, Integer> shardCounts) {
+        this.directory = directory;
+        this.format = format;
+        this.shardCounts = Map.copyOf(shardCounts);
+        this.dirty = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * @return Whether any shard has been written
+     */
+    public boolean exists() {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        return files != null && files.length > 0;
+    }
+
+    /**
+     * Map every shard file, in parallel, without decoding any document
+     * Collections stored with a different shard count than configured are marked dirty,
+     * so the next checkpoint rewrites them with the new layout.
+     * @return Collection name -> raw regions of its shards, for {@link BinarySnapshotFormat#readCollection}
+     */
+    public Map<String, List<ByteBuffer>> load() throws IOException {
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(EXTENSION));
+        if (files == null) {
+            return Collections.emptyMap();
+        }
+
+        Map<String, List<ByteBuffer>> regions = new ConcurrentHashMap<>();
+        Map<String, Set<Integer>> stored = new ConcurrentHashMap<>();
+        List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+        Arrays.stream(files).parallel().forEach(file -> {
+            try {
+                int shard = shardNumber(file);
+                for (Map.Entry<String, ByteBuffer> collection : map(file).entrySet()) {
+                    regions.computeIfAbsent(collection.getKey(), name -> Collections.synchronizedList(new ArrayList<>()))
+                            .add(collection.getValue());
+                    stored.computeIfAbsent(collection.getKey(), name -> ConcurrentHashMap.newKeySet()).add(shard);
+                }
+            } catch (IOException e) {
+                errors.add(new IOException("Error loading " + file.getName() + ": " + e.getMessage(), e));
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+
+        stored.forEach((collectionName, shards) -> {
+            int count = shardCount(collectionName);
+            if (shards.size() != count || shards.stream().anyMatch(shard -> shard >= count)) {
+                markAllDirty(collectionName);
+            }
+        });
+        return regions;
+    }
+
+    /**
+     * Get the shard holding a document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return The shard number
+     */
+    public int shardOf(String collectionName, String documentId) {
+        return Math.floorMod(documentId.hashCode(), shardCount(collectionName));
+    }
+
+    /**
+     * Record that a document changed, so its shard is written by the next checkpoint
+     * @param collectionName Name of the top-level collection
+     * @param documentId ID of the top-level document
+     */
+    public void markDirty(String collectionName, String documentId) {
+        markAll(collectionName, List.of(shardOf(collectionName, documentId)));
+    }
+
+    /**
+     * Record that a whole collection changed, e.g. it was created or imported
+     * @param collectionName Name of the collection
+     */
+    public void markAllDirty(String collectionName) {
+        List<Integer> shards = new ArrayList<>();
+        for (int shard = 0; shard < shardCount(collectionName); shard++) {
+            shards.add(shard);
+        }
+        markAll(collectionName, shards);
+    }
+
+    /**
+     * @return Names of the collections with shards waiting to be written
+     */
+    public Set<String> getDirtyCollections() {
+        return new HashSet<>(dirty.keySet());
+    }
+
+    /**
+     * Write the dirty shards of a collection
+     * Changes made while writing mark their shard dirty again, so they are never lost.
+     * @param collectionName Name of the collection
+     * @param documents The collection's documents
+     * @param sync Whether to fsync each shard before it replaces the old one
+     */
+    public void writeDirty(String collectionName, Map<String, Document> documents, boolean sync) throws IOException {
+        Set<Integer> shards = dirty.remove(collectionName);
+        if (shards == null) {
+            return;
+        }
+
+        int count = shardCount(collectionName);
+        List<Map<String, Document>> buckets = new ArrayList<>();
+        for (int shard = 0; shard < count; shard++) {
+            buckets.add(new HashMap<>());
+        }
+        if (count == 1) {
+            buckets.set(0, documents);
+        } else {
+            for (Document document : documents.values()) {
+                buckets.get(shardOf(collectionName, document.getId())).put(document.getId(), document);
+            }
+        }
+
+        try {
+            for (int shard : shards) {
+                if (shard < count) {
+                    writeShard(collectionName, shard, buckets.get(shard), sync);
+                }
+            }
+            deleteStaleShards(collectionName, count);
+        } catch (IOException e) {
+            // Try them again next time
+            markAll(collectionName, shards);
+            throw e;
+        }
+    }
+
+    /**
+     * Add shards to a collection's dirty set
+     * The set is only changed inside compute, so a concurrent writeDirty either takes the
+     * shards with it or leaves them for the next checkpoint, never drops them.
+     */
+    private void markAll(String collectionName, Collection<Integer> shards) {
+        dirty.compute(collectionName, (name, current) -> {
+            Set<Integer> updated = current != null ? current : new HashSet<>();
+            updated.addAll(shards);
+            return updated;
+        });
+    }
+
+    private int shardCount(String collectionName) {
+        return shardCounts.getOrDefault(collectionName, 1);
+    }
+
+    private void writeShard(String collectionName, int shard, Map<String, Document> documents, boolean sync)
+            throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Can't create " + directory);
+        }
+        File file = new File(directory, fileName(collectionName, shard));
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            format.write(Map.of(collectionName, documents), out);
+            if (sync) {
+                out.getChannel().force(false);
+            }
+        }
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Delete the files of shards beyond the current shard count, left by an older layout
+     */
+    private void deleteStaleShards(String collectionName, int count) throws IOException {
+        String prefix = URLEncoder.encode(collectionName, StandardCharsets.UTF_8) + ".";
+        File[] files = directory.listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(EXTENSION));
+        if (files == null) {
+            return;
+        }
+        for (File file : files) {
+            if (collectionName(file).equals(collectionName) && shardNumber(file) >= count) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    private Map<String, ByteBuffer> map(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Shard is too big to map, give its collection more shards");
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            Map<String, ByteBuffer> index = format.indexCollections(mapped);
+            if (index == null) {
+                throw new IOException("Shard predates chunked snapshots");
+            }
+            return index;
+        }
+    }
+
+    private static String fileName(String collectionName, int shard) {
+        return URLEncoder.encode(collectionName, StandardCharsets.UTF_8) + "." + shard + EXTENSION;
+    }
+
+    private static String collectionName(File file) {
+        String name = file.getName();
+        String base = name.substring(0, name.length() - EXTENSION.length());
+        return URLDecoder.decode(base.substring(0, base.lastIndexOf('.')), StandardCharsets.UTF_8);
+    }
+
+    private static int shardNumber(File file) throws IOException {
+        String name = file.getName();
+        String base = name.substring(0, name.length() - EXTENSION.length());
+        try {
+            return Integer.parseInt(base.substring(base.lastIndexOf('.') + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("Not a shard file: " + name);
+        }
+    }
+}
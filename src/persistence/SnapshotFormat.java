@@ -0,0 +1,27 @@
+package persistence;
+
+import models.Document;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+
+/**
+ * Encoding used to write and read a full snapshot of the database
+ */
+public interface SnapshotFormat {
+    /**
+     * Write every collection to a stream
+     * @param collections Collection name -> documents
+     * @param out Stream to write to, not closed by this method
+     */
+    void write(Map<String, Map<String, Document>> collections, OutputStream out) throws IOException;
+
+    /**
+     * Read every collection from a stream
+     * @param in Stream to read from, not closed by this method
+     * @return Collection name -> documents
+     */
+    Map<String, Map<String, Document>> read(InputStream in) throws IOException;
+}
@@ -0,0 +1,198 @@
+package persistence;
+
+import com.google.gson.*;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Append-only log of mutations.
+ * Every record is written as one compact JSON line, e.g.
+ * {"op":"SET_FIELD","c":"users","d":"user1","f":"age","v":30}
+ * A batch is a single line holding its records under "b", so a torn batch is skipped whole.
+ * On startup the log is replayed on top of the last snapshot.
+ *
+ * A checkpoint first rotates the active log into an archive segment, then writes a
+ * snapshot, then deletes the archive. Replay reads the archive (if a checkpoint
+ * did not finish) followed by the active log.
+ */
+public class WriteAheadLog implements Closeable {
+    private final File file;
+
+    // Segment being folded into a snapshot by a running checkpoint
+    private final File archive;
+
+    // Compact Gson, no pretty printing, so one record is always one line
+    private final Gson gson;
+
+    // Lazily opened append stream and the file stream underneath it, used for fsync
+    private FileOutputStream fileStream;
+    private Writer writer;
+
+    public WriteAheadLog(String fileName) {
+        this.file = new File(fileName);
+        this.archive = new File(fileName + ".1");
+        this.gson = new Gson();
+    }
+
+    /**
+     * Append a record to the end of the log and flush it
+     * @param record The record to append
+     */
+    public synchronized void append(LogRecord record) throws IOException {
+        appendBatch(List.of(record));
+    }
+
+    /**
+     * Append a batch of records with a single write to the operating system
+     * The records are flushed but not fsynced, call {@link #sync()} for that
+     * @param records The records to append, in order
+     */
+    public synchronized void appendBatch(List<LogRecord> records) throws IOException {
+        if (writer == null) {
+            fileStream = new FileOutputStream(file, true);
+            writer = new BufferedWriter(new OutputStreamWriter(fileStream, StandardCharsets.UTF_8));
+        }
+        for (LogRecord record : records) {
+            writer.write(encode(record));
+            writer.write('\n');
+        }
+        writer.flush();
+    }
+
+    /**
+     * Force everything appended so far to disk
+     */
+    public synchronized void sync() throws IOException {
+        if (fileStream != null) {
+            fileStream.getChannel().force(false);
+        }
+    }
+
+    /**
+     * Replay every record in the log, oldest first
+     * A torn record at the end of the log (e.g. after a crash mid-write) is skipped
+     * @param consumer Callback that applies each record
+     * @return Number of records replayed
+     */
+    public synchronized int replay(Consumer<LogRecord> consumer) throws IOException {
+        return replayFile(archive, consumer) + replayFile(file, consumer);
+    }
+
+    private int replayFile(File file, Consumer<LogRecord> consumer) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+
+        int count = 0;
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                LogRecord record;
+                try {
+                    record = decode(line);
+                } catch (JsonParseException | IllegalStateException | IllegalArgumentException e) {
+                    System.err.println("Skipping unreadable log record: " + e.getMessage());
+                    continue;
+                }
+                consumer.accept(record);
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Move everything logged so far into the archive segment and start a fresh log
+     * If an earlier checkpoint left an archive behind, the active log is appended to it
+     */
+    public synchronized void rotate() throws IOException {
+        close();
+        if (!file.exists()) {
+            return;
+        }
+
+        if (archive.exists()) {
+            Files.write(archive.toPath(), Files.readAllBytes(file.toPath()), StandardOpenOption.APPEND);
+            Files.delete(file.toPath());
+        } else {
+            Files.move(file.toPath(), archive.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+
+    /**
+     * Delete the archive segment once a snapshot covering it is safely on disk
+     */
+    public synchronized void deleteArchive() throws IOException {
+        Files.deleteIfExists(archive.toPath());
+    }
+
+    /**
+     * Get the current size of the log file
+     * @return Size in bytes, 0 if the log does not exist
+     */
+    public long size() {
+        return file.length();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            fileStream = null;
+        }
+    }
+
+    private String encode(LogRecord record) {
+        return gson.toJson(encodeTree(record));
+    }
+
+    private JsonObject encodeTree(LogRecord record) {
+        JsonObject json = new JsonObject();
+        json.addProperty("op", record.getOp().name());
+        if (record.getOp() == LogRecord.Op.BATCH) {
+            JsonArray records = new JsonArray();
+            record.getRecords().forEach(batched -> records.add(encodeTree(batched)));
+            json.add("b", records);
+            return json;
+        }
+        json.addProperty("c", record.getCollection());
+        if (record.getDocumentId() != null) {
+            json.addProperty("d", record.getDocumentId());
+        }
+        if (record.getField() != null) {
+            json.addProperty("f", record.getField());
+            json.add("v", JsonValues.toJson(record.getValue()));
+        }
+        return json;
+    }
+
+    private LogRecord decode(String line) {
+        return decodeTree(JsonParser.parseString(line).getAsJsonObject());
+    }
+
+    private LogRecord decodeTree(JsonObject json) {
+        LogRecord.Op op = LogRecord.Op.valueOf(json.get("op").getAsString());
+        if (op == LogRecord.Op.BATCH) {
+            List<LogRecord> records = new ArrayList<>();
+            json.getAsJsonArray("b").forEach(batched -> records.add(decodeTree(batched.getAsJsonObject())));
+            return LogRecord.batch(records);
+        }
+        String collection = json.get("c").getAsString();
+        String documentId = json.has("d") ? json.get("d").getAsString() : null;
+        String field = json.has("f") ? json.get("f").getAsString() : null;
+        Object value = json.has("v") ? JsonValues.fromJson(json.get("v")) : null;
+        return new LogRecord(op, collection, documentId, field, value);
+    }
+}
@@ -0,0 +1,104 @@
+package query;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+
+/**
+ * Values of an aggregation at one point in time, for all matching documents or one group
+ */
+public class AggregateResult {
+    private final long count;
+    private final Map<String, Number> sums;
+    private final Map<String, Long> numericCounts;
+    private final Map<String, Object> minimums;
+    private final Map<String, Object> maximums;
+    private final SortedMap<Object, AggregateResult> groups;
+
+    AggregateResult(long count, Map<String, Number> sums, Map<String, Long> numericCounts,
+                    Map<String, Object> minimums, Map<String, Object> maximums,
+                    SortedMap<Object, AggregateResult> groups) {
+        this.count = count;
+        this.sums = sums;
+        this.numericCounts = numericCounts;
+        this.minimums = minimums;
+        this.maximums = maximums;
+        this.groups = groups;
+    }
+
+    /**
+     * @return Number of matching documents
+     */
+    public long getCount() {
+        return count;
+    }
+
+    /**
+     * Get the sum of a field
+     * @param field A summed field
+     * @return Long if every value was an integer, Double otherwise; 0 if no value was a number
+     */
+    public Number getSum(String field) {
+        Number sum = sums.get(field);
+        if (sum == null) {
+            throw new IllegalArgumentException("Field not summed: " + field);
+        }
+        return sum;
+    }
+
+    /**
+     * Get the average of a field over the documents where it is a number
+     * @param field A summed field
+     * @return The average, null if no value was a number
+     */
+    public Double getAverage(String field) {
+        Number sum = getSum(field);
+        long numbers = numericCounts.get(field);
+        return numbers > 0 ? sum.doubleValue() / numbers : null;
+    }
+
+    /**
+     * @param field A field with a minimum and maximum
+     * @return The smallest value, null if no document has the field
+     */
+    public Object getMin(String field) {
+        return ranged(minimums, field);
+    }
+
+    /**
+     * @param field A field with a minimum and maximum
+     * @return The largest value, null if no document has the field
+     */
+    public Object getMax(String field) {
+        return ranged(maximums, field);
+    }
+
+    /**
+     * @return Group-by value -> the group's aggregates, ordered like query results; empty without groupBy
+     */
+    public SortedMap<Object, AggregateResult> getGroups() {
+        return Collections.unmodifiableSortedMap(groups);
+    }
+
+    private static Object ranged(Map<String, Object> values, String field) {
+        if (!values.containsKey(field)) {
+            throw new IllegalArgumentException("Field without min and max: " + field);
+        }
+        return values.get(field);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("AggregateResult{count=").append(count);
+        if (!sums.isEmpty()) {
+            sb.append(", sum=").append(sums);
+        }
+        if (!minimums.isEmpty()) {
+            sb.append(", min=").append(minimums).append(", max=").append(maximums);
+        }
+        if (!groups.isEmpty()) {
+            sb.append(", groups=").append(groups);
+        }
+        return sb.append('}').toString();
+    }
+}
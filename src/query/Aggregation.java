@@ -0,0 +1,141 @@
+package query;
+
+import java.util.*;
+
+/**
+ * Aggregates over the results of a query: a count, plus sums, averages, minimums and maximums
+ * of fields, for all results together and optionally per value of a group-by field.
+ * Every method returns this aggregation so they can be chained, e.g.
+ * new Aggregation(new Query("orders").where("status", FilterOperator.EQUAL, "paid")).groupBy("region").sum("total")
+ *
+ * Run it once with SamDatabase.runAggregation, or register it with SamDatabase.createAggregation
+ * to keep it up to date on every write. The query's select is ignored.
+ */
+public class Aggregation {
+    private final Query query;
+    private String groupByField;
+    // Fields with a sum and average, and fields with a minimum and maximum, in declaration order
+    private final Set<String> summedFields;
+    private final Set<String> rangedFields;
+
+    /**
+     * Aggregate every document of a collection
+     * @param collection Name of the collection
+     */
+    public Aggregation(String collection) {
+        this(new Query(collection));
+    }
+
+    /**
+     * Aggregate the results of a query
+     * @param query The query, its where clauses, orderBy, limit and startAfter pick the documents
+     */
+    public Aggregation(Query query) {
+        this.query = query;
+        this.summedFields = new LinkedHashSet<>();
+        this.rangedFields = new LinkedHashSet<>();
+    }
+
+    /**
+     * Also aggregate per value of a field
+     * Documents without the field form the group of null
+     * @param field Field to group by
+     * @return this aggregation
+     */
+    public Aggregation groupBy(String field) {
+        this.groupByField = field;
+        return this;
+    }
+
+    /**
+     * Sum a numeric field, values of other types are skipped
+     * @param field The field
+     * @return this aggregation
+     */
+    public Aggregation sum(String field) {
+        summedFields.add(field);
+        return this;
+    }
+
+    /**
+     * Average a numeric field, values of other types are skipped
+     * Averages come with the sum, so this is the same as {@link #sum}
+     * @param field The field
+     * @return this aggregation
+     */
+    public Aggregation average(String field) {
+        return sum(field);
+    }
+
+    /**
+     * Track the smallest value of a field, in query order across types
+     * @param field The field
+     * @return this aggregation
+     */
+    public Aggregation min(String field) {
+        rangedFields.add(field);
+        return this;
+    }
+
+    /**
+     * Track the largest value of a field, in query order across types
+     * Maximums come with the minimum, so this is the same as {@link #min}
+     * @param field The field
+     * @return this aggregation
+     */
+    public Aggregation max(String field) {
+        return min(field);
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    /**
+     * @return Field to group by, null for no groups
+     */
+    public String getGroupByField() {
+        return groupByField;
+    }
+
+    public Set<String> getSummedFields() {
+        return Collections.unmodifiableSet(summedFields);
+    }
+
+    public Set<String> getRangedFields() {
+        return Collections.unmodifiableSet(rangedFields);
+    }
+
+    /**
+     * Get every field whose changes can change the aggregates
+     * @return Fields of the where clauses, orderBy, groupBy and the aggregated fields
+     */
+    public List<String> getFields() {
+        Set<String> fields = new LinkedHashSet<>();
+        query.getFilters().forEach(filter -> fields.add(filter.getField()));
+        if (query.getOrderByField() != null) {
+            fields.add(query.getOrderByField());
+        }
+        if (groupByField != null) {
+            fields.add(groupByField);
+        }
+        fields.addAll(summedFields);
+        fields.addAll(rangedFields);
+        return new ArrayList<>(fields);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("Aggregation{").append(query);
+        if (groupByField != null) {
+            sb.append(", groupBy=").append(groupByField);
+        }
+        if (!summedFields.isEmpty()) {
+            sb.append(", sum=").append(summedFields);
+        }
+        if (!rangedFields.isEmpty()) {
+            sb.append(", minMax=").append(rangedFields);
+        }
+        return sb.append('}').toString();
+    }
+}
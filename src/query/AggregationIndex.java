@@ -0,0 +1,154 @@
+package query;
+
+import index.SecondaryIndex;
+import models.Document;
+import models.DocumentSnapshot;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An aggregation kept up to date on every write, like a secondary index
+ *
+ * Each matching document's contribution is remembered, so an insert, update or delete only
+ * takes back the document's old contribution and adds its new one: count, sum and average
+ * read in O(1), min and max in O(log n), however big the collection.
+ * Created by SamDatabase.createAggregation, it only reacts to changes of the fields it uses.
+ */
+public class AggregationIndex implements SecondaryIndex {
+    private final Aggregation aggregation;
+    private final List<String> fields;
+    private final Aggregator aggregator;
+
+    // Document ID -> the document and the row it contributes, only for matching documents
+    private final Map<String, Contribution> contributions;
+
+    public AggregationIndex(Aggregation aggregation) {
+        Query query = aggregation.getQuery();
+        if (query.isCollectionGroup() || query.getLimit() != Integer.MAX_VALUE || query.getStartAfter() != null) {
+            throw new IllegalArgumentException("Only where and orderBy can be kept up to date: " + query);
+        }
+        this.aggregation = aggregation;
+        this.fields = aggregation.getFields();
+        this.aggregator = new Aggregator(aggregation);
+        this.contributions = new HashMap<>();
+    }
+
+    public Aggregation getAggregation() {
+        return aggregation;
+    }
+
+    @Override
+    public List<String> getFields() {
+        return fields;
+    }
+
+    /**
+     * @return Number of matching documents
+     */
+    public synchronized long count() {
+        return aggregator.count();
+    }
+
+    /**
+     * @param field A summed field
+     * @return Sum of the field's numbers, Long if they are all integers
+     */
+    public synchronized Number sum(String field) {
+        return aggregator.sum(field);
+    }
+
+    /**
+     * @param field A summed field
+     * @return Average of the field's numbers, null if there is none
+     */
+    public synchronized Double average(String field) {
+        return aggregator.average(field);
+    }
+
+    /**
+     * @param field A field with a minimum and maximum
+     * @return The smallest value, null if no matching document has the field
+     */
+    public synchronized Object min(String field) {
+        return aggregator.min(field);
+    }
+
+    /**
+     * @param field A field with a minimum and maximum
+     * @return The largest value, null if no matching document has the field
+     */
+    public synchronized Object max(String field) {
+        return aggregator.max(field);
+    }
+
+    /**
+     * Get the aggregates of one group
+     * @param groupValue A value of the groupBy field, null for documents without it
+     * @return The group's aggregates, null if no matching document is in the group
+     */
+    public synchronized AggregateResult group(Object groupValue) {
+        return aggregator.group(groupValue);
+    }
+
+    /**
+     * Copy every aggregate and every group, consistent with each other
+     * @return The aggregates
+     */
+    public synchronized AggregateResult result() {
+        return aggregator.result();
+    }
+
+    @Override
+    public void documentAdded(Document document) {
+        update(document);
+    }
+
+    @Override
+    public synchronized void documentRemoved(Document document) {
+        Contribution previous = contributions.get(document.getId());
+        // A replaced document may leave after its replacement joined
+        if (previous != null && previous.document == document) {
+            contributions.remove(document.getId());
+            aggregator.remove(previous.row);
+        }
+    }
+
+    @Override
+    public void fieldChanged(Document document, String field, Object oldValue, Object newValue) {
+        update(document);
+    }
+
+    /**
+     * Replace a document's contribution with one from its newest version
+     * Every change calls this after the new version is in place, so the last call always sees the last version
+     */
+    private synchronized void update(Document document) {
+        DocumentSnapshot version = document.snapshot();
+        Contribution previous = contributions.remove(document.getId());
+        if (previous != null) {
+            aggregator.remove(previous.row);
+        }
+        if (aggregation.getQuery().matches(version)) {
+            Object[] row = aggregator.row(version);
+            contributions.put(document.getId(), new Contribution(document, row));
+            aggregator.add(row);
+        }
+    }
+
+    private static final class Contribution {
+        final Document document;
+        final Object[] row;
+
+        Contribution(Document document, Object[] row) {
+            this.document = document;
+            this.row = row;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "AggregationIndex{" + aggregation + ", count=" + count() + '}';
+    }
+}
@@ -0,0 +1,241 @@
+package query;
+
+import index.ValueComparator;
+import models.DocumentFields;
+import models.ValueType;
+
+import java.util.*;
+
+/**
+ * Running aggregates of an {@link Aggregation}, for all documents and per group
+ *
+ * Documents are added and removed as rows of the values the aggregates need, so removing a
+ * document only needs the row it was added with. Counts and sums are plain totals; minimums
+ * and maximums keep every value with its multiplicity in a sorted map so removals are exact.
+ * Not thread-safe, callers lock around it.
+ */
+class Aggregator {
+    private final String groupByField;
+    private final String[] summedFields;
+    private final String[] rangedFields;
+    private final Accumulator total;
+    // Group-by value -> the group's aggregates, null without groupBy
+    private final NavigableMap<Object, Accumulator> groups;
+
+    Aggregator(Aggregation aggregation) {
+        this.groupByField = aggregation.getGroupByField();
+        this.summedFields = aggregation.getSummedFields().toArray(new String[0]);
+        this.rangedFields = aggregation.getRangedFields().toArray(new String[0]);
+        this.total = new Accumulator();
+        this.groups = groupByField != null ? new TreeMap<>(ValueComparator.INSTANCE) : null;
+    }
+
+    /**
+     * Read the values a document contributes
+     * @param version The document's fields
+     * @return Group-by value, then the summed fields as numbers or null, then the ranged fields
+     */
+    Object[] row(DocumentFields version) {
+        Object[] row = new Object[1 + summedFields.length + rangedFields.length];
+        row[0] = groupByField != null ? version.get(groupByField) : null;
+        for (int i = 0; i < summedFields.length; i++) {
+            ValueType type = version.getType(summedFields[i]);
+            if (type == ValueType.INT64) {
+                row[1 + i] = version.getLong(summedFields[i]);
+            } else if (type == ValueType.FLOAT64) {
+                row[1 + i] = version.getDouble(summedFields[i]);
+            }
+        }
+        for (int i = 0; i < rangedFields.length; i++) {
+            row[1 + summedFields.length + i] = version.get(rangedFields[i]);
+        }
+        return row;
+    }
+
+    void add(Object[] row) {
+        total.add(row);
+        if (groups != null) {
+            groups.computeIfAbsent(row[0], key -> new Accumulator()).add(row);
+        }
+    }
+
+    /**
+     * Take back a row added earlier
+     * @param row The row, as it was added
+     */
+    void remove(Object[] row) {
+        total.remove(row);
+        if (groups != null) {
+            Accumulator group = groups.get(row[0]);
+            if (group != null) {
+                group.remove(row);
+                if (group.count == 0) {
+                    groups.remove(row[0]);
+                }
+            }
+        }
+    }
+
+    long count() {
+        return total.count;
+    }
+
+    Number sum(String field) {
+        return total.sum(summedIndex(field));
+    }
+
+    Double average(String field) {
+        return total.average(summedIndex(field));
+    }
+
+    Object min(String field) {
+        return total.min(rangedIndex(field));
+    }
+
+    Object max(String field) {
+        return total.max(rangedIndex(field));
+    }
+
+    /**
+     * @param groupValue A group-by value
+     * @return The group's aggregates, null if no document is in the group
+     */
+    AggregateResult group(Object groupValue) {
+        if (groups == null) {
+            throw new IllegalStateException("Aggregation has no groupBy");
+        }
+        Accumulator group = groups.get(groupValue);
+        return group != null ? group.result(Collections.emptySortedMap()) : null;
+    }
+
+    /**
+     * @return Every aggregate, copied, with every group
+     */
+    AggregateResult result() {
+        SortedMap<Object, AggregateResult> groupResults = new TreeMap<>(ValueComparator.INSTANCE);
+        if (groups != null) {
+            groups.forEach((value, group) -> groupResults.put(value, group.result(Collections.emptySortedMap())));
+        }
+        return total.result(groupResults);
+    }
+
+    private int summedIndex(String field) {
+        for (int i = 0; i < summedFields.length; i++) {
+            if (summedFields[i].equals(field)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Field not summed: " + field);
+    }
+
+    private int rangedIndex(String field) {
+        for (int i = 0; i < rangedFields.length; i++) {
+            if (rangedFields[i].equals(field)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Field without min and max: " + field);
+    }
+
+    /**
+     * Aggregates of one set of documents
+     */
+    private class Accumulator {
+        long count;
+        final long[] longSums = new long[summedFields.length];
+        final double[] doubleSums = new double[summedFields.length];
+        // Documents holding a number, and how many of those numbers are doubles
+        final long[] numbers = new long[summedFields.length];
+        final long[] doubles = new long[summedFields.length];
+        // Value -> how many documents hold it, one map per ranged field
+        final List<NavigableMap<Object, Integer>> values = new ArrayList<>(rangedFields.length);
+
+        Accumulator() {
+            for (int i = 0; i < rangedFields.length; i++) {
+                values.add(new TreeMap<>(ValueComparator.INSTANCE));
+            }
+        }
+
+        void add(Object[] row) {
+            count++;
+            for (int i = 0; i < summedFields.length; i++) {
+                Object value = row[1 + i];
+                if (value instanceof Long) {
+                    longSums[i] += (Long) value;
+                    numbers[i]++;
+                } else if (value instanceof Double) {
+                    doubleSums[i] += (Double) value;
+                    numbers[i]++;
+                    doubles[i]++;
+                }
+            }
+            for (int i = 0; i < rangedFields.length; i++) {
+                Object value = row[1 + summedFields.length + i];
+                if (value != null) {
+                    values.get(i).merge(value, 1, Integer::sum);
+                }
+            }
+        }
+
+        void remove(Object[] row) {
+            count--;
+            for (int i = 0; i < summedFields.length; i++) {
+                Object value = row[1 + i];
+                if (value instanceof Long) {
+                    longSums[i] -= (Long) value;
+                    numbers[i]--;
+                } else if (value instanceof Double) {
+                    doubleSums[i] -= (Double) value;
+                    numbers[i]--;
+                    if (--doubles[i] == 0) {
+                        // Drop the rounding error left by subtracting
+                        doubleSums[i] = 0;
+                    }
+                }
+            }
+            for (int i = 0; i < rangedFields.length; i++) {
+                Object value = row[1 + summedFields.length + i];
+                if (value != null) {
+                    values.get(i).computeIfPresent(value, (key, holders) -> holders > 1 ? holders - 1 : null);
+                }
+            }
+        }
+
+        Number sum(int field) {
+            if (doubles[field] > 0) {
+                return longSums[field] + doubleSums[field];
+            }
+            return longSums[field];
+        }
+
+        Double average(int field) {
+            return numbers[field] > 0 ? sum(field).doubleValue() / numbers[field] : null;
+        }
+
+        Object min(int field) {
+            NavigableMap<Object, Integer> fieldValues = values.get(field);
+            return fieldValues.isEmpty() ? null : fieldValues.firstKey();
+        }
+
+        Object max(int field) {
+            NavigableMap<Object, Integer> fieldValues = values.get(field);
+            return fieldValues.isEmpty() ? null : fieldValues.lastKey();
+        }
+
+        AggregateResult result(SortedMap<Object, AggregateResult> groupResults) {
+            Map<String, Number> sums = new LinkedHashMap<>();
+            Map<String, Long> numericCounts = new HashMap<>();
+            for (int i = 0; i < summedFields.length; i++) {
+                sums.put(summedFields[i], sum(i));
+                numericCounts.put(summedFields[i], numbers[i]);
+            }
+            Map<String, Object> minimums = new LinkedHashMap<>();
+            Map<String, Object> maximums = new LinkedHashMap<>();
+            for (int i = 0; i < rangedFields.length; i++) {
+                minimums.put(rangedFields[i], min(i));
+                maximums.put(rangedFields[i], max(i));
+            }
+            return new AggregateResult(count, sums, numericCounts, minimums, maximums, groupResults);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package query;
+
+import index.ValueComparator;
+import models.DocumentFields;
+import models.ValueType;
+import models.Values;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * One where clause of a query: field, operator and value
+ * Values compare with {@link ValueComparator}, and only against values of the same type,
+ * so "age > 25" never matches a string age. Documents without the field never match.
+ * The value is normalized like a field value, and numbers and booleans are compared unboxed.
+ */
+public class Filter {
+    private final String field;
+    private final FilterOperator operator;
+    private final Object value;
+
+    public Filter(String field, FilterOperator operator, Object value) {
+        if (operator == FilterOperator.IN && !(value instanceof Collection)) {
+            throw new IllegalArgumentException("'in' needs a collection of values");
+        }
+        this.field = field;
+        this.operator = operator;
+        this.value = Values.normalize(value);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public FilterOperator getOperator() {
+        return operator;
+    }
+
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Check a document against this clause
+     * @param document The document
+     * @return true if the document matches
+     */
+    public boolean matches(DocumentFields document) {
+        if (document.getType(field) == ValueType.NULL) {
+            return false;
+        }
+
+        switch (operator) {
+            case NOT_EQUAL:
+                return !equalField(document, value);
+            case IN:
+                for (Object candidate : (Collection<?>) value) {
+                    if (equalField(document, candidate)) {
+                        return true;
+                    }
+                }
+                return false;
+            case ARRAY_CONTAINS:
+                Object fieldValue = document.get(field);
+                if (fieldValue instanceof List) {
+                    for (Object element : (List<?>) fieldValue) {
+                        if (equalValues(element, value)) {
+                            return true;
+                        }
+                    }
+                }
+                return false;
+            default:
+                break;
+        }
+
+        if (value == null || !ValueComparator.sameType(document, field, value)) {
+            return false;
+        }
+        int order = ValueComparator.INSTANCE.compareField(document, field, value);
+        switch (operator) {
+            case EQUAL:
+                return order == 0;
+            case LESS_THAN:
+                return order < 0;
+            case LESS_THAN_OR_EQUAL:
+                return order <= 0;
+            case GREATER_THAN:
+                return order > 0;
+            case GREATER_THAN_OR_EQUAL:
+                return order >= 0;
+            default:
+                return false;
+        }
+    }
+
+    private boolean equalField(DocumentFields document, Object candidate) {
+        return candidate != null && ValueComparator.sameType(document, field, candidate)
+                && ValueComparator.INSTANCE.compareField(document, field, candidate) == 0;
+    }
+
+    private static boolean equalValues(Object left, Object right) {
+        return left != null && right != null && ValueComparator.sameType(left, right)
+                && ValueComparator.INSTANCE.compare(left, right) == 0;
+    }
+
+    @Override
+    public String toString() {
+        return field + " " + operator + " " + value;
+    }
+}
@@ -0,0 +1,56 @@
+package query;
+
+/**
+ * Comparison used by a where clause
+ */
+public enum FilterOperator {
+    EQUAL("=="),
+    NOT_EQUAL("!="),
+    LESS_THAN("<"),
+    LESS_THAN_OR_EQUAL("<="),
+    GREATER_THAN(">"),
+    GREATER_THAN_OR_EQUAL(">="),
+
+    /**
+     * Field equals any value of a collection
+     */
+    IN("in"),
+
+    /**
+     * Field is a list containing the value
+     */
+    ARRAY_CONTAINS("array-contains");
+
+    private final String symbol;
+
+    FilterOperator(String symbol) {
+        this.symbol = symbol;
+    }
+
+    /**
+     * @param symbol The operator as written in a where clause, e.g. ">=" or "array-contains"
+     * @return The operator
+     * @throws IllegalArgumentException if no operator has that symbol
+     */
+    public static FilterOperator fromSymbol(String symbol) {
+        for (FilterOperator operator : values()) {
+            if (operator.symbol.equals(symbol)) {
+                return operator;
+            }
+        }
+        throw new IllegalArgumentException("Unknown operator " + symbol);
+    }
+
+    /**
+     * @return Whether this operator compares order rather than equality
+     */
+    public boolean isRange() {
+        return this == LESS_THAN || this == LESS_THAN_OR_EQUAL
+                || this == GREATER_THAN || this == GREATER_THAN_OR_EQUAL;
+    }
+
+    @Override
+    public String toString() {
+        return symbol;
+    }
+}
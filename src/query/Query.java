@@ -0,0 +1,193 @@
+package query;
+
+import models.Document;
+import models.DocumentFields;
+import models.ValueType;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A query over one collection: where clauses, an optional order, a page size, a cursor and a projection
+ * Every method returns this query so clauses can be chained, e.g.
+ * new Query("users").where("age", FilterOperator.GREATER_THAN, 25).orderBy("age").limit(50)
+ */
+public class Query {
+    private final String collection;
+    private final boolean collectionGroup;
+    private final List<Filter> filters;
+    private String orderByField;
+    private boolean descending;
+    private int limit;
+    private Document startAfter;
+    private Set<String> selectedFields;
+
+    public Query(String collection) {
+        this(collection, false);
+    }
+
+    private Query(String collection, boolean collectionGroup) {
+        this.collection = collection;
+        this.collectionGroup = collectionGroup;
+        this.filters = new ArrayList<>();
+        this.limit = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Query every collection with a name, top-level or nested under any document at any depth
+     * @param collectionName Name shared by the collections
+     * @return The query
+     */
+    public static Query collectionGroup(String collectionName) {
+        return new Query(collectionName, true);
+    }
+
+    /**
+     * Only return documents matching a condition
+     * @param field Field to compare
+     * @param operator Comparison
+     * @param value Value to compare against
+     * @return this query
+     */
+    public Query where(String field, FilterOperator operator, Object value) {
+        filters.add(new Filter(field, operator, value));
+        return this;
+    }
+
+    /**
+     * Sort results by a field, ascending
+     * Documents without the field are left out, like in Firestore
+     * @param field Field to sort by
+     * @return this query
+     */
+    public Query orderBy(String field) {
+        return orderBy(field, false);
+    }
+
+    /**
+     * Sort results by a field
+     * @param field Field to sort by
+     * @param descending Whether to sort from largest to smallest
+     * @return this query
+     */
+    public Query orderBy(String field, boolean descending) {
+        this.orderByField = field;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * Return at most this many documents
+     * @param limit Page size
+     * @return this query
+     */
+    public Query limit(int limit) {
+        this.limit = limit;
+        return this;
+    }
+
+    /**
+     * Start the page right after a document, usually the last one of the previous page
+     * @param document The cursor document
+     * @return this query
+     */
+    public Query startAfter(Document document) {
+        this.startAfter = document;
+        return this;
+    }
+
+    /**
+     * Only return some fields of each document
+     * Results are then detached copies, changing them does not change the database
+     * @param fields Fields to keep
+     * @return this query
+     */
+    public Query select(String... fields) {
+        this.selectedFields = Set.of(fields);
+        return this;
+    }
+
+    /**
+     * Check a document against the where clauses
+     * Documents without the orderBy field never match, like in Firestore
+     * @param document The document
+     * @return true if the document matches
+     */
+    public boolean matches(DocumentFields document) {
+        if (document instanceof Document) {
+            // Check every clause against one version, even if the document changes meanwhile
+            document = ((Document) document).snapshot();
+        }
+        if (orderByField != null && document.getType(orderByField) == ValueType.NULL) {
+            return false;
+        }
+        for (Filter filter : filters) {
+            if (!filter.matches(document)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public String getCollection() {
+        return collection;
+    }
+
+    /**
+     * @return Whether this query searches every collection with its collection name
+     */
+    public boolean isCollectionGroup() {
+        return collectionGroup;
+    }
+
+    public List<Filter> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    public String getOrderByField() {
+        return orderByField;
+    }
+
+    public boolean isDescending() {
+        return descending;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public Document getStartAfter() {
+        return startAfter;
+    }
+
+    /**
+     * @return Fields to return, null for whole documents
+     */
+    public Set<String> getSelectedFields() {
+        return selectedFields;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder(collectionGroup ? "Query{collectionGroup='" : "Query{collection='")
+                .append(collection).append('\'');
+        if (!filters.isEmpty()) {
+            sb.append(", where=").append(filters);
+        }
+        if (orderByField != null) {
+            sb.append(", orderBy=").append(orderByField).append(descending ? " desc" : " asc");
+        }
+        if (limit != Integer.MAX_VALUE) {
+            sb.append(", limit=").append(limit);
+        }
+        if (startAfter != null) {
+            sb.append(", startAfter=").append(startAfter.getId());
+        }
+        if (selectedFields != null) {
+            sb.append(", select=").append(selectedFields);
+        }
+        return sb.append('}').toString();
+    }
+}
@@ -0,0 +1,560 @@
+package query;
+
+import index.*;
+import models.Document;
+import models.DocumentFields;
+import models.DocumentSnapshot;
+import models.ValueType;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+/**
+ * Plans and runs queries against a collection.
+ *
+ * The planner lists every way to read candidates: equality lookups in hash indexes, ranges of
+ * range and composite indexes narrowed by the where clauses, ordered walks of an index on the
+ * orderBy field, and a scan of the whole collection. Each gets an estimated number of documents
+ * to examine, counted from the index itself (capped, so estimating never costs more than the
+ * best plan found so far), and the cheapest one runs.
+ *
+ * An ordered walk stops after limit matches, so with a selective enough orderBy index a page
+ * costs O(log n + N). Other plans pick the page with a bounded heap instead of sorting
+ * everything. Scans of large collections run on the fork-join common pool.
+ *
+ * Paged-out documents are read in place and stay out of memory, so a scan doesn't flush out the
+ * documents in use. Only the results the caller reads come back.
+ */
+public class QueryEngine {
+    // Collections at least this big are scanned on all cores
+    private static final int PARALLEL_SCAN_THRESHOLD = 10_000;
+
+    private final IndexManager indexManager;
+
+    public QueryEngine(IndexManager indexManager) {
+        this.indexManager = indexManager;
+    }
+
+    /**
+     * Plan and run a query
+     * @param query The query
+     * @param collection The collection's documents
+     * @return Matching documents in query order, at most limit of them
+     */
+    public List<Document> execute(Query query, Map<String, Document> collection) {
+        return execute(plan(query, collection), collection);
+    }
+
+    /**
+     * Choose how to run a query
+     * @param query The query
+     * @param collection The collection's documents
+     * @return The cheapest plan, with the rejected ones attached
+     */
+    public QueryPlan plan(Query query, Map<String, Document> collection) {
+        long size = collection.size();
+        List<QueryPlan> plans = new ArrayList<>();
+        QueryPlan.Strategy scan = size >= PARALLEL_SCAN_THRESHOLD
+                ? QueryPlan.Strategy.PARALLEL_SCAN : QueryPlan.Strategy.SCAN;
+        plans.add(new QueryPlan(query, scan, null, size, size, null, null, null, Set.of()));
+
+        // Secondary indexes only cover top-level collections
+        Collection<SecondaryIndex> indexes = query.isCollectionGroup()
+                ? List.of() : indexManager.getIndexes(query.getCollection());
+
+        // Exact lookups first, their sizes are free and cap the counting below
+        long best = size;
+        for (SecondaryIndex index : indexes) {
+            if (index instanceof HashIndex) {
+                for (QueryPlan plan : lookupPlans(query, (HashIndex) index, size)) {
+                    plans.add(plan);
+                    best = Math.min(best, plan.getEstimatedDocuments());
+                }
+            }
+        }
+
+        for (SecondaryIndex index : indexes) {
+            QueryPlan plan = null;
+            if (index instanceof RangeIndex) {
+                plan = rangePlan(query, (RangeIndex) index, size, best);
+            } else if (index instanceof CompositeIndex && hasBounds(query, ((CompositeIndex) index).getLastField())) {
+                // Documents without the last field aren't indexed, so a clause on it must rule them out anyway
+                plan = compositePlan(query, (CompositeIndex) index, size, best, false);
+            }
+            if (plan != null) {
+                plans.add(plan);
+                best = Math.min(best, plan.getEstimatedDocuments());
+            }
+        }
+
+        // Ordered walks need the selectivity of the clauses they don't cover
+        String orderBy = query.getOrderByField();
+        if (orderBy != null) {
+            List<QueryPlan> unordered = new ArrayList<>(plans);
+            for (SecondaryIndex index : indexes) {
+                QueryPlan plan = null;
+                if (index instanceof RangeIndex && ((RangeIndex) index).getField().equals(orderBy)) {
+                    plan = orderedPlan(query, (RangeIndex) index, unordered, size);
+                } else if (index instanceof CompositeIndex && ((CompositeIndex) index).getLastField().equals(orderBy)) {
+                    plan = compositePlan(query, (CompositeIndex) index, size, size, true);
+                    if (plan != null) {
+                        plan = withOrderedEstimate(plan, query, unordered, size);
+                    }
+                }
+                if (plan != null) {
+                    plans.add(plan);
+                }
+            }
+        }
+
+        QueryPlan chosen = plans.get(0);
+        for (QueryPlan plan : plans) {
+            if (cost(plan) < cost(chosen)) {
+                chosen = plan;
+            }
+        }
+        for (QueryPlan plan : plans) {
+            if (plan != chosen) {
+                chosen.addAlternative(plan);
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Run a planned query
+     * @param plan Plan from {@link #plan}
+     * @param collection The collection's documents
+     * @return Matching documents in query order, at most limit of them
+     */
+    public List<Document> execute(QueryPlan plan, Map<String, Document> collection) {
+        return project(plan.getQuery(), page(plan, collection));
+    }
+
+    /**
+     * Aggregate the results of a query
+     * Without limit or startAfter the matches are folded as the plan reads them, with nothing sorted or collected
+     * @param aggregation The aggregation
+     * @param collection The collection's documents
+     * @return The aggregates, with every group
+     */
+    public AggregateResult aggregate(Aggregation aggregation, Map<String, Document> collection) {
+        Query query = aggregation.getQuery();
+        Aggregator aggregator = new Aggregator(aggregation);
+        QueryPlan plan = plan(query, collection);
+        if (query.getLimit() != Integer.MAX_VALUE || query.getStartAfter() != null) {
+            // The documents depend on the order, find the page first
+            for (Document document : page(plan, collection)) {
+                aggregator.add(aggregator.row(document.snapshot().peek()));
+            }
+            return aggregator.result();
+        }
+        Iterable<Document> documents = plan.getStrategy() == QueryPlan.Strategy.INDEX_ORDERED
+                ? walk(plan, collection) : candidates(plan, collection);
+        for (Document document : documents) {
+            // Match and aggregate one version, even if the document changes meanwhile
+            DocumentSnapshot version = document.snapshot().peek();
+            if (query.matches(version)) {
+                aggregator.add(aggregator.row(version));
+            }
+        }
+        return aggregator.result();
+    }
+
+    /**
+     * Matching documents in query order, before projection
+     */
+    private List<Document> page(QueryPlan plan, Map<String, Document> collection) {
+        Query query = plan.getQuery();
+        if (query.getLimit() <= 0) {
+            return Collections.emptyList();
+        }
+
+        List<Document> results;
+        if (plan.getStrategy() == QueryPlan.Strategy.INDEX_ORDERED) {
+            results = walk(plan, collection);
+        } else {
+            Comparator<Document> order = comparator(query);
+            // Keep the best limit documents in a heap whose head is the worst of them
+            PriorityQueue<Document> page = new PriorityQueue<>(order.reversed());
+
+            if (plan.getStrategy() == QueryPlan.Strategy.PARALLEL_SCAN) {
+                List<Document> matches = collection.values().parallelStream()
+                        .filter(document -> accepts(query, order, document))
+                        .collect(Collectors.toList());
+                matches.forEach(document -> addToPage(page, document, query.getLimit()));
+            } else {
+                for (Document document : candidates(plan, collection)) {
+                    if (accepts(query, order, document)) {
+                        addToPage(page, document, query.getLimit());
+                    }
+                }
+            }
+
+            results = new ArrayList<>(page);
+            results.sort(order);
+        }
+        return results;
+    }
+
+    /**
+     * One lookup plan per equality or "in" clause on the index's field
+     */
+    private List<QueryPlan> lookupPlans(Query query, HashIndex index, long size) {
+        List<QueryPlan> plans = new ArrayList<>();
+        for (Filter filter : query.getFilters()) {
+            if (!filter.getField().equals(index.getField()) || filter.getValue() == null) {
+                continue;
+            }
+
+            Collection<String> ids;
+            if (filter.getOperator() == FilterOperator.EQUAL) {
+                ids = index.lookup(filter.getValue());
+            } else if (filter.getOperator() == FilterOperator.IN) {
+                // A set, so a document moving between two of the values is only seen once
+                ids = new LinkedHashSet<>();
+                for (Object value : (Collection<?>) filter.getValue()) {
+                    ids.addAll(index.lookup(value));
+                }
+            } else {
+                continue;
+            }
+            plans.add(new QueryPlan(query, QueryPlan.Strategy.INDEX_LOOKUP, "hash:" + index.getField(),
+                    ids.size(), size, null, null, ids, Set.of(index.getField())));
+        }
+        return plans;
+    }
+
+    /**
+     * Range of a range index narrowed by the where clauses on its field, null if none apply
+     */
+    private QueryPlan rangePlan(Query query, RangeIndex index, long size, long cap) {
+        String field = index.getField();
+        if (!hasBounds(query, field)) {
+            return null;
+        }
+        Bounds bounds = bounds(query, field);
+        NavigableSet<IndexKey> keys = index.range(bounds.lower, bounds.lowerInclusive,
+                bounds.upper, bounds.upperInclusive);
+        return new QueryPlan(query, QueryPlan.Strategy.INDEX_RANGE, "range:" + field,
+                count(keys, cap), size, keys, field, null, Set.of(field));
+    }
+
+    /**
+     * Walk of a range index on the orderBy field, from the cursor or the tightest bound
+     */
+    private QueryPlan orderedPlan(Query query, RangeIndex index, List<QueryPlan> unordered, long size) {
+        String field = index.getField();
+        Bounds bounds = bounds(query, field);
+        narrowToCursor(query, bounds);
+
+        NavigableSet<IndexKey> keys = index.range(bounds.lower, bounds.lowerInclusive,
+                bounds.upper, bounds.upperInclusive);
+        if (query.isDescending()) {
+            keys = keys.descendingSet();
+        }
+        QueryPlan plan = new QueryPlan(query, QueryPlan.Strategy.INDEX_ORDERED, "range:" + field,
+                size, size, keys, field, null, Set.of(field));
+        return withOrderedEstimate(plan, query, unordered, size);
+    }
+
+    /**
+     * Bucket of a composite index picked by equality clauses on its leading fields, null if any is missing
+     * @param ordered Whether the bucket is walked in the query's order, starting at the cursor
+     */
+    private QueryPlan compositePlan(Query query, CompositeIndex index, long size, long cap, boolean ordered) {
+        List<Object> prefixValues = new ArrayList<>();
+        for (String prefixField : index.getPrefixFields()) {
+            Object value = equalityValue(query, prefixField);
+            if (value == null) {
+                return null;
+            }
+            prefixValues.add(value);
+        }
+
+        String field = index.getLastField();
+        Bounds bounds = bounds(query, field);
+        if (ordered) {
+            narrowToCursor(query, bounds);
+        }
+        NavigableSet<IndexKey> keys = index.range(prefixValues, bounds.lower, bounds.lowerInclusive,
+                bounds.upper, bounds.upperInclusive);
+        if (ordered && query.isDescending()) {
+            keys = keys.descendingSet();
+        }
+
+        String name = "composite:" + String.join(",", index.getFields());
+        Set<String> covered = new HashSet<>(index.getFields());
+        QueryPlan.Strategy strategy = ordered ? QueryPlan.Strategy.INDEX_ORDERED : QueryPlan.Strategy.INDEX_RANGE;
+        long estimate = ordered ? size : count(keys, cap);
+        return new QueryPlan(query, strategy, name, estimate, size, keys, field, null, covered);
+    }
+
+    /**
+     * Estimate how far an ordered walk goes before it has limit matches
+     * Assumes the clauses it doesn't cover are as selective as the best index on them says,
+     * and independent of the walk order.
+     */
+    private QueryPlan withOrderedEstimate(QueryPlan plan, Query query, List<QueryPlan> unordered, long size) {
+        long otherMatches = size;
+        for (QueryPlan other : unordered) {
+            if (!other.coveredFields.isEmpty() && Collections.disjoint(other.coveredFields, plan.coveredFields)) {
+                otherMatches = Math.min(otherMatches, other.getEstimatedDocuments());
+            }
+        }
+
+        long target = size;
+        if (query.getLimit() != Integer.MAX_VALUE) {
+            double fraction = (double) Math.max(otherMatches, 1) / Math.max(size, 1);
+            target = Math.min(size, (long) Math.ceil(query.getLimit() / fraction));
+        }
+        long estimate = count(plan.keys, target);
+        return new QueryPlan(query, plan.getStrategy(), plan.getIndexName(), estimate, size,
+                plan.keys, plan.keyField, null, plan.coveredFields);
+    }
+
+    /**
+     * Cost used to compare plans: documents examined, ties going to ordered walks, then to indexes
+     */
+    private double cost(QueryPlan plan) {
+        switch (plan.getStrategy()) {
+            case INDEX_ORDERED:
+                return plan.getEstimatedDocuments();
+            case INDEX_LOOKUP:
+            case INDEX_RANGE:
+                return plan.getEstimatedDocuments() + 0.25;
+            default:
+                return plan.getEstimatedDocuments() + 0.5;
+        }
+    }
+
+    /**
+     * Walk an ordered plan's keys and stop after limit matches
+     */
+    private List<Document> walk(QueryPlan plan, Map<String, Document> collection) {
+        Query query = plan.getQuery();
+        List<Document> results = new ArrayList<>();
+        for (IndexKey key : plan.keys) {
+            Document document = resolve(key, plan.keyField, collection);
+            if (document != null && query.matches(document.snapshot().peek())) {
+                results.add(document);
+                if (results.size() == query.getLimit()) {
+                    break;
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Documents an unordered index plan or a sequential scan reads
+     */
+    private Iterable<Document> candidates(QueryPlan plan, Map<String, Document> collection) {
+        if (plan.documentIds != null) {
+            List<Document> documents = new ArrayList<>();
+            for (String documentId : plan.documentIds) {
+                Document document = collection.get(documentId);
+                if (document != null) {
+                    documents.add(document);
+                }
+            }
+            return documents;
+        }
+        if (plan.keys != null) {
+            List<Document> documents = new ArrayList<>();
+            for (IndexKey key : plan.keys) {
+                Document document = resolve(key, plan.keyField, collection);
+                if (document != null) {
+                    documents.add(document);
+                }
+            }
+            return documents;
+        }
+        return collection.values();
+    }
+
+    /**
+     * Get the document behind an index key
+     * @return The document, null if it is gone or the key was left behind by a change still being indexed
+     */
+    private Document resolve(IndexKey key, String field, Map<String, Document> collection) {
+        Document document = collection.get(key.getDocumentId());
+        if (document == null) {
+            return null;
+        }
+        DocumentFields version = document.snapshot().peek();
+        if (version.getType(field) == ValueType.NULL
+                || ValueComparator.INSTANCE.compareField(version, field, key.getValue()) != 0) {
+            return null;
+        }
+        return document;
+    }
+
+    /**
+     * Check the where clauses and the cursor
+     */
+    private boolean accepts(Query query, Comparator<Document> order, Document document) {
+        Document cursor = query.getStartAfter();
+        return query.matches(document.snapshot().peek()) && (cursor == null || order.compare(document, cursor) > 0);
+    }
+
+    private void addToPage(PriorityQueue<Document> page, Document document, int limit) {
+        page.add(document);
+        if (page.size() > limit) {
+            page.poll();
+        }
+    }
+
+    /**
+     * Copy the selected fields of each result into a detached document
+     */
+    private List<Document> project(Query query, List<Document> results) {
+        Set<String> fields = query.getSelectedFields();
+        if (fields == null) {
+            return results;
+        }
+        List<Document> projected = new ArrayList<>(results.size());
+        for (Document document : results) {
+            Document copy = new Document(document.getId());
+            for (String field : fields) {
+                Object value = document.get(field);
+                if (value != null) {
+                    copy.set(field, value);
+                }
+            }
+            projected.add(copy);
+        }
+        return projected;
+    }
+
+    /**
+     * Order of the results: by the orderBy field, then by document ID
+     * Queries without orderBy are ordered by document ID so cursors stay stable
+     */
+    private Comparator<Document> comparator(Query query) {
+        Comparator<Document> byId = Comparator.comparing(Document::getId);
+        String field = query.getOrderByField();
+        if (field == null) {
+            return byId;
+        }
+
+        Comparator<Document> byField = (left, right) ->
+                ValueComparator.INSTANCE.compareFields(left.snapshot().peek(), right.snapshot().peek(), field);
+        Comparator<Document> order = byField.thenComparing(byId);
+        return query.isDescending() ? order.reversed() : order;
+    }
+
+    /**
+     * Count keys, stopping at a cap
+     */
+    private long count(Iterable<IndexKey> keys, long cap) {
+        long count = 0;
+        Iterator<IndexKey> iterator = keys.iterator();
+        while (count < cap && iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        return count;
+    }
+
+    private boolean hasBounds(Query query, String field) {
+        for (Filter filter : query.getFilters()) {
+            if (filter.getField().equals(field) && filter.getValue() != null
+                    && (filter.getOperator() == FilterOperator.EQUAL || filter.getOperator().isRange())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private Object equalityValue(Query query, String field) {
+        for (Filter filter : query.getFilters()) {
+            if (filter.getField().equals(field) && filter.getOperator() == FilterOperator.EQUAL) {
+                return filter.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Let the startAfter cursor narrow the side an ordered walk starts from
+     */
+    private void narrowToCursor(Query query, Bounds bounds) {
+        Document cursor = query.getStartAfter();
+        Object cursorValue = cursor != null ? cursor.get(query.getOrderByField()) : null;
+        if (cursorValue == null) {
+            return;
+        }
+        IndexKey cursorKey = IndexKey.of(cursorValue, cursor.getId());
+        if (query.isDescending()) {
+            bounds.narrowUpper(cursorKey, false);
+        } else {
+            bounds.narrowLower(cursorKey, false);
+        }
+    }
+
+    /**
+     * Intersect the where clauses on one field into index bounds
+     * Range clauses stay within the type of their value, like {@link Filter#matches}
+     */
+    private Bounds bounds(Query query, String field) {
+        Bounds bounds = new Bounds();
+        for (Filter filter : query.getFilters()) {
+            if (!filter.getField().equals(field) || filter.getValue() == null) {
+                continue;
+            }
+            Object value = filter.getValue();
+            switch (filter.getOperator()) {
+                case EQUAL:
+                    bounds.narrowLower(IndexKey.before(value), true);
+                    bounds.narrowUpper(IndexKey.after(value), true);
+                    break;
+                case GREATER_THAN:
+                    bounds.narrowLower(IndexKey.after(value), true);
+                    bounds.narrowUpper(IndexKey.endOfType(value), true);
+                    break;
+                case GREATER_THAN_OR_EQUAL:
+                    bounds.narrowLower(IndexKey.before(value), true);
+                    bounds.narrowUpper(IndexKey.endOfType(value), true);
+                    break;
+                case LESS_THAN:
+                    bounds.narrowLower(IndexKey.startOfType(value), true);
+                    bounds.narrowUpper(IndexKey.before(value), true);
+                    break;
+                case LESS_THAN_OR_EQUAL:
+                    bounds.narrowLower(IndexKey.startOfType(value), true);
+                    bounds.narrowUpper(IndexKey.after(value), true);
+                    break;
+                default:
+                    break;
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Lower and upper key of an index walk, null for unbounded
+     */
+    private static class Bounds {
+        IndexKey lower;
+        boolean lowerInclusive = true;
+        IndexKey upper;
+        boolean upperInclusive = true;
+
+        void narrowLower(IndexKey key, boolean inclusive) {
+            int order = lower == null ? 1 : key.compareTo(lower);
+            if (order > 0 || (order == 0 && !inclusive)) {
+                lower = key;
+                lowerInclusive = inclusive;
+            }
+        }
+
+        void narrowUpper(IndexKey key, boolean inclusive) {
+            int order = upper == null ? -1 : key.compareTo(upper);
+            if (order < 0 || (order == 0 && !inclusive)) {
+                upper = key;
+                upperInclusive = inclusive;
+            }
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package query;
+
+import index.IndexKey;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * How a query is executed: where candidate documents come from and roughly how many are examined
+ * Built by {@link QueryEngine#plan}; {@link #toString()} gives the explain output.
+ */
+public class QueryPlan {
+    public enum Strategy {
+        /**
+         * Walk an index in the query's order and stop at the limit, no sorting needed
+         */
+        INDEX_ORDERED,
+
+        /**
+         * Look up the IDs holding a value in an equality index
+         */
+        INDEX_LOOKUP,
+
+        /**
+         * Read a range of an ordered or composite index
+         */
+        INDEX_RANGE,
+
+        /**
+         * Check every document of the collection
+         */
+        SCAN,
+
+        /**
+         * Check every document of the collection on all cores
+         */
+        PARALLEL_SCAN
+    }
+
+    private final Query query;
+    private final Strategy strategy;
+    private final String indexName;
+    private final long estimatedDocuments;
+    private final long collectionSize;
+    private final List<QueryPlan> alternatives;
+
+    // Where the candidates come from: index keys, document IDs, or neither for scans
+    final Iterable<IndexKey> keys;
+    final String keyField;
+    final Collection<String> documentIds;
+
+    // Fields whose where clauses the access path already narrows on
+    final Set<String> coveredFields;
+
+    QueryPlan(Query query, Strategy strategy, String indexName, long estimatedDocuments, long collectionSize,
+              Iterable<IndexKey> keys, String keyField, Collection<String> documentIds, Set<String> coveredFields) {
+        this.query = query;
+        this.strategy = strategy;
+        this.indexName = indexName;
+        this.estimatedDocuments = estimatedDocuments;
+        this.collectionSize = collectionSize;
+        this.keys = keys;
+        this.keyField = keyField;
+        this.documentIds = documentIds;
+        this.coveredFields = coveredFields;
+        this.alternatives = new ArrayList<>();
+    }
+
+    public Query getQuery() {
+        return query;
+    }
+
+    public Strategy getStrategy() {
+        return strategy;
+    }
+
+    /**
+     * @return Name of the index used, null for scans
+     */
+    public String getIndexName() {
+        return indexName;
+    }
+
+    /**
+     * @return Estimated number of documents examined
+     */
+    public long getEstimatedDocuments() {
+        return estimatedDocuments;
+    }
+
+    /**
+     * @return Whether the matches still have to be sorted after they are found
+     */
+    public boolean isSortRequired() {
+        return strategy != Strategy.INDEX_ORDERED;
+    }
+
+    /**
+     * @return The other plans the planner rejected
+     */
+    public List<QueryPlan> getAlternatives() {
+        return Collections.unmodifiableList(alternatives);
+    }
+
+    void addAlternative(QueryPlan plan) {
+        alternatives.add(plan);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(query).append('\n');
+        sb.append("plan: ").append(summary()).append('\n');
+        if (!query.getFilters().isEmpty()) {
+            sb.append("filter: ").append(query.getFilters()).append('\n');
+        }
+        if (isSortRequired()) {
+            sb.append("sort: by ").append(query.getOrderByField() != null ? query.getOrderByField() : "id")
+                    .append(query.isDescending() ? " desc" : " asc");
+            if (query.getLimit() != Integer.MAX_VALUE) {
+                sb.append(", keep ").append(query.getLimit());
+            }
+            sb.append('\n');
+        } else if (query.getLimit() != Integer.MAX_VALUE) {
+            sb.append("stop: after ").append(query.getLimit()).append(" matches\n");
+        }
+        if (query.getSelectedFields() != null) {
+            sb.append("select: ").append(query.getSelectedFields()).append('\n');
+        }
+        for (QueryPlan alternative : alternatives) {
+            sb.append("rejected: ").append(alternative.summary()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String summary() {
+        String source = indexName != null ? strategy + " " + indexName : strategy.toString();
+        return source + " (~" + estimatedDocuments + " of " + collectionSize + " documents)";
+    }
+}
@@ -0,0 +1,375 @@
+package samDatabase;
+
+import models.Document;
+import persistence.Durability;
+import query.Query;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Non-blocking view of a SamDatabase, for callers such as event loops that must never wait.
+ *
+ * Every method returns at once with a future. Reads and writes of documents that are in memory
+ * run right away on the calling thread, which only ever waits for the commit lock; the future
+ * of a write then completes once its log write is as durable as requested, without any thread
+ * waiting for it. Anything that may touch the disk (documents paged out by the memory budget,
+ * collections not yet decoded from the snapshot, queries, transactions and checkpoints) runs
+ * on the executor instead. Futures never complete on the persistence writer's thread, so slow
+ * callbacks can't hold up the log.
+ *
+ * Concurrent reads of a document that has to be read back from disk share one read.
+ * A failed log write completes the write's future exceptionally, where the blocking methods only report it.
+ */
+public class AsyncSamDatabase implements AutoCloseable {
+    private final SamDatabase database;
+    private final Executor executor;
+
+    // Executor created here, shut down on close; null if the caller supplied one
+    private final ExecutorService ownedExecutor;
+
+    // (collection, ID) -> read of a document from disk in progress
+    private final Map<List<String>, CompletableFuture<Document>> reads;
+    private final LongAdder coalescedReads;
+
+    /**
+     * Wrap a database, running blocking work on virtual threads
+     * @param database The database, still closed by its owner
+     */
+    public AsyncSamDatabase(SamDatabase database) {
+        this(database, null);
+    }
+
+    /**
+     * Wrap a database
+     * @param database The database, still closed by its owner
+     * @param executor Runs the work that may block and completes the futures, null for virtual threads
+     */
+    public AsyncSamDatabase(SamDatabase database, Executor executor) {
+        this.database = database;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            this.ownedExecutor = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sam-async-", 0).factory());
+            this.executor = ownedExecutor;
+        }
+        this.reads = new ConcurrentHashMap<>();
+        this.coalescedReads = new LongAdder();
+    }
+
+    /**
+     * @return The wrapped database, for calls that may block
+     */
+    public SamDatabase getDatabase() {
+        return database;
+    }
+
+    /**
+     * Get a document from a collection
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return Future of the document with its fields in memory, null if not found
+     */
+    public CompletableFuture<Document> getDocument(String collectionName, String documentId) {
+        if (database.isResident(collectionName, documentId)) {
+            return CompletableFuture.completedFuture(database.getDocument(collectionName, documentId));
+        }
+        List<String> key = List.of(collectionName, documentId);
+        CompletableFuture<Document> read = new CompletableFuture<>();
+        CompletableFuture<Document> running = reads.putIfAbsent(key, read);
+        if (running != null) {
+            coalescedReads.increment();
+            // A copy, so a caller cancelling its future doesn't cancel everyone's
+            return running.copy();
+        }
+        try {
+            executor.execute(() -> {
+                try {
+                    Document document = database.getDocument(collectionName, documentId);
+                    if (document != null) {
+                        // Read the fields back here rather than on the caller's thread
+                        document.snapshot().getData();
+                    }
+                    read.complete(document);
+                } catch (RuntimeException e) {
+                    read.completeExceptionally(e);
+                } finally {
+                    reads.remove(key, read);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            reads.remove(key, read);
+            read.completeExceptionally(e);
+        }
+        return read.copy();
+    }
+
+    /**
+     * Get all documents in a collection
+     * @param collectionName Name of the collection
+     * @return Future of the documents
+     */
+    public CompletableFuture<List<Document>> getDocuments(String collectionName) {
+        return supply(() -> database.getDocuments(collectionName));
+    }
+
+    /**
+     * Run a query
+     * @param query The query
+     * @return Future of the matching documents in query order
+     */
+    public CompletableFuture<List<Document>> runQuery(Query query) {
+        return supply(() -> database.runQuery(query));
+    }
+
+    /**
+     * Create a new collection if it doesn't exist
+     * @see #createCollection(String, Durability)
+     */
+    public CompletableFuture<Void> createCollection(String collectionName) {
+        return createCollection(collectionName, database.getDefaultDurability());
+    }
+
+    /**
+     * Create a new collection if it doesn't exist
+     * @param collectionName Name of the collection
+     * @param durability How durable the change must be before the future completes
+     * @return Future completed once the collection exists and is durable
+     */
+    public CompletableFuture<Void> createCollection(String collectionName, Durability durability) {
+        if (!database.isResident(collectionName, null)) {
+            return supply(() -> {
+                database.createCollection(collectionName, durability);
+                return null;
+            });
+        }
+        return whenDurable(database.applyCreateCollection(collectionName, durability), durability);
+    }
+
+    /**
+     * Add an empty document to a collection
+     * @see #addDocument(String, String, Durability)
+     */
+    public CompletableFuture<Document> addDocument(String collectionName, String documentId) {
+        return addDocument(collectionName, documentId, database.getDefaultDurability());
+    }
+
+    /**
+     * Add an empty document to a collection, replacing any document with the same ID
+     * @param collectionName Name of the collection, created if needed
+     * @param documentId ID of the document
+     * @param durability How durable the change must be before the future completes
+     * @return Future of the created document
+     */
+    public CompletableFuture<Document> addDocument(String collectionName, String documentId, Durability durability) {
+        if (!database.isResident(collectionName, null)) {
+            return supply(() -> database.addDocument(collectionName, documentId, durability));
+        }
+        return whenDurable(database.applyAddDocument(collectionName, documentId, durability), durability);
+    }
+
+    /**
+     * Set a document's field
+     * @see #updateDocumentField(String, String, String, Object, Durability)
+     */
+    public CompletableFuture<Boolean> updateDocumentField(String collectionName, String documentId, String key,
+                                                          Object value) {
+        return updateDocumentField(collectionName, documentId, key, value, database.getDefaultDurability());
+    }
+
+    /**
+     * Set a document's field
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param key Field key to update
+     * @param value Value to set, may be a {@link models.FieldValue} transform
+     * @param durability How durable the change must be before the future completes
+     * @return Future of true if updated, false if the document doesn't exist
+     */
+    public CompletableFuture<Boolean> updateDocumentField(String collectionName, String documentId, String key,
+                                                          Object value, Durability durability) {
+        if (!database.isResident(collectionName, documentId)) {
+            return supply(() -> database.updateDocumentField(collectionName, documentId, key, value, durability));
+        }
+        return whenDurable(database.applyFieldUpdate(collectionName, documentId, key, value, durability), durability);
+    }
+
+    /**
+     * Delete a document
+     * @see #deleteDocument(String, String, Durability)
+     */
+    public CompletableFuture<Boolean> deleteDocument(String collectionName, String documentId) {
+        return deleteDocument(collectionName, documentId, database.getDefaultDurability());
+    }
+
+    /**
+     * Delete a document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param durability How durable the change must be before the future completes
+     * @return Future of true if deleted, false if not found
+     */
+    public CompletableFuture<Boolean> deleteDocument(String collectionName, String documentId, Durability durability) {
+        if (!database.isResident(collectionName, documentId)) {
+            return supply(() -> database.deleteDocument(collectionName, documentId, durability));
+        }
+        return whenDurable(database.applyDeleteDocument(collectionName, documentId, durability), durability);
+    }
+
+    /**
+     * Add to a numeric field atomically
+     * @see #increment(String, String, String, Number, Durability)
+     */
+    public CompletableFuture<Boolean> increment(String collectionName, String documentId, String field,
+                                                Number delta) {
+        return increment(collectionName, documentId, field, delta, database.getDefaultDurability());
+    }
+
+    /**
+     * Add to a numeric field atomically, combined with concurrent increments like {@link SamDatabase#increment}
+     * Runs on the executor, where waiting for the combined commit costs the caller nothing
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param field The numeric field
+     * @param delta Amount to add, negative to subtract
+     * @param durability How durable the change must be before the future completes
+     * @return Future of true if the document exists and was incremented
+     */
+    public CompletableFuture<Boolean> increment(String collectionName, String documentId, String field,
+                                                Number delta, Durability durability) {
+        return supply(() -> database.increment(collectionName, documentId, field, delta, durability));
+    }
+
+    /**
+     * Update fields only if the document is still at a known version
+     * @see #compareAndSet(String, String, long, Map, Durability)
+     */
+    public CompletableFuture<Boolean> compareAndSet(String collectionName, String documentId, long expectedVersion,
+                                                    Map<String, Object> fields) {
+        return compareAndSet(collectionName, documentId, expectedVersion, fields, database.getDefaultDurability());
+    }
+
+    /**
+     * Update fields only if the document is still at a known version, see {@link SamDatabase#compareAndSet}
+     * @param durability How durable the change must be before the future completes
+     * @return Future of true if the fields were set, false if the document changed or doesn't exist
+     */
+    public CompletableFuture<Boolean> compareAndSet(String collectionName, String documentId, long expectedVersion,
+                                                    Map<String, Object> fields, Durability durability) {
+        WriteBatch batch = database.batch().update(collectionName, documentId, fields);
+        if (!batch.isResident()) {
+            return supply(() -> database.compareAndSet(collectionName, documentId, expectedVersion, fields, durability));
+        }
+        SamDatabase.AppliedWrite<SamDatabase.CommitResult> write =
+                batch.apply(Map.of(List.of(collectionName, documentId), expectedVersion), durability);
+        return whenDurable(write, durability).thenApply(result -> result == SamDatabase.CommitResult.COMMITTED);
+    }
+
+    /**
+     * Start a batch of writes, commit it with {@link #commit(WriteBatch)}
+     * @return An empty batch
+     */
+    public WriteBatch batch() {
+        return database.batch();
+    }
+
+    /**
+     * Apply every write staged on a batch
+     * @see #commit(WriteBatch, Durability)
+     */
+    public CompletableFuture<Boolean> commit(WriteBatch batch) {
+        return commit(batch, database.getDefaultDurability());
+    }
+
+    /**
+     * Apply every write staged on a batch, all of them or none
+     * @param batch The batch, from {@link #batch()}
+     * @param durability How durable the batch must be before the future completes
+     * @return Future of true if the batch was applied, false if an update targets a missing document
+     */
+    public CompletableFuture<Boolean> commit(WriteBatch batch, Durability durability) {
+        if (!batch.isResident()) {
+            return supply(() -> batch.commit(durability));
+        }
+        return whenDurable(batch.apply(Collections.emptyMap(), durability), durability)
+                .thenApply(result -> result == SamDatabase.CommitResult.COMMITTED);
+    }
+
+    /**
+     * Run a read-modify-write transaction
+     * @see #runTransaction(Function, Durability)
+     */
+    public <T> CompletableFuture<T> runTransaction(Function<Transaction, T> function) {
+        return runTransaction(function, database.getDefaultDurability());
+    }
+
+    /**
+     * Run a read-modify-write transaction on the executor, see {@link SamDatabase#runTransaction(Function, Durability)}
+     * @param function Reads and stages writes, may run several times
+     * @param durability How durable the writes must be before the future completes
+     * @return Future of the function's result once its writes committed
+     */
+    public <T> CompletableFuture<T> runTransaction(Function<Transaction, T> function, Durability durability) {
+        return supply(() -> database.runTransaction(function, durability));
+    }
+
+    /**
+     * Write a full snapshot and discard the log records it covers, on the executor
+     * @return Future completed once the checkpoint is written
+     */
+    public CompletableFuture<Void> checkpoint() {
+        return supply(() -> {
+            database.checkpoint();
+            return null;
+        });
+    }
+
+    /**
+     * @return Reads that were served by another caller's read of the same document from disk
+     */
+    public long getCoalescedReads() {
+        return coalescedReads.sum();
+    }
+
+    /**
+     * Stop the executor if this view created it, work already started still finishes
+     * The database stays open
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private <T> CompletableFuture<T> supply(Supplier<T> work) {
+        try {
+            return CompletableFuture.supplyAsync(work, executor);
+        } catch (RejectedExecutionException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /**
+     * Complete once an applied write is as durable as requested
+     * @param write The write, already visible in memory
+     * @param durability The requested durability, ASYNC completes right away
+     * @return Future of the write's result, failed if the log write failed
+     */
+    private <T> CompletableFuture<T> whenDurable(SamDatabase.AppliedWrite<T> write, Durability durability) {
+        if (write.written == null || durability == Durability.ASYNC) {
+            return CompletableFuture.completedFuture(write.result);
+        }
+        if (write.written.isDone() && !write.written.isCompletedExceptionally()) {
+            return CompletableFuture.completedFuture(write.result);
+        }
+        // Hop off the persistence writer's thread, which completes the log write's future
+        return write.written.thenApplyAsync(written -> write.result, executor);
+    }
+}
@@ -0,0 +1,43 @@
+package samDatabase;
+
+import models.Document;
+
+import java.util.List;
+
+/**
+ * Decides which in-memory documents stay resident under a weight budget
+ * Implementations are thread-safe and never call out while holding their lock.
+ */
+interface CachePolicy {
+    /**
+     * Record a use of a document whose fields are in memory, adding it if it is new
+     * @param document The document
+     * @param weight Estimated heap bytes of its fields
+     * @param victims Receives the documents to page out to get back under budget
+     * @return Whether the document was already cached
+     */
+    boolean record(Document document, long weight, List<Document> victims);
+
+    /**
+     * Record a use of a document whose fields are paged out
+     * @param document The document
+     */
+    void recordAbsent(Document document);
+
+    /**
+     * Stop tracking a document
+     * @param document The document
+     */
+    void remove(Document document);
+
+    /**
+     * @param document A document
+     * @return Whether it is tracked as resident
+     */
+    boolean contains(Document document);
+
+    /**
+     * @return Total weight of the tracked documents
+     */
+    long weight();
+}
@@ -0,0 +1,76 @@
+package samDatabase;
+
+/**
+ * Counters of a memory-bounded database, see {@link SamDatabase#getCacheStats()}
+ * Hits are uses of documents whose fields were in memory, misses had to read them back from disk.
+ */
+public class CacheStats {
+    private final long hits;
+    private final long misses;
+    private final long evictions;
+    private final long residentBytes;
+    private final long pagedOutBytes;
+    private final long memoryBudget;
+
+    CacheStats(long hits, long misses, long evictions, long residentBytes, long pagedOutBytes, long memoryBudget) {
+        this.hits = hits;
+        this.misses = misses;
+        this.evictions = evictions;
+        this.residentBytes = residentBytes;
+        this.pagedOutBytes = pagedOutBytes;
+        this.memoryBudget = memoryBudget;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return Share of uses served from memory, 0 if there were none
+     */
+    public double getHitRate() {
+        long uses = hits + misses;
+        return uses == 0 ? 0.0 : (double) hits / uses;
+    }
+
+    /**
+     * @return Number of documents whose fields were paged out
+     */
+    public long getEvictions() {
+        return evictions;
+    }
+
+    /**
+     * @return Estimated heap bytes of the fields kept in memory
+     */
+    public long getResidentBytes() {
+        return residentBytes;
+    }
+
+    /**
+     * @return Bytes of fields held in the spill segments
+     */
+    public long getPagedOutBytes() {
+        return pagedOutBytes;
+    }
+
+    /**
+     * @return The configured budget, 0 if the database is not memory-bounded
+     */
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    @Override
+    public String toString() {
+        return "CacheStats{hits=" + hits + ", misses=" + misses
+                + String.format(", hitRate=%.3f", getHitRate())
+                + ", evictions=" + evictions
+                + ", residentBytes=" + residentBytes + ", pagedOutBytes=" + pagedOutBytes
+                + ", memoryBudget=" + memoryBudget + '}';
+    }
+}
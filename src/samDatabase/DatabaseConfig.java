@@ -0,0 +1,163 @@
+package samDatabase;
+
+import persistence.Durability;
+import persistence.PersistenceMode;
+
+import java.io.File;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Tuning options for a SamDatabase
+ * Every setter returns this config so options can be chained
+ */
+public class DatabaseConfig {
+    private File directory;
+    private PersistenceMode persistenceMode = PersistenceMode.WAL;
+    private Durability defaultDurability = Durability.FLUSH;
+    private long checkpointLogBytes = 16L * 1024 * 1024;
+    private Duration checkpointInterval = Duration.ofMinutes(5);
+    private Set<String> hotCollections = Set.of();
+    private Executor listenerExecutor;
+    private final Map<String, Integer> shardCounts = new HashMap<>();
+    private long memoryBudget = 0;
+    private EvictionPolicy evictionPolicy = EvictionPolicy.W_TINY_LFU;
+
+    /**
+     * @param directory Directory holding the database files, created if needed, null for the working directory
+     * @return this config
+     */
+    public DatabaseConfig directory(File directory) {
+        this.directory = directory;
+        return this;
+    }
+
+    /**
+     * @param persistenceMode How mutations are persisted
+     * @return this config
+     */
+    public DatabaseConfig persistenceMode(PersistenceMode persistenceMode) {
+        this.persistenceMode = persistenceMode;
+        return this;
+    }
+
+    /**
+     * @param defaultDurability Durability used by write methods that don't specify one
+     * @return this config
+     */
+    public DatabaseConfig defaultDurability(Durability defaultDurability) {
+        this.defaultDurability = defaultDurability;
+        return this;
+    }
+
+    /**
+     * @param checkpointLogBytes Checkpoint once the log reaches this size, 0 to disable
+     * @return this config
+     */
+    public DatabaseConfig checkpointLogBytes(long checkpointLogBytes) {
+        this.checkpointLogBytes = checkpointLogBytes;
+        return this;
+    }
+
+    /**
+     * @param checkpointInterval Checkpoint once this much time has passed, null to disable
+     * @return this config
+     */
+    public DatabaseConfig checkpointInterval(Duration checkpointInterval) {
+        this.checkpointInterval = checkpointInterval;
+        return this;
+    }
+
+    /**
+     * @param hotCollections Collections decoded in parallel at startup, the rest load on first access
+     * @return this config
+     */
+    public DatabaseConfig hotCollections(String... hotCollections) {
+        this.hotCollections = Set.of(hotCollections);
+        return this;
+    }
+
+    /**
+     * @param listenerExecutor Runs snapshot listeners, null for a daemon pool sized to the cores
+     * @return this config
+     */
+    public DatabaseConfig listenerExecutor(Executor listenerExecutor) {
+        this.listenerExecutor = listenerExecutor;
+        return this;
+    }
+
+    /**
+     * @param collectionName A large collection
+     * @param shards Number of hash shards its snapshot is split into, each written and loaded on its own
+     * @return this config
+     */
+    public DatabaseConfig shards(String collectionName, int shards) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("A collection needs at least one shard");
+        }
+        shardCounts.put(collectionName, shards);
+        return this;
+    }
+
+    /**
+     * @param memoryBudget Estimated heap bytes document fields may take before the coldest are paged out
+     *                     to memory-mapped segments, 0 to keep every document in memory
+     * @return this config
+     */
+    public DatabaseConfig memoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+        return this;
+    }
+
+    /**
+     * @param evictionPolicy How documents to page out are picked once the memory budget is reached
+     * @return this config
+     */
+    public DatabaseConfig evictionPolicy(EvictionPolicy evictionPolicy) {
+        this.evictionPolicy = evictionPolicy;
+        return this;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    public PersistenceMode getPersistenceMode() {
+        return persistenceMode;
+    }
+
+    public Durability getDefaultDurability() {
+        return defaultDurability;
+    }
+
+    public long getCheckpointLogBytes() {
+        return checkpointLogBytes;
+    }
+
+    public Duration getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    public Set<String> getHotCollections() {
+        return hotCollections;
+    }
+
+    public Executor getListenerExecutor() {
+        return listenerExecutor;
+    }
+
+    public Map<String, Integer> getShardCounts() {
+        return shardCounts;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    public EvictionPolicy getEvictionPolicy() {
+        return evictionPolicy;
+    }
+}
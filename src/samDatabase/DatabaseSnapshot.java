@@ -0,0 +1,98 @@
+package samDatabase;
+
+import models.Document;
+import models.DocumentSnapshot;
+import models.VersionClock;
+
+import java.util.*;
+
+/**
+ * A point-in-time view of a database, opened by {@link SamDatabase#snapshot()}.
+ * Every read returns the versions committed before the snapshot was opened, without taking
+ * any lock, however many writes happen meanwhile. Documents deleted after it was opened
+ * stay readable through it. Close it to let the versions it keeps alive be reclaimed.
+ */
+public class DatabaseSnapshot implements AutoCloseable {
+    private final SamDatabase database;
+    private final VersionClock clock;
+    private final long sequence;
+    private boolean closed;
+
+    DatabaseSnapshot(SamDatabase database, VersionClock clock) {
+        this.database = database;
+        this.clock = clock;
+        this.sequence = clock.openSnapshot();
+    }
+
+    /**
+     * @return Commit sequence this snapshot reads at
+     */
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * Get a document as it was when the snapshot was opened
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return The document's version, null if it didn't exist then
+     */
+    public DocumentSnapshot getDocument(String collectionName, String documentId) {
+        Map<String, Document> live = database.liveDocuments(collectionName);
+        Document document = live != null ? live.get(documentId) : null;
+        DocumentSnapshot version = document != null ? document.snapshotAt(sequence) : null;
+        if (version != null) {
+            return version;
+        }
+
+        // It may have been deleted or replaced since
+        for (Document retired : database.retiredDocuments(collectionName)) {
+            if (retired.getId().equals(documentId)) {
+                version = retired.snapshotAt(sequence);
+                if (version != null) {
+                    return version;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get every document of a collection as it was when the snapshot was opened
+     * @param collectionName Name of the collection
+     * @return The documents' versions
+     */
+    public List<DocumentSnapshot> getDocuments(String collectionName) {
+        Map<String, Document> live = database.liveDocuments(collectionName);
+        if (live == null) {
+            return Collections.emptyList();
+        }
+
+        List<DocumentSnapshot> versions = new ArrayList<>();
+        Set<Document> seen = Collections.newSetFromMap(new IdentityHashMap<>());
+        for (Document document : live.values()) {
+            DocumentSnapshot version = document.snapshotAt(sequence);
+            if (version != null) {
+                versions.add(version);
+                seen.add(document);
+            }
+        }
+        for (Document retired : database.retiredDocuments(collectionName)) {
+            // A document is retired just before it leaves the map, so it may have been seen already
+            DocumentSnapshot version = seen.contains(retired) ? null : retired.snapshotAt(sequence);
+            if (version != null) {
+                versions.add(version);
+            }
+        }
+        return versions;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (!closed) {
+            closed = true;
+            clock.closeSnapshot(sequence);
+            database.reclaimRetired();
+        }
+    }
+}
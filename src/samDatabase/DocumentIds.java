@@ -0,0 +1,133 @@
+package samDatabase;
+
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Generates compact document IDs that sort by creation time, like ULIDs.
+ *
+ * An ID is 26 Crockford base32 characters: 48 bits of milliseconds since the epoch, 40 bits
+ * naming the generating thread and a 40-bit counter of that thread. Every thread keeps its own
+ * node and counter, so generating an ID takes no lock and touches no shared state, and the IDs
+ * of one thread always grow, even if the clock steps back. Comparing IDs as strings orders
+ * them by creation time to the millisecond, which lets collections scan them by time range.
+ */
+public final class DocumentIds {
+    private static final char[] ALPHABET = "0123456789ABCDEFGHJKMNPQRSTVWXYZ".toCharArray();
+    private static final int LENGTH = 26;
+    private static final int TIME_LENGTH = 10;
+    private static final int PART_LENGTH = 8;
+    private static final long MAX_TIME = (1L << 48) - 1;
+    private static final long MAX_PART = (1L << 40) - 1;
+
+    // Character -> its base32 value, -1 for characters IDs never contain
+    private static final byte[] VALUES = new byte[128];
+
+    static {
+        Arrays.fill(VALUES, (byte) -1);
+        for (int i = 0; i < ALPHABET.length; i++) {
+            VALUES[ALPHABET[i]] = (byte) i;
+        }
+    }
+
+    private static final ThreadLocal<Generator> GENERATORS = ThreadLocal.withInitial(Generator::new);
+
+    private DocumentIds() {
+    }
+
+    /**
+     * @return A new ID, greater than every ID this thread generated before
+     */
+    public static String next() {
+        return GENERATORS.get().next();
+    }
+
+    /**
+     * Check whether an ID was made by {@link #next}
+     * @param id A document ID
+     * @return true if it has the generated format
+     */
+    public static boolean isGenerated(String id) {
+        if (id.length() != LENGTH || id.charAt(0) > '7') {
+            return false;
+        }
+        for (int i = 0; i < LENGTH; i++) {
+            char c = id.charAt(i);
+            if (c >= VALUES.length || VALUES[c] < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param id A generated ID
+     * @return When it was generated, to the millisecond
+     * @throws IllegalArgumentException if the ID wasn't generated by {@link #next}
+     */
+    public static Instant creationTime(String id) {
+        if (!isGenerated(id)) {
+            throw new IllegalArgumentException("Not a generated document ID: " + id);
+        }
+        long millis = 0;
+        for (int i = 0; i < TIME_LENGTH; i++) {
+            millis = millis << 5 | VALUES[id.charAt(i)];
+        }
+        return Instant.ofEpochMilli(millis);
+    }
+
+    /**
+     * Get the smallest ID that can be generated at a point in time
+     * Every ID generated at or after it compares greater or equal, every earlier one compares less
+     * @param time The point in time, rounded down to the millisecond
+     * @return The bound
+     */
+    public static String lowerBound(Instant time) {
+        long millis = Math.max(0, Math.min(MAX_TIME, time.toEpochMilli()));
+        char[] chars = new char[LENGTH];
+        Arrays.fill(chars, ALPHABET[0]);
+        encode(chars, 0, TIME_LENGTH, millis);
+        return new String(chars);
+    }
+
+    private static void encode(char[] chars, int offset, int length, long value) {
+        for (int i = offset + length - 1; i >= offset; i--) {
+            chars[i] = ALPHABET[(int) (value & 31)];
+            value >>>= 5;
+        }
+    }
+
+    /**
+     * Node and counter of one thread
+     */
+    private static final class Generator {
+        private final long node;
+        private long time;
+        private long counter;
+
+        Generator() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            this.node = random.nextLong() & MAX_PART;
+            // Start anywhere in the lower half, so the counter can't be used to count IDs
+            this.counter = random.nextLong() & (MAX_PART >>> 1);
+        }
+
+        String next() {
+            // Never go back in time, the counter keeps IDs of the same millisecond in order
+            time = Math.max(time, Math.min(MAX_TIME, System.currentTimeMillis()));
+            if (counter == MAX_PART) {
+                time++;
+                counter = 0;
+            } else {
+                counter++;
+            }
+
+            char[] chars = new char[LENGTH];
+            encode(chars, 0, TIME_LENGTH, time);
+            encode(chars, TIME_LENGTH, PART_LENGTH, node);
+            encode(chars, TIME_LENGTH + PART_LENGTH, PART_LENGTH, counter);
+            return new String(chars);
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package samDatabase;
+
+/**
+ * How a memory-bounded database picks the documents to page out, see {@link DatabaseConfig#memoryBudget}
+ */
+public enum EvictionPolicy {
+    /**
+     * Page out the least recently used documents
+     */
+    LRU,
+
+    /**
+     * Window TinyLFU: new documents get a small recency window, after which they only displace
+     * a cached document if they have been used more often, so one large scan can't flush the cache
+     */
+    W_TINY_LFU
+}
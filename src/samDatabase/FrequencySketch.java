@@ -0,0 +1,88 @@
+package samDatabase;
+
+/**
+ * Approximate use counts in a fixed amount of memory, for {@link WindowTinyLfuPolicy}.
+ *
+ * A count-min sketch of 4-bit counters: each item bumps one counter in each of four rows
+ * and its frequency is the smallest of the four. Once the number of bumps reaches ten times
+ * the number of counters every counter is halved, so past popularity fades.
+ * Not thread-safe, the policy calls it under its lock.
+ */
+class FrequencySketch {
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L};
+    private static final long RESET_MASK = 0x7777777777777777L;
+
+    // Sixteen 4-bit counters per long
+    private final long[] table;
+    private final int mask;
+    private final int sampleSize;
+    private int additions;
+
+    /**
+     * @param expectedItems Roughly how many items are tracked at once
+     */
+    FrequencySketch(long expectedItems) {
+        int size = Integer.highestOneBit((int) Math.max(16, Math.min(expectedItems, 1 << 26)) - 1) << 1;
+        this.table = new long[size];
+        this.mask = size - 1;
+        this.sampleSize = 10 * size;
+    }
+
+    /**
+     * @param item An item
+     * @return Estimated number of recent uses, at most 15
+     */
+    int frequency(Object item) {
+        int hash = spread(System.identityHashCode(item));
+        int frequency = 15;
+        for (int row = 0; row < 4; row++) {
+            int shift = counterShift(hash, row);
+            frequency = Math.min(frequency, (int) ((table[index(hash, row)] >>> shift) & 0xF));
+        }
+        return frequency;
+    }
+
+    /**
+     * Count one use of an item
+     * @param item The item
+     */
+    void increment(Object item) {
+        int hash = spread(System.identityHashCode(item));
+        boolean added = false;
+        for (int row = 0; row < 4; row++) {
+            int index = index(hash, row);
+            int shift = counterShift(hash, row);
+            if (((table[index] >>> shift) & 0xF) != 0xF) {
+                table[index] += 1L << shift;
+                added = true;
+            }
+        }
+        if (added && ++additions == sampleSize) {
+            reset();
+        }
+    }
+
+    private void reset() {
+        for (int i = 0; i < table.length; i++) {
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        additions /= 2;
+    }
+
+    private int index(int hash, int row) {
+        long h = (hash + SEEDS[row]) * SEEDS[row];
+        h += h >>> 32;
+        return (int) h & mask;
+    }
+
+    private static int counterShift(int hash, int row) {
+        return ((hash >>> (row << 3)) & 0xF) << 2;
+    }
+
+    private static int spread(int hash) {
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        hash = ((hash >>> 16) ^ hash) * 0x45d9f3b;
+        return (hash >>> 16) ^ hash;
+    }
+}
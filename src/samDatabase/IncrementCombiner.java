@@ -0,0 +1,161 @@
+package samDatabase;
+
+import persistence.Durability;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Combines concurrent increments so hot counters don't queue up on the commit lock.
+ *
+ * Callers push their increment onto a lock-free stack and one of them, the combiner, takes
+ * every increment pushed so far and applies them in a single commit: increments of the same
+ * field are summed into one new version and one log record. The other callers wait for their
+ * increment to be applied instead of for the lock, so the more threads increment, the more
+ * each commit carries. Every caller returns once its own increment is visible.
+ * SamDatabase only sends increments here that met a running commit, the rest lock their document alone.
+ */
+final class IncrementCombiner {
+    // How long a waiting caller sleeps before checking whether the combiner left without it
+    private static final long PARK_NANOS = 50_000;
+
+    // How often a waiting caller yields before it starts sleeping
+    private static final int YIELDS = 16;
+
+    /**
+     * One caller's increment and, once applied, its outcome
+     */
+    static final class Increment {
+        final String collection;
+        final String documentId;
+        final String field;
+        final Number delta;
+        final Durability durability;
+        private final Thread caller;
+        private Increment next;
+
+        private boolean applied;
+        private CompletableFuture<Void> written;
+        private Throwable failure;
+        private volatile boolean done;
+
+        private Increment(String collection, String documentId, String field, Number delta, Durability durability) {
+            this.collection = collection;
+            this.documentId = documentId;
+            this.field = field;
+            this.delta = delta;
+            this.durability = durability;
+            this.caller = Thread.currentThread();
+        }
+
+        /**
+         * Report the outcome, called by the applier for every increment it was given
+         * @param applied Whether the document existed and the increment was applied
+         * @param written Future of the log write, completed once it is as durable as requested
+         */
+        void complete(boolean applied, CompletableFuture<Void> written) {
+            this.applied = applied;
+            this.written = written;
+        }
+
+        boolean isApplied() {
+            return applied;
+        }
+
+        CompletableFuture<Void> getWritten() {
+            return written;
+        }
+    }
+
+    private final Consumer<List<Increment>> applier;
+    private final AtomicReference<Increment> pending;
+    private final AtomicBoolean combining;
+
+    /**
+     * @param applier Applies a group of increments in one commit and completes each of them
+     */
+    IncrementCombiner(Consumer<List<Increment>> applier) {
+        this.applier = applier;
+        this.pending = new AtomicReference<>();
+        this.combining = new AtomicBoolean();
+    }
+
+    /**
+     * Apply an increment, combined with the ones other threads are making at the same time
+     * @param collection Name of the collection
+     * @param documentId ID of the document
+     * @param field The numeric field
+     * @param delta Canonical amount to add, a Long or a Double
+     * @param durability How durable the caller wants it
+     * @return The increment, applied and completed
+     */
+    Increment increment(String collection, String documentId, String field, Number delta, Durability durability) {
+        Increment increment = new Increment(collection, documentId, field, delta, durability);
+        Increment head;
+        do {
+            head = pending.get();
+            increment.next = head;
+        } while (!pending.compareAndSet(head, increment));
+
+        for (int waits = 0; !increment.done; waits++) {
+            if (combining.compareAndSet(false, true)) {
+                try {
+                    combine();
+                } finally {
+                    combining.set(false);
+                }
+            } else if (waits < YIELDS) {
+                // A commit takes microseconds, let the combiner run before going to sleep
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(this, PARK_NANOS);
+            }
+        }
+        if (increment.failure instanceof RuntimeException) {
+            throw (RuntimeException) increment.failure;
+        }
+        if (increment.failure instanceof Error) {
+            throw (Error) increment.failure;
+        }
+        return increment;
+    }
+
+    /**
+     * Apply everything pushed so far, called by the one thread holding the combining flag
+     * Whatever the applier throws, every taken increment is completed with the failure and its
+     * caller woken, so none of them waits forever; an Error is also rethrown on this thread.
+     */
+    private void combine() {
+        Increment taken = pending.getAndSet(null);
+        if (taken == null) {
+            return;
+        }
+        Throwable failure = null;
+        try {
+            // The stack is newest first, apply in arrival order
+            List<Increment> group = new ArrayList<>();
+            for (Increment increment = taken; increment != null; increment = increment.next) {
+                group.add(increment);
+            }
+            Collections.reverse(group);
+            applier.accept(group);
+        } catch (Throwable e) {
+            failure = e;
+        } finally {
+            for (Increment increment = taken; increment != null; increment = increment.next) {
+                increment.failure = failure;
+                increment.done = true;
+                LockSupport.unpark(increment.caller);
+            }
+        }
+        if (failure instanceof Error) {
+            throw (Error) failure;
+        }
+    }
+}
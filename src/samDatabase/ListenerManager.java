@@ -0,0 +1,241 @@
+package samDatabase;
+
+import models.Document;
+import models.DocumentChange;
+import models.DocumentSnapshot;
+import query.Query;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pushes incremental changes to snapshot listeners.
+ *
+ * Writers only record the ID of a changed document in each interested listener's pending
+ * set and make sure a delivery is scheduled, so they never wait for a listener. Deliveries
+ * run on the listener executor, one at a time per listener: the pending IDs are drained,
+ * read through a database snapshot and diffed against what the listener was last told.
+ * Several changes to one document before a delivery therefore reach the listener as one.
+ *
+ * If a slow listener falls so far behind that too many distinct documents are pending,
+ * further IDs aren't recorded; the listener is marked for a full resync instead, and its next
+ * delivery diffs the whole result against what it was last told. No change is lost, and
+ * memory stays bounded however slow the listener is.
+ */
+class ListenerManager implements AutoCloseable {
+    // Distinct documents a listener may have pending before it falls back to a full resync
+    private static final int MAX_PENDING = 10_000;
+
+    private final SamDatabase database;
+    private final Executor executor;
+
+    // Executor created here, shut down on close; null if the config supplied one
+    private final ExecutorService ownedExecutor;
+
+    // Collection name -> listeners on it
+    private final Map<String, Set<Listener>> listeners;
+
+    ListenerManager(SamDatabase database, Executor executor) {
+        this.database = database;
+        if (executor != null) {
+            this.executor = executor;
+            this.ownedExecutor = null;
+        } else {
+            AtomicInteger threads = new AtomicInteger();
+            this.ownedExecutor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), runnable -> {
+                Thread thread = new Thread(runnable, "sam-listener-" + threads.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.executor = ownedExecutor;
+        }
+        this.listeners = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Register a listener and schedule its first delivery
+     * @param collectionName Collection to watch
+     * @param documentId Single document to watch, null for the whole collection
+     * @param query Query whose results to watch, null for every document
+     * @param callback The listener
+     * @return Handle to remove the listener
+     */
+    ListenerRegistration add(String collectionName, String documentId, Query query, SnapshotListener callback) {
+        Listener listener = new Listener(collectionName, documentId, query, callback);
+        listeners.computeIfAbsent(collectionName, name -> ConcurrentHashMap.newKeySet()).add(listener);
+        listener.schedule();
+        return listener;
+    }
+
+    /**
+     * @return Whether anything listens to a collection, so writers can skip announcing changes
+     */
+    boolean isListening(String collectionName) {
+        Set<Listener> collectionListeners = listeners.get(collectionName);
+        return collectionListeners != null && !collectionListeners.isEmpty();
+    }
+
+    /**
+     * Record that a document was added, changed or removed
+     * Call once the change is visible to snapshots
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     */
+    void documentChanged(String collectionName, String documentId) {
+        Set<Listener> collectionListeners = listeners.get(collectionName);
+        if (collectionListeners != null) {
+            for (Listener listener : collectionListeners) {
+                listener.changed(documentId);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        listeners.clear();
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    private class Listener implements ListenerRegistration, Runnable {
+        private final String collectionName;
+        private final String documentId;
+        private final Query query;
+        private final SnapshotListener callback;
+
+        // Written by writers, drained by deliveries
+        private final Set<String> pending = ConcurrentHashMap.newKeySet();
+        private final AtomicBoolean scheduled = new AtomicBoolean();
+        private volatile boolean resync = true;
+        private volatile boolean removed;
+
+        // What the listener was last told, only touched by deliveries
+        private final Map<String, DocumentSnapshot> known = new HashMap<>();
+        private boolean delivered;
+
+        Listener(String collectionName, String documentId, Query query, SnapshotListener callback) {
+            this.collectionName = collectionName;
+            this.documentId = documentId;
+            this.query = query;
+            this.callback = callback;
+        }
+
+        void changed(String changedId) {
+            if (documentId != null && !documentId.equals(changedId)) {
+                return;
+            }
+            if (pending.size() >= MAX_PENDING) {
+                resync = true;
+            } else {
+                pending.add(changedId);
+            }
+            schedule();
+        }
+
+        void schedule() {
+            if (!removed && scheduled.compareAndSet(false, true)) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    scheduled.set(false);
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!removed) {
+                    deliver();
+                }
+            } catch (RuntimeException e) {
+                System.err.println("Error in snapshot listener: " + e.getMessage());
+            } finally {
+                scheduled.set(false);
+                // Changes that arrived during the delivery need another one
+                if (!pending.isEmpty() || resync) {
+                    schedule();
+                }
+            }
+        }
+
+        @Override
+        public void remove() {
+            removed = true;
+            Set<Listener> collectionListeners = listeners.get(collectionName);
+            if (collectionListeners != null) {
+                collectionListeners.remove(this);
+            }
+        }
+
+        private void deliver() {
+            boolean full = resync || isPaged();
+            resync = false;
+
+            Set<String> ids = new HashSet<>();
+            for (Iterator<String> iterator = pending.iterator(); iterator.hasNext(); ) {
+                ids.add(iterator.next());
+                iterator.remove();
+            }
+            if (!full && ids.isEmpty()) {
+                return;
+            }
+
+            Map<String, DocumentSnapshot> current = new HashMap<>();
+            try (DatabaseSnapshot snapshot = database.snapshot()) {
+                if (!full) {
+                    for (String id : ids) {
+                        putIfMatching(current, snapshot.getDocument(collectionName, id));
+                    }
+                } else if (documentId != null) {
+                    putIfMatching(current, snapshot.getDocument(collectionName, documentId));
+                } else if (isPaged()) {
+                    // Which documents make the page depends on the others, so run the query again
+                    for (Document document : database.runQuery(query)) {
+                        putIfMatching(current, snapshot.getDocument(collectionName, document.getId()));
+                    }
+                } else {
+                    snapshot.getDocuments(collectionName).forEach(version -> putIfMatching(current, version));
+                }
+            }
+            if (full) {
+                ids.addAll(known.keySet());
+                ids.addAll(current.keySet());
+            }
+
+            List<DocumentChange> changes = new ArrayList<>();
+            for (String id : ids) {
+                DocumentSnapshot before = known.get(id);
+                DocumentSnapshot after = current.get(id);
+                if (after != null && before == null) {
+                    changes.add(new DocumentChange(DocumentChange.Type.ADDED, after));
+                    known.put(id, after);
+                } else if (after != null && after.getVersion() != before.getVersion()) {
+                    changes.add(new DocumentChange(DocumentChange.Type.MODIFIED, after));
+                    known.put(id, after);
+                } else if (after == null && before != null) {
+                    changes.add(new DocumentChange(DocumentChange.Type.REMOVED, before));
+                    known.remove(id);
+                }
+            }
+
+            if (!changes.isEmpty() || !delivered) {
+                delivered = true;
+                callback.onSnapshot(changes);
+            }
+        }
+
+        private boolean isPaged() {
+            return query != null && (query.getLimit() != Integer.MAX_VALUE || query.getStartAfter() != null);
+        }
+
+        private void putIfMatching(Map<String, DocumentSnapshot> current, DocumentSnapshot version) {
+            if (version != null && (query == null || query.matches(version))) {
+                current.put(version.getId(), version);
+            }
+        }
+    }
+}
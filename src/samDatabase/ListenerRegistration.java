@@ -0,0 +1,11 @@
+package samDatabase;
+
+/**
+ * Handle of a registered snapshot listener
+ */
+public interface ListenerRegistration {
+    /**
+     * Stop the listener, a call already running is not interrupted
+     */
+    void remove();
+}
@@ -0,0 +1,61 @@
+package samDatabase;
+
+import models.Document;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Pages out the least recently used documents once the budget is exceeded
+ */
+class LruPolicy implements CachePolicy {
+    private final long maximumWeight;
+
+    // Document -> weight, least recently used first
+    private final LinkedHashMap<Document, Long> weights;
+    private long totalWeight;
+
+    LruPolicy(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        this.weights = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    @Override
+    public synchronized boolean record(Document document, long weight, List<Document> victims) {
+        Long previous = weights.put(document, weight);
+        totalWeight += weight - (previous != null ? previous : 0);
+
+        Iterator<Map.Entry<Document, Long>> eldest = weights.entrySet().iterator();
+        while (totalWeight > maximumWeight && eldest.hasNext()) {
+            Map.Entry<Document, Long> victim = eldest.next();
+            eldest.remove();
+            totalWeight -= victim.getValue();
+            victims.add(victim.getKey());
+        }
+        return previous != null;
+    }
+
+    @Override
+    public void recordAbsent(Document document) {
+    }
+
+    @Override
+    public synchronized void remove(Document document) {
+        Long weight = weights.remove(document);
+        if (weight != null) {
+            totalWeight -= weight;
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(Document document) {
+        return weights.containsKey(document);
+    }
+
+    @Override
+    public synchronized long weight() {
+        return totalWeight;
+    }
+}
@@ -1,75 +1,1093 @@
 package samDatabase;
 
-import com.google.gson.*;
+import index.CollectionGroupIndex;
+import index.HashIndex;
+import index.IdIndex;
+import index.IndexDefinition;
+import index.IndexManager;
+import index.IndexType;
+import models.Commit;
 import models.Document;
-import com.google.gson.reflect.TypeToken;
+import models.DocumentObserver;
+import models.FieldValue;
+import models.Values;
+import models.VersionClock;
+import persistence.*;
+import query.AggregateResult;
+import query.Aggregation;
+import query.AggregationIndex;
+import query.FilterOperator;
+import query.Query;
+import query.QueryEngine;
+import query.QueryPlan;
 
 import java.io.*;
-import java.lang.reflect.Type;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardCopyOption;
 import java.time.Instant;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.stream.Collectors;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
-public class SamDatabase {
-    // File to store database state
-    private static final String DATABASE_FILE = "sam_database.json";
+public final class SamDatabase implements AutoCloseable {
+    // Directory holding one snapshot file per collection shard
+    private static final String SHARD_DIRECTORY = "sam_database.shards";
+
+    // Single-file snapshot written by versions before sharded storage, read if no shards exist
+    private static final String DATABASE_FILE = "sam_database.samdb";
+
+    // Snapshot file written by versions before the binary format, read if no binary snapshot exists
+    private static final String JSON_DATABASE_FILE = "sam_database.json";
+
+    // Memory-mapped segments holding the fields of documents paged out of memory, only while the database is open
+    private static final String SPILL_DIRECTORY = "sam_database.cold";
+
+    // Append-only log of mutations made since the last snapshot
+    private static final String LOG_FILE = "sam_database.wal";
+
+    // Secondary index definitions, the index contents are rebuilt on load
+    private static final String INDEX_FILE = "sam_database.indexes";
+
+    // Directory holding the files above, null for the working directory
+    private final File directory;
 
     // Main storage structure: collection name -> Documents
     private final Map<String, Map<String, Document>> collections;
 
-    // Gson for JSON serialization/deserialization
-    private final Gson gson;
+    // Collections still held as raw bytes of their mapped shards, decoded on first access
+    private final Map<String, List<ByteBuffer>> pendingCollections;
+
+    // Encoding of the snapshot files
+    private final BinarySnapshotFormat snapshotFormat;
+
+    // Snapshot files, one per collection shard, rewritten only when dirty
+    private final ShardedSnapshotStore shardStore;
+
+    // JSON encoding for import/export and legacy snapshots
+    private final SnapshotFormat jsonFormat;
+
+    // How mutations are persisted
+    private final PersistenceMode persistenceMode;
+
+    // Write-ahead log, only appended to in WAL mode
+    private final WriteAheadLog writeAheadLog;
+
+    // Background thread that batches and writes every mutation
+    private final PersistenceWriter persistenceWriter;
+
+    // Background thread that folds the log into a fresh snapshot
+    private final Checkpointer checkpointer;
+
+    // Durability used by write methods that don't specify one
+    private final Durability defaultDurability;
+
+    // Held while a mutation is applied and queued, so the log order matches the in-memory order
+    private final ReentrantLock commitLock = new ReentrantLock();
+
+    // How often a transaction is retried after a conflicting write before giving up
+    private static final int MAX_TRANSACTION_ATTEMPTS = 5;
+
+    // Orders commits so every write of one commit becomes visible to snapshots at once
+    private final VersionClock clock = new VersionClock();
+
+    // Documents deleted or replaced while a snapshot that can still see them may be open
+    private final Map<String, Queue<Document>> retired = new ConcurrentHashMap<>();
+
+    // Secondary indexes used by findDocuments
+    private final IndexManager indexManager;
+    private final QueryEngine queryEngine;
+
+    // Names the aggregations kept up to date alongside the indexes
+    private final AtomicLong aggregationIds = new AtomicLong();
+
+    // One observer per collection, attached to every document in it
+    private final Map<String, DocumentObserver> observers = new ConcurrentHashMap<>();
+
+    // Every document by the name of the collection holding it, for collection-group queries
+    private final CollectionGroupIndex groupIndex = new CollectionGroupIndex();
+
+    // Attached to nested documents, keeps the group index in step as deeper documents come and go
+    private final DocumentObserver nestedObserver = new DocumentObserver() {
+        @Override
+        public void fieldChanged(Document document, String key, Object oldValue, Object newValue) {
+        }
+
+        @Override
+        public void directWrite(Document document, Map<String, Object> fields, Runnable write) {
+            writeDirect(document, write, path -> setFieldsRecord(path, document, fields));
+        }
+
+        @Override
+        public void nestedDocumentAdded(Document parent, String collectionName, Document document) {
+            attachNested(groupIndex.getPath(parent), collectionName, document);
+            writeDirect(parent, () -> { }, path -> LogRecord.addDocument(path + "/" + collectionName, document.getId()));
+        }
+
+        @Override
+        public void nestedDocumentRemoved(Document parent, String collectionName, Document document) {
+            detachNested(document);
+            writeDirect(parent, () -> { }, path -> LogRecord.deleteDocument(path + "/" + collectionName, document.getId()));
+        }
+    };
+
+    // Snapshot listeners, told about each change once its commit is visible
+    private final ListenerManager listenerManager;
+
+    // Pages cold documents out of memory, null when memory is unbounded
+    private final TieredStorage tieredStorage;
+
+    // Folds concurrent increments into shared commits
+    private final IncrementCombiner incrementCombiner = new IncrementCombiner(this::applyIncrements);
 
     public SamDatabase() {
-        // Create a custom Gson builder to handle nested collections
-        GsonBuilder gsonBuilder = new GsonBuilder()
-                .setPrettyPrinting()
-                .registerTypeAdapter(Document.class, new DocumentTypeAdapter());
+        this(PersistenceMode.WAL);
+    }
+
+    public SamDatabase(PersistenceMode persistenceMode) {
+        this(new DatabaseConfig().persistenceMode(persistenceMode));
+    }
+
+    public SamDatabase(PersistenceMode persistenceMode, Durability defaultDurability) {
+        this(new DatabaseConfig().persistenceMode(persistenceMode).defaultDurability(defaultDurability));
+    }
+
+    public SamDatabase(DatabaseConfig config) {
+        this.directory = config.getDirectory();
+        if (directory != null && !directory.isDirectory() && !directory.mkdirs()) {
+            System.err.println("Error creating database directory " + directory);
+        }
+        this.snapshotFormat = new BinarySnapshotFormat();
+        this.shardStore = new ShardedSnapshotStore(file(SHARD_DIRECTORY), snapshotFormat, config.getShardCounts());
+        this.jsonFormat = new JsonSnapshotFormat();
+        this.collections = new ConcurrentHashMap<>();
+        this.pendingCollections = new ConcurrentHashMap<>();
+        this.persistenceMode = config.getPersistenceMode();
+        this.defaultDurability = config.getDefaultDurability();
+        this.writeAheadLog = new WriteAheadLog(file(LOG_FILE).getPath());
+        this.indexManager = new IndexManager(file(INDEX_FILE).getPath());
+        this.queryEngine = new QueryEngine(indexManager);
+        this.listenerManager = new ListenerManager(this, config.getListenerExecutor());
+        this.tieredStorage = openTieredStorage(config);
+
+        // Register saved indexes before loading so they are built as collections load
+        try {
+            indexManager.loadDefinitions().forEach(definition -> indexManager.createIndex(definition, null));
+        } catch (IOException e) {
+            System.err.println("Error loading index definitions: " + e.getMessage());
+        }
+
+        // Load existing data on initialization
+        boolean legacy = !shardStore.exists()
+                && (file(DATABASE_FILE).exists() || file(JSON_DATABASE_FILE).exists());
+        int replayed = loadDatabase(config.getHotCollections());
+
+        this.persistenceWriter = new PersistenceWriter(persistenceMode, writeAheadLog, this::saveDatabase);
+        this.checkpointer = new Checkpointer(persistenceWriter, writeAheadLog, this::saveDatabase,
+                config.getCheckpointLogBytes(), config.getCheckpointInterval());
+
+        if (legacy) {
+            // Loaded from a single-file snapshot, write every collection out as shards right away
+            collections.keySet().forEach(shardStore::markAllDirty);
+            pendingCollections.keySet().forEach(shardStore::markAllDirty);
+            checkpoint();
+        } else if (persistenceMode == PersistenceMode.SNAPSHOT && replayed > 0) {
+            // In SNAPSHOT mode nothing appends to the log, so fold any leftover records into the snapshot
+            checkpoint();
+        }
+    }
+
+    /**
+     * @param name Name of a database file
+     * @return The file in the database directory
+     */
+    private File file(String name) {
+        return new File(directory, name);
+    }
+
+    /**
+     * Open the spill segments if the config sets a memory budget
+     * @param config The database config
+     * @return The tiered storage, null if memory is unbounded or the spill segments can't be created
+     */
+    private static TieredStorage openTieredStorage(DatabaseConfig config) {
+        if (config.getMemoryBudget() <= 0) {
+            return null;
+        }
+        try {
+            return new TieredStorage(config.getMemoryBudget(), config.getEvictionPolicy(),
+                    new File(config.getDirectory(), SPILL_DIRECTORY));
+        } catch (IOException e) {
+            System.err.println("Error creating spill segments, keeping every document in memory: " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Load database state from file
+     * The last snapshot is loaded first, then the write-ahead log is replayed on top of it.
+     * Shard files are memory-mapped in parallel and only indexed: each collection stays as raw
+     * bytes until it is first accessed, except the hot collections, which are decoded
+     * in parallel right away. Without shards, the single-file snapshot of older versions is read.
+     * @param hotCollections Collections to decode during startup
+     * @return Number of log records replayed
+     */
+    private int loadDatabase(Set<String> hotCollections) {
+        try {
+            File file = file(DATABASE_FILE);
+            File jsonFile = file(JSON_DATABASE_FILE);
+            Map<String, Map<String, Document>> loadedCollections = null;
+            if (shardStore.exists()) {
+                pendingCollections.putAll(shardStore.load());
+                System.out.println("Database loaded successfully.");
+            } else if (file.exists()) {
+                Map<String, ByteBuffer> index = mapSnapshot(file);
+                if (index != null) {
+                    index.forEach((name, region) -> pendingCollections.put(name, List.of(region)));
+                    System.out.println("Database loaded successfully.");
+                } else {
+                    loadedCollections = readSnapshot(file, snapshotFormat);
+                }
+            } else if (jsonFile.exists()) {
+                loadedCollections = readSnapshot(jsonFile, jsonFormat);
+            }
+
+            if (loadedCollections != null) {
+                // Replace current collections with loaded ones
+                loadedCollections.forEach(this::attachAll);
+                collections.clear();
+                collections.putAll(loadedCollections);
+                System.out.println("Database loaded successfully.");
+            }
+
+            hotCollections.parallelStream().forEach(this::collection);
+
+            // Replay mutations logged since the snapshot was written, their shards must be rewritten
+            int replayed = writeAheadLog.replay(record -> {
+                applyRecord(record);
+                markDirty(record);
+            });
+            if (replayed > 0) {
+                System.out.println("Replayed " + replayed + " log records.");
+            }
+            return replayed;
+        } catch (IOException e) {
+            System.err.println("Error loading database: " + e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Save current database state to file
+     * Only shards changed since they were last written are rewritten, the collections in parallel.
+     * Each shard is written to a temporary file first so a crash never leaves a half-written one.
+     * Called from the persistence writer and the checkpointer, never from a caller thread
+     * @param sync Whether to fsync each shard before it replaces the old one
+     */
+    private synchronized void saveDatabase(boolean sync) throws IOException {
+        List<IOException> errors = Collections.synchronizedList(new ArrayList<>());
+        shardStore.getDirtyCollections().parallelStream().forEach(collectionName -> {
+            Map<String, Document> collection = collection(collectionName);
+            try {
+                shardStore.writeDirty(collectionName,
+                        collection != null ? collection : Collections.emptyMap(), sync);
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        });
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /**
+     * Mark the shard a logged mutation touches as dirty
+     * Nested records belong to the shard of their top-level document
+     * @param record The mutation
+     */
+    private void markDirty(LogRecord record) {
+        if (record.getOp() == LogRecord.Op.BATCH) {
+            record.getRecords().forEach(this::markDirty);
+            return;
+        }
+        String collectionPath = record.getCollection();
+        if (record.getOp() == LogRecord.Op.CREATE_COLLECTION) {
+            shardStore.markAllDirty(collectionPath);
+            return;
+        }
+        int slash = collectionPath.indexOf('/');
+        if (slash < 0) {
+            shardStore.markDirty(collectionPath, record.getDocumentId());
+        } else {
+            String[] segments = collectionPath.split("/", 3);
+            if (segments.length >= 2) {
+                shardStore.markDirty(segments[0], segments[1]);
+            }
+        }
+    }
+
+    /**
+     * Map a single-file binary snapshot and index its collections without decoding them
+     * The mapping stays valid after the file is replaced by a newer snapshot
+     * @param file The snapshot file
+     * @return Collection name -> raw region, or null if the file must be read eagerly
+     */
+    private Map<String, ByteBuffer> mapSnapshot(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) {
+                // Too big for a single mapping, stream it instead
+                return null;
+            }
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            return snapshotFormat.indexCollections(mapped);
+        }
+    }
+
+    /**
+     * Get a collection, decoding it from the snapshot on first access
+     * @param collectionName Name of the collection
+     * @return The collection's documents, null if it doesn't exist
+     */
+    private Map<String, Document> collection(String collectionName) {
+        Map<String, Document> collection = collections.get(collectionName);
+        if (collection != null) {
+            return collection;
+        }
+
+        List<ByteBuffer> regions = pendingCollections.get(collectionName);
+        if (regions == null) {
+            return collections.get(collectionName);
+        }
+
+        synchronized (regions) {
+            // Another thread may have decoded it while we waited
+            if (!pendingCollections.containsKey(collectionName)) {
+                return collections.get(collectionName);
+            }
+            collection = new ConcurrentHashMap<>();
+            for (ByteBuffer region : regions) {
+                try {
+                    Map<String, Document> shard = snapshotFormat.readCollection(region, true);
+                    attachAll(collectionName, shard);
+                    collection.putAll(shard);
+                } catch (IOException e) {
+                    System.err.println("Error loading collection " + collectionName + ": " + e.getMessage());
+                }
+                if (tieredStorage != null) {
+                    // Page out before decoding the next shard, so loading never gets far over the budget
+                    tieredStorage.evictPending();
+                }
+            }
+            // Publish before un-pending so readers always find it in one of the two maps
+            collections.put(collectionName, collection);
+            pendingCollections.remove(collectionName);
+            return collection;
+        }
+    }
+
+    /**
+     * Get the observer attached to every document of a collection
+     * It keeps the collection's indexes and listeners in step with field changes, including direct Document.set calls
+     * @param collectionName Name of the collection
+     * @return The observer
+     */
+    private DocumentObserver observer(String collectionName) {
+        return observers.computeIfAbsent(collectionName, name -> new DocumentObserver() {
+            @Override
+            public void fieldChanged(Document document, String key, Object oldValue, Object newValue) {
+                indexManager.fieldChanged(name, document, key, oldValue, newValue);
+                announce(name, document.getId());
+                used(document, false);
+            }
+
+            @Override
+            public void directWrite(Document document, Map<String, Object> fields, Runnable write) {
+                nestedObserver.directWrite(document, fields, write);
+            }
+
+            @Override
+            public void nestedDocumentAdded(Document parent, String nestedCollectionName, Document document) {
+                nestedObserver.nestedDocumentAdded(parent, nestedCollectionName, document);
+            }
+
+            @Override
+            public void nestedDocumentRemoved(Document parent, String nestedCollectionName, Document document) {
+                nestedObserver.nestedDocumentRemoved(parent, nestedCollectionName, document);
+            }
+        });
+    }
+
+    /**
+     * Apply and persist a change made directly on a document instead of through this database
+     * Changes made by this database's own commits are logged by them, and nothing is logged while
+     * the constructor replays the log or for documents that no longer belong to the database.
+     * Only the changed document is logged, whatever the size of the database.
+     * @param document The changed document, top-level or nested
+     * @param write Applies the change
+     * @param record Builds the log record from the document's path
+     */
+    private void writeDirect(Document document, Runnable write, Function<String, LogRecord> record) {
+        // The writer is null while the constructor replays the log
+        if (persistenceWriter == null || commitLock.isHeldByCurrentThread()) {
+            write.run();
+            return;
+        }
+        CompletableFuture<Void> written = null;
+        commitLock.lock();
+        try {
+            write.run();
+            String path = groupIndex.getPath(document);
+            if (path != null) {
+                written = persist(record.apply(path), defaultDurability);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+        if (written != null) {
+            awaitDurability(written, defaultDurability);
+        }
+    }
+
+    /**
+     * Log record setting fields of a document
+     * @param path Path of the document, e.g. posts/p1 or posts/p1/comments/c1
+     * @param document The document
+     * @param fields Field key -> value
+     * @return One record per field, batched if there are several
+     */
+    private static LogRecord setFieldsRecord(String path, Document document, Map<String, Object> fields) {
+        String collectionPath = path.substring(0, path.length() - document.getId().length() - 1);
+        List<LogRecord> records = new ArrayList<>();
+        fields.forEach((key, value) -> records.add(fieldRecord(collectionPath, document, key, value)));
+        return records.size() == 1 ? records.get(0) : LogRecord.batch(records);
+    }
+
+    /**
+     * Add a top-level document and everything nested under it to the group index
+     * @param collectionName Name of the collection
+     * @param document The document
+     */
+    private void attachGroups(String collectionName, Document document) {
+        String path = CollectionGroupIndex.path(null, collectionName, document.getId());
+        groupIndex.add(collectionName, path, document);
+        attachNestedCollections(path, document);
+    }
+
+    /**
+     * Add a nested document and everything under it to the group index, and watch it for deeper changes
+     * @param parentPath Path of the parent document, null if the parent is not in the database
+     * @param collectionName Name of the nested collection
+     * @param document The nested document
+     */
+    private void attachNested(String parentPath, String collectionName, Document document) {
+        if (parentPath == null) {
+            return;
+        }
+        String path = CollectionGroupIndex.path(parentPath, collectionName, document.getId());
+        document.setObserver(nestedObserver);
+        groupIndex.add(collectionName, path, document);
+        attachNestedCollections(path, document);
+    }
+
+    private void attachNestedCollections(String path, Document document) {
+        for (Map.Entry<String, Map<String, Document>> nested : document.getNestedCollections().entrySet()) {
+            for (Document child : nested.getValue().values()) {
+                attachNested(path, nested.getKey(), child);
+            }
+        }
+    }
+
+    /**
+     * Remove a document and everything nested under it from the group index
+     * @param document The document
+     */
+    private void detachNested(Document document) {
+        groupIndex.remove(document);
+        for (Map<String, Document> nested : document.getNestedCollections().values()) {
+            for (Document child : nested.values()) {
+                child.setObserver(null);
+                detachNested(child);
+            }
+        }
+    }
+
+    /**
+     * Tell snapshot listeners about a changed document once the running commit is visible
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     */
+    private void announce(String collectionName, String documentId) {
+        if (listenerManager.isListening(collectionName)) {
+            clock.whenVisible(() -> listenerManager.documentChanged(collectionName, documentId));
+        }
+    }
+
+    /**
+     * Store a document in a collection and attach it, detaching the one it replaces
+     * The replaced document is retired before it leaves the map, so snapshots always find it in one of the two
+     * @param collectionName Name of the collection
+     * @param collection The collection's documents
+     * @param document The new document
+     */
+    private void putDocument(String collectionName, Map<String, Document> collection, Document document) {
+        Document previous = collection.get(document.getId());
+        if (previous != null && previous != document) {
+            detach(collectionName, previous);
+        }
+        document.setClock(clock);
+        document.markCreated();
+        document.setObserver(observer(collectionName));
+        collection.put(document.getId(), document);
+        if (DocumentIds.isGenerated(document.getId()) && indexManager.getIdIndex(collectionName) == null) {
+            // Collections with generated IDs keep them in order, for scans by creation time
+            createIndex(IndexDefinition.ids(collectionName));
+        }
+        indexManager.documentAdded(collectionName, document);
+        attachGroups(collectionName, document);
+        announce(collectionName, document.getId());
+        used(document, false);
+    }
+
+    /**
+     * Remove a document from a collection and detach it
+     * @param collectionName Name of the collection
+     * @param collection The collection's documents
+     * @param documentId ID of the document
+     * @return The removed document, null if there was none
+     */
+    private Document removeDocument(String collectionName, Map<String, Document> collection, String documentId) {
+        Document document = collection.get(documentId);
+        if (document != null) {
+            detach(collectionName, document);
+            collection.remove(documentId, document);
+            announce(collectionName, documentId);
+        }
+        return document;
+    }
+
+    /**
+     * Detach a document that left a collection, so later changes to it no longer reach the indexes
+     * It is kept aside until no open snapshot can see it any more
+     * @param collectionName Name of the collection
+     * @param document The removed document
+     */
+    private void detach(String collectionName, Document document) {
+        synchronized (document) {
+            document.markDeleted();
+            document.setObserver(null);
+            indexManager.documentRemoved(collectionName, document);
+        }
+        detachNested(document);
+        if (tieredStorage != null) {
+            tieredStorage.remove(document);
+        }
+        reclaimRetired();
+        retired.computeIfAbsent(collectionName, name -> new ConcurrentLinkedQueue<>()).add(document);
+    }
+
+    /**
+     * Drop retired documents that every open snapshot already sees as deleted
+     */
+    void reclaimRetired() {
+        long oldestVisible = clock.oldestVisible();
+        for (Queue<Document> documents : retired.values()) {
+            documents.removeIf(document -> document.isDeletedAt(oldestVisible));
+        }
+    }
+
+    /**
+     * Get the documents of a collection that left it but may still be visible to a snapshot
+     * @param collectionName Name of the collection
+     * @return The retired documents
+     */
+    Collection<Document> retiredDocuments(String collectionName) {
+        Queue<Document> documents = retired.get(collectionName);
+        return documents != null ? documents : Collections.emptyList();
+    }
+
+    /**
+     * Attach every document of a freshly loaded collection and build its indexes
+     * @param collectionName Name of the collection
+     * @param documents The loaded documents
+     */
+    private void attachAll(String collectionName, Map<String, Document> documents) {
+        DocumentObserver collectionObserver = observer(collectionName);
+        documents.values().forEach(document -> {
+            document.setClock(clock);
+            document.setObserver(collectionObserver);
+            attachGroups(collectionName, document);
+            used(document, false);
+        });
+        indexManager.collectionLoaded(collectionName, documents);
+    }
+
+    /**
+     * Record a use of a document, so the eviction policy keeps the ones in use in memory
+     * @param document The document, may be null
+     * @param read Whether the use is a read rather than a write or a load
+     */
+    private void used(Document document, boolean read) {
+        if (tieredStorage != null && document != null) {
+            tieredStorage.touch(document, read);
+        }
+    }
+
+    /**
+     * Decode every collection still pending
+     */
+    private void loadAllCollections() {
+        new ArrayList<>(pendingCollections.keySet()).parallelStream().forEach(this::collection);
+    }
+
+    /**
+     * Read a snapshot file
+     * @param file The file to read
+     * @param format Encoding of the file
+     * @return Collection name -> documents
+     */
+    private Map<String, Map<String, Document>> readSnapshot(File file, SnapshotFormat format) throws IOException {
+        try (InputStream in = new FileInputStream(file)) {
+            return format.read(in);
+        }
+    }
+
+    /**
+     * Write a snapshot through a temporary file and an atomic rename
+     * @param file The file to replace
+     * @param sync Whether to fsync before the rename
+     * @param body Writes the snapshot contents
+     */
+    private void writeSnapshot(File file, boolean sync, SnapshotBody body) throws IOException {
+        File tempFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tempFile)) {
+            body.write(out);
+            if (sync) {
+                out.getChannel().force(false);
+            }
+        }
+
+        Files.move(tempFile.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Export the whole database as pretty-printed JSON
+     * @param path File to write
+     * @return true if the export was written
+     */
+    public boolean exportJson(String path) {
+        loadAllCollections();
+        try {
+            writeSnapshot(new File(path), false, out -> jsonFormat.write(collections, out));
+            return true;
+        } catch (IOException e) {
+            System.err.println("Error exporting database: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Import collections from a JSON export, replacing documents with the same ID
+     * @param path File to read
+     * @return true if the import was applied and persisted
+     */
+    public boolean importJson(String path) {
+        Map<String, Map<String, Document>> imported;
+        try {
+            imported = readSnapshot(new File(path), jsonFormat);
+        } catch (IOException e) {
+            System.err.println("Error importing database: " + e.getMessage());
+            return false;
+        }
+
+        commitLock.lock();
+        try {
+            Commit commit = clock.begin();
+            try {
+                imported.forEach((name, documents) -> {
+                    Map<String, Document> collection = collectionOrCreate(name);
+                    documents.values().forEach(document ->
+                            putDocument(name, collection, document));
+                });
+            } finally {
+                clock.end(commit);
+            }
+        } finally {
+            commitLock.unlock();
+        }
+
+        // Imported documents never went through the log, so fold them into a snapshot right away
+        imported.keySet().forEach(shardStore::markAllDirty);
+        checkpoint();
+        return true;
+    }
+
+    /**
+     * Queue a mutation for the persistence writer
+     * Must be called while holding the commit lock, right after the mutation was applied
+     * In WAL mode only the record is appended, in SNAPSHOT mode the shard it dirtied is rewritten
+     * @param record The mutation to persist
+     * @param durability How durable the write must be before it is reported as written
+     * @return Future completed once the mutation reaches the requested durability
+     */
+    private CompletableFuture<Void> persist(LogRecord record, Durability durability) {
+        markDirty(record);
+        return persistenceWriter.submit(record, durability);
+    }
+
+    /**
+     * Block until a queued write is as durable as requested
+     * @param written Future returned by persist
+     * @param durability The requested durability, ASYNC returns immediately
+     */
+    private void awaitDurability(CompletableFuture<Void> written, Durability durability) {
+        if (durability == Durability.ASYNC) {
+            return;
+        }
+        try {
+            written.join();
+        } catch (CompletionException e) {
+            System.err.println("Error persisting change: " + e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Block until an applied write is as durable as requested
+     * @param write The write
+     * @param durability The requested durability, ASYNC returns immediately
+     * @return The write's result
+     */
+    private <T> T awaitDurability(AppliedWrite<T> write, Durability durability) {
+        if (write.written != null) {
+            awaitDurability(write.written, durability);
+        }
+        return write.result;
+    }
+
+    /**
+     * Check whether a document can be read or written without reading from disk
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document, null to check only the collection
+     * @return false if the collection is still to be decoded from the snapshot or the document is paged out
+     */
+    boolean isResident(String collectionName, String documentId) {
+        // Nested documents are decoded with their top-level collection
+        int slash = collectionName.indexOf('/');
+        if (pendingCollections.containsKey(slash >= 0 ? collectionName.substring(0, slash) : collectionName)) {
+            return false;
+        }
+        if (documentId == null) {
+            return true;
+        }
+        Document document = findDocument(collectionName, documentId);
+        return document == null || document.snapshot().isResident();
+    }
+
+    /**
+     * Create the collection in memory if needed and queue its creation
+     * Must be called while holding the commit lock
+     * @param collectionName Name of the collection
+     * @return Future of the queued write, or null if the collection already existed
+     */
+    private CompletableFuture<Void> ensureCollection(String collectionName, Durability durability) {
+        if (collection(collectionName) == null
+                && collections.putIfAbsent(collectionName, new ConcurrentHashMap<>()) == null) {
+            return persist(LogRecord.createCollection(collectionName), durability);
+        }
+        return null;
+    }
+
+    /**
+     * Get a collection, creating it in memory if it doesn't exist
+     * @param collectionName Name of the collection
+     * @return The collection's documents
+     */
+    private Map<String, Document> collectionOrCreate(String collectionName) {
+        Map<String, Document> collection = collection(collectionName);
+        return collection != null ? collection
+                : collections.computeIfAbsent(collectionName, name -> new ConcurrentHashMap<>());
+    }
+
+    /**
+     * Apply a replayed or staged log record to the in-memory collections
+     * Records overwrite rather than accumulate, so replaying one twice is harmless
+     * @param record The record to apply
+     * @return The record to log for it, see {@link #fieldRecord}
+     */
+    private LogRecord applyRecord(LogRecord record) {
+        String collectionName = record.getCollection();
+        if (collectionName != null && collectionName.indexOf('/') >= 0) {
+            return applyNestedRecord(record);
+        }
+        switch (record.getOp()) {
+            case CREATE_COLLECTION:
+                collectionOrCreate(collectionName);
+                break;
+            case ADD_DOCUMENT:
+                Document added = new Document(record.getDocumentId());
+                putDocument(collectionName, collectionOrCreate(collectionName), added);
+                break;
+            case DELETE_DOCUMENT:
+                Map<String, Document> collection = collection(collectionName);
+                if (collection != null) {
+                    removeDocument(collectionName, collection, record.getDocumentId());
+                }
+                break;
+            case SET_FIELD:
+                Document document = findDocument(collectionName, record.getDocumentId());
+                if (document != null) {
+                    document.set(record.getField(), record.getValue());
+                    return fieldRecord(collectionName, document, record.getField(), record.getValue());
+                }
+                break;
+            case BATCH:
+                List<LogRecord> applied = new ArrayList<>(record.getRecords().size());
+                for (LogRecord batched : record.getRecords()) {
+                    applied.add(applyRecord(batched));
+                }
+                return LogRecord.batch(applied);
+        }
+        return record;
+    }
+
+    /**
+     * Apply a replayed log record whose collection is nested, e.g. posts/p1/comments
+     * @param record The record to apply
+     * @return The record to log for it
+     */
+    private LogRecord applyNestedRecord(LogRecord record) {
+        String collectionPath = record.getCollection();
+        int nameStart = collectionPath.lastIndexOf('/');
+        Document parent = documentAt(collectionPath.substring(0, nameStart));
+        if (parent == null) {
+            return record;
+        }
+        String collectionName = collectionPath.substring(nameStart + 1);
+        switch (record.getOp()) {
+            case ADD_DOCUMENT:
+                // Skip IDs with '/' logged before they were rejected
+                if (record.getDocumentId().indexOf('/') < 0) {
+                    parent.addNestedDocument(collectionName, record.getDocumentId());
+                }
+                break;
+            case DELETE_DOCUMENT:
+                parent.removeNestedDocument(collectionName, record.getDocumentId());
+                break;
+            case SET_FIELD:
+                Document document = parent.getNestedDocument(collectionName, record.getDocumentId());
+                if (document != null) {
+                    document.set(record.getField(), record.getValue());
+                    return fieldRecord(collectionPath, document, record.getField(), record.getValue());
+                }
+                break;
+            default:
+                break;
+        }
+        return record;
+    }
+
+    /**
+     * Build the log record of a field that was just written, while still holding the commit lock
+     * Increments and server timestamps are logged as the value they produced rather than as the
+     * transform: records must overwrite rather than accumulate, because a checkpoint may replay
+     * records its snapshot already contains. Array transforms are idempotent and logged as they are.
+     * @param collectionPath Path of the document's collection
+     * @param document The document
+     * @param field The written field
+     * @param value The value or transform that was written
+     * @return The record
+     */
+    private static LogRecord fieldRecord(String collectionPath, Document document, String field, Object value) {
+        if (value instanceof FieldValue && !((FieldValue) value).isIdempotent()) {
+            value = document.get(field);
+        }
+        return LogRecord.setField(collectionPath, document.getId(), field, value);
+    }
+
+    /**
+     * Find a document by path
+     * @param path Alternating collection names and document IDs, e.g. posts/p1/comments/c1
+     * @return The document, null if any step is missing
+     */
+    private Document documentAt(String path) {
+        String[] segments = path.split("/");
+        if (segments.length < 2) {
+            // Written before names with '/' were rejected, the path can't be resolved
+            return null;
+        }
+        Document document = findDocument(segments[0], segments[1]);
+        for (int i = 2; document != null && i + 1 < segments.length; i += 2) {
+            document = document.getNestedDocument(segments[i], segments[i + 1]);
+        }
+        return document;
+    }
+
+    /**
+     * Outcome of committing a batch
+     */
+    enum CommitResult {
+        COMMITTED,
+
+        // A document the transaction read has changed since
+        CONFLICT,
+
+        // A field update targets a document that doesn't exist
+        MISSING_DOCUMENT
+    }
+
+    /**
+     * A write applied in memory whose log write may still be on its way
+     * The blocking methods wait for it, {@link AsyncSamDatabase} completes a future once it is done
+     * @param <T> Result reported to the caller
+     */
+    static final class AppliedWrite<T> {
+        final T result;
+
+        // Completed once the log write is as durable as requested, null if nothing was logged
+        final CompletableFuture<Void> written;
+
+        AppliedWrite(T result, CompletableFuture<Void> written) {
+            this.result = result;
+            this.written = written;
+        }
+    }
+
+    /**
+     * Apply staged mutations together and persist them as one log record
+     * @param records The staged mutations, in order
+     * @param reads Expected versions: (collection, ID) -> version, {@link #MISSING_VERSION} for no document
+     * @param durability How durable the batch must be before this call returns
+     * @return Whether the batch was applied, nothing is applied otherwise
+     */
+    CommitResult commitBatch(List<LogRecord> records, Map<List<String>, Long> reads, Durability durability) {
+        return awaitDurability(applyBatch(records, reads, durability), durability); // One write for the whole batch
+    }
+
+    /**
+     * Apply staged mutations together and queue them as one log record, without waiting for it
+     * @see #commitBatch
+     */
+    AppliedWrite<CommitResult> applyBatch(List<LogRecord> records, Map<List<String>, Long> reads,
+                                          Durability durability) {
+        CompletableFuture<Void> written;
+        commitLock.lock();
+        try {
+            for (Map.Entry<List<String>, Long> read : reads.entrySet()) {
+                if (currentVersion(read.getKey().get(0), read.getKey().get(1)) != read.getValue()) {
+                    return new AppliedWrite<>(CommitResult.CONFLICT, null);
+                }
+            }
+            if (!targetsExist(records)) {
+                return new AppliedWrite<>(CommitResult.MISSING_DOCUMENT, null);
+            }
+            if (records.isEmpty()) {
+                return new AppliedWrite<>(CommitResult.COMMITTED, null);
+            }
+
+            List<LogRecord> applied = new ArrayList<>(records.size());
+            Commit commit = clock.begin();
+            try {
+                for (LogRecord record : records) {
+                    applied.add(applyRecord(record));
+                }
+            } finally {
+                clock.end(commit);
+            }
+            written = persist(LogRecord.batch(applied), durability);
+        } finally {
+            commitLock.unlock();
+        }
+        return new AppliedWrite<>(CommitResult.COMMITTED, written);
+    }
+
+    /**
+     * Get a collection's live documents for a snapshot, decoding it if needed
+     * @param collectionName Name of the collection
+     * @return The documents, null if the collection doesn't exist
+     */
+    Map<String, Document> liveDocuments(String collectionName) {
+        return collection(collectionName);
+    }
 
-        this.gson = gsonBuilder.create();
-        this.collections = new ConcurrentHashMap<>();
+    /**
+     * Version a transaction or compare-and-set expects for a document that doesn't exist
+     */
+    static final long MISSING_VERSION = -1;
 
-        // Load existing data on initialization
-        loadDatabase();
+    /**
+     * @return Version of a document, {@link #MISSING_VERSION} if it doesn't exist
+     */
+    long currentVersion(String collectionName, String documentId) {
+        Document document = findDocument(collectionName, documentId);
+        return document != null ? document.getVersion() : MISSING_VERSION;
     }
 
     /**
-     * Load database state from file
+     * Check that every field update of a batch targets a document that exists at that point of the batch
+     * Must be called while holding the commit lock
      */
-    private void loadDatabase() {
-        try {
-            File file = new File(DATABASE_FILE);
-            if (file.exists()) {
-                try (Reader reader = new FileReader(file)) {
-                    // Define the type for deserialization
-                    Type type = new TypeToken<Map<String, Map<String, Document>>>(){}.getType();
-
-                    // Load collections from file
-                    Map<String, Map<String, Document>> loadedCollections =
-                            gson.fromJson(reader, type);
-
-                    if (loadedCollections != null) {
-                        // Replace current collections with loaded ones
-                        collections.clear();
-                        collections.putAll(loadedCollections);
-                        System.out.println("Database loaded successfully.");
+    private boolean targetsExist(List<LogRecord> records) {
+        Map<List<String>, Boolean> exists = new HashMap<>();
+        for (LogRecord record : records) {
+            List<String> key = List.of(record.getCollection(), record.getDocumentId());
+            switch (record.getOp()) {
+                case ADD_DOCUMENT:
+                    exists.put(key, true);
+                    break;
+                case DELETE_DOCUMENT:
+                    exists.put(key, false);
+                    break;
+                case SET_FIELD:
+                    boolean found = exists.computeIfAbsent(key, ignored ->
+                            findDocument(record.getCollection(), record.getDocumentId()) != null);
+                    if (!found) {
+                        return false;
                     }
-                }
+                    break;
+                default:
+                    break;
             }
+        }
+        return true;
+    }
+
+    /**
+     * Write a full snapshot and discard the log records it covers
+     * Keeps the log, and therefore startup replay time, from growing forever
+     * Checkpoints also run automatically in the background, see {@link DatabaseConfig}
+     */
+    public void checkpoint() {
+        try {
+            checkpointer.checkpointNow();
         } catch (IOException e) {
-            System.err.println("Error loading database: " + e.getMessage());
+            System.err.println("Error writing checkpoint: " + e.getMessage());
         }
     }
 
     /**
-     * Save current database state to file
+     * Write out every queued mutation and stop the background threads
      */
-    private void saveDatabase() {
-        try (Writer writer = new FileWriter(DATABASE_FILE)) {
-            gson.toJson(collections, writer);
+    @Override
+    public void close() {
+        listenerManager.close();
+        checkpointer.close();
+        try {
+            persistenceWriter.close();
         } catch (IOException e) {
-            System.err.println("Error saving database: " + e.getMessage());
+            System.err.println("Error closing database: " + e.getMessage());
+        }
+        if (tieredStorage != null) {
+            tieredStorage.close();
         }
     }
 
@@ -78,21 +1096,83 @@ public class SamDatabase {
      * @param collectionName Name of the collection
      */
     public void createCollection(String collectionName) {
-        collections.putIfAbsent(collectionName, new ConcurrentHashMap<>());
-        saveDatabase(); // Persist the change
+        createCollection(collectionName, defaultDurability);
+    }
+
+    /**
+     * Create a new collection if it doesn't exist
+     * @param collectionName Name of the collection
+     * @param durability How durable the change must be before this call returns
+     */
+    public void createCollection(String collectionName, Durability durability) {
+        awaitDurability(applyCreateCollection(collectionName, durability), durability); // Persist the change
+    }
+
+    AppliedWrite<Void> applyCreateCollection(String collectionName, Durability durability) {
+        Document.checkName(collectionName);
+        commitLock.lock();
+        try {
+            return new AppliedWrite<>(null, ensureCollection(collectionName, durability));
+        } finally {
+            commitLock.unlock();
+        }
+    }
+
+    /**
+     * Start a batch of writes that are applied together and persisted with a single log append
+     * @return An empty batch, call commit to apply it
+     */
+    public WriteBatch batch() {
+        return new WriteBatch(this);
+    }
+
+    /**
+     * Run a read-modify-write transaction
+     * @see #runTransaction(Function, Durability)
+     */
+    public <T> T runTransaction(Function<Transaction, T> function) {
+        return runTransaction(function, defaultDurability);
+    }
+
+    /**
+     * Run a read-modify-write transaction
+     * The function reads documents through the transaction and stages writes on it. If any
+     * document it read has changed by the time the writes commit, nothing is applied and the
+     * function runs again, so it must not have side effects outside the transaction.
+     * @param function Reads and stages writes, its result is returned once the writes commit
+     * @param durability How durable the writes must be before this call returns
+     * @return The function's result
+     * @throws ConcurrentModificationException If every attempt conflicted with another write
+     * @throws IllegalStateException If a staged update targets a document that doesn't exist
+     */
+    public <T> T runTransaction(Function<Transaction, T> function, Durability durability) {
+        for (int attempt = 0; attempt < MAX_TRANSACTION_ATTEMPTS; attempt++) {
+            Transaction transaction = new Transaction(this);
+            T result = function.apply(transaction);
+            switch (transaction.commit(durability)) {
+                case COMMITTED:
+                    return result;
+                case MISSING_DOCUMENT:
+                    throw new IllegalStateException("Transaction updates a document that doesn't exist");
+                default:
+                    break; // Conflict, run it again against the new state
+            }
+        }
+        throw new ConcurrentModificationException(
+                "Transaction conflicted " + MAX_TRANSACTION_ATTEMPTS + " times, giving up");
+    }
+
+    Durability getDefaultDurability() {
+        return defaultDurability;
     }
 
     /**
      * Generate a unique document ID
-     * Combines timestamp and partial UUID for uniqueness
+     * IDs sort by creation time, see {@link DocumentIds}, and generating one never locks
      * @return A unique document ID
      */
     public String generateDocumentId() {
-        // Get current timestamp in milliseconds
-        String timestamp = String.valueOf(Instant.now().toEpochMilli());
-        // Get first 8 characters of a UUID
-        String uniqueId = UUID.randomUUID().toString().substring(0, 8);
-        return timestamp + "-" + uniqueId;
+        return DocumentIds.next();
     }
 
     /**
@@ -112,12 +1192,41 @@ public class SamDatabase {
      * @return The created document
      */
     public Document addDocument(String collectionName, String documentId) {
-        // Ensure collection exists
-        createCollection(collectionName);
+        return addDocument(collectionName, documentId, defaultDurability);
+    }
+
+    /**
+     * Add a document to a collection
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param durability How durable the change must be before this call returns
+     * @return The created document
+     */
+    public Document addDocument(String collectionName, String documentId, Durability durability) {
+        // Persist the new document
+        return awaitDurability(applyAddDocument(collectionName, documentId, durability), durability);
+    }
+
+    AppliedWrite<Document> applyAddDocument(String collectionName, String documentId, Durability durability) {
+        Document.checkName(collectionName);
+        Document.checkName(documentId);
         Document document = new Document(documentId);
-        collections.get(collectionName).put(documentId, document);
-        saveDatabase(); // Persist the new document
-        return document;
+        CompletableFuture<Void> written;
+        commitLock.lock();
+        try {
+            // Ensure collection exists
+            ensureCollection(collectionName, Durability.ASYNC);
+            Commit commit = clock.begin();
+            try {
+                putDocument(collectionName, collection(collectionName), document);
+            } finally {
+                clock.end(commit);
+            }
+            written = persist(LogRecord.addDocument(collectionName, documentId), durability);
+        } finally {
+            commitLock.unlock();
+        }
+        return new AppliedWrite<>(document, written);
     }
 
     /**
@@ -127,20 +1236,79 @@ public class SamDatabase {
      * @return The document, null if not found
      */
     public Document getDocument(String collectionName, String documentId) {
-        Map<String, Document> collection = collections.get(collectionName);
+        Document document = findDocument(collectionName, documentId);
+        used(document, true);
+        return document;
+    }
+
+    /**
+     * Get a document for a write or a check, without counting it as a read
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return The document, null if not found
+     */
+    private Document findDocument(String collectionName, String documentId) {
+        Map<String, Document> collection = collection(collectionName);
         return collection != null ? collection.get(documentId) : null;
     }
 
     /**
      * Get all documents in a collection
+     * Copies the collection into a new list, use {@link #streamDocuments} to go through a large one
      * @param collectionName Name of the collection
      * @return List of documents in the collection
      */
     public List<Document> getDocuments(String collectionName) {
-        Map<String, Document> collection = collections.get(collectionName);
+        Map<String, Document> collection = collection(collectionName);
         return collection != null ? new ArrayList<>(collection.values()) : Collections.emptyList();
     }
 
+    /**
+     * Stream the documents of a collection without copying them
+     * The stream reads the live collection lazily: it splits for parallel use, and documents
+     * added or removed while it runs may or may not be seen, each at most once.
+     * Under a memory budget, read paged-out documents with {@code snapshot().peek()}, or print them,
+     * so going through the collection doesn't flush out the documents in use
+     * @param collectionName Name of the collection
+     * @return The collection's documents, empty if there is no such collection
+     */
+    public Stream<Document> streamDocuments(String collectionName) {
+        Map<String, Document> collection = collection(collectionName);
+        return collection != null ? collection.values().stream() : Stream.empty();
+    }
+
+    /**
+     * Stream the documents of a collection with generated IDs, oldest first, created in a time range
+     * Walks the collection's ordered IDs, which it keeps from its first generated ID on;
+     * documents with other IDs are left out
+     * @param collectionName Name of the collection
+     * @param from Earliest creation time included, to the millisecond, null for no lower bound
+     * @param until Creation time where the range ends, excluded, null for no upper bound
+     * @return The documents in creation order
+     */
+    public Stream<Document> streamDocumentsByCreation(String collectionName, Instant from, Instant until) {
+        Map<String, Document> collection = collection(collectionName);
+        if (collection == null) {
+            return Stream.empty();
+        }
+        String lower = from != null ? DocumentIds.lowerBound(from) : null;
+        String upper = until != null ? DocumentIds.lowerBound(until) : null;
+
+        IdIndex index = indexManager.getIdIndex(collectionName);
+        Stream<String> ids;
+        if (index != null) {
+            ids = index.range(lower, upper).stream();
+        } else {
+            ids = collection.keySet().stream()
+                    .filter(id -> (lower == null || id.compareTo(lower) >= 0)
+                            && (upper == null || id.compareTo(upper) < 0))
+                    .sorted();
+        }
+        return ids.filter(DocumentIds::isGenerated)
+                .map(collection::get)
+                .filter(Objects::nonNull);
+    }
+
     /**
      * Delete a document from a collection
      * @param collectionName Name of the collection
@@ -148,36 +1316,55 @@ public class SamDatabase {
      * @return True if document was deleted, false if not found
      */
     public boolean deleteDocument(String collectionName, String documentId) {
-        Map<String, Document> collection = collections.get(collectionName);
+        return deleteDocument(collectionName, documentId, defaultDurability);
+    }
+
+    /**
+     * Delete a document from a collection
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document you want to delete
+     * @param durability How durable the change must be before this call returns
+     * @return True if document was deleted, false if not found
+     */
+    public boolean deleteDocument(String collectionName, String documentId, Durability durability) {
+        // Persist the deletion
+        return awaitDurability(applyDeleteDocument(collectionName, documentId, durability), durability);
+    }
+
+    AppliedWrite<Boolean> applyDeleteDocument(String collectionName, String documentId, Durability durability) {
+        Map<String, Document> collection = collection(collectionName);
         if (collection != null) {
-            boolean result = collection.remove(documentId) != null;
-            if (result) {
-                saveDatabase(); // Persist the deletion
+            CompletableFuture<Void> written = null;
+            commitLock.lock();
+            try {
+                Document removed;
+                Commit commit = clock.begin();
+                try {
+                    removed = removeDocument(collectionName, collection, documentId);
+                } finally {
+                    clock.end(commit);
+                }
+                if (removed != null) {
+                    written = persist(LogRecord.deleteDocument(collectionName, documentId), durability);
+                }
+            } finally {
+                commitLock.unlock();
             }
-            return result;
+            return new AppliedWrite<>(written != null, written);
         }
-        return false;
+        return new AppliedWrite<>(false, null);
     }
 
     /**
      * Find documents matching a specific condition
+     * Runs as a single equality query, so it uses any index that helps
      * @param collectionName Name of the collection
      * @param key Field to search
      * @param value Value to match
      * @return List of matching documents
      */
     public List<Document> findDocuments(String collectionName, String key, Object value) {
-        Map<String, Document> collection = collections.get(collectionName);
-        if (collection == null) {
-            return Collections.emptyList();
-        }
-
-        return collection.values().stream()
-                .filter(doc -> {
-                    Object docValue = doc.get(key);
-                    return docValue != null && docValue.equals(value);
-                })
-                .collect(Collectors.toList());
+        return runQuery(new Query(collectionName).where(key, FilterOperator.EQUAL, value));
     }
 
     /**
@@ -189,102 +1376,443 @@ public class SamDatabase {
      * @return true if update was successful, false otherwise
      */
     public boolean updateDocumentField(String collectionName, String documentId, String key, Object value) {
-        Document document = getDocument(collectionName, documentId);
-        if (document != null) {
+        return updateDocumentField(collectionName, documentId, key, value, defaultDurability);
+    }
+
+    /**
+     * Update a document's field and save the database
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param key Field key to update
+     * @param value Value to set
+     * @param durability How durable the change must be before this call returns
+     * @return true if update was successful, false otherwise
+     */
+    public boolean updateDocumentField(String collectionName, String documentId, String key, Object value,
+                                       Durability durability) {
+        // Save after updating the field
+        return awaitDurability(applyFieldUpdate(collectionName, documentId, key, value, durability), durability);
+    }
+
+    AppliedWrite<Boolean> applyFieldUpdate(String collectionName, String documentId, String key, Object value,
+                                           Durability durability) {
+        commitLock.lock();
+        try {
+            Document document = findDocument(collectionName, documentId);
+            if (document == null) {
+                return new AppliedWrite<>(false, null);
+            }
             document.set(key, value);
-            saveDatabase(); // Save after updating the field
-            return true;
+            return new AppliedWrite<>(true, persist(fieldRecord(collectionName, document, key, value), durability));
+        } finally {
+            commitLock.unlock();
         }
-        return false;
     }
 
     /**
-     * Custom type adapter for Document to handle nested collections
+     * Add to a numeric field atomically, without reading it first
+     * @see #increment(String, String, String, Number, Durability)
      */
-    private static class DocumentTypeAdapter
-            implements JsonSerializer<Document>, JsonDeserializer<Document> {
-
-        @Override
-        public JsonElement serialize(Document document, Type type, JsonSerializationContext context) {
-            JsonObject jsonObject = new JsonObject();
+    public boolean increment(String collectionName, String documentId, String field, Number delta) {
+        return increment(collectionName, documentId, field, delta, defaultDurability);
+    }
 
-            // Serialize basic document data
-            jsonObject.add("id", new JsonPrimitive(document.getId()));
+    /**
+     * Add to a numeric field atomically, without reading it first
+     * Concurrent increments never lose each other's changes. While no other commit is running, an
+     * increment only locks its own document, so counters of different documents never wait for each
+     * other. Increments that meet a running commit share commits instead: one of them applies every
+     * pending increment at once, summing those of the same field into one version and one log record.
+     * A missing or non-numeric field counts as 0, see {@link FieldValue#increment(long)}.
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param field The numeric field
+     * @param delta Amount to add, negative to subtract
+     * @param durability How durable the change must be before this call returns
+     * @return true if the document exists and was incremented
+     */
+    public boolean increment(String collectionName, String documentId, String field, Number delta,
+                             Durability durability) {
+        Number canonical = (Number) Values.normalize(Objects.requireNonNull(delta, "delta"));
+        if (commitLock.isHeldByCurrentThread()) {
+            // Called from inside a commit, which the combining thread would wait for
+            return updateDocumentField(collectionName, documentId, field, incrementBy(canonical), durability);
+        }
+        AppliedWrite<Boolean> direct = applyIncrement(collectionName, documentId, field, canonical, durability);
+        if (direct != null) {
+            return awaitDurability(direct, durability);
+        }
+        IncrementCombiner.Increment increment =
+                incrementCombiner.increment(collectionName, documentId, field, canonical, durability);
+        if (increment.isApplied()) {
+            awaitDurability(increment.getWritten(), durability);
+        }
+        return increment.isApplied();
+    }
 
-            // Serialize document fields
-            JsonObject dataObject = new JsonObject();
-            for (Map.Entry<String, Object> entry : document.getData().entrySet()) {
-                dataObject.add(entry.getKey(), context.serialize(entry.getValue()));
+    /**
+     * Apply an increment under its document's lock only, logging the resulting value
+     * This is safe while no commit is running: a running commit may have changed the document
+     * without logging it yet, and the increment's record must not overtake that one in the log.
+     * A commit that starts meanwhile needs the document's lock to change it, so it is ordered
+     * after the increment in memory and in the log alike.
+     * @param delta Canonical amount to add
+     * @return The applied write, null if a commit is running and the increment has to go through the combiner
+     */
+    private AppliedWrite<Boolean> applyIncrement(String collectionName, String documentId, String field, Number delta,
+                                                 Durability durability) {
+        Document document = findDocument(collectionName, documentId);
+        if (document == null) {
+            // A running commit may be creating it
+            return commitLock.isLocked() ? null : new AppliedWrite<>(false, null);
+        }
+        synchronized (document) {
+            if (commitLock.isLocked() || findDocument(collectionName, documentId) != document) {
+                return null;
             }
-            jsonObject.add("data", dataObject);
-
-            // Serialize nested collections directly without reflection
-            JsonObject nestedCollectionsObject = new JsonObject();
-            Map<String, Map<String, Document>> nestedCollections = document.getNestedCollections();
-
-            for (Map.Entry<String, Map<String, Document>> collectionEntry :
-                    nestedCollections.entrySet()) {
-                JsonObject collectionObject = new JsonObject();
-                for (Map.Entry<String, Document> docEntry :
-                        collectionEntry.getValue().entrySet()) {
-                    collectionObject.add(docEntry.getKey(),
-                            context.serialize(docEntry.getValue()));
-                }
-                nestedCollectionsObject.add(collectionEntry.getKey(), collectionObject);
+            // Every write to the document holds its lock, so the value can't change before the set
+            Object current = document.get(field);
+            Number value = FieldValue.add(current instanceof Long || current instanceof Double ? (Number) current : 0L,
+                    delta);
+            Commit commit = clock.begin();
+            try {
+                document.set(field, value);
+            } finally {
+                clock.end(commit);
             }
-
-            jsonObject.add("nestedCollections", nestedCollectionsObject);
-            return jsonObject;
+            return new AppliedWrite<>(true, persist(LogRecord.setField(collectionName, documentId, field, value),
+                    durability));
         }
+    }
 
-        @Override
-        public Document deserialize(JsonElement json, Type type,
-                                    JsonDeserializationContext context) throws JsonParseException {
-            JsonObject jsonObject = json.getAsJsonObject();
-
-            // Deserialize document ID
-            String id = jsonObject.get("id").getAsString();
-            Document document = new Document(id);
-
-            // Deserialize document data
-            if (jsonObject.has("data")) {
-                JsonObject dataObject = jsonObject.getAsJsonObject("data");
-                for (Map.Entry<String, JsonElement> entry : dataObject.entrySet()) {
-                    document.set(entry.getKey(),
-                            context.deserialize(entry.getValue(), Object.class));
-                }
+    /**
+     * Apply a group of increments gathered by the combiner as one commit
+     * Increments of the same field are summed first, and the log record is as durable as the most demanding caller asked
+     * @param group The increments, in arrival order
+     */
+    private void applyIncrements(List<IncrementCombiner.Increment> group) {
+        Map<List<String>, Number> sums = new LinkedHashMap<>();
+        Durability durability = Durability.ASYNC;
+        for (IncrementCombiner.Increment increment : group) {
+            sums.merge(List.of(increment.collection, increment.documentId, increment.field), increment.delta,
+                    FieldValue::add);
+            if (increment.durability.compareTo(durability) > 0) {
+                durability = increment.durability;
             }
+        }
 
-            // Deserialize nested collections
-            if (jsonObject.has("nestedCollections")) {
-                JsonObject nestedCollectionsObject =
-                        jsonObject.getAsJsonObject("nestedCollections");
-
-                for (Map.Entry<String, JsonElement> collectionEntry :
-                        nestedCollectionsObject.entrySet()) {
-                    String collectionName = collectionEntry.getKey();
-                    document.createNestedCollection(collectionName);
-
-                    JsonObject collectionObject = collectionEntry.getValue().getAsJsonObject();
-                    for (Map.Entry<String, JsonElement> docEntry :
-                            collectionObject.entrySet()) {
-                        Document nestedDoc = context.deserialize(docEntry.getValue(), Document.class);
-                        document.getNestedDocuments(collectionName)
-                                .put(nestedDoc.getId(), nestedDoc);
+        Set<List<String>> missing = new HashSet<>();
+        CompletableFuture<Void> written;
+        commitLock.lock();
+        try {
+            List<LogRecord> records = new ArrayList<>();
+            Commit commit = clock.begin();
+            try {
+                for (Map.Entry<List<String>, Number> sum : sums.entrySet()) {
+                    List<String> target = sum.getKey();
+                    Document document = findDocument(target.get(0), target.get(1));
+                    if (document == null) {
+                        missing.add(target);
+                        continue;
                     }
+                    FieldValue transform = incrementBy(sum.getValue());
+                    document.set(target.get(2), transform);
+                    records.add(fieldRecord(target.get(0), document, target.get(2), transform));
                 }
+            } finally {
+                clock.end(commit);
             }
+            written = records.isEmpty() ? CompletableFuture.completedFuture(null)
+                    : persist(records.size() == 1 ? records.get(0) : LogRecord.batch(records), durability);
+        } finally {
+            commitLock.unlock();
+        }
+
+        for (IncrementCombiner.Increment increment : group) {
+            boolean applied = !missing.contains(List.of(increment.collection, increment.documentId, increment.field));
+            increment.complete(applied, written);
+        }
+    }
+
+    private static FieldValue incrementBy(Number delta) {
+        return delta instanceof Long ? FieldValue.increment(delta.longValue()) : FieldValue.increment(delta.doubleValue());
+    }
+
+    /**
+     * Update fields only if the document is still at a known version
+     * @see #compareAndSet(String, String, long, Map, Durability)
+     */
+    public boolean compareAndSet(String collectionName, String documentId, long expectedVersion,
+                                 Map<String, Object> fields) {
+        return compareAndSet(collectionName, documentId, expectedVersion, fields, defaultDurability);
+    }
+
+    /**
+     * Update fields only if the document is still at a known version
+     * All fields change as one new version, persisted with a single log record
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param expectedVersion Version the caller last read, see {@link Document#getVersion()}
+     * @param fields Field key -> value to set
+     * @param durability How durable the change must be before this call returns
+     * @return true if the fields were set, false if the document changed or doesn't exist
+     */
+    public boolean compareAndSet(String collectionName, String documentId, long expectedVersion,
+                                 Map<String, Object> fields, Durability durability) {
+        List<LogRecord> records = new ArrayList<>();
+        fields.forEach((field, value) -> records.add(LogRecord.setField(collectionName, documentId, field, value)));
+        return commitBatch(records, Map.of(List.of(collectionName, documentId), expectedVersion), durability)
+                == CommitResult.COMMITTED;
+    }
+
+    /**
+     * Open a consistent, point-in-time view of the database
+     * Reads through it never lock and never see writes committed after it was opened.
+     * Close it so the old versions it keeps alive can be reclaimed.
+     * @return The snapshot
+     */
+    public DatabaseSnapshot snapshot() {
+        return new DatabaseSnapshot(this, clock);
+    }
+
+    /**
+     * Create an equality index on a field, used automatically by findDocuments
+     * The definition is saved so the index is rebuilt on every startup
+     * @param collectionName Name of the collection
+     * @param field Field to index
+     * @return true if the index was created, false if it already existed
+     */
+    public boolean createIndex(String collectionName, String field) {
+        return createIndex(new IndexDefinition(collectionName, IndexType.HASH, List.of(field)));
+    }
+
+    /**
+     * Create an ordered index on a field, used by queries for ranges, orderBy and startAfter
+     * The definition is saved so the index is rebuilt on every startup
+     * @param collectionName Name of the collection
+     * @param field Field to index
+     * @return true if the index was created, false if it already existed
+     */
+    public boolean createRangeIndex(String collectionName, String field) {
+        return createIndex(new IndexDefinition(collectionName, IndexType.RANGE, List.of(field)));
+    }
+
+    /**
+     * Drop an index, findDocuments falls back to scanning
+     * @param collectionName Name of the collection
+     * @param field Indexed field
+     * @return true if the index existed
+     */
+    public boolean dropIndex(String collectionName, String field) {
+        return dropIndex(new IndexDefinition(collectionName, IndexType.HASH, List.of(field)));
+    }
+
+    /**
+     * Drop an ordered index, queries fall back to scanning
+     * @param collectionName Name of the collection
+     * @param field Indexed field
+     * @return true if the index existed
+     */
+    public boolean dropRangeIndex(String collectionName, String field) {
+        return dropIndex(new IndexDefinition(collectionName, IndexType.RANGE, List.of(field)));
+    }
+
+    /**
+     * Create an index on several fields, for queries with equality clauses on every field
+     * but the last and a range or orderBy on the last one
+     * The definition is saved so the index is rebuilt on every startup
+     * @param collectionName Name of the collection
+     * @param fields Fields to index, at least two
+     * @return true if the index was created, false if it already existed
+     */
+    public boolean createCompositeIndex(String collectionName, String... fields) {
+        return createIndex(new IndexDefinition(collectionName, IndexType.COMPOSITE, List.of(fields)));
+    }
+
+    /**
+     * Drop a composite index
+     * @param collectionName Name of the collection
+     * @param fields Indexed fields, in index order
+     * @return true if the index existed
+     */
+    public boolean dropCompositeIndex(String collectionName, String... fields) {
+        return dropIndex(new IndexDefinition(collectionName, IndexType.COMPOSITE, List.of(fields)));
+    }
+
+    /**
+     * Run a query with where clauses, ordering, a page size, a cursor and a projection
+     * The planner picks the cheapest index, or scans the collection on all cores if none helps
+     * @param query The query
+     * @return Matching documents in query order
+     */
+    public List<Document> runQuery(Query query) {
+        if (query.isCollectionGroup()) {
+            return queryEngine.execute(query, collectionGroup(query.getCollection()));
+        }
+        Map<String, Document> collection = collection(query.getCollection());
+        if (collection == null) {
+            return Collections.emptyList();
+        }
+        List<Document> results = queryEngine.execute(query, collection);
+        if (query.getSelectedFields() == null) {
+            // Projections are copies, only the stored documents are worth keeping in memory
+            results.forEach(document -> used(document, true));
+        }
+        return results;
+    }
+
+    /**
+     * Aggregate the results of a query once, reading the documents in place instead of copying them
+     * Costs one pass over the documents the query reads; register hot aggregations with {@link #createAggregation}
+     * @param aggregation The aggregation
+     * @return Count, sums, averages, minimums and maximums, per group too if it has a groupBy
+     */
+    public AggregateResult runAggregation(Aggregation aggregation) {
+        Query query = aggregation.getQuery();
+        if (query.isCollectionGroup()) {
+            return queryEngine.aggregate(aggregation, collectionGroup(query.getCollection()));
+        }
+        Map<String, Document> collection = collection(query.getCollection());
+        return queryEngine.aggregate(aggregation, collection != null ? collection : Collections.emptyMap());
+    }
+
+    /**
+     * Keep an aggregation up to date on every insert, update and delete of its collection
+     * It is built with one pass over the collection; from then on count, sum and average read in O(1).
+     * Like listeners it isn't saved, create it again after every start.
+     * @param aggregation The aggregation, over a top-level collection, without limit or startAfter
+     * @return The maintained aggregation
+     */
+    public AggregationIndex createAggregation(Aggregation aggregation) {
+        AggregationIndex index = new AggregationIndex(aggregation);
+        String collectionName = aggregation.getQuery().getCollection();
+        Map<String, Document> collection = collection(collectionName);
+        // Build under the commit lock so no write lands between reading a document and registering it
+        commitLock.lock();
+        try {
+            indexManager.addIndex(collectionName, "aggregate:" + aggregationIds.incrementAndGet(), index, collection);
+        } finally {
+            commitLock.unlock();
+        }
+        return index;
+    }
+
+    /**
+     * Stop maintaining an aggregation, its values stay as they are
+     * @param index An aggregation from {@link #createAggregation}
+     * @return true if it was maintained
+     */
+    public boolean dropAggregation(AggregationIndex index) {
+        return indexManager.removeIndex(index.getAggregation().getQuery().getCollection(), index);
+    }
+
+    /**
+     * Get hit rate, evictions and memory use of the document cache
+     * @return The statistics, all zero when no memory budget is set
+     */
+    public CacheStats getCacheStats() {
+        return tieredStorage != null ? tieredStorage.getStats() : new CacheStats(0, 0, 0, 0, 0, 0);
+    }
+
+    /**
+     * Show how a query would run without running it
+     * @param query The query
+     * @return The chosen plan, its toString describes it and the rejected alternatives
+     */
+    public QueryPlan explain(Query query) {
+        if (query.isCollectionGroup()) {
+            return queryEngine.plan(query, collectionGroup(query.getCollection()));
+        }
+        Map<String, Document> collection = collection(query.getCollection());
+        return queryEngine.plan(query, collection != null ? collection : Collections.emptyMap());
+    }
 
-            return document;
+    /**
+     * Get every document of every collection with a name, at any depth
+     * @param collectionName Name shared by the collections
+     * @return Path -> document, e.g. posts/p1/comments/c1
+     */
+    public Map<String, Document> collectionGroup(String collectionName) {
+        // Documents of collections not decoded yet are not in the group index
+        loadAllCollections();
+        return groupIndex.getGroup(collectionName);
+    }
+
+    /**
+     * Listen to a single document
+     * The first event holds the document as added if it exists, later events hold its changes
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param listener Called on the listener executor
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(String collectionName, String documentId,
+                                                    SnapshotListener listener) {
+        return listenerManager.add(collectionName, documentId, null, listener);
+    }
+
+    /**
+     * Listen to every document of a collection
+     * @param collectionName Name of the collection
+     * @param listener Called on the listener executor
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(String collectionName, SnapshotListener listener) {
+        return listenerManager.add(collectionName, null, null, listener);
+    }
+
+    /**
+     * Listen to the results of a query
+     * Documents are added and removed as they start and stop matching. The select clause is
+     * ignored, and queries with a limit or startAfter are re-run on each change to find the page.
+     * @param query The query
+     * @param listener Called on the listener executor
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(Query query, SnapshotListener listener) {
+        if (query.isCollectionGroup()) {
+            throw new IllegalArgumentException("Collection-group queries can't be listened to");
+        }
+        return listenerManager.add(query.getCollection(), null, query, listener);
+    }
+
+    private boolean createIndex(IndexDefinition definition) {
+        if (!indexManager.createIndex(definition, collection(definition.getCollection()))) {
+            return false;
+        }
+        saveIndexDefinitions();
+        return true;
+    }
+
+    private boolean dropIndex(IndexDefinition definition) {
+        if (!indexManager.dropIndex(definition)) {
+            return false;
+        }
+        saveIndexDefinitions();
+        return true;
+    }
+
+    private void saveIndexDefinitions() {
+        try {
+            indexManager.saveDefinitions();
+        } catch (IOException e) {
+            System.err.println("Error saving index definitions: " + e.getMessage());
         }
     }
 
     public Document getNestedDocument(String collectionName, String documentId,
                                       String nestedCollectionName, String nestedDocumentId) {
-        Document parentDocument = getDocument(collectionName, documentId);
+        Document parentDocument = findDocument(collectionName, documentId);
         if (parentDocument != null) {
             return parentDocument.getNestedDocument(nestedCollectionName, nestedDocumentId);
         }
         return null;
     }
-}
\ No newline at end of file
+
+    /**
+     * Writes the contents of a snapshot file
+     */
+    private interface SnapshotBody {
+        void write(OutputStream out) throws IOException;
+    }
+}
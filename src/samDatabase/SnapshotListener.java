@@ -0,0 +1,18 @@
+package samDatabase;
+
+import models.DocumentChange;
+
+import java.util.List;
+
+/**
+ * Callback of {@link SamDatabase#addSnapshotListener}
+ */
+public interface SnapshotListener {
+    /**
+     * Called on the listener executor with the changes since the previous call
+     * The first call lists every matching document as added, even if there are none.
+     * Calls for one listener never overlap, and changes made in quick succession are coalesced.
+     * @param changes Added, modified and removed documents
+     */
+    void onSnapshot(List<DocumentChange> changes);
+}
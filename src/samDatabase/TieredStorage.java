@@ -0,0 +1,256 @@
+package samDatabase;
+
+import models.Document;
+import models.DocumentPager;
+import models.DocumentSnapshot;
+import persistence.ColdStore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Keeps the fields of documents within a memory budget, paging the coldest out to mapped segments.
+ *
+ * Only the fields leave memory. The Document handle and its newest version stay, so indexes,
+ * snapshots, listeners and version checks never notice, and reading a paged-out document reads
+ * its fields back transparently. The database reports every use of a document (reads, query
+ * results, writes, loads) and the eviction policy picks the documents to page out. Paging out
+ * runs on a background thread, and reading back a miss decodes straight from the mapped
+ * segment, so callers never wait for a write and rarely for the disk.
+ * A version that was paged out once keeps its spill entry until it is superseded, so paging it
+ * out again costs no write.
+ */
+class TieredStorage implements DocumentPager, AutoCloseable {
+    // Rough heap bytes of a document beyond its fields
+    private static final long DOCUMENT_OVERHEAD = 64;
+
+    private final long memoryBudget;
+    private final CachePolicy policy;
+    private final ColdStore coldStore;
+
+    // Newest version seen and estimated weight of each resident document
+    private final Map<Document, Resident> residents;
+
+    // Documents the policy rejected, waiting to be paged out
+    private final Queue<Document> victims;
+    private final AtomicBoolean evicting;
+    private final ExecutorService evictor;
+
+    private final LongAdder hits;
+    private final LongAdder misses;
+    private final LongAdder evictions;
+
+    /**
+     * @param memoryBudget Estimated heap bytes the fields of resident documents may take
+     * @param evictionPolicy How documents to page out are picked
+     * @param spillDirectory Directory for the segments holding paged-out fields, emptied if it exists
+     */
+    TieredStorage(long memoryBudget, EvictionPolicy evictionPolicy, File spillDirectory) throws IOException {
+        this.memoryBudget = memoryBudget;
+        this.policy = evictionPolicy == EvictionPolicy.LRU
+                ? new LruPolicy(memoryBudget) : new WindowTinyLfuPolicy(memoryBudget);
+        this.coldStore = new ColdStore(spillDirectory);
+        this.residents = new ConcurrentHashMap<>();
+        this.victims = new ConcurrentLinkedQueue<>();
+        this.evicting = new AtomicBoolean();
+        this.evictor = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "sam-evictor");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hits = new LongAdder();
+        this.misses = new LongAdder();
+        this.evictions = new LongAdder();
+    }
+
+    /**
+     * Record a use of a document
+     * Uses of paged-out documents only count towards their frequency, they come back on first read
+     * @param document The document
+     * @param read Whether the use is a read, only reads count as cache hits
+     */
+    void touch(Document document, boolean read) {
+        DocumentSnapshot head = document.snapshot();
+        if (!head.isResident()) {
+            policy.recordAbsent(document);
+            return;
+        }
+        record(document, head, head.getData(), read);
+    }
+
+    /**
+     * Stop tracking a document that left the database
+     * Its fields are read back first, so anyone still holding the handle can read it.
+     * @param document The document
+     */
+    void remove(Document document) {
+        document.snapshot().getData();
+        policy.remove(document);
+        Resident resident = residents.remove(document);
+        if (resident != null) {
+            coldStore.free(resident.version);
+        }
+    }
+
+    @Override
+    public Map<String, Object> pageIn(Document document, DocumentSnapshot version) {
+        Map<String, Object> fields = read(document, version);
+        misses.increment();
+        record(document, version, fields, false);
+        return fields;
+    }
+
+    @Override
+    public Map<String, Object> read(Document document, DocumentSnapshot version) {
+        try {
+            return coldStore.read(version.getVersion());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Error reading back document " + document.getId(), e);
+        }
+    }
+
+    /**
+     * Page out every document waiting for it on the calling thread
+     * Used while loading, so a large collection never gets more than a shard over budget
+     */
+    synchronized void evictPending() {
+        Document document;
+        while ((document = victims.poll()) != null) {
+            evict(document);
+        }
+    }
+
+    CacheStats getStats() {
+        return new CacheStats(hits.sum(), misses.sum(), evictions.sum(),
+                policy.weight(), coldStore.size(), memoryBudget);
+    }
+
+    @Override
+    public void close() {
+        evictor.shutdown();
+        try {
+            evictor.awaitTermination(1, TimeUnit.MINUTES);
+            coldStore.close();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            System.err.println("Error closing spill segments: " + e.getMessage());
+        }
+    }
+
+    private void record(Document document, DocumentSnapshot version, Map<String, Object> fields, boolean read) {
+        long[] superseded = {-1};
+        Resident resident = residents.compute(document, (key, current) -> {
+            if (current != null && current.version >= version.getVersion()) {
+                return current;
+            }
+            if (current != null) {
+                superseded[0] = current.version;
+            }
+            return new Resident(version.getVersion(), DOCUMENT_OVERHEAD + estimate(fields));
+        });
+        if (superseded[0] >= 0) {
+            // A write replaced the version, its spill entry can't be read any more
+            coldStore.free(superseded[0]);
+        }
+
+        List<Document> rejected = new ArrayList<>();
+        if (policy.record(document, resident.weight, rejected) && read) {
+            hits.increment();
+        }
+        if (!rejected.isEmpty()) {
+            victims.addAll(rejected);
+            scheduleEvictions();
+        }
+    }
+
+    private void scheduleEvictions() {
+        if (evicting.compareAndSet(false, true)) {
+            try {
+                evictor.execute(() -> {
+                    try {
+                        evictPending();
+                        coldStore.compactIfNeeded();
+                    } catch (IOException e) {
+                        System.err.println("Error compacting spill segments: " + e.getMessage());
+                    } finally {
+                        evicting.set(false);
+                        if (!victims.isEmpty()) {
+                            scheduleEvictions();
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                evicting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Page out the fields of a document the policy rejected
+     * Only runs while holding this object's lock, so two evictions never race on one document
+     */
+    private void evict(Document document) {
+        // Used again since it was picked, or removed from the database
+        if (policy.contains(document) || !residents.containsKey(document)) {
+            return;
+        }
+        DocumentSnapshot head = document.snapshot();
+        if (!head.isResident()) {
+            return;
+        }
+        try {
+            coldStore.put(head.getVersion(), head.getData());
+        } catch (IOException e) {
+            System.err.println("Error paging out document " + document.getId() + ": " + e.getMessage());
+            return;
+        }
+        if (document.pageOut(head, this)) {
+            evictions.increment();
+            residents.computeIfPresent(document, (key, resident) ->
+                    resident.version == head.getVersion() ? null : resident);
+        } else {
+            // Written meanwhile, the new version stays in memory
+            coldStore.free(head.getVersion());
+        }
+    }
+
+    /**
+     * Rough heap bytes of a value, enough to compare documents against each other and the budget
+     */
+    static long estimate(Object value) {
+        if (value instanceof String) {
+            return 40 + 2L * ((String) value).length();
+        }
+        if (value instanceof Map) {
+            long size = 48;
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += 32 + estimate(entry.getKey()) + estimate(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = 40;
+            for (Object element : (Collection<?>) value) {
+                size += 8 + estimate(element);
+            }
+            return size;
+        }
+        return value == null ? 0 : 16;
+    }
+
+    private static class Resident {
+        final long version;
+        final long weight;
+
+        Resident(long version, long weight) {
+            this.version = version;
+            this.weight = weight;
+        }
+    }
+}
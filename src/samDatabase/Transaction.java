@@ -0,0 +1,80 @@
+package samDatabase;
+
+import models.Document;
+import models.DocumentSnapshot;
+import persistence.Durability;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A read-modify-write transaction, run by {@link SamDatabase#runTransaction}.
+ * Reads return immutable versions and remember their version numbers; writes are staged
+ * like in a {@link WriteBatch}. On commit the staged writes are only applied if every
+ * document read is still at the version seen, otherwise the transaction runs again.
+ * Reads see the database, not the writes staged earlier in the same transaction.
+ */
+public class Transaction {
+    private final SamDatabase database;
+    private final WriteBatch writes;
+
+    // (collection, ID) -> version seen by the first read
+    private final Map<List<String>, Long> reads;
+
+    Transaction(SamDatabase database) {
+        this.database = database;
+        this.writes = new WriteBatch(database);
+        this.reads = new HashMap<>();
+    }
+
+    /**
+     * Read a document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return The document's current version, null if it doesn't exist
+     */
+    public DocumentSnapshot get(String collectionName, String documentId) {
+        Document document = database.getDocument(collectionName, documentId);
+        DocumentSnapshot version = document != null ? document.snapshot() : null;
+        reads.putIfAbsent(List.of(collectionName, documentId),
+                version != null ? version.getVersion() : SamDatabase.MISSING_VERSION);
+        return version;
+    }
+
+    /**
+     * @see WriteBatch#set
+     */
+    public Transaction set(String collectionName, String documentId, Map<String, Object> fields) {
+        writes.set(collectionName, documentId, fields);
+        return this;
+    }
+
+    /**
+     * @see WriteBatch#update(String, String, String, Object)
+     */
+    public Transaction update(String collectionName, String documentId, String field, Object value) {
+        writes.update(collectionName, documentId, field, value);
+        return this;
+    }
+
+    /**
+     * @see WriteBatch#update(String, String, Map)
+     */
+    public Transaction update(String collectionName, String documentId, Map<String, Object> fields) {
+        writes.update(collectionName, documentId, fields);
+        return this;
+    }
+
+    /**
+     * @see WriteBatch#delete
+     */
+    public Transaction delete(String collectionName, String documentId) {
+        writes.delete(collectionName, documentId);
+        return this;
+    }
+
+    SamDatabase.CommitResult commit(Durability durability) {
+        return writes.commit(reads, durability);
+    }
+}
@@ -0,0 +1,167 @@
+package samDatabase;
+
+import models.Document;
+
+import java.util.*;
+
+/**
+ * Window TinyLFU over document weights.
+ *
+ * New documents enter a small LRU window (1% of the budget). Documents pushed out of the
+ * window join the main space on probation, but only by displacing its least recently used
+ * document if they have been used more often according to a {@link FrequencySketch};
+ * otherwise they are the ones paged out. A document used again while on probation moves to
+ * the protected segment (80% of the main space). Recent newcomers get a chance, while
+ * documents read once by a scan can't flush out the ones used all the time.
+ */
+class WindowTinyLfuPolicy implements CachePolicy {
+    private static final int WINDOW = 0;
+    private static final int PROBATION = 1;
+    private static final int PROTECTED = 2;
+
+    // Rough weight of a document, to size the sketch
+    private static final long TYPICAL_WEIGHT = 512;
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final Map<Document, Entry> entries;
+
+    // One LRU order per segment, least recently used first
+    private final List<LinkedHashMap<Document, Entry>> segments;
+    private final long[] segmentWeights;
+
+    private final FrequencySketch sketch;
+
+    WindowTinyLfuPolicy(long maximumWeight) {
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, maximumWeight / 100);
+        this.protectedMaximum = (maximumWeight - windowMaximum) * 8 / 10;
+        this.entries = new HashMap<>();
+        this.segments = List.of(new LinkedHashMap<>(), new LinkedHashMap<>(), new LinkedHashMap<>());
+        this.segmentWeights = new long[3];
+        this.sketch = new FrequencySketch(maximumWeight / TYPICAL_WEIGHT);
+    }
+
+    @Override
+    public synchronized boolean record(Document document, long weight, List<Document> victims) {
+        sketch.increment(document);
+        Entry entry = entries.get(document);
+        boolean cached = entry != null;
+        if (entry == null) {
+            entry = new Entry(document, weight);
+            entries.put(document, entry);
+            add(entry, WINDOW);
+        } else {
+            segmentWeights[entry.segment] += weight - entry.weight;
+            entry.weight = weight;
+            if (entry.segment == PROBATION) {
+                move(entry, PROTECTED);
+                while (segmentWeights[PROTECTED] > protectedMaximum) {
+                    move(first(PROTECTED), PROBATION);
+                }
+            } else {
+                move(entry, entry.segment);
+            }
+        }
+
+        while (segmentWeights[WINDOW] > windowMaximum) {
+            Entry candidate = first(WINDOW);
+            move(candidate, PROBATION);
+            admit(candidate, victims);
+        }
+
+        // Only happens if a single document outweighs its segment
+        while (totalWeight() > maximumWeight) {
+            Entry victim = first(PROBATION);
+            if (victim == null) {
+                victim = first(PROTECTED) != null ? first(PROTECTED) : first(WINDOW);
+            }
+            evict(victim, victims);
+        }
+        return cached;
+    }
+
+    @Override
+    public synchronized void recordAbsent(Document document) {
+        sketch.increment(document);
+    }
+
+    @Override
+    public synchronized void remove(Document document) {
+        Entry entry = entries.remove(document);
+        if (entry != null) {
+            segments.get(entry.segment).remove(document);
+            segmentWeights[entry.segment] -= entry.weight;
+        }
+    }
+
+    @Override
+    public synchronized boolean contains(Document document) {
+        return entries.containsKey(document);
+    }
+
+    @Override
+    public synchronized long weight() {
+        return totalWeight();
+    }
+
+    /**
+     * Make room in the main space for a document that just left the window
+     * The candidate and the main space's least recently used document compete on frequency
+     */
+    private void admit(Entry candidate, List<Document> victims) {
+        while (segmentWeights[PROBATION] + segmentWeights[PROTECTED] > maximumWeight - windowMaximum) {
+            Entry victim = first(PROBATION);
+            if (victim == candidate) {
+                victim = first(PROTECTED);
+            }
+            if (victim == null || sketch.frequency(candidate.document) <= sketch.frequency(victim.document)) {
+                evict(candidate, victims);
+                return;
+            }
+            evict(victim, victims);
+        }
+    }
+
+    private void evict(Entry entry, List<Document> victims) {
+        remove(entry.document);
+        victims.add(entry.document);
+    }
+
+    private void add(Entry entry, int segment) {
+        entry.segment = segment;
+        segments.get(segment).put(entry.document, entry);
+        segmentWeights[segment] += entry.weight;
+    }
+
+    /**
+     * Move an entry to the most recently used end of a segment, possibly its own
+     */
+    private void move(Entry entry, int segment) {
+        segments.get(entry.segment).remove(entry.document);
+        segmentWeights[entry.segment] -= entry.weight;
+        add(entry, segment);
+    }
+
+    private Entry first(int segment) {
+        Iterator<Entry> iterator = segments.get(segment).values().iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+
+    private long totalWeight() {
+        return segmentWeights[WINDOW] + segmentWeights[PROBATION] + segmentWeights[PROTECTED];
+    }
+
+    private static class Entry {
+        final Document document;
+        long weight;
+        int segment;
+
+        Entry(Document document, long weight) {
+            this.document = document;
+            this.weight = weight;
+        }
+    }
+}
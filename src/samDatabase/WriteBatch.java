@@ -0,0 +1,145 @@
+package samDatabase;
+
+import models.Document;
+import persistence.Durability;
+import persistence.LogRecord;
+
+import java.util.*;
+
+/**
+ * Writes staged across collections and applied together by {@link #commit()}.
+ * The whole batch is persisted as one log record with a single append and flush,
+ * so after a crash it is replayed entirely or not at all.
+ *
+ * Every method except commit returns this batch so writes can be chained, e.g.
+ * db.batch().set("users", "u1", fields).update("stats", "users", "count", 2).commit()
+ */
+public class WriteBatch {
+    private final SamDatabase database;
+    private final List<LogRecord> records;
+    private boolean committed;
+
+    WriteBatch(SamDatabase database) {
+        this.database = database;
+        this.records = new ArrayList<>();
+    }
+
+    /**
+     * Create a document, replacing any document with the same ID
+     * @param collectionName Name of the collection, created if needed
+     * @param documentId ID of the document
+     * @param fields The document's fields
+     * @return this batch
+     */
+    public WriteBatch set(String collectionName, String documentId, Map<String, Object> fields) {
+        checkNames(collectionName, documentId);
+        records.add(LogRecord.addDocument(collectionName, documentId));
+        fields.forEach((field, value) -> records.add(LogRecord.setField(collectionName, documentId, field, value)));
+        return this;
+    }
+
+    /**
+     * Set one field of a document that exists when the batch commits
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param field Field key
+     * @param value Value to set
+     * @return this batch
+     */
+    public WriteBatch update(String collectionName, String documentId, String field, Object value) {
+        checkNames(collectionName, documentId);
+        records.add(LogRecord.setField(collectionName, documentId, field, value));
+        return this;
+    }
+
+    /**
+     * Set several fields of a document that exists when the batch commits
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param fields Field key -> value to set
+     * @return this batch
+     */
+    public WriteBatch update(String collectionName, String documentId, Map<String, Object> fields) {
+        fields.forEach((field, value) -> update(collectionName, documentId, field, value));
+        return this;
+    }
+
+    /**
+     * Delete a document, nothing happens if it doesn't exist
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return this batch
+     */
+    public WriteBatch delete(String collectionName, String documentId) {
+        checkNames(collectionName, documentId);
+        records.add(LogRecord.deleteDocument(collectionName, documentId));
+        return this;
+    }
+
+    /**
+     * @return Number of staged mutations, a set counts once plus once per field
+     */
+    public int size() {
+        return records.size();
+    }
+
+    /**
+     * Apply every staged write, with the database's default durability
+     * @return true if the batch was applied, false if an update targets a missing document
+     */
+    public boolean commit() {
+        return commit(database.getDefaultDurability());
+    }
+
+    /**
+     * Apply every staged write
+     * Either all writes are applied or none is
+     * @param durability How durable the batch must be before this call returns
+     * @return true if the batch was applied, false if an update targets a missing document
+     */
+    public boolean commit(Durability durability) {
+        return commit(Collections.emptyMap(), durability) == SamDatabase.CommitResult.COMMITTED;
+    }
+
+    SamDatabase.CommitResult commit(Map<List<String>, Long> reads, Durability durability) {
+        if (committed) {
+            throw new IllegalStateException("Batch already committed");
+        }
+        SamDatabase.CommitResult result = database.commitBatch(records, reads, durability);
+        committed = result == SamDatabase.CommitResult.COMMITTED;
+        return result;
+    }
+
+    /**
+     * Apply every staged write without waiting for the log write
+     * @param reads (collection, ID) -> version each document must still have, empty for a plain batch
+     * @param durability How durable the batch must be before the returned write's future completes
+     * @return The applied write, its result tells whether the batch was committed
+     */
+    SamDatabase.AppliedWrite<SamDatabase.CommitResult> apply(Map<List<String>, Long> reads, Durability durability) {
+        if (committed) {
+            throw new IllegalStateException("Batch already committed");
+        }
+        SamDatabase.AppliedWrite<SamDatabase.CommitResult> write =
+                database.applyBatch(records, reads, durability);
+        committed = write.result == SamDatabase.CommitResult.COMMITTED;
+        return write;
+    }
+
+    /**
+     * @return Whether every document the batch writes can be reached without reading from disk
+     */
+    boolean isResident() {
+        for (LogRecord record : records) {
+            if (!database.isResident(record.getCollection(), record.getDocumentId())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void checkNames(String collectionName, String documentId) {
+        Document.checkName(collectionName);
+        Document.checkName(documentId);
+    }
+}
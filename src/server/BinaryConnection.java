@@ -0,0 +1,261 @@
+package server;
+
+import models.Document;
+import models.DocumentChange;
+import persistence.BinaryDocumentReader;
+import samDatabase.ListenerRegistration;
+import samDatabase.SamDatabase;
+import samDatabase.SnapshotListener;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One client speaking the binary {@link Protocol}, served on the connection's virtual thread.
+ *
+ * Requests are run one after another and answered in order; answers are flushed once no
+ * further request is waiting in the input, so a pipelined burst is answered with one flush.
+ * Listener deliveries are queued and written by a second virtual thread, started by the first
+ * LISTEN, so a slow client never holds up the listener executor. A client whose queue fills
+ * up is disconnected.
+ */
+final class BinaryConnection {
+    private final SamDatabase database;
+    private final ServerConfig config;
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+
+    // Taken to write a frame; ReentrantLock rather than synchronized so virtual threads can unmount
+    private final ReentrantLock writeLock;
+
+    // LISTEN request ID -> registration, only used by the connection thread
+    private final Map<Integer, ListenerRegistration> listeners;
+    private BlockingQueue<Protocol.FrameBuilder> events;
+    private Thread eventWriter;
+
+    BinaryConnection(SamDatabase database, ServerConfig config, Socket socket, InputStream in, OutputStream out) {
+        this.database = database;
+        this.config = config;
+        this.socket = socket;
+        this.in = new DataInputStream(in);
+        this.out = out;
+        this.writeLock = new ReentrantLock();
+        this.listeners = new HashMap<>();
+    }
+
+    /**
+     * Answer requests until the client disconnects
+     */
+    void serve() throws IOException {
+        byte[] hello = new byte[Protocol.MAGIC.length + 1];
+        in.readFully(hello);
+        if (!Arrays.equals(Arrays.copyOf(hello, Protocol.MAGIC.length), Protocol.MAGIC)) {
+            return;
+        }
+        if (hello[Protocol.MAGIC.length] != Protocol.VERSION) {
+            Protocol.FrameBuilder refusal = new Protocol.FrameBuilder(0, Protocol.ERROR);
+            refusal.body.writeString("Unsupported protocol version " + hello[Protocol.MAGIC.length]);
+            refusal.writeFrame(out);
+            out.flush();
+            return;
+        }
+
+        try {
+            Protocol.Frame request;
+            while ((request = Protocol.readFrame(in, config.getMaxRequestBytes())) != null) {
+                Protocol.FrameBuilder response = handle(request);
+                writeLock.lock();
+                try {
+                    response.writeFrame(out);
+                    if (in.available() == 0) {
+                        out.flush();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } finally {
+            listeners.values().forEach(ListenerRegistration::remove);
+            if (eventWriter != null) {
+                eventWriter.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Run one request
+     * @param request The request frame
+     * @return The answer, an ERROR frame if the request was rejected
+     */
+    private Protocol.FrameBuilder handle(Protocol.Frame request) {
+        BinaryDocumentReader body = request.body;
+        try {
+            switch (request.code) {
+                case Protocol.PING:
+                    return answer(request, Protocol.OK);
+                case Protocol.GET: {
+                    Document document = database.getDocument(body.readString(), body.readString());
+                    if (document == null) {
+                        return answer(request, Protocol.NOT_FOUND);
+                    }
+                    Protocol.FrameBuilder response = answer(request, Protocol.OK);
+                    Protocol.writeDocument(response.body, document.snapshot());
+                    return response;
+                }
+                case Protocol.SET: {
+                    String collection = body.readString();
+                    String id = body.readString();
+                    database.batch().set(collection, id, Protocol.readFields(body)).commit();
+                    return answer(request, Protocol.OK);
+                }
+                case Protocol.UPDATE: {
+                    String collection = body.readString();
+                    String id = body.readString();
+                    boolean updated = database.batch().update(collection, id, Protocol.readFields(body)).commit();
+                    return answer(request, updated ? Protocol.OK : Protocol.NOT_FOUND);
+                }
+                case Protocol.DELETE: {
+                    boolean deleted = database.deleteDocument(body.readString(), body.readString());
+                    return answer(request, deleted ? Protocol.OK : Protocol.NOT_FOUND);
+                }
+                case Protocol.ADD: {
+                    String collection = body.readString();
+                    String id = database.generateDocumentId();
+                    database.batch().set(collection, id, Protocol.readFields(body)).commit();
+                    Protocol.FrameBuilder response = answer(request, Protocol.OK);
+                    response.body.writeString(id);
+                    return response;
+                }
+                case Protocol.QUERY: {
+                    List<Document> results = database.runQuery(Protocol.readQuery(body, database::getDocument));
+                    Protocol.FrameBuilder response = answer(request, Protocol.OK);
+                    response.body.writeVarLong(results.size());
+                    for (Document document : results) {
+                        Protocol.writeDocument(response.body, document.snapshot());
+                    }
+                    return response;
+                }
+                case Protocol.INCREMENT: {
+                    String collection = body.readString();
+                    String id = body.readString();
+                    String field = body.readString();
+                    Object delta = body.readValue();
+                    if (!(delta instanceof Number)) {
+                        throw new IllegalArgumentException("Increment needs a number");
+                    }
+                    boolean applied = database.increment(collection, id, field, (Number) delta);
+                    return answer(request, applied ? Protocol.OK : Protocol.NOT_FOUND);
+                }
+                case Protocol.LISTEN:
+                    listen(request);
+                    return answer(request, Protocol.OK);
+                case Protocol.UNLISTEN: {
+                    ListenerRegistration registration = listeners.remove((int) body.readVarLong());
+                    if (registration == null) {
+                        return answer(request, Protocol.NOT_FOUND);
+                    }
+                    registration.remove();
+                    return answer(request, Protocol.OK);
+                }
+                default:
+                    return error(request, "Unknown opcode " + request.code);
+            }
+        } catch (IOException e) {
+            // The frame was read whole, so the connection is still usable
+            return error(request, "Malformed request: " + e.getMessage());
+        } catch (RuntimeException e) {
+            return error(request, e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+    }
+
+    private void listen(Protocol.Frame request) throws IOException {
+        if (listeners.containsKey(request.requestId)) {
+            throw new IllegalArgumentException("Request ID " + request.requestId + " is already listening");
+        }
+        int listenerId = request.requestId;
+        SnapshotListener listener = changes -> push(listenerId, changes);
+        if (eventWriter == null) {
+            // Before registering, the first delivery may come right away
+            events = new ArrayBlockingQueue<>(config.getMaxQueuedEvents());
+            eventWriter = Thread.ofVirtual().name("sam-events").start(this::writeEvents);
+        }
+
+        BinaryDocumentReader body = request.body;
+        ListenerRegistration registration;
+        switch (body.readByte()) {
+            case Protocol.LISTEN_DOCUMENT:
+                registration = database.addSnapshotListener(body.readString(), body.readString(), listener);
+                break;
+            case Protocol.LISTEN_COLLECTION:
+                registration = database.addSnapshotListener(body.readString(), listener);
+                break;
+            case Protocol.LISTEN_QUERY:
+                registration = database.addSnapshotListener(
+                        Protocol.readQuery(body, database::getDocument), listener);
+                break;
+            default:
+                throw new IOException("Unknown listen target");
+        }
+        listeners.put(listenerId, registration);
+    }
+
+    /**
+     * Queue a delivery, called on the listener executor
+     */
+    private void push(int listenerId, List<DocumentChange> changes) {
+        Protocol.FrameBuilder event = new Protocol.FrameBuilder(listenerId, Protocol.EVENT);
+        try {
+            Protocol.writeChanges(event.body, changes);
+        } catch (IOException e) {
+            // Written to memory, can't happen
+            throw new UncheckedIOException(e);
+        }
+        if (!events.offer(event)) {
+            // Too far behind to catch up, the client will see the connection drop and can listen again
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+    }
+
+    private void writeEvents() {
+        try {
+            while (true) {
+                Protocol.FrameBuilder event = events.take();
+                writeLock.lock();
+                try {
+                    event.writeFrame(out);
+                    if (events.isEmpty()) {
+                        out.flush();
+                    }
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        } catch (InterruptedException | IOException e) {
+            // The connection closed
+        }
+    }
+
+    private static Protocol.FrameBuilder answer(Protocol.Frame request, int status) {
+        return new Protocol.FrameBuilder(request.requestId, status);
+    }
+
+    private static Protocol.FrameBuilder error(Protocol.Frame request, String message) {
+        Protocol.FrameBuilder response = answer(request, Protocol.ERROR);
+        try {
+            response.body.writeString(message);
+        } catch (IOException e) {
+            // Written to memory, can't happen
+            throw new UncheckedIOException(e);
+        }
+        return response;
+    }
+}
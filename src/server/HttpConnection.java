@@ -0,0 +1,511 @@
+package server;
+
+import com.google.gson.*;
+import com.google.gson.stream.JsonWriter;
+import models.Document;
+import models.DocumentChange;
+import models.DocumentSnapshot;
+import persistence.JsonValues;
+import query.FilterOperator;
+import query.Query;
+import samDatabase.ListenerRegistration;
+import samDatabase.SamDatabase;
+
+import java.io.*;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One HTTP/1.1 client, served on the connection's virtual thread. See {@link SamServer} for the endpoints.
+ *
+ * Connections are kept alive and requests are answered in order as they are read, so a client
+ * may pipeline them; answers are flushed once no further request is waiting in the input.
+ * A listen request turns the connection into a stream of server-sent events until either side closes it.
+ */
+final class HttpConnection {
+    // Longest request or header line
+    private static final int MAX_LINE = 8192;
+    private static final int MAX_HEADERS = 100;
+
+    // Page size of a listing without a limit parameter
+    private static final int DEFAULT_LIST_LIMIT = 100;
+
+    // Comment sent on an idle event stream, so dead clients are noticed and proxies keep it open
+    private static final long HEARTBEAT_SECONDS = 15;
+
+    private static final byte[] CONTINUE = "HTTP/1.1 100 Continue\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] HEARTBEAT = ": keep-alive\n\n".getBytes(StandardCharsets.US_ASCII);
+
+    // Queued in place of an event when a listener falls too far behind
+    private static final byte[] OVERFLOW = new byte[0];
+
+    private final SamDatabase database;
+    private final ServerConfig config;
+    private final InputStream in;
+    private final OutputStream out;
+
+    /**
+     * An answer with a JSON body, or none for 204
+     */
+    private static final class Response {
+        final int status;
+        final byte[] body;
+
+        Response(int status, byte[] body) {
+            this.status = status;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Writes the JSON body of a response
+     */
+    private interface Body {
+        void write(JsonWriter json) throws IOException;
+    }
+
+    HttpConnection(SamDatabase database, ServerConfig config, InputStream in, OutputStream out) {
+        this.database = database;
+        this.config = config;
+        this.in = in;
+        this.out = out;
+    }
+
+    /**
+     * Answer requests until the client disconnects or asks to close
+     */
+    void serve() throws IOException {
+        while (true) {
+            String requestLine = readLine();
+            if (requestLine == null) {
+                return;
+            }
+            if (requestLine.isEmpty()) {
+                // Stray line break between requests
+                continue;
+            }
+            String[] parts = requestLine.split(" ");
+            if (parts.length != 3 || !parts[2].startsWith("HTTP/1.")) {
+                write(error(400, "Malformed request line"), false);
+                return;
+            }
+            String method = parts[0];
+            Map<String, String> headers = readHeaders();
+
+            String connection = headers.getOrDefault("connection", "");
+            boolean keepAlive = parts[2].equals("HTTP/1.0")
+                    ? connection.equalsIgnoreCase("keep-alive")
+                    : !connection.equalsIgnoreCase("close");
+            if (headers.containsKey("transfer-encoding")) {
+                write(error(501, "Chunked request bodies are not supported, send a Content-Length"), false);
+                return;
+            }
+            long length;
+            try {
+                length = Long.parseLong(headers.getOrDefault("content-length", "0"));
+            } catch (NumberFormatException e) {
+                write(error(400, "Bad Content-Length"), false);
+                return;
+            }
+            if (length < 0 || length > config.getMaxRequestBytes()) {
+                write(error(413, "Request body too large"), false);
+                return;
+            }
+            if (length > 0 && "100-continue".equalsIgnoreCase(headers.get("expect"))) {
+                out.write(CONTINUE);
+                out.flush();
+            }
+            byte[] body = in.readNBytes((int) length);
+            if (body.length < length) {
+                return;
+            }
+
+            int queryStart = parts[1].indexOf('?');
+            String rawPath = queryStart >= 0 ? parts[1].substring(0, queryStart) : parts[1];
+            List<String> path;
+            Map<String, String> parameters;
+            try {
+                path = pathSegments(rawPath);
+                parameters = queryStart >= 0 ? parameters(parts[1].substring(queryStart + 1)) : Map.of();
+            } catch (IllegalArgumentException e) {
+                write(error(400, "Malformed URL"), keepAlive);
+                if (!keepAlive) {
+                    return;
+                }
+                continue;
+            }
+
+            if (path.equals(List.of("listen"))) {
+                if (listen(method, parameters, body, keepAlive) || !keepAlive) {
+                    // The stream ends the connection
+                    return;
+                }
+                continue;
+            }
+            write(handle(method, path, parameters, body), keepAlive);
+            if (!keepAlive) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Run one request other than listen
+     */
+    private Response handle(String method, List<String> path, Map<String, String> parameters, byte[] body) {
+        try {
+            if (path.size() >= 3 && path.size() <= 4 && path.get(0).equals("collections")
+                    && path.get(2).equals("documents")) {
+                String collection = path.get(1);
+                if (path.size() == 3) {
+                    switch (method) {
+                        case "GET":
+                            int limit = Integer.parseInt(parameters.getOrDefault("limit", String.valueOf(DEFAULT_LIST_LIMIT)));
+                            return documents(database.runQuery(new Query(collection).limit(limit)));
+                        case "POST":
+                            String id = database.generateDocumentId();
+                            database.batch().set(collection, id, fields(body)).commit();
+                            return json(201, json -> json.beginObject().name("id").value(id).endObject());
+                        default:
+                            return error(405, method + " not allowed here");
+                    }
+                }
+                String id = path.get(3);
+                switch (method) {
+                    case "GET": {
+                        Document document = database.getDocument(collection, id);
+                        if (document == null) {
+                            return error(404, "Document not found");
+                        }
+                        DocumentSnapshot snapshot = document.snapshot();
+                        return json(200, json -> writeDocument(json, snapshot));
+                    }
+                    case "PUT":
+                        database.batch().set(collection, id, fields(body)).commit();
+                        return new Response(204, null);
+                    case "PATCH":
+                        return database.batch().update(collection, id, fields(body)).commit()
+                                ? new Response(204, null) : error(404, "Document not found");
+                    case "DELETE":
+                        return database.deleteDocument(collection, id)
+                                ? new Response(204, null) : error(404, "Document not found");
+                    default:
+                        return error(405, method + " not allowed here");
+                }
+            }
+            if (path.equals(List.of("query"))) {
+                if (!method.equals("POST")) {
+                    return error(405, method + " not allowed here");
+                }
+                return documents(database.runQuery(query(body)));
+            }
+            return error(404, "No such endpoint");
+        } catch (JsonParseException | IllegalArgumentException | IllegalStateException | ClassCastException e) {
+            return error(400, e.getMessage() != null ? e.getMessage() : e.toString());
+        } catch (RuntimeException e) {
+            System.err.println("Error handling " + method + " request: " + e);
+            return error(500, "Internal error");
+        }
+    }
+
+    /**
+     * Stream listener deliveries as server-sent events, one "data:" line of {"changes": [...]} each
+     * @return true if the stream ran, false if the request was answered with an error instead
+     */
+    private boolean listen(String method, Map<String, String> parameters, byte[] body, boolean keepAlive)
+            throws IOException {
+        BlockingQueue<byte[]> events = new LinkedBlockingQueue<>(config.getMaxQueuedEvents());
+        ListenerRegistration registration;
+        try {
+            if (method.equals("POST")) {
+                registration = database.addSnapshotListener(query(body), changes -> push(events, changes));
+            } else if (method.equals("GET") && parameters.containsKey("collection")) {
+                String collection = parameters.get("collection");
+                String id = parameters.get("document");
+                registration = id != null
+                        ? database.addSnapshotListener(collection, id, changes -> push(events, changes))
+                        : database.addSnapshotListener(collection, changes -> push(events, changes));
+            } else {
+                write(error(400, "Listen needs a collection parameter or a query body"), keepAlive);
+                return false;
+            }
+        } catch (JsonParseException | IllegalArgumentException | IllegalStateException | ClassCastException e) {
+            write(error(400, e.getMessage() != null ? e.getMessage() : e.toString()), keepAlive);
+            return false;
+        }
+
+        try {
+            out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/event-stream\r\nCache-Control: no-cache\r\n"
+                    + "Connection: close\r\n\r\n").getBytes(StandardCharsets.US_ASCII));
+            out.flush();
+            while (true) {
+                byte[] event = events.poll(HEARTBEAT_SECONDS, TimeUnit.SECONDS);
+                if (event == OVERFLOW) {
+                    return true;
+                }
+                out.write(event != null ? event : HEARTBEAT);
+                if (events.isEmpty()) {
+                    out.flush();
+                }
+            }
+        } catch (InterruptedException e) {
+            return true;
+        } finally {
+            registration.remove();
+        }
+    }
+
+    /**
+     * Queue a delivery, called on the listener executor
+     */
+    private static void push(BlockingQueue<byte[]> events, List<DocumentChange> changes) {
+        byte[] event = encode(json -> {
+            json.beginObject().name("changes").beginArray();
+            for (DocumentChange change : changes) {
+                json.beginObject();
+                json.name("type").value(change.getType().name().toLowerCase(Locale.ROOT));
+                json.name("document");
+                writeDocument(json, change.getDocument());
+                json.endObject();
+            }
+            json.endArray().endObject();
+        }, "data: ", "\n\n");
+        if (!events.offer(event)) {
+            // Too far behind to catch up, end the stream so the client can listen again
+            events.clear();
+            events.offer(OVERFLOW);
+        }
+    }
+
+    private Response documents(List<Document> documents) {
+        return json(200, json -> {
+            json.beginObject().name("documents").beginArray();
+            for (Document document : documents) {
+                writeDocument(json, document.snapshot());
+            }
+            json.endArray().endObject();
+        });
+    }
+
+    private static void writeDocument(JsonWriter json, DocumentSnapshot document) throws IOException {
+        json.beginObject();
+        json.name("id").value(document.getId());
+        json.name("version").value(document.getVersion());
+        json.name("data").beginObject();
+        document.forEachField((name, value) -> {
+            json.name(name);
+            JsonValues.write(json, value);
+        });
+        json.endObject();
+        json.endObject();
+    }
+
+    /**
+     * @param body A JSON object of fields, may be empty
+     * @return Field key -> value or transform
+     */
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> fields(byte[] body) {
+        if (body.length == 0) {
+            return Map.of();
+        }
+        JsonElement json = JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+        if (!json.isJsonObject()) {
+            throw new IllegalArgumentException("Expected a JSON object of fields");
+        }
+        Object fields = JsonValues.fromJson(json);
+        if (!(fields instanceof Map)) {
+            // A lone transform such as {"$increment": 1}
+            throw new IllegalArgumentException("Expected a JSON object of fields");
+        }
+        return (Map<String, Object>) fields;
+    }
+
+    /**
+     * Parse a query, see {@link SamServer} for its form
+     */
+    private Query query(byte[] body) {
+        JsonElement json = JsonParser.parseString(new String(body, StandardCharsets.UTF_8));
+        if (!json.isJsonObject() || !json.getAsJsonObject().has("collection")) {
+            throw new IllegalArgumentException("Expected a query object with a collection");
+        }
+        JsonObject object = json.getAsJsonObject();
+        String collection = object.get("collection").getAsString();
+        boolean group = object.has("collectionGroup") && object.get("collectionGroup").getAsBoolean();
+        Query query = group ? Query.collectionGroup(collection) : new Query(collection);
+
+        if (object.has("where")) {
+            for (JsonElement clause : object.getAsJsonArray("where")) {
+                JsonArray parts = clause.getAsJsonArray();
+                if (parts.size() != 3) {
+                    throw new IllegalArgumentException("A where clause is [field, operator, value]");
+                }
+                query.where(parts.get(0).getAsString(), FilterOperator.fromSymbol(parts.get(1).getAsString()),
+                        JsonValues.fromJson(parts.get(2)));
+            }
+        }
+        if (object.has("orderBy")) {
+            query.orderBy(object.get("orderBy").getAsString(),
+                    object.has("descending") && object.get("descending").getAsBoolean());
+        }
+        if (object.has("limit")) {
+            query.limit(object.get("limit").getAsInt());
+        }
+        if (object.has("startAfter")) {
+            String cursor = object.get("startAfter").getAsString();
+            Document document = database.getDocument(collection, cursor);
+            if (document == null) {
+                throw new IllegalArgumentException("Cursor document " + cursor + " not found");
+            }
+            query.startAfter(document);
+        }
+        if (object.has("select")) {
+            JsonArray select = object.getAsJsonArray("select");
+            String[] selected = new String[select.size()];
+            for (int i = 0; i < selected.length; i++) {
+                selected[i] = select.get(i).getAsString();
+            }
+            query.select(selected);
+        }
+        return query;
+    }
+
+    private static Response json(int status, Body body) {
+        return new Response(status, encode(body, "", ""));
+    }
+
+    private static Response error(int status, String message) {
+        return json(status, json -> json.beginObject().name("error").value(message).endObject());
+    }
+
+    private static byte[] encode(Body body, String prefix, String suffix) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        try (Writer writer = new OutputStreamWriter(bytes, StandardCharsets.UTF_8)) {
+            writer.write(prefix);
+            JsonWriter json = new JsonWriter(writer);
+            body.write(json);
+            json.flush();
+            writer.write(suffix);
+        } catch (IOException e) {
+            // Written to memory, can't happen
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Write a response, flushed unless more pipelined requests are already waiting
+     */
+    private void write(Response response, boolean keepAlive) throws IOException {
+        StringBuilder head = new StringBuilder(128);
+        head.append("HTTP/1.1 ").append(response.status).append(' ').append(reason(response.status)).append("\r\n");
+        if (response.body != null) {
+            head.append("Content-Type: application/json\r\n");
+            head.append("Content-Length: ").append(response.body.length).append("\r\n");
+        }
+        if (!keepAlive) {
+            head.append("Connection: close\r\n");
+        }
+        head.append("\r\n");
+        out.write(head.toString().getBytes(StandardCharsets.US_ASCII));
+        if (response.body != null) {
+            out.write(response.body);
+        }
+        if (!keepAlive || in.available() == 0) {
+            out.flush();
+        }
+    }
+
+    private static String reason(int status) {
+        switch (status) {
+            case 200:
+                return "OK";
+            case 201:
+                return "Created";
+            case 204:
+                return "No Content";
+            case 400:
+                return "Bad Request";
+            case 404:
+                return "Not Found";
+            case 405:
+                return "Method Not Allowed";
+            case 413:
+                return "Payload Too Large";
+            case 501:
+                return "Not Implemented";
+            default:
+                return "Internal Server Error";
+        }
+    }
+
+    /**
+     * @return The next line without its line break, null if the client closed the connection first
+     */
+    private String readLine() throws IOException {
+        StringBuilder line = new StringBuilder();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.length() == 0) {
+                    return null;
+                }
+                throw new EOFException("Connection closed mid-line");
+            }
+            if (line.length() >= MAX_LINE) {
+                throw new IOException("Line too long");
+            }
+            if (b != '\r') {
+                line.append((char) b);
+            }
+        }
+        return line.toString();
+    }
+
+    /**
+     * @return Lower-case header name -> value
+     */
+    private Map<String, String> readHeaders() throws IOException {
+        Map<String, String> headers = new HashMap<>();
+        String line;
+        while ((line = readLine()) != null && !line.isEmpty()) {
+            if (headers.size() >= MAX_HEADERS) {
+                throw new IOException("Too many headers");
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(Locale.ROOT), line.substring(colon + 1).trim());
+            }
+        }
+        return headers;
+    }
+
+    private static List<String> pathSegments(String rawPath) {
+        List<String> segments = new ArrayList<>();
+        for (String segment : rawPath.split("/")) {
+            if (!segment.isEmpty()) {
+                // A plus is a plus in a path, only query strings use it for spaces
+                segments.add(URLDecoder.decode(segment.replace("+", "%2B"), StandardCharsets.UTF_8));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<String, String> parameters(String rawQuery) {
+        Map<String, String> parameters = new HashMap<>();
+        for (String pair : rawQuery.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals >= 0 ? pair.substring(0, equals) : pair;
+            String value = equals >= 0 ? pair.substring(equals + 1) : "";
+            parameters.put(URLDecoder.decode(name, StandardCharsets.UTF_8), URLDecoder.decode(value, StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+}
@@ -0,0 +1,330 @@
+package server;
+
+import models.Document;
+import models.DocumentChange;
+import models.DocumentSnapshot;
+import models.FieldValue;
+import models.FieldVisitor;
+import persistence.BinaryDocumentReader;
+import persistence.BinaryDocumentWriter;
+import query.Filter;
+import query.FilterOperator;
+import query.Query;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.BiFunction;
+
+/**
+ * The binary protocol spoken between {@link SamServer} and {@link SamClient}.
+ *
+ * A client opens the connection with {@link #MAGIC} and a version byte, then sends request
+ * frames. The server answers every request with one response frame, in the order the requests
+ * arrived, so a client may send many requests before reading any answer.
+ *
+ * A frame is a 4-byte big-endian length of the rest of the frame, a 4-byte request ID picked
+ * by the client, an opcode (requests) or status (responses), and a payload in the compact
+ * binary encoding of {@link BinaryDocumentWriter}, whose name dictionary starts over in every
+ * frame. Changes seen by a listener arrive as extra frames with status {@link #EVENT} and the
+ * ID of the LISTEN request that registered it.
+ */
+final class Protocol {
+    /**
+     * First bytes of a binary connection, no HTTP method starts with them
+     */
+    static final byte[] MAGIC = {(byte) 0xB5, 'S', 'A', 'M'};
+    static final int VERSION = 1;
+
+    // Request opcodes
+    static final int PING = 0;
+    static final int GET = 1;
+    static final int SET = 2;
+    static final int UPDATE = 3;
+    static final int DELETE = 4;
+    static final int ADD = 5;
+    static final int QUERY = 6;
+    static final int INCREMENT = 7;
+    static final int LISTEN = 8;
+    static final int UNLISTEN = 9;
+
+    // Response statuses
+    static final int OK = 0;
+    static final int NOT_FOUND = 1;
+    static final int ERROR = 2;
+    static final int EVENT = 3;
+
+    // What a LISTEN request watches
+    static final int LISTEN_DOCUMENT = 0;
+    static final int LISTEN_COLLECTION = 1;
+    static final int LISTEN_QUERY = 2;
+
+    // Written before each field of a write, a plain value or the transform kind's ordinal + 1
+    private static final int PLAIN_VALUE = 0;
+
+    // Length, request ID and code
+    private static final int HEADER_BYTES = 9;
+
+    private Protocol() {
+    }
+
+    /**
+     * A frame being built in memory, so it reaches the socket in a single write
+     */
+    static final class FrameBuilder extends ByteArrayOutputStream {
+        final BinaryDocumentWriter body;
+
+        /**
+         * @param requestId ID of the request, or of the request being answered
+         * @param code Opcode or status
+         */
+        FrameBuilder(int requestId, int code) {
+            super(64);
+            // Length placeholder, filled in by writeFrame
+            count = 4;
+            write(requestId >>> 24);
+            write(requestId >>> 16);
+            write(requestId >>> 8);
+            write(requestId);
+            write(code);
+            this.body = new BinaryDocumentWriter(this);
+        }
+
+        /**
+         * Write the frame, the caller flushes
+         * @param out The connection
+         */
+        void writeFrame(OutputStream out) throws IOException {
+            int length = count - 4;
+            buf[0] = (byte) (length >>> 24);
+            buf[1] = (byte) (length >>> 16);
+            buf[2] = (byte) (length >>> 8);
+            buf[3] = (byte) length;
+            out.write(buf, 0, count);
+        }
+    }
+
+    /**
+     * A frame read from the connection
+     */
+    static final class Frame {
+        final int requestId;
+        final int code;
+        final BinaryDocumentReader body;
+
+        private Frame(int requestId, int code, BinaryDocumentReader body) {
+            this.requestId = requestId;
+            this.code = code;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Read the next frame
+     * @param in The connection
+     * @param maxFrameBytes Largest frame accepted
+     * @return The frame, null if the connection was closed between frames
+     * @throws IOException if the connection fails or the frame is malformed or too large
+     */
+    static Frame readFrame(DataInputStream in, int maxFrameBytes) throws IOException {
+        int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        if (length < HEADER_BYTES - 4 || length > maxFrameBytes) {
+            throw new IOException("Bad frame length " + length);
+        }
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        int requestId = ((frame[0] & 0xFF) << 24) | ((frame[1] & 0xFF) << 16) | ((frame[2] & 0xFF) << 8) | (frame[3] & 0xFF);
+        BinaryDocumentReader body = new BinaryDocumentReader(new ByteArrayInputStream(frame, 5, length - 5));
+        return new Frame(requestId, frame[4] & 0xFF, body);
+    }
+
+    /**
+     * Write one version of a document: ID, version number and fields
+     */
+    static void writeDocument(BinaryDocumentWriter out, DocumentSnapshot document) throws IOException {
+        out.writeString(document.getId());
+        out.writeVarLong(document.getVersion());
+        Map<String, Object> fields = document.getData();
+        out.writeVarLong(fields.size());
+        FieldVisitor.visitAll(fields, (name, value) -> {
+            out.writeName(name);
+            out.writeValue(value);
+        });
+    }
+
+    static DocumentSnapshot readDocument(BinaryDocumentReader in) throws IOException {
+        String id = in.readString();
+        long version = in.readVarLong();
+        int count = (int) in.readVarLong();
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readName();
+            fields.put(name, in.readValue());
+        }
+        return DocumentSnapshot.of(id, version, fields);
+    }
+
+    /**
+     * Write the fields of a write, which may hold {@link FieldValue} transforms
+     */
+    static void writeFields(BinaryDocumentWriter out, Map<String, Object> fields) throws IOException {
+        out.writeVarLong(fields.size());
+        for (Map.Entry<String, Object> field : fields.entrySet()) {
+            out.writeName(field.getKey());
+            if (field.getValue() instanceof FieldValue) {
+                FieldValue transform = (FieldValue) field.getValue();
+                out.writeByte(transform.getKind().ordinal() + 1);
+                out.writeValue(transform.getOperand());
+            } else {
+                out.writeByte(PLAIN_VALUE);
+                out.writeValue(field.getValue());
+            }
+        }
+    }
+
+    static Map<String, Object> readFields(BinaryDocumentReader in) throws IOException {
+        int count = (int) in.readVarLong();
+        Map<String, Object> fields = new LinkedHashMap<>();
+        for (int i = 0; i < count; i++) {
+            String name = in.readName();
+            int kind = in.readByte();
+            Object value = in.readValue();
+            if (kind == PLAIN_VALUE) {
+                fields.put(name, value);
+            } else if (kind <= FieldValue.Kind.values().length) {
+                fields.put(name, transform(FieldValue.Kind.values()[kind - 1], value));
+            } else {
+                throw new IOException("Unknown field kind " + kind);
+            }
+        }
+        return fields;
+    }
+
+    private static FieldValue transform(FieldValue.Kind kind, Object operand) throws IOException {
+        switch (kind) {
+            case INCREMENT:
+                if (operand instanceof Long) {
+                    return FieldValue.increment((Long) operand);
+                }
+                if (operand instanceof Double) {
+                    return FieldValue.increment((Double) operand);
+                }
+                throw new IOException("Increment needs a number");
+            case ARRAY_UNION:
+                return FieldValue.arrayUnion(elements(operand));
+            case ARRAY_REMOVE:
+                return FieldValue.arrayRemove(elements(operand));
+            case SERVER_TIMESTAMP:
+            default:
+                return FieldValue.serverTimestamp();
+        }
+    }
+
+    private static Object[] elements(Object operand) throws IOException {
+        if (!(operand instanceof List)) {
+            throw new IOException("Array transform needs a list");
+        }
+        return ((List<?>) operand).toArray();
+    }
+
+    /**
+     * Write a query
+     * A startAfter cursor is sent as its ID only, the server looks the document up
+     */
+    static void writeQuery(BinaryDocumentWriter out, Query query) throws IOException {
+        out.writeString(query.getCollection());
+        out.writeByte(query.isCollectionGroup() ? 1 : 0);
+        out.writeVarLong(query.getFilters().size());
+        for (Filter filter : query.getFilters()) {
+            out.writeName(filter.getField());
+            out.writeString(filter.getOperator().toString());
+            out.writeValue(filter.getValue());
+        }
+        writeOptionalString(out, query.getOrderByField());
+        out.writeByte(query.isDescending() ? 1 : 0);
+        out.writeVarLong(query.getLimit());
+        writeOptionalString(out, query.getStartAfter() != null ? query.getStartAfter().getId() : null);
+        Set<String> selected = query.getSelectedFields();
+        out.writeVarLong(selected != null ? selected.size() + 1 : 0);
+        if (selected != null) {
+            for (String field : selected) {
+                out.writeName(field);
+            }
+        }
+    }
+
+    /**
+     * @param cursors Looks up a startAfter document by collection and ID, null if missing
+     */
+    static Query readQuery(BinaryDocumentReader in, BiFunction<String, String, Document> cursors) throws IOException {
+        String collection = in.readString();
+        Query query = in.readByte() != 0 ? Query.collectionGroup(collection) : new Query(collection);
+        int filters = (int) in.readVarLong();
+        for (int i = 0; i < filters; i++) {
+            String field = in.readName();
+            FilterOperator operator = FilterOperator.fromSymbol(in.readString());
+            query.where(field, operator, in.readValue());
+        }
+        String orderBy = readOptionalString(in);
+        boolean descending = in.readByte() != 0;
+        if (orderBy != null) {
+            query.orderBy(orderBy, descending);
+        }
+        query.limit((int) Math.min(in.readVarLong(), Integer.MAX_VALUE));
+        String cursor = readOptionalString(in);
+        if (cursor != null) {
+            Document document = cursors.apply(collection, cursor);
+            if (document == null) {
+                throw new IllegalArgumentException("Cursor document " + cursor + " not found");
+            }
+            query.startAfter(document);
+        }
+        int selected = (int) in.readVarLong();
+        if (selected > 0) {
+            String[] fields = new String[selected - 1];
+            for (int i = 0; i < fields.length; i++) {
+                fields[i] = in.readName();
+            }
+            query.select(fields);
+        }
+        return query;
+    }
+
+    /**
+     * Write the changes of one listener delivery
+     */
+    static void writeChanges(BinaryDocumentWriter out, List<DocumentChange> changes) throws IOException {
+        out.writeVarLong(changes.size());
+        for (DocumentChange change : changes) {
+            out.writeByte(change.getType().ordinal());
+            writeDocument(out, change.getDocument());
+        }
+    }
+
+    static List<DocumentChange> readChanges(BinaryDocumentReader in) throws IOException {
+        int count = (int) in.readVarLong();
+        List<DocumentChange> changes = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int type = in.readByte();
+            if (type >= DocumentChange.Type.values().length) {
+                throw new IOException("Unknown change type " + type);
+            }
+            changes.add(new DocumentChange(DocumentChange.Type.values()[type], readDocument(in)));
+        }
+        return changes;
+    }
+
+    private static void writeOptionalString(BinaryDocumentWriter out, String value) throws IOException {
+        out.writeByte(value != null ? 1 : 0);
+        if (value != null) {
+            out.writeString(value);
+        }
+    }
+
+    private static String readOptionalString(BinaryDocumentReader in) throws IOException {
+        return in.readByte() != 0 ? in.readString() : null;
+    }
+}
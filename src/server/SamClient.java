@@ -0,0 +1,456 @@
+package server;
+
+import models.DocumentSnapshot;
+import models.Values;
+import persistence.BinaryDocumentWriter;
+import query.Query;
+import samDatabase.ListenerRegistration;
+import samDatabase.SnapshotListener;
+
+import java.io.*;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Client of a {@link SamServer} speaking the binary protocol over one connection.
+ *
+ * Safe to share between threads. Requests don't wait for the answers to earlier ones: every
+ * *Async method sends its request and returns a future, so many requests can be in flight on
+ * one connection, and requests sent at the same time by several threads go out with one flush.
+ * The other methods wait for their answer.
+ *
+ * Answers and listener deliveries are read by one virtual thread, which completes the futures
+ * and calls the listeners; keep listeners and callbacks on the futures short, or hand the work
+ * off, so they don't hold up the connection.
+ */
+public class SamClient implements AutoCloseable {
+    /**
+     * Writes the payload of a request
+     */
+    private interface Payload {
+        void write(BinaryDocumentWriter out) throws IOException;
+    }
+
+    private final Socket socket;
+    private final DataInputStream in;
+    private final OutputStream out;
+    private final ReentrantLock writeLock;
+    private final AtomicInteger nextRequestId;
+
+    // Request ID -> future of its answer
+    private final Map<Integer, CompletableFuture<Protocol.Frame>> pending;
+
+    // LISTEN request ID -> listener
+    private final Map<Integer, SnapshotListener> listeners;
+
+    private final Thread reader;
+    private volatile IOException failure;
+
+    /**
+     * Connect to a server
+     * @param host Host name or address of the server
+     * @param port Port of the server
+     */
+    public SamClient(String host, int port) throws IOException {
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), SamServer.BUFFER_BYTES));
+        this.out = new BufferedOutputStream(socket.getOutputStream(), SamServer.BUFFER_BYTES);
+        this.writeLock = new ReentrantLock();
+        this.nextRequestId = new AtomicInteger();
+        this.pending = new ConcurrentHashMap<>();
+        this.listeners = new ConcurrentHashMap<>();
+
+        // Goes out with the first request
+        out.write(Protocol.MAGIC);
+        out.write(Protocol.VERSION);
+        this.reader = Thread.ofVirtual().name("sam-client").start(this::readAnswers);
+    }
+
+    /**
+     * Check that the server answers
+     * @return Future completed once it has
+     */
+    public CompletableFuture<Void> pingAsync() {
+        return send(Protocol.PING, body -> {
+        }).thenApply(answer -> {
+            expect(answer, Protocol.OK);
+            return null;
+        });
+    }
+
+    /**
+     * Read a document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return Future of the document's current version, null if not found
+     */
+    public CompletableFuture<DocumentSnapshot> getAsync(String collectionName, String documentId) {
+        return send(Protocol.GET, body -> {
+            body.writeString(collectionName);
+            body.writeString(documentId);
+        }).thenApply(answer -> found(answer) ? read(() -> Protocol.readDocument(answer.body)) : null);
+    }
+
+    /**
+     * Create a document, replacing any document with the same ID
+     * @param collectionName Name of the collection, created if needed
+     * @param documentId ID of the document
+     * @param fields The document's fields, values may be {@link models.FieldValue} transforms
+     * @return Future completed once the write is applied
+     */
+    public CompletableFuture<Void> setAsync(String collectionName, String documentId, Map<String, ?> fields) {
+        Map<String, Object> normalized = Values.normalizeFields(fields);
+        return send(Protocol.SET, body -> {
+            body.writeString(collectionName);
+            body.writeString(documentId);
+            Protocol.writeFields(body, normalized);
+        }).thenApply(answer -> {
+            expect(answer, Protocol.OK);
+            return null;
+        });
+    }
+
+    /**
+     * Set fields of an existing document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param fields Field key -> value or {@link models.FieldValue} transform
+     * @return Future of true if updated, false if the document doesn't exist
+     */
+    public CompletableFuture<Boolean> updateAsync(String collectionName, String documentId, Map<String, ?> fields) {
+        Map<String, Object> normalized = Values.normalizeFields(fields);
+        return send(Protocol.UPDATE, body -> {
+            body.writeString(collectionName);
+            body.writeString(documentId);
+            Protocol.writeFields(body, normalized);
+        }).thenApply(SamClient::found);
+    }
+
+    /**
+     * Delete a document
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @return Future of true if deleted, false if not found
+     */
+    public CompletableFuture<Boolean> deleteAsync(String collectionName, String documentId) {
+        return send(Protocol.DELETE, body -> {
+            body.writeString(collectionName);
+            body.writeString(documentId);
+        }).thenApply(SamClient::found);
+    }
+
+    /**
+     * Create a document with a generated, time-ordered ID
+     * @param collectionName Name of the collection, created if needed
+     * @param fields The document's fields
+     * @return Future of the new document's ID
+     */
+    public CompletableFuture<String> addAsync(String collectionName, Map<String, ?> fields) {
+        Map<String, Object> normalized = Values.normalizeFields(fields);
+        return send(Protocol.ADD, body -> {
+            body.writeString(collectionName);
+            Protocol.writeFields(body, normalized);
+        }).thenApply(answer -> {
+            expect(answer, Protocol.OK);
+            return read(answer.body::readString);
+        });
+    }
+
+    /**
+     * Run a query on the server
+     * A startAfter cursor is sent as its ID and looked up in the queried collection on the server
+     * @param query The query
+     * @return Future of the matching documents in query order
+     */
+    public CompletableFuture<List<DocumentSnapshot>> queryAsync(Query query) {
+        return send(Protocol.QUERY, body -> Protocol.writeQuery(body, query)).thenApply(answer -> {
+            expect(answer, Protocol.OK);
+            return read(() -> {
+                int count = (int) answer.body.readVarLong();
+                List<DocumentSnapshot> documents = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    documents.add(Protocol.readDocument(answer.body));
+                }
+                return documents;
+            });
+        });
+    }
+
+    /**
+     * Add to a numeric field, combined on the server with concurrent increments of other clients
+     * @param collectionName Name of the collection
+     * @param documentId ID of the document
+     * @param field The numeric field
+     * @param delta Amount to add, negative to subtract
+     * @return Future of true if applied, false if the document doesn't exist
+     */
+    public CompletableFuture<Boolean> incrementAsync(String collectionName, String documentId, String field,
+                                                     Number delta) {
+        Object normalized = Values.normalize(delta);
+        return send(Protocol.INCREMENT, body -> {
+            body.writeString(collectionName);
+            body.writeString(documentId);
+            body.writeString(field);
+            body.writeValue(normalized);
+        }).thenApply(SamClient::found);
+    }
+
+    public void ping() {
+        await(pingAsync());
+    }
+
+    /**
+     * @see #getAsync
+     */
+    public DocumentSnapshot get(String collectionName, String documentId) {
+        return await(getAsync(collectionName, documentId));
+    }
+
+    /**
+     * @see #setAsync
+     */
+    public void set(String collectionName, String documentId, Map<String, ?> fields) {
+        await(setAsync(collectionName, documentId, fields));
+    }
+
+    /**
+     * @see #updateAsync
+     */
+    public boolean update(String collectionName, String documentId, Map<String, ?> fields) {
+        return await(updateAsync(collectionName, documentId, fields));
+    }
+
+    /**
+     * @see #deleteAsync
+     */
+    public boolean delete(String collectionName, String documentId) {
+        return await(deleteAsync(collectionName, documentId));
+    }
+
+    /**
+     * @see #addAsync
+     */
+    public String add(String collectionName, Map<String, ?> fields) {
+        return await(addAsync(collectionName, fields));
+    }
+
+    /**
+     * @see #queryAsync
+     */
+    public List<DocumentSnapshot> query(Query query) {
+        return await(queryAsync(query));
+    }
+
+    /**
+     * @see #incrementAsync
+     */
+    public boolean increment(String collectionName, String documentId, String field, Number delta) {
+        return await(incrementAsync(collectionName, documentId, field, delta));
+    }
+
+    /**
+     * Listen to a single document, see {@link samDatabase.SamDatabase#addSnapshotListener(String, String, SnapshotListener)}
+     * @param listener Called on the connection's reader thread
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(String collectionName, String documentId, SnapshotListener listener) {
+        return listen(listener, body -> {
+            body.writeByte(Protocol.LISTEN_DOCUMENT);
+            body.writeString(collectionName);
+            body.writeString(documentId);
+        });
+    }
+
+    /**
+     * Listen to every document of a collection
+     * @param listener Called on the connection's reader thread
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(String collectionName, SnapshotListener listener) {
+        return listen(listener, body -> {
+            body.writeByte(Protocol.LISTEN_COLLECTION);
+            body.writeString(collectionName);
+        });
+    }
+
+    /**
+     * Listen to the results of a query, see {@link samDatabase.SamDatabase#addSnapshotListener(Query, SnapshotListener)}
+     * @param listener Called on the connection's reader thread
+     * @return Handle to stop listening
+     */
+    public ListenerRegistration addSnapshotListener(Query query, SnapshotListener listener) {
+        return listen(listener, body -> {
+            body.writeByte(Protocol.LISTEN_QUERY);
+            Protocol.writeQuery(body, query);
+        });
+    }
+
+    private ListenerRegistration listen(SnapshotListener listener, Payload target) {
+        int requestId = nextRequestId.incrementAndGet();
+        // Registered first, the first delivery may arrive before the answer
+        listeners.put(requestId, listener);
+        try {
+            await(send(requestId, Protocol.LISTEN, target).thenApply(answer -> {
+                expect(answer, Protocol.OK);
+                return null;
+            }));
+        } catch (RuntimeException e) {
+            listeners.remove(requestId);
+            throw e;
+        }
+        return () -> {
+            if (listeners.remove(requestId) != null) {
+                send(Protocol.UNLISTEN, body -> body.writeVarLong(requestId));
+            }
+        };
+    }
+
+    private CompletableFuture<Protocol.Frame> send(int opcode, Payload payload) {
+        return send(nextRequestId.incrementAndGet(), opcode, payload);
+    }
+
+    private CompletableFuture<Protocol.Frame> send(int requestId, int opcode, Payload payload) {
+        CompletableFuture<Protocol.Frame> answer = new CompletableFuture<>();
+        Protocol.FrameBuilder frame = new Protocol.FrameBuilder(requestId, opcode);
+        try {
+            payload.write(frame.body);
+        } catch (IOException e) {
+            // Written to memory, can't happen
+            throw new UncheckedIOException(e);
+        }
+
+        pending.put(requestId, answer);
+        writeLock.lock();
+        try {
+            if (failure != null) {
+                throw failure;
+            }
+            frame.writeFrame(out);
+            // A thread waiting for the lock flushes after its own request, so one flush covers both
+            if (!writeLock.hasQueuedThreads()) {
+                out.flush();
+            }
+        } catch (IOException e) {
+            pending.remove(requestId);
+            answer.completeExceptionally(e);
+        } finally {
+            writeLock.unlock();
+        }
+        // The reader may have failed the pending answers just before this one was added
+        if (failure != null && pending.remove(requestId) != null) {
+            answer.completeExceptionally(failure);
+        }
+        return answer;
+    }
+
+    private void readAnswers() {
+        IOException error;
+        try {
+            Protocol.Frame frame;
+            while ((frame = Protocol.readFrame(in, Integer.MAX_VALUE)) != null) {
+                if (frame.code == Protocol.EVENT) {
+                    deliver(frame);
+                    continue;
+                }
+                CompletableFuture<Protocol.Frame> answer = pending.remove(frame.requestId);
+                if (answer != null) {
+                    answer.complete(frame);
+                }
+            }
+            error = new EOFException("Connection closed");
+        } catch (IOException e) {
+            error = e;
+        }
+        failure = error;
+        for (Integer requestId : pending.keySet()) {
+            CompletableFuture<Protocol.Frame> answer = pending.remove(requestId);
+            if (answer != null) {
+                answer.completeExceptionally(error);
+            }
+        }
+    }
+
+    private void deliver(Protocol.Frame event) throws IOException {
+        SnapshotListener listener = listeners.get(event.requestId);
+        if (listener == null) {
+            // Removed while the delivery was on its way
+            return;
+        }
+        try {
+            listener.onSnapshot(Protocol.readChanges(event.body));
+        } catch (RuntimeException e) {
+            System.err.println("Error in snapshot listener: " + e);
+        }
+    }
+
+    /**
+     * @return true for OK, false for NOT_FOUND
+     * @throws IllegalArgumentException with the server's message if it rejected the request
+     */
+    private static boolean found(Protocol.Frame answer) {
+        if (answer.code == Protocol.NOT_FOUND) {
+            return false;
+        }
+        expect(answer, Protocol.OK);
+        return true;
+    }
+
+    private static void expect(Protocol.Frame answer, int status) {
+        if (answer.code == Protocol.ERROR) {
+            throw new IllegalArgumentException(read(answer.body::readString));
+        }
+        if (answer.code != status) {
+            throw new IllegalStateException("Unexpected status " + answer.code);
+        }
+    }
+
+    private interface Decoder<T> {
+        T read() throws IOException;
+    }
+
+    private static <T> T read(Decoder<T> decoder) {
+        try {
+            return decoder.read();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Malformed answer", e);
+        }
+    }
+
+    /**
+     * Wait for an answer, rethrowing the server's or the connection's error as is
+     */
+    private static <T> T await(CompletableFuture<T> answer) {
+        try {
+            return answer.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof IOException) {
+                throw new UncheckedIOException((IOException) e.getCause());
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Close the connection, requests still waiting for an answer fail
+     */
+    @Override
+    public void close() throws IOException {
+        socket.close();
+        try {
+            reader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package server;
+
+import samDatabase.SamDatabase;
+
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serves a database over the network: HTTP/JSON for any client, and the compact binary
+ * protocol of {@link SamClient}, both on one port.
+ *
+ * Every connection gets its own virtual thread, which reads a request, runs it against the
+ * database and writes the answer, so blocking on the socket or the log costs no platform
+ * thread and tens of thousands of open connections are cheap. Requests a client sends without
+ * waiting for answers are answered in order, and answers to requests that arrived together go
+ * out with one flush. The first byte of a connection tells the two protocols apart.
+ *
+ * HTTP endpoints, with documents as {"id": ..., "version": ..., "data": {...}}:
+ * <pre>
+ * GET    /collections/{collection}/documents?limit=N      list documents
+ * POST   /collections/{collection}/documents              add a document with a generated ID
+ * GET    /collections/{collection}/documents/{id}         read a document
+ * PUT    /collections/{collection}/documents/{id}         create or replace a document
+ * PATCH  /collections/{collection}/documents/{id}         update fields of an existing document
+ * DELETE /collections/{collection}/documents/{id}         delete a document
+ * POST   /query                                           run a query
+ * GET    /listen?collection=C[&amp;document=ID]              stream changes as server-sent events
+ * POST   /listen                                          stream changes to a query's results
+ * </pre>
+ * Field values use the typed JSON of exports, so {"views": {"$increment": 1}} in a PATCH is a transform.
+ * A query is written {"collection": "users", "where": [["age", ">", 25]], "orderBy": "age",
+ * "descending": true, "limit": 10, "startAfter": "u1", "select": ["name"], "collectionGroup": false},
+ * with every key but collection optional.
+ */
+public class SamServer implements AutoCloseable {
+    // Socket buffers per connection, small so idle connections stay cheap
+    static final int BUFFER_BYTES = 2048;
+
+    private final SamDatabase database;
+    private final ServerConfig config;
+    private final ServerSocket serverSocket;
+    private final ExecutorService connections;
+    private final Set<Socket> open;
+    private final Thread acceptor;
+    private volatile boolean closed;
+
+    /**
+     * Start serving on the default port of {@link ServerConfig}
+     * @param database The database to serve, closed by its owner after the server
+     */
+    public SamServer(SamDatabase database) throws IOException {
+        this(database, new ServerConfig());
+    }
+
+    /**
+     * Start serving
+     * @param database The database to serve, closed by its owner after the server
+     * @param config Address, port and limits
+     */
+    public SamServer(SamDatabase database, ServerConfig config) throws IOException {
+        this.database = database;
+        this.config = config;
+        this.serverSocket = new ServerSocket(config.getPort(), config.getBacklog(), config.getBindAddress());
+        this.connections = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("sam-connection-", 0).factory());
+        this.open = ConcurrentHashMap.newKeySet();
+        this.acceptor = Thread.ofVirtual().name("sam-acceptor").start(this::accept);
+    }
+
+    /**
+     * @return The port the server listens on, the chosen one if the config asked for any free port
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * @return Number of open client connections
+     */
+    public int getConnectionCount() {
+        return open.size();
+    }
+
+    private void accept() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    System.err.println("Error accepting connection: " + e.getMessage());
+                    // Likely out of file descriptors, give connections a moment to close
+                    sleep();
+                }
+                continue;
+            }
+            open.add(socket);
+            // Accepted just before close, which may have closed the open connections already
+            if (closed) {
+                closeQuietly(socket);
+                break;
+            }
+            try {
+                connections.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // Closed since the check above
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (socket) {
+            socket.setTcpNoDelay(true);
+            InputStream in = new BufferedInputStream(socket.getInputStream(), BUFFER_BYTES);
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream(), BUFFER_BYTES);
+            in.mark(1);
+            int first = in.read();
+            in.reset();
+            if (first == (Protocol.MAGIC[0] & 0xFF)) {
+                new BinaryConnection(database, config, socket, in, out).serve();
+            } else if (first >= 0) {
+                new HttpConnection(database, config, in, out).serve();
+            }
+        } catch (IOException e) {
+            // The client went away or broke the protocol, only this connection is affected
+        } finally {
+            open.remove(socket);
+        }
+    }
+
+    private void closeQuietly(Socket socket) {
+        open.remove(socket);
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Already broken
+        }
+    }
+
+    private static void sleep() {
+        try {
+            Thread.sleep(10);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Stop accepting connections and close the open ones
+     * Listeners of closed connections are removed, the database stays open
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            System.err.println("Error closing server socket: " + e.getMessage());
+        }
+        for (Socket socket : open) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Already broken
+            }
+        }
+        connections.shutdown();
+        try {
+            acceptor.join();
+            connections.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Serve the database of the working directory until the process is stopped
+     * Usage: java server.SamServer [port]
+     */
+    public static void main(String[] args) throws Exception {
+        ServerConfig config = new ServerConfig();
+        if (args.length > 0) {
+            config.port(Integer.parseInt(args[0]));
+        }
+        SamDatabase database = new SamDatabase();
+        SamServer server = new SamServer(database, config);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            server.close();
+            database.close();
+        }));
+        System.out.println("Sam's Mini Firebase listening on " + config.getBindAddress().getHostAddress()
+                + ":" + server.getPort());
+        // Virtual threads don't keep the JVM alive
+        server.acceptor.join();
+    }
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.net.InetAddress;
+
+/**
+ * Options of a SamServer
+ * Every setter returns this config so options can be chained
+ */
+public class ServerConfig {
+    private InetAddress bindAddress = InetAddress.getLoopbackAddress();
+    private int port = 7070;
+    private int backlog = 4096;
+    private int maxRequestBytes = 16 * 1024 * 1024;
+    private int maxQueuedEvents = 1024;
+
+    /**
+     * @param bindAddress Address to listen on, loopback by default; null for every interface
+     * @return this config
+     */
+    public ServerConfig bindAddress(InetAddress bindAddress) {
+        this.bindAddress = bindAddress;
+        return this;
+    }
+
+    /**
+     * @param port Port serving both HTTP and the binary protocol, 0 for any free port
+     * @return this config
+     */
+    public ServerConfig port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param backlog Connections the OS may queue before they are accepted, capped by the OS
+     * @return this config
+     */
+    public ServerConfig backlog(int backlog) {
+        this.backlog = backlog;
+        return this;
+    }
+
+    /**
+     * @param maxRequestBytes Largest HTTP body or binary frame accepted, larger ones close the connection
+     * @return this config
+     */
+    public ServerConfig maxRequestBytes(int maxRequestBytes) {
+        this.maxRequestBytes = maxRequestBytes;
+        return this;
+    }
+
+    /**
+     * @param maxQueuedEvents Listener deliveries a connection may fall behind by before it is closed
+     * @return this config
+     */
+    public ServerConfig maxQueuedEvents(int maxQueuedEvents) {
+        this.maxQueuedEvents = maxQueuedEvents;
+        return this;
+    }
+
+    public InetAddress getBindAddress() {
+        return bindAddress;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public int getBacklog() {
+        return backlog;
+    }
+
+    public int getMaxRequestBytes() {
+        return maxRequestBytes;
+    }
+
+    public int getMaxQueuedEvents() {
+        return maxQueuedEvents;
+    }
+}
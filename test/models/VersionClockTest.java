@@ -0,0 +1,64 @@
+package models;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes keep exactly the versions an open snapshot can still read
+ */
+class VersionClockTest {
+    private final VersionClock clock = new VersionClock();
+
+    @Test
+    void withoutSnapshotsOnlyTheNewestVersionIsKept() {
+        Document document = document();
+        for (long i = 1; i <= 5; i++) {
+            document.set("views", i);
+        }
+        assertEquals(5L, document.snapshot().get("views"));
+        assertNull(document.snapshot().previous);
+    }
+
+    @Test
+    void openSnapshotKeepsItsVersionUntilClosed() {
+        Document document = document();
+        document.set("views", 1L);
+        long sequence = clock.openSnapshot();
+        document.set("views", 2L);
+        document.set("views", 3L);
+
+        assertEquals(1L, document.snapshotAt(sequence).get("views"));
+        assertEquals(3L, document.snapshot().get("views"));
+
+        clock.closeSnapshot(sequence);
+        document.set("views", 4L);
+        assertNull(document.snapshot().previous);
+        // Nothing older than the newest version is left to read at the closed sequence
+        assertNull(document.snapshotAt(sequence));
+    }
+
+    @Test
+    void versionsOfARunningCommitStayHiddenUntilItEnds() {
+        Document first = document();
+        Document second = document();
+        Commit commit = clock.begin();
+        first.set("views", 1L);
+        second.set("views", 1L);
+        long during = clock.openSnapshot();
+        clock.end(commit);
+        long after = clock.openSnapshot();
+
+        assertNull(first.snapshotAt(during).get("views"));
+        assertNull(second.snapshotAt(during).get("views"));
+        assertEquals(1L, first.snapshotAt(after).get("views"));
+        assertEquals(1L, second.snapshotAt(after).get("views"));
+        assertSame(first.snapshot().commit, second.snapshot().commit);
+    }
+
+    private Document document() {
+        Document document = new Document("d");
+        document.setClock(clock);
+        return document;
+    }
+}
@@ -0,0 +1,71 @@
+package persistence;
+
+import models.FieldValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A checkpoint may be replayed over again after a crash, so the log records behind it must not accumulate
+ */
+class CheckpointerTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void checkpointEmptiesTheLog() {
+        try (SamDatabase db = open()) {
+            db.batch().set("pages", "home", Map.of("views", 1L)).commit();
+            File log = new File(directory, "sam_database.wal");
+            assertTrue(log.length() > 0);
+
+            db.checkpoint();
+            assertEquals(0, log.length());
+            assertFalse(new File(directory, "sam_database.wal.1").exists());
+        }
+        try (SamDatabase db = open()) {
+            assertEquals(1L, db.getDocument("pages", "home").getLong("views"));
+        }
+    }
+
+    @Test
+    void transformsReplayedOverTheirCheckpointApplyOnce() throws IOException {
+        File log = new File(directory, "sam_database.wal");
+        byte[] beforeCheckpoint;
+        try (SamDatabase db = open()) {
+            db.batch().set("pages", "home", Map.of("views", 0L, "tags", List.of("a"))).commit();
+            db.increment("pages", "home", "views", 3);
+            db.updateDocumentField("pages", "home", "views", FieldValue.increment(2));
+            db.updateDocumentField("pages", "home", "tags", FieldValue.arrayUnion("b", "c"));
+            db.updateDocumentField("pages", "home", "tags", FieldValue.arrayRemove("a"));
+            beforeCheckpoint = Files.readAllBytes(log.toPath());
+
+            db.checkpoint();
+            db.increment("pages", "home", "views", 1);
+        }
+        // A crash after the snapshot was written but before the archive was deleted
+        Files.write(new File(directory, "sam_database.wal.1").toPath(), beforeCheckpoint);
+
+        try (SamDatabase db = open()) {
+            assertEquals(6L, db.getDocument("pages", "home").getLong("views"));
+            assertEquals(List.of("b", "c"), db.getDocument("pages", "home").get("tags"));
+        }
+        // The archive is still there, so it is replayed a second time
+        try (SamDatabase db = open()) {
+            assertEquals(6L, db.getDocument("pages", "home").getLong("views"));
+        }
+    }
+
+    private SamDatabase open() {
+        return new SamDatabase(new DatabaseConfig().directory(directory).defaultDurability(Durability.FLUSH));
+    }
+}
@@ -0,0 +1,95 @@
+package persistence;
+
+import models.Bytes;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Fields stored in the mapped segments read back unchanged until freed, across compactions
+ */
+class ColdStoreTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void fieldsReadBackUntilFreed() throws IOException {
+        Map<String, Object> fields = new LinkedHashMap<>();
+        fields.put("name", "Ada");
+        fields.put("age", 36L);
+        fields.put("score", 9.5);
+        fields.put("active", true);
+        fields.put("born", Instant.parse("1815-12-10T00:00:00Z"));
+        fields.put("avatar", Bytes.of(new byte[] {1, 2, 3}));
+        fields.put("tags", List.of("math", 1L));
+        fields.put("address", Map.of("city", "London"));
+
+        try (ColdStore store = new ColdStore(new File(directory, "cold"))) {
+            store.put(7, fields);
+            long size = store.size();
+            assertTrue(size > 0);
+            // Versions never change, so storing one again costs nothing
+            store.put(7, Map.of("other", 1L));
+            assertEquals(size, store.size());
+
+            assertTrue(store.contains(7));
+            assertEquals(fields, store.read(7));
+
+            store.free(7);
+            assertFalse(store.contains(7));
+            assertEquals(0, store.size());
+            assertThrows(IOException.class, () -> store.read(7));
+        }
+    }
+
+    @Test
+    void segmentsLiveOnlyWhileTheStoreIsOpen() throws IOException {
+        File cold = new File(directory, "cold");
+        ColdStore store = new ColdStore(cold);
+        store.put(1, Map.of("n", 1L));
+        store.close();
+        assertFalse(cold.exists());
+
+        // Left behind by a process that didn't close its store
+        assertTrue(cold.mkdirs());
+        assertTrue(new File(cold, "0.segment").createNewFile());
+        try (ColdStore reopened = new ColdStore(cold)) {
+            assertFalse(new File(cold, "0.segment").exists());
+            assertFalse(reopened.contains(1));
+        }
+    }
+
+    @Test
+    void compactionMovesLiveEntriesOutOfSparseSegments() throws IOException {
+        // About 64KB per entry, so a little over a segment's worth fills two segments
+        String padding = "x".repeat(64 * 1024);
+        int entries = 1100;
+        File cold = new File(directory, "cold");
+        try (ColdStore store = new ColdStore(cold)) {
+            for (long key = 0; key < entries; key++) {
+                store.put(key, Map.of("key", key, "padding", padding));
+            }
+            assertTrue(new File(cold, "1.segment").exists());
+            // Most of the first segment becomes garbage
+            for (long key = 0; key < entries; key++) {
+                if (key % 100 != 0) {
+                    store.free(key);
+                }
+            }
+            long live = store.size();
+
+            store.compactIfNeeded();
+            assertFalse(new File(cold, "0.segment").exists());
+            assertEquals(live, store.size());
+            for (long key = 0; key < entries; key += 100) {
+                assertEquals(key, store.read(key).get("key"));
+            }
+        }
+    }
+}
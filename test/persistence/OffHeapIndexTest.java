@@ -0,0 +1,51 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * The off-heap table must agree with a map through growth and tombstone sweeps
+ */
+class OffHeapIndexTest {
+    @Test
+    void randomPutsAndRemovesMatchAMap() {
+        OffHeapIndex index = new OffHeapIndex(16);
+        Map<Long, int[]> expected = new HashMap<>();
+        Random random = new Random(42);
+        for (int i = 0; i < 200_000; i++) {
+            // Sequential-looking keys, like the versions the store uses
+            long key = random.nextInt(20_000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, index.remove(key));
+            } else {
+                int[] location = {random.nextInt(10), random.nextInt(1 << 20), random.nextInt(1 << 16)};
+                index.put(key, location[0], location[1], location[2]);
+                expected.put(key, location);
+            }
+        }
+
+        assertEquals(expected.size(), index.size());
+        for (long key = 0; key < 20_000; key++) {
+            int slot = index.find(key);
+            int[] location = expected.get(key);
+            if (location == null) {
+                assertEquals(-1, slot);
+            } else {
+                assertEquals(location[0], index.segment(slot));
+                assertEquals(location[1], index.offset(slot));
+                assertEquals(location[2], index.length(slot));
+            }
+        }
+        int[] visited = {0};
+        index.forEach((key, segment, offset, length) -> {
+            assertEquals(expected.get(key)[1], offset);
+            visited[0]++;
+        });
+        assertEquals(expected.size(), visited[0]);
+    }
+}
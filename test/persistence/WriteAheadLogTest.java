@@ -0,0 +1,135 @@
+package persistence;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Everything appended to the log is replayed in order, and writes queued together share one fsync
+ */
+class WriteAheadLogTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void replayReturnsRecordsInOrderAndSkipsATornTail() throws IOException {
+        File file = new File(directory, "test.wal");
+        WriteAheadLog log = new WriteAheadLog(file.getPath());
+        log.append(LogRecord.addDocument("users", "u1"));
+        log.appendBatch(List.of(LogRecord.setField("users", "u1", "name", "Ada"),
+                LogRecord.setField("users", "u1", "age", 36L)));
+        log.append(LogRecord.batch(List.of(LogRecord.deleteDocument("users", "u1"),
+                LogRecord.addDocument("users", "u2"))));
+        log.close();
+        // A crash in the middle of the next write
+        Files.writeString(file.toPath(), "{\"op\":\"SET_FIELD\",\"c\":\"us", StandardCharsets.UTF_8,
+                StandardOpenOption.APPEND);
+
+        List<LogRecord> replayed = new ArrayList<>();
+        assertEquals(4, new WriteAheadLog(file.getPath()).replay(replayed::add));
+        assertEquals(LogRecord.Op.ADD_DOCUMENT, replayed.get(0).getOp());
+        assertEquals("Ada", replayed.get(1).getValue());
+        assertEquals(36L, replayed.get(2).getValue());
+        List<LogRecord> batch = replayed.get(3).getRecords();
+        assertEquals(LogRecord.Op.DELETE_DOCUMENT, batch.get(0).getOp());
+        assertEquals("u2", batch.get(1).getDocumentId());
+    }
+
+    @Test
+    void replayReadsTheArchiveOfAnUnfinishedCheckpointFirst() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(new File(directory, "test.wal").getPath());
+        log.append(LogRecord.setField("users", "u1", "age", 1L));
+        log.rotate();
+        log.append(LogRecord.setField("users", "u1", "age", 2L));
+        log.close();
+
+        List<Object> values = new ArrayList<>();
+        log.replay(record -> values.add(record.getValue()));
+        assertEquals(List.of(1L, 2L), values);
+
+        log.deleteArchive();
+        values.clear();
+        log.replay(record -> values.add(record.getValue()));
+        assertEquals(List.of(2L), values);
+    }
+
+    @Test
+    void writesQueuedDuringAnFsyncShareTheNextOne() throws Exception {
+        CountDownLatch syncing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger syncs = new AtomicInteger();
+        WriteAheadLog log = new WriteAheadLog(new File(directory, "test.wal").getPath()) {
+            @Override
+            public synchronized void sync() throws IOException {
+                if (syncs.getAndIncrement() == 0) {
+                    // Hold the first fsync until the other writes are queued behind it
+                    syncing.countDown();
+                    await(release);
+                }
+                super.sync();
+            }
+        };
+        PersistenceWriter writer = new PersistenceWriter(PersistenceMode.WAL, log, null);
+
+        List<CompletableFuture<Void>> futures = new ArrayList<>();
+        futures.add(writer.submit(LogRecord.setField("pages", "p1", "views", 0L), Durability.FSYNC));
+        assertTrue(syncing.await(10, TimeUnit.SECONDS));
+        for (long i = 1; i <= 100; i++) {
+            futures.add(writer.submit(LogRecord.setField("pages", "p1", "views", i), Durability.FSYNC));
+        }
+        release.countDown();
+        for (CompletableFuture<Void> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        writer.close();
+
+        assertEquals(2, syncs.get());
+        List<Object> values = new ArrayList<>();
+        log.replay(record -> values.add(record.getValue()));
+        assertEquals(101, values.size());
+        assertEquals(100L, values.get(100));
+    }
+
+    @Test
+    void databaseAppendsWritesAndReplaysThemOnOpen() {
+        try (SamDatabase db = new SamDatabase(new DatabaseConfig().directory(directory))) {
+            db.batch().set("users", "u1", Map.of("name", "Ada", "age", 36L)).commit();
+            db.updateDocumentField("users", "u1", "age", 37L);
+            db.addDocument("users", "u2").set("name", "Grace");
+            db.deleteDocument("users", "u2");
+        }
+        // Nothing but the log was written
+        assertTrue(new File(directory, "sam_database.wal").length() > 0);
+        assertFalse(new File(directory, "sam_database.samdb").exists());
+
+        try (SamDatabase db = new SamDatabase(new DatabaseConfig().directory(directory))) {
+            assertEquals(37L, db.getDocument("users", "u1").getLong("age"));
+            assertEquals("Ada", db.getDocument("users", "u1").getString("name"));
+            assertNull(db.getDocument("users", "u2"));
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
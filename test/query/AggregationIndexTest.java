@@ -0,0 +1,108 @@
+package query;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import samDatabase.DatabaseConfig;
+import samDatabase.SamDatabase;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A maintained aggregation must always equal the same aggregation computed from scratch
+ */
+class AggregationIndexTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void addsUpdatesAndRemovesMoveEveryAggregate() {
+        try (SamDatabase db = open()) {
+            db.batch().set("users", "u1", Map.of("city", "Paris", "age", 30L))
+                    .set("users", "u2", Map.of("city", "Paris", "age", 50L))
+                    .set("users", "u3", Map.of("city", "Rome", "age", 20L)).commit();
+            AggregationIndex index = db.createAggregation(new Aggregation("users").groupBy("city")
+                    .sum("age").average("age").min("age").max("age"));
+            assertEquals(3, index.count());
+            assertEquals(100L, index.sum("age"));
+            assertEquals(50L, index.max("age"));
+            assertEquals(2, index.group("Paris").getCount());
+
+            db.updateDocumentField("users", "u2", "age", 10L);
+            assertEquals(60L, index.sum("age"));
+            assertEquals(20.0, index.average("age"));
+            assertEquals(10L, index.min("age"));
+            assertEquals(30L, index.max("age"));
+
+            db.updateDocumentField("users", "u3", "city", "Paris");
+            assertNull(index.group("Rome"));
+            assertEquals(3, index.group("Paris").getCount());
+
+            db.deleteDocument("users", "u1");
+            db.batch().set("users", "u4", Map.of("age", 5L)).commit();
+            assertEquals(3, index.count());
+            assertEquals(35L, index.sum("age"));
+            assertEquals(20L, index.max("age"));
+            // Documents without the groupBy field form the null group
+            assertEquals(1, index.group(null).getCount());
+        }
+    }
+
+    @Test
+    void documentsLeavingTheQueryLeaveTheAggregation() {
+        try (SamDatabase db = open()) {
+            Query adults = new Query("users").where("age", FilterOperator.GREATER_THAN_OR_EQUAL, 18L);
+            AggregationIndex index = db.createAggregation(new Aggregation(adults).sum("age"));
+            db.batch().set("users", "u1", Map.of("age", 17L)).commit();
+            assertEquals(0, index.count());
+
+            db.updateDocumentField("users", "u1", "age", 18L);
+            assertEquals(1, index.count());
+            db.updateDocumentField("users", "u1", "age", 16L);
+            assertEquals(0, index.count());
+            assertEquals(0L, index.sum("age"));
+
+            assertTrue(db.dropAggregation(index));
+            db.updateDocumentField("users", "u1", "age", 40L);
+            assertEquals(0, index.count());
+        }
+    }
+
+    @Test
+    void randomWritesKeepTheMaintainedResultEqualToARecomputedOne() {
+        Aggregation aggregation = new Aggregation("items").groupBy("color")
+                .sum("size").average("size").min("size").max("size");
+        String[] colors = {"red", "green", "blue"};
+        Random random = new Random(42);
+        try (SamDatabase db = open()) {
+            AggregationIndex index = db.createAggregation(aggregation);
+            for (int i = 0; i < 2000; i++) {
+                String id = "item-" + random.nextInt(200);
+                int operation = random.nextInt(4);
+                if (operation == 0) {
+                    db.deleteDocument("items", id);
+                } else if (operation == 1) {
+                    db.updateDocumentField("items", id, "color", colors[random.nextInt(colors.length)]);
+                } else {
+                    Map<String, Object> fields = new HashMap<>();
+                    fields.put("color", colors[random.nextInt(colors.length)]);
+                    // Sometimes not a number, which only counts
+                    fields.put("size", random.nextInt(10) == 0 ? "large" : (long) random.nextInt(100));
+                    db.batch().set("items", id, fields).commit();
+                }
+                if (i % 100 == 0) {
+                    assertEquals(db.runAggregation(aggregation).toString(), index.result().toString());
+                }
+            }
+            assertEquals(db.runAggregation(aggregation).toString(), index.result().toString());
+        }
+    }
+
+    private SamDatabase open() {
+        return new SamDatabase(new DatabaseConfig().directory(directory));
+    }
+}
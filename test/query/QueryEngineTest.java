@@ -0,0 +1,94 @@
+package query;
+
+import index.IndexDefinition;
+import index.IndexManager;
+import index.IndexType;
+import models.Document;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+/**
+ * Plans must return exactly what a scan of the whole collection returns
+ */
+class QueryEngineTest {
+    private static final String COLLECTION = "items";
+
+    private final IndexManager indexManager = new IndexManager("unused.indexes");
+    private final QueryEngine engine = new QueryEngine(indexManager);
+    private final Map<String, Document> documents = new HashMap<>();
+
+    @Test
+    void compositeIndexIsNotUsedWithoutClauseOnLastField() {
+        add("with", Map.of("a", 1L, "b", 5L));
+        add("without", Map.of("a", 1L));
+        composite("a", "b");
+
+        Query query = new Query(COLLECTION).where("a", FilterOperator.EQUAL, 1L);
+        assertEquals(Set.of("with", "without"), ids(engine.execute(query, documents)));
+        assertNotEquals("composite:a,b", engine.plan(query, documents).getIndexName());
+    }
+
+    @Test
+    void compositeIndexStillServesRangesOnLastField() {
+        add("low", Map.of("a", 1L, "b", 1L));
+        add("high", Map.of("a", 1L, "b", 9L));
+        add("without", Map.of("a", 1L));
+        composite("a", "b");
+
+        Query query = new Query(COLLECTION).where("a", FilterOperator.EQUAL, 1L)
+                .where("b", FilterOperator.GREATER_THAN, 5L);
+        assertEquals(Set.of("high"), ids(engine.execute(query, documents)));
+        assertEquals("composite:a,b", engine.plan(query, documents).getIndexName());
+    }
+
+    @Test
+    void randomQueriesMatchScanWhenFieldsAreMissing() {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            Map<String, Object> fields = new HashMap<>();
+            for (String field : List.of("a", "b", "c")) {
+                // Every field is missing from about a third of the documents
+                if (random.nextInt(3) > 0) {
+                    fields.put(field, (long) random.nextInt(4));
+                }
+            }
+            add("d" + i, fields);
+        }
+        composite("a", "b");
+        composite("c", "a");
+        indexManager.createIndex(new IndexDefinition(COLLECTION, IndexType.HASH, List.of("b")), documents);
+        indexManager.createIndex(new IndexDefinition(COLLECTION, IndexType.RANGE, List.of("a")), documents);
+
+        FilterOperator[] operators = {FilterOperator.EQUAL, FilterOperator.LESS_THAN, FilterOperator.GREATER_THAN_OR_EQUAL};
+        for (int round = 0; round < 300; round++) {
+            Query query = new Query(COLLECTION);
+            int clauses = 1 + random.nextInt(2);
+            for (int clause = 0; clause < clauses; clause++) {
+                String field = List.of("a", "b", "c").get(random.nextInt(3));
+                query.where(field, operators[random.nextInt(operators.length)], (long) random.nextInt(4));
+            }
+            Set<String> scanned = documents.values().stream().filter(query::matches)
+                    .map(Document::getId).collect(Collectors.toSet());
+            assertEquals(scanned, ids(engine.execute(query, documents)), query.toString());
+        }
+    }
+
+    private void add(String id, Map<String, Object> fields) {
+        Document document = new Document(id);
+        document.update(fields);
+        documents.put(id, document);
+    }
+
+    private void composite(String... fields) {
+        indexManager.createIndex(new IndexDefinition(COLLECTION, IndexType.COMPOSITE, List.of(fields)), documents);
+    }
+
+    private static Set<String> ids(List<Document> results) {
+        return results.stream().map(Document::getId).collect(Collectors.toSet());
+    }
+}
@@ -0,0 +1,82 @@
+package samDatabase;
+
+import models.DocumentSnapshot;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A snapshot reads every document as of the moment it was opened, whatever is written meanwhile
+ */
+class DatabaseSnapshotTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void laterWritesAddsAndDeletesAreInvisible() {
+        try (SamDatabase db = open()) {
+            db.batch().set("users", "u1", Map.of("age", 30L)).set("users", "u2", Map.of("age", 40L)).commit();
+
+            try (DatabaseSnapshot snapshot = db.snapshot()) {
+                db.updateDocumentField("users", "u1", "age", 31L);
+                db.batch().set("users", "u3", Map.of("age", 50L)).commit();
+                db.deleteDocument("users", "u2");
+
+                assertEquals(30L, snapshot.getDocument("users", "u1").getLong("age"));
+                assertEquals(40L, snapshot.getDocument("users", "u2").getLong("age"));
+                assertNull(snapshot.getDocument("users", "u3"));
+                assertEquals(2, snapshot.getDocuments("users").size());
+            }
+
+            assertEquals(31L, db.getDocument("users", "u1").getLong("age"));
+            assertNull(db.getDocument("users", "u2"));
+            try (DatabaseSnapshot snapshot = db.snapshot()) {
+                assertNull(snapshot.getDocument("users", "u2"));
+                assertEquals(2, snapshot.getDocuments("users").size());
+            }
+        }
+    }
+
+    @Test
+    void batchesAreSeenWholeOrNotAtAll() throws Exception {
+        try (SamDatabase db = open()) {
+            db.batch().set("accounts", "a", Map.of("balance", 100L)).set("accounts", "b", Map.of("balance", 0L)).commit();
+            AtomicBoolean running = new AtomicBoolean(true);
+            ExecutorService executor = Executors.newSingleThreadExecutor();
+            try {
+                // Moves money between the accounts, the total never changes
+                Future<?> writer = executor.submit(() -> {
+                    for (long i = 1; running.get(); i++) {
+                        long moved = i % 100;
+                        db.batch().update("accounts", "a", "balance", 100L - moved)
+                                .update("accounts", "b", "balance", moved).commit();
+                    }
+                    return null;
+                });
+                for (int i = 0; i < 20_000; i++) {
+                    try (DatabaseSnapshot snapshot = db.snapshot()) {
+                        DocumentSnapshot a = snapshot.getDocument("accounts", "a");
+                        DocumentSnapshot b = snapshot.getDocument("accounts", "b");
+                        assertEquals(100L, a.getLong("balance") + b.getLong("balance"));
+                    }
+                }
+                running.set(false);
+                writer.get();
+            } finally {
+                executor.shutdown();
+            }
+        }
+    }
+
+    private SamDatabase open() {
+        return new SamDatabase(new DatabaseConfig().directory(directory));
+    }
+}
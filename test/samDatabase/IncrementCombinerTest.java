@@ -0,0 +1,84 @@
+package samDatabase;
+
+import org.junit.jupiter.api.Test;
+import persistence.Durability;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Every caller of the combiner must return, whatever the applier does with its group
+ */
+class IncrementCombinerTest {
+    private static final int THREADS = 8;
+
+    @Test
+    void everyCallerSeesAnErrorThrownByTheApplier() {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger calls = new AtomicInteger();
+        IncrementCombiner combiner = new IncrementCombiner(group -> {
+            if (calls.getAndIncrement() == 0) {
+                // Hold the first group so the other callers pile up behind it
+                blocked.countDown();
+                await(release);
+            }
+            throw new AssertionError("applier failed");
+        });
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+            try {
+                List<Future<?>> futures = new ArrayList<>();
+                futures.add(executor.submit(() -> increment(combiner)));
+                blocked.await();
+                for (int i = 1; i < THREADS; i++) {
+                    futures.add(executor.submit(() -> increment(combiner)));
+                }
+                release.countDown();
+                for (Future<?> future : futures) {
+                    Throwable failure = assertThrows(Exception.class, future::get).getCause();
+                    assertInstanceOf(AssertionError.class, failure);
+                }
+            } finally {
+                executor.shutdownNow();
+                executor.awaitTermination(5, TimeUnit.SECONDS);
+            }
+        });
+    }
+
+    @Test
+    void callersKeepCombiningAfterARuntimeException() {
+        AtomicInteger calls = new AtomicInteger();
+        IncrementCombiner combiner = new IncrementCombiner(group -> {
+            if (calls.getAndIncrement() == 0) {
+                throw new IllegalStateException("first group fails");
+            }
+            group.forEach(increment -> increment.complete(true, null));
+        });
+
+        assertThrows(IllegalStateException.class, () -> increment(combiner));
+        assertTrue(increment(combiner).isApplied());
+    }
+
+    private static IncrementCombiner.Increment increment(IncrementCombiner combiner) {
+        return combiner.increment("pages", "p1", "views", 1L, Durability.ASYNC);
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
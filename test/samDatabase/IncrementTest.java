@@ -0,0 +1,134 @@
+package samDatabase;
+
+import models.FieldValue;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.Durability;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Increments that bypass the commit lock must neither lose each other nor reach the log out of order
+ */
+class IncrementTest {
+    private static final int THREADS = 4;
+    private static final int INCREMENTS = 5000;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void incrementsRacingCommitsAndCheckpointsSurviveAReopen() throws Exception {
+        long inMemory;
+        try (SamDatabase db = open()) {
+            db.batch().set("pages", "home", Map.of("views", 0L)).commit();
+            AtomicBoolean running = new AtomicBoolean(true);
+            AtomicLong committed = new AtomicLong();
+            ExecutorService executor = Executors.newFixedThreadPool(THREADS + 1);
+            try {
+                // Commits changing the same field, so increments keep meeting one that isn't logged yet
+                Future<?> writer = executor.submit(() -> {
+                    for (long i = 0; running.get(); i++) {
+                        db.updateDocumentField("pages", "home", "views", FieldValue.increment(1));
+                        committed.incrementAndGet();
+                        db.batch().set("pages", "other" + i % 10, Map.of("views", i)).commit();
+                    }
+                    return null;
+                });
+                List<Future<?>> incrementers = new ArrayList<>();
+                for (int t = 0; t < THREADS; t++) {
+                    incrementers.add(executor.submit(() -> {
+                        for (int i = 0; i < INCREMENTS; i++) {
+                            assertTrue(db.increment("pages", "home", "views", 1));
+                        }
+                        return null;
+                    }));
+                }
+                for (Future<?> incrementer : incrementers) {
+                    incrementer.get();
+                }
+                running.set(false);
+                writer.get();
+            } finally {
+                executor.shutdown();
+                executor.awaitTermination(10, TimeUnit.SECONDS);
+            }
+            inMemory = db.getDocument("pages", "home").getLong("views");
+            assertEquals((long) THREADS * INCREMENTS + committed.get(), inMemory);
+            assertFalse(db.increment("pages", "missing", "views", 1));
+        }
+
+        try (SamDatabase db = open()) {
+            assertEquals(inMemory, db.getDocument("pages", "home").getLong("views"));
+        }
+    }
+
+    @Test
+    void setAfterIncrementWinsAfterAReopen() {
+        try (SamDatabase db = open()) {
+            db.batch().set("pages", "home", Map.of("views", 5L)).commit();
+            db.increment("pages", "home", "views", 2);
+            db.updateDocumentField("pages", "home", "views", 1L);
+            db.increment("pages", "home", "views", 0.5);
+        }
+        try (SamDatabase db = open()) {
+            assertEquals(1.5, db.getDocument("pages", "home").getDouble("views"));
+        }
+    }
+
+    @Test
+    void incrementWaitsForACommitThatIsNotLoggedYet() throws Exception {
+        AtomicReference<Thread> incrementer = new AtomicReference<>();
+        // Runs on the committing thread once its versions are visible, before it logs them
+        Executor listenerExecutor = task -> {
+            Thread armed = incrementer.getAndSet(null);
+            if (armed != null) {
+                armed.start();
+                join(armed, 200);
+            }
+            task.run();
+        };
+        Thread started;
+        try (SamDatabase db = new SamDatabase(new DatabaseConfig().directory(directory)
+                .defaultDurability(Durability.ASYNC).listenerExecutor(listenerExecutor))) {
+            db.batch().set("pages", "home", Map.of("views", 0L)).commit();
+            db.addSnapshotListener("pages", "home", changes -> { });
+
+            started = new Thread(() -> db.increment("pages", "home", "views", 1));
+            incrementer.set(started);
+            db.batch().update("pages", "home", "views", 10L).commit();
+            join(started, 10_000);
+            assertEquals(11L, db.getDocument("pages", "home").getLong("views"));
+        }
+        try (SamDatabase db = open()) {
+            assertEquals(11L, db.getDocument("pages", "home").getLong("views"));
+        }
+    }
+
+    private static void join(Thread thread, long millis) {
+        try {
+            thread.join(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private SamDatabase open() {
+        // A tiny checkpoint threshold, so the log is compacted while the increments run
+        return new SamDatabase(new DatabaseConfig().directory(directory)
+                .defaultDurability(Durability.ASYNC).checkpointLogBytes(4096));
+    }
+}
@@ -0,0 +1,111 @@
+package samDatabase;
+
+import models.DocumentChange;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.Durability;
+import query.FilterOperator;
+import query.Query;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Listeners get one net change per document since their last delivery, however many writes it took
+ */
+class ListenerManagerTest {
+    @TempDir
+    File directory;
+
+    // Deliveries only run when the test drains them
+    private final Queue<Runnable> deliveries = new ConcurrentLinkedQueue<>();
+    private final List<List<DocumentChange>> delivered = new ArrayList<>();
+
+    @Test
+    void writesBetweenDeliveriesAreCoalesced() {
+        try (SamDatabase db = open()) {
+            db.batch().set("users", "u1", Map.of("age", 30L)).set("users", "u2", Map.of("age", 40L)).commit();
+            db.addSnapshotListener("users", delivered::add);
+            deliver();
+            assertEquals(Set.of("ADDED u1", "ADDED u2"), changes(0));
+
+            for (long age = 31; age <= 35; age++) {
+                db.updateDocumentField("users", "u1", "age", age);
+            }
+            db.batch().set("users", "u3", Map.of("age", 50L)).commit();
+            db.deleteDocument("users", "u2");
+            db.batch().set("users", "u4", Map.of("age", 60L)).commit();
+            db.deleteDocument("users", "u4");
+            deliver();
+
+            assertEquals(2, delivered.size());
+            assertEquals(Set.of("MODIFIED u1", "ADDED u3", "REMOVED u2"), changes(1));
+            DocumentChange modified = delivered.get(1).stream()
+                    .filter(change -> change.getType() == DocumentChange.Type.MODIFIED).findFirst().orElseThrow();
+            assertEquals(35L, modified.getDocument().getLong("age"));
+        }
+    }
+
+    @Test
+    void queryListenersSeeDocumentsEnterAndLeaveTheResults() {
+        try (SamDatabase db = open()) {
+            db.batch().set("users", "u1", Map.of("age", 30L)).set("users", "u2", Map.of("age", 10L)).commit();
+            db.addSnapshotListener(new Query("users").where("age", FilterOperator.GREATER_THAN, 18L), delivered::add);
+            deliver();
+            assertEquals(Set.of("ADDED u1"), changes(0));
+
+            db.updateDocumentField("users", "u2", "age", 20L);
+            db.updateDocumentField("users", "u1", "age", 15L);
+            deliver();
+            assertEquals(Set.of("ADDED u2", "REMOVED u1"), changes(1));
+        }
+    }
+
+    @Test
+    void listenerFarBehindResyncsWithoutLosingChanges() {
+        int added = 10_050;
+        try (SamDatabase db = open()) {
+            db.batch().set("items", "old", Map.of("n", 0L)).commit();
+            db.addSnapshotListener("items", delivered::add);
+            deliver();
+
+            // More distinct documents than a listener keeps pending
+            db.deleteDocument("items", "old");
+            for (int i = 0; i < added; i++) {
+                db.batch().set("items", "item-" + i, Map.of("n", (long) i)).commit();
+            }
+            deliver();
+
+            Set<String> changes = changes(1);
+            assertEquals(added + 1, changes.size());
+            assertTrue(changes.contains("REMOVED old"));
+            assertTrue(changes.contains("ADDED item-" + (added - 1)));
+        }
+    }
+
+    private void deliver() {
+        Runnable delivery;
+        while ((delivery = deliveries.poll()) != null) {
+            delivery.run();
+        }
+    }
+
+    /**
+     * @return The changes of one delivery as "TYPE id"
+     */
+    private Set<String> changes(int delivery) {
+        Set<String> changes = new HashSet<>();
+        for (DocumentChange change : delivered.get(delivery)) {
+            assertTrue(changes.add(change.getType() + " " + change.getDocument().getId()));
+        }
+        return changes;
+    }
+
+    private SamDatabase open() {
+        return new SamDatabase(new DatabaseConfig().directory(directory)
+                .defaultDurability(Durability.ASYNC).listenerExecutor(deliveries::add));
+    }
+}
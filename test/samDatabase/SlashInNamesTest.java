@@ -0,0 +1,56 @@
+package samDatabase;
+
+import models.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import persistence.LogRecord;
+import persistence.WriteAheadLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Nested paths are joined with '/', so a name containing one must never reach the log
+ */
+class SlashInNamesTest {
+    @TempDir
+    File directory;
+
+    @Test
+    void rejectedWritesLeaveTheDatabaseReopenable() {
+        try (SamDatabase db = open()) {
+            db.addDocument("users", "u1").set("name", "Ada");
+            assertThrows(IllegalArgumentException.class, () -> db.addDocument("a/b", "x"));
+            assertThrows(IllegalArgumentException.class, () -> db.addDocument("users", "x/y"));
+            assertThrows(IllegalArgumentException.class, () -> db.createCollection("a/b"));
+            assertThrows(IllegalArgumentException.class, () -> db.batch().set("a/b", "x", Map.of()));
+            Document user = db.getDocument("users", "u1");
+            assertThrows(IllegalArgumentException.class, () -> user.addNestedDocument("posts", "p/1"));
+        }
+
+        try (SamDatabase db = open()) {
+            assertEquals("Ada", db.getDocument("users", "u1").get("name"));
+            assertTrue(db.getDocuments("a/b").isEmpty());
+        }
+    }
+
+    @Test
+    void slashesLoggedBeforeTheCheckAreSkippedOnReplay() throws IOException {
+        WriteAheadLog log = new WriteAheadLog(new File(directory, "sam_database.wal").getPath());
+        log.append(LogRecord.addDocument("users", "u1"));
+        log.append(LogRecord.addDocument("a/b", "x"));
+        log.append(LogRecord.setField("a/b", "x", "field", 1L));
+        log.close();
+
+        try (SamDatabase db = open()) {
+            assertNotNull(db.getDocument("users", "u1"));
+        }
+    }
+
+    private SamDatabase open() {
+        return new SamDatabase(new DatabaseConfig().directory(directory));
+    }
+}
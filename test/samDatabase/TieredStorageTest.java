@@ -0,0 +1,169 @@
+package samDatabase;
+
+import models.Document;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import query.Aggregation;
+import query.FilterOperator;
+import query.Query;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Documents over the memory budget are paged out, and only reads of them bring them back
+ */
+class TieredStorageTest {
+    private static final int DOCUMENTS = 2000;
+    private static final int HOT_DOCUMENTS = 20;
+
+    @TempDir
+    File directory;
+
+    @Test
+    void scansReadPagedOutDocumentsInPlace() throws InterruptedException {
+        try (SamDatabase db = open()) {
+            fill(db);
+            List<String> pagedOut = awaitPagedOut(db);
+            long misses = db.getCacheStats().getMisses();
+
+            Query query = new Query("items").where("group", FilterOperator.EQUAL, 3L).orderBy("rank");
+            List<Document> results = db.runQuery(query);
+            assertEquals(DOCUMENTS / 10, results.size());
+            assertEquals(DOCUMENTS / 10, db.runAggregation(new Aggregation(query).sum("rank")).getCount());
+            String listed = db.streamDocuments("items").map(Document::toString).collect(Collectors.joining());
+            assertTrue(listed.contains("rank=" + (DOCUMENTS - 1)));
+
+            assertEquals(misses, db.getCacheStats().getMisses());
+            for (String id : pagedOut) {
+                assertFalse(db.isResident("items", id), id + " was brought back by a scan");
+            }
+
+            // Reading a result is a use, and brings it back
+            Document cold = db.getDocument("items", pagedOut.get(0));
+            assertEquals(Long.parseLong(pagedOut.get(0).substring(5)), cold.getLong("rank"));
+            assertTrue(db.isResident("items", pagedOut.get(0)));
+            assertEquals(misses + 1, db.getCacheStats().getMisses());
+        }
+    }
+
+    @Test
+    void residentDocumentsStayWithinTheBudgetAndPageBackIn() throws InterruptedException {
+        try (SamDatabase db = open()) {
+            fill(db);
+            List<String> pagedOut = awaitPagedOut(db);
+            CacheStats stats = db.getCacheStats();
+            assertTrue(stats.getResidentBytes() <= stats.getMemoryBudget());
+            assertTrue(stats.getEvictions() >= pagedOut.size());
+            assertTrue(stats.getPagedOutBytes() > 0);
+
+            // A write to a paged-out document keeps its other fields
+            String id = pagedOut.get(0);
+            db.updateDocumentField("items", id, "group", -1L);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                Document item = db.getDocument("items", "item-" + i);
+                assertEquals((long) i, item.getLong("rank"));
+                assertEquals("Item number " + i, item.getString("name"));
+            }
+            assertEquals(-1L, db.getDocument("items", id).getLong("group"));
+            assertTrue(db.getCacheStats().getMisses() >= pagedOut.size());
+        }
+        try (SamDatabase db = open()) {
+            assertEquals(DOCUMENTS, db.getDocuments("items").size());
+            assertEquals("Item number 7", db.getDocument("items", "item-7").getString("name"));
+        }
+    }
+
+    @Test
+    void frequentlyReadDocumentsSurviveAStreamOfNewOnes() throws InterruptedException {
+        try (SamDatabase db = open()) {
+            assertEquals(0, pagedOutHotDocuments(db));
+        }
+    }
+
+    @Test
+    void lruPagesOutFrequentlyReadDocumentsBetweenReads() throws InterruptedException {
+        try (SamDatabase db = open(EvictionPolicy.LRU)) {
+            assertEquals(HOT_DOCUMENTS, pagedOutHotDocuments(db));
+        }
+    }
+
+    /**
+     * Keep reading a few documents while many new ones are written once each
+     * @return How many of the often read documents were paged out after the last writes
+     */
+    private static int pagedOutHotDocuments(SamDatabase db) throws InterruptedException {
+        for (int i = 0; i < HOT_DOCUMENTS; i++) {
+            db.batch().set("hot", "hot-" + i, Map.of("rank", (long) i)).commit();
+        }
+        // Each round writes more than the budget holds
+        for (int round = 0; round < 10; round++) {
+            for (int i = 0; i < HOT_DOCUMENTS; i++) {
+                assertEquals(i, db.getDocument("hot", "hot-" + i).getLong("rank"));
+            }
+            for (int i = 0; i < DOCUMENTS / 10; i++) {
+                int item = round * DOCUMENTS / 10 + i;
+                db.batch().set("items", "item-" + item, Map.of("rank", (long) item, "name", "Item number " + item)).commit();
+            }
+        }
+        awaitEvictions(db);
+
+        int pagedOut = 0;
+        for (int i = 0; i < HOT_DOCUMENTS; i++) {
+            if (!db.isResident("hot", "hot-" + i)) {
+                pagedOut++;
+            }
+        }
+        return pagedOut;
+    }
+
+    private static void fill(SamDatabase db) {
+        for (int i = 0; i < DOCUMENTS; i++) {
+            db.batch().set("items", "item-" + i, Map.of("group", (long) (i % 10), "rank", (long) i,
+                    "name", "Item number " + i)).commit();
+        }
+    }
+
+    /**
+     * Wait for the background evictions to page out some documents
+     * @return IDs of the documents paged out
+     */
+    private static List<String> awaitPagedOut(SamDatabase db) throws InterruptedException {
+        List<String> pagedOut = new ArrayList<>();
+        for (int attempt = 0; attempt < 100 && pagedOut.isEmpty(); attempt++) {
+            Thread.sleep(50);
+            for (int i = 0; i < DOCUMENTS; i++) {
+                if (!db.isResident("items", "item-" + i)) {
+                    pagedOut.add("item-" + i);
+                }
+            }
+        }
+        assertFalse(pagedOut.isEmpty());
+        return pagedOut;
+    }
+
+    /**
+     * Wait until the background evictions stop
+     */
+    private static void awaitEvictions(SamDatabase db) throws InterruptedException {
+        long evictions = -1;
+        for (int attempt = 0; attempt < 100 && evictions != db.getCacheStats().getEvictions(); attempt++) {
+            evictions = db.getCacheStats().getEvictions();
+            Thread.sleep(100);
+        }
+    }
+
+    private SamDatabase open() {
+        return open(EvictionPolicy.W_TINY_LFU);
+    }
+
+    private SamDatabase open(EvictionPolicy evictionPolicy) {
+        return new SamDatabase(new DatabaseConfig().directory(directory)
+                .memoryBudget(64 * 1024).evictionPolicy(evictionPolicy));
+    }
+}
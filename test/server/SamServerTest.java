@@ -0,0 +1,151 @@
+package server;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import models.DocumentChange;
+import models.DocumentSnapshot;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import query.FilterOperator;
+import query.Query;
+import samDatabase.DatabaseConfig;
+import samDatabase.ListenerRegistration;
+import samDatabase.SamDatabase;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Both protocols reach the same database, over a real loopback connection
+ */
+class SamServerTest {
+    @TempDir
+    File directory;
+
+    private SamDatabase database;
+    private SamServer server;
+
+    @BeforeEach
+    void start() throws IOException {
+        database = new SamDatabase(new DatabaseConfig().directory(directory));
+        server = new SamServer(database, new ServerConfig().port(0));
+    }
+
+    @AfterEach
+    void stop() {
+        server.close();
+        database.close();
+    }
+
+    @Test
+    void binaryClientRoundTrip() throws IOException {
+        try (SamClient client = client()) {
+            client.ping();
+            client.set("users", "u1", Map.of("name", "Ada", "age", 36L));
+            DocumentSnapshot user = client.get("users", "u1");
+            assertEquals("Ada", user.getString("name"));
+            assertEquals(database.getDocument("users", "u1").getVersion(), user.getVersion());
+
+            assertTrue(client.update("users", "u1", Map.of("age", 37L)));
+            assertTrue(client.increment("users", "u1", "age", 1));
+            assertEquals(38L, client.get("users", "u1").getLong("age"));
+            assertFalse(client.update("users", "missing", Map.of("age", 1L)));
+            assertNull(client.get("users", "missing"));
+
+            String id = client.add("users", Map.of("name", "Grace", "age", 20L));
+            assertEquals("Grace", database.getDocument("users", id).getString("name"));
+            List<DocumentSnapshot> adults = client.query(new Query("users")
+                    .where("age", FilterOperator.GREATER_THAN, 30L));
+            assertEquals(List.of("u1"), adults.stream().map(DocumentSnapshot::getId).toList());
+
+            assertTrue(client.delete("users", "u1"));
+            assertFalse(client.delete("users", "u1"));
+            assertNull(database.getDocument("users", "u1"));
+        }
+    }
+
+    @Test
+    void binaryListenerReceivesChanges() throws Exception {
+        BlockingQueue<List<DocumentChange>> deliveries = new LinkedBlockingQueue<>();
+        try (SamClient client = client()) {
+            ListenerRegistration registration = client.addSnapshotListener("users", deliveries::add);
+            assertEquals(List.of(), deliveries.poll(10, TimeUnit.SECONDS));
+
+            database.batch().set("users", "u1", Map.of("name", "Ada")).commit();
+            List<DocumentChange> changes = deliveries.poll(10, TimeUnit.SECONDS);
+            assertNotNull(changes);
+            assertEquals(DocumentChange.Type.ADDED, changes.get(0).getType());
+            assertEquals("Ada", changes.get(0).getDocument().getString("name"));
+            registration.remove();
+        }
+    }
+
+    @Test
+    void httpRoundTrip() throws Exception {
+        HttpClient http = HttpClient.newHttpClient();
+        String documents = "http://127.0.0.1:" + server.getPort() + "/collections/users/documents";
+
+        assertEquals(204, send(http, "PUT", documents + "/u1", "{\"name\": \"Ada\", \"age\": 36}").statusCode());
+        HttpResponse<String> read = send(http, "GET", documents + "/u1", null);
+        assertEquals(200, read.statusCode());
+        JsonObject user = JsonParser.parseString(read.body()).getAsJsonObject();
+        assertEquals("u1", user.get("id").getAsString());
+        assertEquals("Ada", user.getAsJsonObject("data").get("name").getAsString());
+
+        assertEquals(204, send(http, "PATCH", documents + "/u1", "{\"age\": {\"$increment\": 1}}").statusCode());
+        assertEquals(37L, database.getDocument("users", "u1").getLong("age"));
+        assertEquals(404, send(http, "PATCH", documents + "/missing", "{\"age\": 1}").statusCode());
+
+        HttpResponse<String> added = send(http, "POST", documents, "{\"name\": \"Grace\", \"age\": 20}");
+        assertEquals(201, added.statusCode());
+        String id = JsonParser.parseString(added.body()).getAsJsonObject().get("id").getAsString();
+        assertEquals("Grace", database.getDocument("users", id).getString("name"));
+
+        HttpResponse<String> query = send(http, "POST", "http://127.0.0.1:" + server.getPort() + "/query",
+                "{\"collection\": \"users\", \"where\": [[\"age\", \">\", 30]]}");
+        assertEquals(200, query.statusCode());
+        assertEquals(1, JsonParser.parseString(query.body()).getAsJsonObject().getAsJsonArray("documents").size());
+        assertEquals(400, send(http, "POST", "http://127.0.0.1:" + server.getPort() + "/query", "{not json").statusCode());
+
+        assertEquals(204, send(http, "DELETE", documents + "/u1", null).statusCode());
+        assertEquals(404, send(http, "GET", documents + "/u1", null).statusCode());
+        assertEquals(405, send(http, "DELETE", documents, null).statusCode());
+    }
+
+    @Test
+    void closeDisconnectsOpenClients() throws Exception {
+        SamClient client = client();
+        client.ping();
+        assertEquals(1, server.getConnectionCount());
+
+        server.close();
+        assertEquals(0, server.getConnectionCount());
+        assertThrows(RuntimeException.class, client::ping);
+        client.close();
+    }
+
+    private SamClient client() throws IOException {
+        return new SamClient("127.0.0.1", server.getPort());
+    }
+
+    private static HttpResponse<String> send(HttpClient http, String method, String url, String body)
+            throws IOException, InterruptedException {
+        HttpRequest request = HttpRequest.newBuilder(URI.create(url))
+                .method(method, body != null ? HttpRequest.BodyPublishers.ofString(body) : HttpRequest.BodyPublishers.noBody())
+                .build();
+        return http.send(request, HttpResponse.BodyHandlers.ofString());
+    }
+}